@@ -26,6 +26,8 @@ import android.util.Log;
 
 import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
 import com.googlecode.eyesfree.utils.LogUtils;
+import com.googlecode.eyesfree.utils.NodeTreeSnapshot;
+import com.googlecode.eyesfree.utils.NodeTreeSnapshotCache;
 import com.googlecode.eyesfree.utils.WebInterfaceUtils;
 
 import java.util.ArrayList;
@@ -431,6 +433,25 @@ public class CursorGranularityManager {
             return 0;
         }
 
+        final NodeTreeSnapshot snapshot = NodeTreeSnapshotCache.getInstance().getSnapshot(root);
+
+        return extractNavigableNodes(context, snapshot, root, nodes);
+    }
+
+    /**
+     * Extract the child nodes from the given root and adds them to the supplied
+     * list of nodes, reading children from the snapshot when possible.
+     *
+     * @param snapshot A snapshot of the window containing the root node, or
+     *            {@code null} to read children from the live tree.
+     * @param root The root node.
+     * @param nodes The list of child nodes.
+     * @return The mask of supported all granularities supported by the root and
+     *         child nodes.
+     */
+    private static int extractNavigableNodes(Context context, NodeTreeSnapshot snapshot,
+            AccessibilityNodeInfoCompat root, ArrayList<AccessibilityNodeInfoCompat> nodes) {
+
         if (nodes != null) {
             nodes.add(AccessibilityNodeInfoCompat.obtain(root));
         }
@@ -442,6 +463,19 @@ public class CursorGranularityManager {
             return supportedGranularities;
         }
 
+        final int rootIndex = (snapshot != null) ? snapshot.indexOf(root)
+                : NodeTreeSnapshot.NO_NODE;
+        if ((rootIndex != NodeTreeSnapshot.NO_NODE) && snapshot.isComplete(rootIndex)) {
+            for (int i = snapshot.getFirstChild(rootIndex); i != NodeTreeSnapshot.NO_NODE;
+                    i = snapshot.getNextSibling(i)) {
+                final AccessibilityNodeInfoCompat child = snapshot.obtainNode(i);
+                supportedGranularities |= extractNavigableChild(context, snapshot, child, nodes);
+                child.recycle();
+            }
+
+            return supportedGranularities;
+        }
+
         final int childCount = root.getChildCount();
         for (int i = 0; i < childCount; i++) {
             final AccessibilityNodeInfoCompat child = root.getChild(i);
@@ -449,16 +483,29 @@ public class CursorGranularityManager {
                 continue;
             }
 
-            child.performAction(AccessibilityNodeInfoCompat.ACTION_SET_SELECTION, null);
-
-            // Only extract nodes that aren't reachable by traversal.
-            if (!AccessibilityNodeInfoUtils.shouldFocusNode(context, child)) {
-                supportedGranularities |= extractNavigableNodes(context, child, nodes);
-            }
-
+            supportedGranularities |= extractNavigableChild(context, snapshot, child, nodes);
             child.recycle();
         }
 
         return supportedGranularities;
     }
+
+    /**
+     * Clears the selection on a child node and extracts its navigable
+     * children if it isn't reachable by traversal.
+     *
+     * @return The mask of granularities supported by the child and its
+     *         navigable children.
+     */
+    private static int extractNavigableChild(Context context, NodeTreeSnapshot snapshot,
+            AccessibilityNodeInfoCompat child, ArrayList<AccessibilityNodeInfoCompat> nodes) {
+        child.performAction(AccessibilityNodeInfoCompat.ACTION_SET_SELECTION, null);
+
+        // Only extract nodes that aren't reachable by traversal.
+        if (!AccessibilityNodeInfoUtils.shouldFocusNode(context, child)) {
+            return extractNavigableNodes(context, snapshot, child, nodes);
+        }
+
+        return 0;
+    }
 }
\ No newline at end of file
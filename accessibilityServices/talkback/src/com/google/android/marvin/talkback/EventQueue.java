@@ -17,19 +17,25 @@
 package com.google.android.marvin.talkback;
 
 import android.support.v4.view.accessibility.AccessibilityEventCompat;
-import android.util.SparseIntArray;
+import android.support.v4.view.accessibility.AccessibilityRecordCompat;
 import android.view.accessibility.AccessibilityEvent;
 
+import com.googlecode.eyesfree.compat.CompatUtils;
 import com.googlecode.eyesfree.compat.view.accessibility.AccessibilityEventCompatUtils;
-import com.googlecode.eyesfree.utils.AccessibilityEventUtils;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.lang.reflect.Method;
+import java.util.Arrays;
 
 /**
  * This class is a queue that tracks events that TalkBack will process. This
  * queue self-prunes events that exceed a maximum threshold for certain event
- * types.
+ * types and coalesces redundant events from the same source.
+ * <p>
+ * Events are stored in a ring buffer. Each slot is also linked into a chain of
+ * slots holding events of the same type, so the oldest and newest events of a
+ * given type can be found in constant time. Events removed from the middle of
+ * the queue leave an empty slot that is skipped when it reaches the head.
+ * </p>
  *
  * @author caseyburkhardt@google.com (Casey Burkhardt)
  */
@@ -50,34 +56,111 @@ class EventQueue {
             AccessibilityEventCompat.TYPE_VIEW_ACCESSIBILITY_FOCUSED;
 
     /**
-     * The list responsible for maintaining events in the event queue.
+     * The types of events that replace the newest queued event when both have
+     * the same type and come from the same source.
      */
-    private final ArrayList<AccessibilityEvent> mEventQueue = new ArrayList<AccessibilityEvent>();
+    private static final int MASK_COALESCED_EVENT_TYPES =
+            AccessibilityEventCompat.TYPE_VIEW_SCROLLED |
+            AccessibilityEventCompat.TYPE_WINDOW_CONTENT_CHANGED;
 
-    /**
-     * The current number of events in the queue for each event type that match
-     * a type defined in {@code MASK_LIMITED_EVENT_TYPES}.
-     */
-    private final SparseIntArray mQualifyingEvents = new SparseIntArray();
+    /** The initial number of slots in the ring buffer. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The number of distinct single-bit event types. */
+    private static final int EVENT_TYPE_BIT_COUNT = 32;
+
+    /** Slot index used to terminate event type chains. */
+    private static final int NO_SLOT = -1;
+
+    /** Value returned when an event's source node ID is unavailable. */
+    private static final long NO_ID = Long.MIN_VALUE;
+
+    /** Hidden method returning the ID of an event's source within its window. */
+    private static final Method METHOD_getSourceNodeId = CompatUtils.getMethod(
+            CompatUtils.getClass("android.view.accessibility.AccessibilityRecord"),
+            "getSourceNodeId");
+
+    /** Ring buffer of queued events. Removed events leave {@code null} slots. */
+    private AccessibilityEvent[] mEvents = new AccessibilityEvent[INITIAL_CAPACITY];
+
+    /** For each slot, the next newer slot holding an event of the same type. */
+    private int[] mNextOfType = new int[INITIAL_CAPACITY];
+
+    /** For each slot, the next older slot holding an event of the same type. */
+    private int[] mPreviousOfType = new int[INITIAL_CAPACITY];
+
+    /** For each event type bit, the slot holding the oldest event of that type. */
+    private final int[] mFirstOfType = new int[EVENT_TYPE_BIT_COUNT];
+
+    /** For each event type bit, the slot holding the newest event of that type. */
+    private final int[] mLastOfType = new int[EVENT_TYPE_BIT_COUNT];
+
+    /** For each event type bit, the number of queued events of that type. */
+    private final int[] mCountOfType = new int[EVENT_TYPE_BIT_COUNT];
+
+    /** The slot holding the oldest event, which may be an empty slot. */
+    private int mHead;
+
+    /** The number of slots between the head and tail, including empty slots. */
+    private int mSlotCount;
+
+    /** The number of events in the queue. */
+    private int mSize;
+
+    /** The number of events pruned because their type exceeded its limit. */
+    private int mDroppedEventCount;
+
+    /** The number of events replaced by a newer event from the same source. */
+    private int mCoalescedEventCount;
+
+    public EventQueue() {
+        resetTypeChains();
+    }
 
     /**
      * Adds an {@link AccessibilityEvent} to the queue for processing. If this
      * addition causes the queue to exceed the maximum allowable events for an
      * event's type, earlier events of this type will be pruned from the queue.
+     * If the newest queued event has the same type and source, the event
+     * replaces it in place, so the order of other events is preserved.
      *
      * @param event The event to add to the queue
      */
     public void enqueue(AccessibilityEvent event) {
         final AccessibilityEvent clone = AccessibilityEventCompatUtils.obtain(event);
         final int eventType = clone.getEventType();
+        final int typeBit = getTypeBit(eventType);
 
-        if (AccessibilityEventUtils.eventMatchesAnyType(clone, MASK_LIMITED_EVENT_TYPES)) {
-            final int eventCountOfType = mQualifyingEvents.get(eventType, 0);
-            mQualifyingEvents.put(eventType, (eventCountOfType + 1));
+        if ((typeBit != NO_SLOT) && ((eventType & MASK_COALESCED_EVENT_TYPES) != 0)
+                && (mSlotCount > 0)) {
+            final int tailSlot = (mHead + mSlotCount - 1) % mEvents.length;
+            if ((mLastOfType[typeBit] == tailSlot)
+                    && isSameSource(mEvents[tailSlot], clone)) {
+                mEvents[tailSlot].recycle();
+                mEvents[tailSlot] = clone;
+                mCoalescedEventCount++;
+                return;
+            }
         }
 
-        mEventQueue.add(clone);
-        enforceEventLimits();
+        if (mSlotCount == mEvents.length) {
+            compact();
+        }
+
+        final int slot = (mHead + mSlotCount) % mEvents.length;
+        mEvents[slot] = clone;
+        mSlotCount++;
+        mSize++;
+
+        if (typeBit != NO_SLOT) {
+            appendToTypeChain(slot, typeBit);
+
+            if (((eventType & MASK_LIMITED_EVENT_TYPES) != 0)
+                    && (mCountOfType[typeBit] > MAXIMUM_QUALIFYING_EVENTS)) {
+                removeSlot(mFirstOfType[typeBit]);
+                mDroppedEventCount++;
+            }
+        }
     }
 
     /**
@@ -86,18 +169,24 @@ class EventQueue {
      * @return The event at the front of the queue.
      */
     public AccessibilityEvent dequeue() {
-        if (mEventQueue.isEmpty()) {
+        skipEmptySlots();
+
+        if (mSlotCount == 0) {
             return null;
         }
 
-        final AccessibilityEvent event = mEventQueue.remove(0);
+        final int slot = mHead;
+        final AccessibilityEvent event = mEvents[slot];
+        final int typeBit = getTypeBit(event.getEventType());
 
-        if (event != null
-                && AccessibilityEventUtils.eventMatchesAnyType(event, MASK_LIMITED_EVENT_TYPES)) {
-            final int eventType = event.getEventType();
-            final int eventCountOfType = mQualifyingEvents.get(eventType, 0);
-            mQualifyingEvents.put(eventType, (eventCountOfType - 1));
+        if (typeBit != NO_SLOT) {
+            unlinkFromTypeChain(slot, typeBit);
         }
+
+        mEvents[slot] = null;
+        mSize--;
+        advanceHead();
+
         return event;
     }
 
@@ -105,8 +194,17 @@ class EventQueue {
      * Clears the event queue and discards all events waiting for processing.
      */
     public void clear() {
-        mEventQueue.clear();
-        mQualifyingEvents.clear();
+        for (int i = 0; i < mEvents.length; i++) {
+            if (mEvents[i] != null) {
+                mEvents[i].recycle();
+                mEvents[i] = null;
+            }
+        }
+
+        mHead = 0;
+        mSlotCount = 0;
+        mSize = 0;
+        resetTypeChains();
     }
 
     /**
@@ -115,44 +213,167 @@ class EventQueue {
      * @return {@code true} if the queue is empty, {@code false} otherwise
      */
     public boolean isEmpty() {
-        return mEventQueue.isEmpty();
+        return (mSize == 0);
     }
 
     /**
-     * Enforces that the event queue has no more than
-     * {@code MAXIMUM_QUALIFYING_EVENTS} events of each type defined by
-     * {@code MASK_LIMITED_EVENT_TYPES}. The excessive events are pruned by
-     * removing the oldest event first.
+     * @return The number of events pruned from the queue because too many
+     *         events of their type were waiting for processing.
      */
-    private void enforceEventLimits() {
-        int eventTypesToPrune = 0;
-        // Locate event types which exceed the allowable limit
-        for (int i = 0; i < mQualifyingEvents.size(); i++) {
-            final int eventType = mQualifyingEvents.keyAt(i);
-            final int eventsOfType = mQualifyingEvents.valueAt(i);
-            if (eventsOfType > MAXIMUM_QUALIFYING_EVENTS) {
-                eventTypesToPrune |= eventType;
-            }
+    public int getDroppedEventCount() {
+        return mDroppedEventCount;
+    }
+
+    /**
+     * @return The number of events replaced in the queue by a newer event of
+     *         the same type from the same source.
+     */
+    public int getCoalescedEventCount() {
+        return mCoalescedEventCount;
+    }
+
+    /**
+     * Removes the event in the specified slot from the middle of the queue and
+     * recycles it, leaving an empty slot.
+     */
+    private void removeSlot(int slot) {
+        final AccessibilityEvent event = mEvents[slot];
+        final int typeBit = getTypeBit(event.getEventType());
+
+        if (typeBit != NO_SLOT) {
+            unlinkFromTypeChain(slot, typeBit);
         }
 
-        final Iterator<AccessibilityEvent> iterator = mEventQueue.iterator();
-        while (iterator.hasNext() && (eventTypesToPrune != 0)) {
-            final AccessibilityEvent next = iterator.next();
+        mEvents[slot] = null;
+        mSize--;
+        event.recycle();
+
+        skipEmptySlots();
+    }
+
+    private void appendToTypeChain(int slot, int typeBit) {
+        final int lastSlot = mLastOfType[typeBit];
 
-            // Prune offending events
-            if (AccessibilityEventUtils.eventMatchesAnyType(next, eventTypesToPrune)) {
-                final int eventType = next.getEventType();
-                int eventCountOfType = mQualifyingEvents.get(eventType, 0);
-                eventCountOfType--;
-                mQualifyingEvents.put(eventType, eventCountOfType);
-                iterator.remove();
+        mPreviousOfType[slot] = lastSlot;
+        mNextOfType[slot] = NO_SLOT;
 
-                // Stop pruning further events of this type if the number of
-                // events is below the limit
-                if (eventCountOfType <= MAXIMUM_QUALIFYING_EVENTS) {
-                    eventTypesToPrune &= ~eventType;
-                }
+        if (lastSlot == NO_SLOT) {
+            mFirstOfType[typeBit] = slot;
+        } else {
+            mNextOfType[lastSlot] = slot;
+        }
+
+        mLastOfType[typeBit] = slot;
+        mCountOfType[typeBit]++;
+    }
+
+    private void unlinkFromTypeChain(int slot, int typeBit) {
+        final int previousSlot = mPreviousOfType[slot];
+        final int nextSlot = mNextOfType[slot];
+
+        if (previousSlot == NO_SLOT) {
+            mFirstOfType[typeBit] = nextSlot;
+        } else {
+            mNextOfType[previousSlot] = nextSlot;
+        }
+
+        if (nextSlot == NO_SLOT) {
+            mLastOfType[typeBit] = previousSlot;
+        } else {
+            mPreviousOfType[nextSlot] = previousSlot;
+        }
+
+        mCountOfType[typeBit]--;
+    }
+
+    private void resetTypeChains() {
+        Arrays.fill(mFirstOfType, NO_SLOT);
+        Arrays.fill(mLastOfType, NO_SLOT);
+        Arrays.fill(mCountOfType, 0);
+    }
+
+    private void advanceHead() {
+        mHead = (mHead + 1) % mEvents.length;
+        mSlotCount--;
+    }
+
+    private void skipEmptySlots() {
+        while ((mSlotCount > 0) && (mEvents[mHead] == null)) {
+            advanceHead();
+        }
+    }
+
+    /**
+     * Moves all queued events to the start of the ring buffer, discarding
+     * empty slots, and grows the buffer if more than half of it is in use.
+     */
+    private void compact() {
+        final int capacity = mEvents.length;
+        final int newCapacity = (mSize * 2 > capacity) ? (capacity * 2) : capacity;
+        final AccessibilityEvent[] events = new AccessibilityEvent[newCapacity];
+        int count = 0;
+
+        for (int i = 0; i < mSlotCount; i++) {
+            final AccessibilityEvent event = mEvents[(mHead + i) % capacity];
+            if (event != null) {
+                events[count++] = event;
+            }
+        }
+
+        mEvents = events;
+        mNextOfType = new int[newCapacity];
+        mPreviousOfType = new int[newCapacity];
+        mHead = 0;
+        mSlotCount = count;
+        resetTypeChains();
+
+        for (int slot = 0; slot < count; slot++) {
+            final int typeBit = getTypeBit(events[slot].getEventType());
+            if (typeBit != NO_SLOT) {
+                appendToTypeChain(slot, typeBit);
             }
         }
     }
+
+    /**
+     * Returns whether two events of the same type were sent by the same view,
+     * comparing their windows and source node IDs. Events whose source node
+     * ID is unavailable are never considered the same source.
+     */
+    private static boolean isSameSource(AccessibilityEvent first, AccessibilityEvent second) {
+        final long firstId = getSourceNodeId(first);
+        if ((firstId == NO_ID) || (firstId != getSourceNodeId(second))) {
+            return false;
+        }
+
+        final AccessibilityRecordCompat firstRecord = new AccessibilityRecordCompat(first);
+        final AccessibilityRecordCompat secondRecord = new AccessibilityRecordCompat(second);
+
+        return (firstRecord.getWindowId() == secondRecord.getWindowId());
+    }
+
+    /**
+     * Returns the ID of an event's source within its window, or
+     * {@link #NO_ID} if the platform doesn't expose one.
+     */
+    private static long getSourceNodeId(AccessibilityEvent event) {
+        final Object id = CompatUtils.invoke(event, null, METHOD_getSourceNodeId);
+        if (!(id instanceof Long)) {
+            return NO_ID;
+        }
+
+        return (Long) id;
+    }
+
+    /**
+     * @return The bit position of a single-bit event type, or {@link #NO_SLOT}
+     *         if the event type is not a single bit.
+     */
+    private static int getTypeBit(int eventType) {
+        if (Integer.bitCount(eventType) != 1) {
+            return NO_SLOT;
+        }
+
+        return Integer.numberOfTrailingZeros(eventType);
+    }
 }
@@ -20,82 +20,198 @@ import android.os.Bundle;
 
 import com.google.android.marvin.talkback.SpeechController.SpeechParam;
 
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.Set;
 
 /**
  * Represents a fragment of feedback included within a {@link FeedbackItem}. It
  * must contain speech with optional earcons and haptic feedback.
+ * <p>
+ * Speech and non-speech parameters are stored as primitive values, which are
+ * read from the {@link Bundle}s supplied by callers once when the fragment is
+ * populated. Instances are cached in a pool and should be obtained using
+ * {@link #obtain(CharSequence)} and returned using {@link #recycle()}.
  *
  * @author caseyburkhardt@google.com (Casey Burkhardt)
  */
 public class FeedbackFragment {
+    /** The maximum size of the pool of cached fragments. */
+    private static final int MAX_POOL_SIZE = 16;
+
+    /** The initial capacity of the earcon and haptic arrays. */
+    private static final int INITIAL_FEEDBACK_CAPACITY = 4;
+
+    /** Lock for accessing the fragment pool. */
+    private static final Object sPoolLock = new Object();
+
+    /** Pool of cached fragments. */
+    private static FeedbackFragment sPool;
+
+    /** The current size of the fragment pool. */
+    private static int sPoolSize;
+
+    /** The number of fragments that could not be obtained from the pool. */
+    private static int sAllocationCount;
 
     /** Text to be spoken when processing this fragment */
     private CharSequence mText;
 
     /**
-     * Set of resource IDs indicating the auditory icons to be played when this
-     * fragment is processed
+     * Resource IDs indicating the auditory icons to be played when this
+     * fragment is processed. Only the first {@link #mEarconCount} entries are
+     * valid.
      */
-    private Set<Integer> mEarcons;
+    private int[] mEarcons = new int[INITIAL_FEEDBACK_CAPACITY];
 
-    /**
-     * Set of resource IDs indicating the haptic patterns to be generated when
-     * this fragment is processed
-     */
-    private Set<Integer> mHaptics;
+    /** The number of valid entries in {@link #mEarcons}. */
+    private int mEarconCount;
 
     /**
-     * {@link SpeechController.SpeechParam} fields used for altering various
-     * properties on the speech feedback for this fragment.
-     *
-     * @see SpeechParam#PAN
-     * @see SpeechParam#PITCH
-     * @see SpeechParam#RATE
-     * @see SpeechParam#VOLUME
+     * Resource IDs indicating the haptic patterns to be generated when this
+     * fragment is processed. Only the first {@link #mHapticCount} entries are
+     * valid.
      */
-    private Bundle mSpeechParams;
+    private int[] mHaptics = new int[INITIAL_FEEDBACK_CAPACITY];
+
+    /** The number of valid entries in {@link #mHaptics}. */
+    private int mHapticCount;
+
+    /** The pitch scale factor for speech. See {@link SpeechParam#PITCH}. */
+    private float mPitch;
+
+    /** The rate scale factor for speech. See {@link SpeechParam#RATE}. */
+    private float mRate;
+
+    /** The volume scale factor for speech. See {@link SpeechParam#VOLUME}. */
+    private float mVolume;
+
+    /** The pan for speech. See {@link SpeechParam#PAN}. */
+    private float mPan;
+
+    /** The rate scale factor for earcons. */
+    private float mEarconRate;
+
+    /** The volume scale factor for earcons. */
+    private float mEarconVolume;
+
+    /** The next cached fragment. */
+    private FeedbackFragment mNext;
+
+    /** Denotes if a fragment is currently in the cache pool. */
+    private boolean mIsInPool;
+
+    private FeedbackFragment() {
+        clear();
+    }
 
     /**
-     * {@link Utterance} metadata parameters used for altering various
-     * properties on the non-speech feedback for this fragment.
+     * Returns a cached fragment if one is available or instantiates a new one,
+     * and sets its text. All other properties are set to their defaults.
      *
-     * @see Utterance#KEY_METADATA_EARCON_RATE
-     * @see Utterance#KEY_METADATA_EARCON_VOLUME
+     * @param text The text to be spoken.
+     * @return A fragment.
      */
-    private Bundle mNonSpeechParams;
+    public static FeedbackFragment obtain(CharSequence text) {
+        FeedbackFragment fragment = null;
+
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                fragment = sPool;
+                sPool = sPool.mNext;
+                sPoolSize--;
+                fragment.mNext = null;
+                fragment.mIsInPool = false;
+            } else {
+                sAllocationCount++;
+            }
+        }
+
+        if (fragment == null) {
+            fragment = new FeedbackFragment();
+        }
 
-    public FeedbackFragment(CharSequence text, Bundle speechParams) {
-        this(text, null, null, speechParams, null);
+        fragment.mText = text;
+        return fragment;
     }
 
-    public FeedbackFragment(CharSequence text, Set<Integer> earcons, Set<Integer> haptics,
-            Bundle speechParams, Bundle nonSpeechParams) {
-        mText = text;
+    /**
+     * Returns a fragment with the specified text and properties.
+     *
+     * @param text The text to be spoken.
+     * @param earcons The earcons to play, or {@code null} for none.
+     * @param haptics The haptic patterns to produce, or {@code null} for none.
+     * @param speechParams The {@link SpeechParam} parameters, or {@code null}
+     *            to use the defaults.
+     * @param nonSpeechParams The {@link Utterance} non-speech parameters, or
+     *            {@code null} to use the defaults.
+     * @return A fragment.
+     */
+    public static FeedbackFragment obtain(CharSequence text, Set<Integer> earcons,
+            Set<Integer> haptics, Bundle speechParams, Bundle nonSpeechParams) {
+        final FeedbackFragment fragment = obtain(text);
 
-        mEarcons = new HashSet<Integer>();
         if (earcons != null) {
-            mEarcons.addAll(earcons);
+            for (int id : earcons) {
+                fragment.addEarcon(id);
+            }
         }
 
-        mHaptics = new HashSet<Integer>();
         if (haptics != null) {
-            mHaptics.addAll(haptics);
+            for (int id : haptics) {
+                fragment.addHaptic(id);
+            }
+        }
+
+        fragment.setSpeechParams(speechParams);
+        fragment.setNonSpeechParams(nonSpeechParams);
+
+        return fragment;
+    }
+
+    /**
+     * Returns the number of fragments that have been instantiated because the
+     * pool was empty. Used to measure allocations per spoken item.
+     *
+     * @return The number of fragments instantiated.
+     */
+    static int getAllocationCount() {
+        synchronized (sPoolLock) {
+            return sAllocationCount;
         }
+    }
 
-        mSpeechParams = new Bundle(Bundle.EMPTY);
-        if (speechParams != null) {
-            mSpeechParams.putAll(speechParams);
+    /**
+     * Returns this fragment to the pool.
+     * <p>
+     * <b>Note: You must not touch the object after calling this function.</b>
+     */
+    public void recycle() {
+        if (mIsInPool) {
+            return;
         }
 
-        mNonSpeechParams = new Bundle(Bundle.EMPTY);
-        if (nonSpeechParams != null) {
-            mNonSpeechParams.putAll(nonSpeechParams);
+        clear();
+
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                mIsInPool = true;
+                sPoolSize++;
+            }
         }
     }
 
+    /**
+     * Resets all properties of this fragment to their defaults.
+     */
+    private void clear() {
+        mText = null;
+        mEarconCount = 0;
+        mHapticCount = 0;
+        clearSpeechParams();
+        clearNonSpeechParams();
+    }
+
     /**
      * @return The text of this fragment
      */
@@ -111,11 +227,19 @@ public class FeedbackFragment {
     }
 
     /**
-     * @return An unmodifiable set of IDs of the earcons to play along with this
-     *         fragment
+     * @return The number of earcons to play along with this fragment
+     */
+    public int getEarconCount() {
+        return mEarconCount;
+    }
+
+    /**
+     * @param index The index of the earcon, less than
+     *            {@link #getEarconCount()}
+     * @return The ID of the earcon at the specified index
      */
-    public Set<Integer> getEarcons() {
-        return Collections.unmodifiableSet(mEarcons);
+    public int getEarcon(int index) {
+        return mEarcons[index];
     }
 
     /**
@@ -123,22 +247,36 @@ public class FeedbackFragment {
      *            when this fragment is processed
      */
     public void addEarcon(int earconId) {
-        mEarcons.add(earconId);
+        if (indexOf(mEarcons, mEarconCount, earconId) >= 0) {
+            return;
+        }
+
+        mEarcons = ensureCapacity(mEarcons, mEarconCount + 1);
+        mEarcons[mEarconCount++] = earconId;
     }
 
     /**
      * Clears all earcons associated with this fragment
      */
     public void clearAllEarcons() {
-        mEarcons.clear();
+        mEarconCount = 0;
+    }
+
+    /**
+     * @return The number of haptic patterns to produce along with this
+     *         fragment
+     */
+    public int getHapticCount() {
+        return mHapticCount;
     }
 
     /**
-     * @return an unmodifiable set of IDs of the haptic patterns to produce
-     *         along with this fragment
+     * @param index The index of the haptic pattern, less than
+     *            {@link #getHapticCount()}
+     * @return The ID of the haptic pattern at the specified index
      */
-    public Set<Integer> getHaptics() {
-        return Collections.unmodifiableSet(mHaptics);
+    public int getHaptic(int index) {
+        return mHaptics[index];
     }
 
     /**
@@ -146,51 +284,199 @@ public class FeedbackFragment {
      *            patterns to play when this fragment is processed
      */
     public void addHaptic(int hapticId) {
-        mHaptics.add(hapticId);
+        if (indexOf(mHaptics, mHapticCount, hapticId) >= 0) {
+            return;
+        }
+
+        mHaptics = ensureCapacity(mHaptics, mHapticCount + 1);
+        mHaptics[mHapticCount++] = hapticId;
     }
 
     /**
      * Clears all haptic patterns associated with this fragment.
      */
     public void clearAllHaptics() {
-        mHaptics.clear();
+        mHapticCount = 0;
     }
 
     /**
-     * @return the {@link SpeechParam} parameters to use when processing this
-     *         fragment
+     * @return The pitch scale factor to use when speaking this fragment
+     */
+    public float getPitch() {
+        return mPitch;
+    }
+
+    /**
+     * @param pitch The pitch scale factor to use when speaking this fragment
      */
-    public Bundle getSpeechParams() {
-        return mSpeechParams;
+    public void setPitch(float pitch) {
+        mPitch = pitch;
     }
 
     /**
+     * @return The rate scale factor to use when speaking this fragment
+     */
+    public float getRate() {
+        return mRate;
+    }
+
+    /**
+     * @param rate The rate scale factor to use when speaking this fragment
+     */
+    public void setRate(float rate) {
+        mRate = rate;
+    }
+
+    /**
+     * @return The volume scale factor to use when speaking this fragment
+     */
+    public float getVolume() {
+        return mVolume;
+    }
+
+    /**
+     * @param volume The volume scale factor to use when speaking this fragment
+     */
+    public void setVolume(float volume) {
+        mVolume = volume;
+    }
+
+    /**
+     * @return The pan to use when speaking this fragment
+     */
+    public float getPan() {
+        return mPan;
+    }
+
+    /**
+     * @param pan The pan to use when speaking this fragment
+     */
+    public void setPan(float pan) {
+        mPan = pan;
+    }
+
+    /**
+     * @return The rate scale factor to use when playing earcons
+     */
+    public float getEarconRate() {
+        return mEarconRate;
+    }
+
+    /**
+     * @return The volume scale factor to use when playing earcons
+     */
+    public float getEarconVolume() {
+        return mEarconVolume;
+    }
+
+    /**
+     * Sets the speech properties of this fragment from a bundle of
+     * {@link SpeechParam} parameters. Properties not present in the bundle are
+     * set to their defaults.
+     *
      * @param speechParams the {@link SpeechParam} parameters to use when
-     *            processing this fragment
+     *            processing this fragment, or {@code null} to use the defaults
      */
     public void setSpeechParams(Bundle speechParams) {
-        mSpeechParams = speechParams;
+        if (speechParams == null) {
+            clearSpeechParams();
+            return;
+        }
+
+        mPitch = speechParams.getFloat(SpeechParam.PITCH, 1.0f);
+        mRate = speechParams.getFloat(SpeechParam.RATE, 1.0f);
+        mVolume = speechParams.getFloat(SpeechParam.VOLUME, 1.0f);
+        mPan = speechParams.getFloat(SpeechParam.PAN, 0.0f);
+    }
+
+    /**
+     * Sets the non-speech properties of this fragment from a bundle of
+     * {@link Utterance} metadata parameters. Properties not present in the
+     * bundle are set to their defaults.
+     *
+     * @param nonSpeechParams the {@link Utterance} non-speech parameters to
+     *            use when processing this fragment, or {@code null} to use the
+     *            defaults
+     * @see Utterance#KEY_METADATA_EARCON_RATE
+     * @see Utterance#KEY_METADATA_EARCON_VOLUME
+     */
+    public void setNonSpeechParams(Bundle nonSpeechParams) {
+        if (nonSpeechParams == null) {
+            clearNonSpeechParams();
+            return;
+        }
+
+        mEarconRate = nonSpeechParams.getFloat(Utterance.KEY_METADATA_EARCON_RATE, 1.0f);
+        mEarconVolume = nonSpeechParams.getFloat(Utterance.KEY_METADATA_EARCON_VOLUME, 1.0f);
     }
 
     /**
-     * @return the {@link Utterance} non-speech parameters to use when
-     *         processing this fragment
+     * Copies the speech and non-speech properties of another fragment.
+     *
+     * @param other The fragment to copy properties from.
      */
-    public Bundle getNonSpeechParams() {
-        return mNonSpeechParams;
+    public void copyParamsFrom(FeedbackFragment other) {
+        mPitch = other.mPitch;
+        mRate = other.mRate;
+        mVolume = other.mVolume;
+        mPan = other.mPan;
+        mEarconRate = other.mEarconRate;
+        mEarconVolume = other.mEarconVolume;
     }
 
     /**
-     * @param nonSpeechParams the {@link SpeechParam} parameters to use when
-     *            processing this fragment
+     * Resets the speech properties of this fragment to their defaults.
      */
-    public void setNonSpeechParams(Bundle nonSpeechParams) {
-        mNonSpeechParams = nonSpeechParams;
+    public void clearSpeechParams() {
+        mPitch = 1.0f;
+        mRate = 1.0f;
+        mVolume = 1.0f;
+        mPan = 0.0f;
+    }
+
+    /**
+     * Resets the non-speech properties of this fragment to their defaults.
+     */
+    public void clearNonSpeechParams() {
+        mEarconRate = 1.0f;
+        mEarconVolume = 1.0f;
+    }
+
+    private static int indexOf(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private static int[] ensureCapacity(int[] values, int capacity) {
+        if (values.length >= capacity) {
+            return values;
+        }
+
+        final int[] newValues = new int[Math.max(capacity, values.length * 2)];
+        System.arraycopy(values, 0, newValues, 0, values.length);
+        return newValues;
     }
 
     @Override
     public String toString() {
-        return "{text:" + mText + ", earcons:" + mEarcons + ", haptics:" + mHaptics
-                + ", speechParams:" + mSpeechParams + "nonSpeechParams:" + mNonSpeechParams + "}";
+        final StringBuilder earcons = new StringBuilder();
+        for (int i = 0; i < mEarconCount; i++) {
+            earcons.append((i == 0) ? "" : ", ").append(mEarcons[i]);
+        }
+
+        final StringBuilder haptics = new StringBuilder();
+        for (int i = 0; i < mHapticCount; i++) {
+            haptics.append((i == 0) ? "" : ", ").append(mHaptics[i]);
+        }
+
+        return "{text:" + mText + ", earcons:[" + earcons + "], haptics:[" + haptics
+                + "], pitch:" + mPitch + ", rate:" + mRate + ", volume:" + mVolume
+                + ", pan:" + mPan + ", earconRate:" + mEarconRate + ", earconVolume:"
+                + mEarconVolume + "}";
     }
 }
@@ -21,12 +21,14 @@ import android.text.SpannableStringBuilder;
 import com.google.android.marvin.talkback.SpeechController.UtteranceCompleteRunnable;
 import com.googlecode.eyesfree.utils.StringBuilderUtils;
 
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
- * Represents the feedback produced by a single {@link Utterance}
+ * Represents the feedback produced by a single {@link Utterance}. Instances
+ * are cached in a pool and should be obtained using {@link #obtain()} and
+ * returned using {@link #recycle()}, which also recycles the fragments.
  *
  * @author caseyburkhardt@google.com (Casey Burkhardt)
  */
@@ -56,6 +58,20 @@ public class FeedbackItem {
      */
     public static final int FLAG_NO_SPEECH = 0x10;
 
+    /** The maximum size of the pool of cached items. */
+    private static final int MAX_POOL_SIZE = 4;
+
+    /** Lock for accessing the item pool. */
+    private static final Object sPoolLock = new Object();
+
+    /** Pool of cached items. */
+    private static FeedbackItem sPool;
+
+    /** The current size of the item pool. */
+    private static int sPoolSize;
+
+    /** The number of items that could not be obtained from the pool. */
+    private static int sAllocationCount;
 
     /** Unique ID defining this generated feedback */
     private String mUtteranceId = "";
@@ -64,7 +80,7 @@ public class FeedbackItem {
      * Ordered fragments of the feedback to be produced from a single
      * {@link Utterance}.
      */
-    private List<FeedbackFragment> mFragments = new LinkedList<FeedbackFragment>();
+    private final ArrayList<FeedbackFragment> mFragments = new ArrayList<FeedbackFragment>();
 
     /** Flag indicating that this FeedbackItem should be uninterruptible. */
     private boolean mIsUninterruptible = false;
@@ -78,6 +94,76 @@ public class FeedbackItem {
      */
     private UtteranceCompleteRunnable mCompletedAction;
 
+    /** The next cached item. */
+    private FeedbackItem mNext;
+
+    /** Denotes if an item is currently in the cache pool. */
+    private boolean mIsInPool;
+
+    private FeedbackItem() {
+        // This class is not publicly instantiable.
+    }
+
+    /**
+     * Returns a cached item if one is available or instantiates a new one.
+     *
+     * @return An empty item.
+     */
+    public static FeedbackItem obtain() {
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                final FeedbackItem item = sPool;
+                sPool = sPool.mNext;
+                sPoolSize--;
+                item.mNext = null;
+                item.mIsInPool = false;
+                return item;
+            }
+
+            sAllocationCount++;
+        }
+
+        return new FeedbackItem();
+    }
+
+    /**
+     * Returns the number of items that have been instantiated because the
+     * pool was empty. Used to measure allocations per spoken item.
+     *
+     * @return The number of items instantiated.
+     */
+    static int getAllocationCount() {
+        synchronized (sPoolLock) {
+            return sAllocationCount;
+        }
+    }
+
+    /**
+     * Recycles the fragments of this item and returns it to the pool.
+     * <p>
+     * <b>Note: You must not touch the object after calling this function.</b>
+     */
+    public void recycle() {
+        if (mIsInPool) {
+            return;
+        }
+
+        clearFragments();
+        mUtteranceId = "";
+        mIsUninterruptible = false;
+        mFlags = 0;
+        mCompletedAction = null;
+
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                mIsInPool = true;
+                sPoolSize++;
+            }
+        }
+    }
+
     /**
      * @return The utterance ID for this item
      */
@@ -103,6 +189,24 @@ public class FeedbackItem {
         return Collections.unmodifiableList(mFragments);
     }
 
+    /**
+     * @return The number of fragments in this item
+     */
+    public int getFragmentCount() {
+        return mFragments.size();
+    }
+
+    /**
+     * Retrieves a fragment without allocating a list view.
+     *
+     * @param index The index of the fragment, less than
+     *            {@link #getFragmentCount()}
+     * @return The fragment at the specified index
+     */
+    public FeedbackFragment getFragment(int index) {
+        return mFragments.get(index);
+    }
+
     /**
      * Retrieves the aggregate text from all {@link FeedbackFragment}s.
      *
@@ -117,8 +221,8 @@ public class FeedbackItem {
         }
 
         final SpannableStringBuilder sb = new SpannableStringBuilder();
-        for (FeedbackFragment fragment : mFragments) {
-            StringBuilderUtils.appendWithSeparator(sb, fragment.getText());
+        for (int i = 0; i < mFragments.size(); i++) {
+            StringBuilderUtils.appendWithSeparator(sb, mFragments.get(i).getText());
         }
 
         return sb.toString();
@@ -152,9 +256,25 @@ public class FeedbackItem {
     }
 
     /**
-     * Removes all {@link FeedbackFragment}s associated with this item.
+     * Removes the fragment at the specified position. The fragment is not
+     * recycled.
+     *
+     * @param position The position of the fragment to remove
+     * @return The removed fragment.
+     */
+    public FeedbackFragment removeFragmentAtPosition(int position) {
+        return mFragments.remove(position);
+    }
+
+    /**
+     * Removes and recycles all {@link FeedbackFragment}s associated with this
+     * item.
      */
     public void clearFragments() {
+        for (int i = 0; i < mFragments.size(); i++) {
+            mFragments.get(i).recycle();
+        }
+
         mFragments.clear();
     }
 
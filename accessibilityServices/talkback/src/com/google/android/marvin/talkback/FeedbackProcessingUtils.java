@@ -28,7 +28,7 @@ import android.text.style.URLSpan;
 import com.google.android.marvin.talkback.SpeechController.SpeechParam;
 
 import java.text.BreakIterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.Locale;
 import java.util.Set;
 
@@ -77,13 +77,14 @@ public class FeedbackProcessingUtils {
      *            the spoken feedback within each fragment in this item.
      * @param nonSpeechParams The {@link Utterance} parameters to attribute to
      *            non-speech feedback for this item.
-     * @return a populated {@link FeedbackItem}
+     * @return a populated {@link FeedbackItem}, which should be recycled by
+     *         the caller once it has been spoken
      */
     public static FeedbackItem generateFeedbackItemFromInput(Context context, CharSequence text,
             Set<Integer> earcons, Set<Integer> haptics, int flags, Bundle speechParams,
             Bundle nonSpeechParams) {
-        final FeedbackItem feedbackItem = new FeedbackItem();
-        final FeedbackFragment initialFragment = new FeedbackFragment(
+        final FeedbackItem feedbackItem = FeedbackItem.obtain();
+        final FeedbackFragment initialFragment = FeedbackFragment.obtain(
                 text, earcons, haptics, speechParams, nonSpeechParams);
         feedbackItem.addFragment(initialFragment);
         feedbackItem.addFlag(flags);
@@ -108,8 +109,8 @@ public class FeedbackProcessingUtils {
      * @param item The item containing fragments to split.
      */
     private static void splitLongText(FeedbackItem item) {
-        for (int i = 0; i < item.getFragments().size(); ++i) {
-            final FeedbackFragment fragment = item.getFragments().get(i);
+        for (int i = 0; i < item.getFragmentCount(); ++i) {
+            final FeedbackFragment fragment = item.getFragment(i);
             final CharSequence fragmentText = fragment.getText();
             if (TextUtils.isEmpty(fragmentText)) {
                 continue;
@@ -119,12 +120,14 @@ public class FeedbackProcessingUtils {
                 // If the text from an original fragment exceeds the allowable
                 // fragment text length, start by removing the original fragment
                 // from the item.
-                item.removeFragment(fragment);
+                item.removeFragmentAtPosition(i);
 
                 // Split the fragment's text into multiple fragments that don't
                 // exceed the limit and add new fragments at the appropriate
-                // position in the item.
-                final int end = fragmentText.length();
+                // position in the item. Sections are taken from a single
+                // string copy of the text, which they share.
+                final String fragmentString = fragmentText.toString();
+                final int end = fragmentString.length();
                 int start = 0;
                 int splitFragments = 0;
 
@@ -135,14 +138,15 @@ public class FeedbackProcessingUtils {
                     // Find a better way to do this for languages that don't
                     // use spaces.
                     int splitLocation = TextUtils.lastIndexOf(
-                            fragmentText, ' ', start, fragmentEnd);
+                            fragmentString, ' ', start, fragmentEnd);
                     if (splitLocation < 0) {
                         splitLocation = Math.min(fragmentEnd, end);
                     }
-                    final CharSequence textSection = TextUtils.substring(
-                            fragmentText, start, splitLocation);
-                    final FeedbackFragment additionalFragment = new FeedbackFragment(
-                            textSection, fragment.getSpeechParams());
+                    final CharSequence textSection = fragmentString.substring(
+                            start, splitLocation);
+                    final FeedbackFragment additionalFragment =
+                            FeedbackFragment.obtain(textSection);
+                    additionalFragment.copyParamsFrom(fragment);
                     item.addFragmentAtPosition(additionalFragment, i + splitFragments);
                     splitFragments++;
                     start = (splitLocation + 1);
@@ -150,7 +154,8 @@ public class FeedbackProcessingUtils {
 
                 // Always replace the metadata from the original fragment on the
                 // first fragment resulting from the split
-                copyFragmentMetadata(fragment, item.getFragments().get(i));
+                copyFragmentMetadata(fragment, item.getFragment(i));
+                fragment.recycle();
             }
         }
     }
@@ -162,8 +167,8 @@ public class FeedbackProcessingUtils {
      * @param item The item to process for formatted text.
      */
     private static void addFormattingCharacteristics(FeedbackItem item) {
-        for (int i = 0; i < item.getFragments().size(); ++i) {
-            final FeedbackFragment fragment = item.getFragments().get(i);
+        for (int i = 0; i < item.getFragmentCount(); ++i) {
+            final FeedbackFragment fragment = item.getFragment(i);
             final CharSequence fragmentText = fragment.getText();
             if (TextUtils.isEmpty(fragmentText) || !(fragmentText instanceof Spannable)) {
                 continue;
@@ -197,9 +202,10 @@ public class FeedbackProcessingUtils {
 
     private static void splitOnSentences(FeedbackItem item) {
         final BreakIterator boundary = BreakIterator.getSentenceInstance(Locale.getDefault());
-        final LinkedList<FeedbackFragment> replacementFragments =
-                new LinkedList<FeedbackFragment>();
-        for (FeedbackFragment originalFragment : item.getFragments()) {
+        final ArrayList<FeedbackFragment> replacementFragments =
+                new ArrayList<FeedbackFragment>();
+        while (item.getFragmentCount() > 0) {
+            final FeedbackFragment originalFragment = item.removeFragmentAtPosition(0);
             final CharSequence sourceText = originalFragment.getText();
             if (TextUtils.isEmpty(sourceText)) {
                 // Retain the original fragment for earcons/haptics.
@@ -207,14 +213,15 @@ public class FeedbackProcessingUtils {
                 continue;
             }
 
-            boundary.setText(sourceText.toString());
+            final String sourceString = sourceText.toString();
+            boundary.setText(sourceString);
             int start = boundary.first();
             int fragmentSplits = 0;
             for (int end = boundary.next(); end != BreakIterator.DONE; start = end,
                     end = boundary.next()) {
-                final CharSequence textSection = TextUtils.substring(sourceText, start, end);
-                final FeedbackFragment additionalFragment = new FeedbackFragment(
-                        textSection, originalFragment.getSpeechParams());
+                final CharSequence textSection = sourceString.substring(start, end);
+                final FeedbackFragment additionalFragment = FeedbackFragment.obtain(textSection);
+                additionalFragment.copyParamsFrom(originalFragment);
                 if (fragmentSplits == 0) {
                     // Ensure earcons and other metadata is copied into the
                     // original replacement fragment.
@@ -224,14 +231,16 @@ public class FeedbackProcessingUtils {
                 replacementFragments.add(additionalFragment);
                 fragmentSplits++;
             }
+
+            originalFragment.recycle();
         }
 
-        item.clearFragments();
         item.addAllFragments(replacementFragments);
     }
 
     private static void cleanupItemText(Context context, FeedbackItem item) {
-        for (FeedbackFragment fragment : item.getFragments()) {
+        for (int i = 0; i < item.getFragmentCount(); i++) {
+            final FeedbackFragment fragment = item.getFragment(i);
             if (!TextUtils.isEmpty(fragment.getText())) {
                 CharSequence processedText = SpeechCleanupUtils.collapseRepeatedCharacters(
                         context, fragment.getText());
@@ -268,18 +277,16 @@ public class FeedbackProcessingUtils {
         // Copying this metadata preserves earcons and other speech and
         // non-speech parameters that were originally associated with the
         // initial section of the fragment.
-        final FeedbackFragment beforeSpanFragment = new FeedbackFragment(
-                spannable.subSequence(0, spanStart), null);
+        final FeedbackFragment beforeSpanFragment = FeedbackFragment.obtain(
+                spannable.subSequence(0, spanStart));
         copyFragmentMetadata(fragment, beforeSpanFragment);
         item.addFragmentAtPosition(beforeSpanFragment, fragmentPosition);
 
         // Add a fragment for the span and add appropriate feedback and metadata
         // specific to the span.
-        FeedbackFragment spanFragment = new FeedbackFragment(
-                spannable.subSequence(spanStart, spanEnd), null);
-        final Bundle speechParams = new Bundle(Bundle.EMPTY);
-        speechParams.putFloat(SpeechParam.PITCH, PITCH_CHANGE_HYPERLINK);
-        spanFragment.setSpeechParams(speechParams);
+        final FeedbackFragment spanFragment = FeedbackFragment.obtain(
+                spannable.subSequence(spanStart, spanEnd));
+        spanFragment.setPitch(PITCH_CHANGE_HYPERLINK);
         spanFragment.addEarcon(R.id.sounds_hyperlink);
         item.addFragmentAtPosition(spanFragment, fragmentPosition + 1);
 
@@ -335,18 +342,16 @@ public class FeedbackProcessingUtils {
         // Copying this metadata preserves earcons and other speech and
         // non-speech parameters that were originally associated with the
         // initial section of the fragment.
-        final FeedbackFragment beforeSpanFragment = new FeedbackFragment(
-                spannable.subSequence(0, spanStart), null);
+        final FeedbackFragment beforeSpanFragment = FeedbackFragment.obtain(
+                spannable.subSequence(0, spanStart));
         copyFragmentMetadata(fragment, beforeSpanFragment);
         item.addFragmentAtPosition(beforeSpanFragment, fragmentPosition);
 
         // Add a fragment for the span and add appropriate feedback and metadata
         // specific to the span.
-        FeedbackFragment spanFragment = new FeedbackFragment(
-                spannable.subSequence(spanStart, spanEnd), null);
-        final Bundle speechParams = new Bundle(Bundle.EMPTY);
-        speechParams.putFloat(SpeechParam.PITCH, voicePitch);
-        spanFragment.setSpeechParams(speechParams);
+        final FeedbackFragment spanFragment = FeedbackFragment.obtain(
+                spannable.subSequence(spanStart, spanEnd));
+        spanFragment.setPitch(voicePitch);
         spanFragment.addEarcon(earconId);
         item.addFragmentAtPosition(spanFragment, fragmentPosition + 1);
 
@@ -360,20 +365,20 @@ public class FeedbackProcessingUtils {
     }
 
     private static void copyFragmentMetadata(FeedbackFragment from, FeedbackFragment to) {
-        to.setSpeechParams(from.getSpeechParams());
-        to.setNonSpeechParams(from.getNonSpeechParams());
-        for (int id : from.getEarcons()) {
-            to.addEarcon(id);
+        to.copyParamsFrom(from);
+
+        for (int i = 0; i < from.getEarconCount(); i++) {
+            to.addEarcon(from.getEarcon(i));
         }
 
-        for (int id : from.getHaptics()) {
-            to.addHaptic(id);
+        for (int i = 0; i < from.getHapticCount(); i++) {
+            to.addHaptic(from.getHaptic(i));
         }
     }
 
     private static void clearFragmentMetadata(FeedbackFragment fragment) {
-        fragment.setSpeechParams(new Bundle());
-        fragment.setNonSpeechParams(new Bundle());
+        fragment.clearSpeechParams();
+        fragment.clearNonSpeechParams();
         fragment.clearAllEarcons();
         fragment.clearAllHaptics();
     }
@@ -19,14 +19,18 @@ package com.google.android.marvin.talkback;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.Process;
 import android.support.v4.view.accessibility.AccessibilityEventCompat;
 import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
 
 import com.google.android.marvin.talkback.SpeechController.UtteranceCompleteRunnable;
+import com.google.android.marvin.talkback.speechrules.NodeSpeechRuleProcessor;
 import com.googlecode.eyesfree.compat.accessibilityservice.AccessibilityServiceCompatUtils;
 import com.googlecode.eyesfree.utils.AccessibilityEventListener;
 import com.googlecode.eyesfree.utils.AccessibilityEventUtils;
@@ -38,6 +42,10 @@ import com.googlecode.eyesfree.utils.WebInterfaceUtils;
 // TODO(caseyburkhardt): Handle changing window content.  Look at hierarchy cache invalidation.
 /**
  * Component used to control reading of the entire display.
+ * <p>
+ * While reading, descriptions for the next few nodes are computed ahead of
+ * time on a background thread and cached by {@link NodeSpeechRuleProcessor},
+ * so that each node can be spoken as soon as it receives accessibility focus.
  *
  * @author caseyburkhardt@google.com (Casey Burkhardt)
  */
@@ -67,6 +75,12 @@ public class FullScreenReadController implements AccessibilityEventListener {
             AccessibilityEventCompat.TYPE_VIEW_HOVER_ENTER |
             AccessibilityEventCompat.TYPE_VIEW_TEXT_SELECTION_CHANGED;
 
+    /** The number of upcoming nodes to describe ahead of time. */
+    private static final int LOOKAHEAD_NODES = 3;
+
+    /** The maximum number of nodes to traverse when finding upcoming nodes. */
+    private static final int MAX_LOOKAHEAD_SEARCH = 50;
+
     /**
      * The current state of the controller. Should only be updated through
      * {@link FullScreenReadController#setReadingState(AutomaticReadingState)}
@@ -88,12 +102,28 @@ public class FullScreenReadController implements AccessibilityEventListener {
     /** Wake lock for keeping the device unlocked while reading */
     private WakeLock mWakeLock;
 
+    /** Processor used to describe upcoming nodes ahead of time */
+    private NodeSpeechRuleProcessor mNodeProcessor;
+
+    /** Thread used to describe upcoming nodes, started when first needed */
+    private HandlerThread mLookaheadThread;
+
+    /** Handler for {@link #mLookaheadThread} */
+    private Handler mLookaheadHandler;
+
+    /**
+     * Incremented whenever reading stops, causing pending lookahead tasks to
+     * discard their nodes without describing them.
+     */
+    private volatile int mLookaheadGeneration;
+
     @SuppressWarnings("deprecation")
     public FullScreenReadController(TalkBackService service) {
         mService = service;
         mSpeechController = service.getSpeechController();
         mCursorController = service.getCursorController();
         mFeedbackController = MappedFeedbackController.getInstance();
+        mNodeProcessor = NodeSpeechRuleProcessor.getInstance();
 
         final PowerManager pm = (PowerManager) service.getSystemService(Context.POWER_SERVICE);
         mWakeLock = pm.newWakeLock(
@@ -108,6 +138,12 @@ public class FullScreenReadController implements AccessibilityEventListener {
      */
     public void shutdown() {
         interrupt();
+
+        if (mLookaheadThread != null) {
+            mLookaheadThread.quit();
+            mLookaheadThread = null;
+            mLookaheadHandler = null;
+        }
     }
 
     /**
@@ -193,6 +229,8 @@ public class FullScreenReadController implements AccessibilityEventListener {
                 // This works only because a focused WebView has a rule to generate
                 // some default text and passes the isEmpty check above.
                 moveIntoWebContent();
+            } else {
+                prefetchUpcomingNodes();
             }
 
             return true;
@@ -230,6 +268,9 @@ public class FullScreenReadController implements AccessibilityEventListener {
     public void interrupt() {
         setReadingState(AutomaticReadingState.STOPPED);
 
+        // Cancel any pending lookahead.
+        mLookaheadGeneration++;
+
         if (mWakeLock.isHeld()) {
             mWakeLock.release();
         }
@@ -243,9 +284,34 @@ public class FullScreenReadController implements AccessibilityEventListener {
 
         if (currentNodeHasWebContent()) {
             moveIntoWebContent();
+        } else {
+            prefetchUpcomingNodes();
         }
     }
 
+    /**
+     * Starts finding and describing the next few nodes that will be read after
+     * the current cursor on the lookahead thread.
+     */
+    private void prefetchUpcomingNodes() {
+        if (!isActive() || (mCurrentState == AutomaticReadingState.ENTERING_WEB_CONTENT)) {
+            return;
+        }
+
+        final AccessibilityNodeInfoCompat cursor = mCursorController.getCursor();
+        if (cursor == null) {
+            return;
+        }
+
+        if (mLookaheadThread == null) {
+            mLookaheadThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+            mLookaheadThread.start();
+            mLookaheadHandler = new Handler(mLookaheadThread.getLooper());
+        }
+
+        mLookaheadHandler.post(new LookaheadTask(mLookaheadGeneration, cursor));
+    }
+
     private void moveIntoWebContent() {
         final AccessibilityNodeInfoCompat webNode = mCursorController.getCursor();
         if (webNode == null) {
@@ -316,6 +382,49 @@ public class FullScreenReadController implements AccessibilityEventListener {
         }
     }
 
+    /**
+     * Finds the nodes following a cursor and describes them on the lookahead
+     * thread, unless reading stops first. The search uses the live node tree,
+     * since the node tree snapshot is only available on the main thread.
+     * Recycles the cursor when finished.
+     */
+    private class LookaheadTask implements Runnable {
+        private final int mGeneration;
+        private final AccessibilityNodeInfoCompat mCursor;
+
+        public LookaheadTask(int generation, AccessibilityNodeInfoCompat cursor) {
+            mGeneration = generation;
+            mCursor = cursor;
+        }
+
+        @Override
+        public void run() {
+            AccessibilityNodeInfoCompat searchNode = mCursor;
+            int found = 0;
+
+            for (int searched = 0; (found < LOOKAHEAD_NODES)
+                    && (searched < MAX_LOOKAHEAD_SEARCH)
+                    && (mGeneration == mLookaheadGeneration); searched++) {
+                final AccessibilityNodeInfoCompat next =
+                        NodeFocusFinder.focusSearch(searchNode, NodeFocusFinder.SEARCH_FORWARD);
+                searchNode.recycle();
+                searchNode = next;
+
+                // Web content is read by ChromeVox, so stop looking ahead there.
+                if ((next == null) || WebInterfaceUtils.hasWebContent(next)) {
+                    break;
+                }
+
+                if (AccessibilityNodeInfoUtils.shouldFocusNode(mService, next)) {
+                    mNodeProcessor.prefetchDescriptionForTree(next);
+                    found++;
+                }
+            }
+
+            AccessibilityNodeInfoUtils.recycleNodes(searchNode);
+        }
+    }
+
     /** Runnable executed when a node has finished being spoken */
     private final UtteranceCompleteRunnable mNodeSpokenRunnable = new UtteranceCompleteRunnable() {
         @Override
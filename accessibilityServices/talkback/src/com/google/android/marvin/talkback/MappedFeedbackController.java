@@ -394,6 +394,12 @@ public class MappedFeedbackController {
             return false;
         }
 
+        if (mSoundPool.playMidiNotes(midiSequence, MappedSoundPool.DEFAULT_STREAM_TYPE,
+                1.0f /* rate */, 1.0f /* volume */, 0.0f /* pan */)) {
+            return true;
+        }
+
+        // Fall back to a MIDI file if audio output isn't available.
         final File file = MidiUtils.generateMidiFileFromArray(mContext, midiSequence);
         if (file == null) {
             return false;
@@ -30,6 +30,8 @@ import com.googlecode.eyesfree.utils.LogUtils;
 import com.googlecode.eyesfree.utils.StringBuilderUtils;
 import com.googlecode.eyesfree.utils.WeakReferenceHandler;
 
+import java.io.PrintWriter;
+
 /**
  * Manages the event feedback queue. Queued events are run through the
  * {@link EventSpeechRuleProcessor} to generate spoken, haptic, and audible
@@ -92,6 +94,16 @@ public class ProcessorEventQueue implements AccessibilityEventListener {
     }
 
 
+    /**
+     * Prints the number of events the queue dropped or coalesced.
+     */
+    public void dump(PrintWriter writer) {
+        synchronized (mEventQueue) {
+            writer.println("Event queue: dropped=" + mEventQueue.getDroppedEventCount()
+                    + " coalesced=" + mEventQueue.getCoalescedEventCount());
+        }
+    }
+
     /**
      * Loads default speech strategies based on the current SDK version.
      */
@@ -25,7 +25,6 @@ import android.media.MediaRecorder.AudioSource;
 import android.os.Bundle;
 import android.os.Handler;
 import android.preference.PreferenceManager;
-import android.speech.tts.TextToSpeech.Engine;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.util.Log;
@@ -41,7 +40,6 @@ import com.googlecode.eyesfree.utils.LogUtils;
 import com.googlecode.eyesfree.utils.SharedPreferencesUtils;
 import com.googlecode.eyesfree.utils.StringBuilderUtils;
 
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.PriorityQueue;
@@ -85,11 +83,6 @@ public class SpeechController {
         public static final String PITCH = "pitch";
     }
 
-    /**
-     * Reusable map used for passing parameters to the TextToSpeech.
-     */
-    private final HashMap<String, String> mSpeechParametersMap = new HashMap<String, String>();
-
     /**
      * Priority queue of actions to perform when utterances are completed,
      * ordered by ascending utterance index.
@@ -118,8 +111,11 @@ public class SpeechController {
     /** Listener used for testing. */
     private SpeechControllerListener mSpeechListener;
 
-    /** An iterator at the fragment currently being processed */
-    private Iterator<FeedbackFragment> mCurrentFragmentIterator = null;
+    /**
+     * The index of the next fragment of the current item to process, or -1 if
+     * no more fragments should be processed.
+     */
+    private int mNextFragmentIndex = -1;
 
     /** The item current being spoken, or {@code null} if the TTS is idle. */
     private FeedbackItem mCurrentFeedbackItem;
@@ -366,11 +362,13 @@ public class SpeechController {
         // TODO(caseyburkhardt): Consider refactoring non-speech feedback out of
         // this class entirely.
         if (item.hasFlag(FeedbackItem.FLAG_NO_SPEECH)) {
-            for (FeedbackFragment fragment : item.getFragments()) {
+            for (int i = 0; i < item.getFragmentCount(); i++) {
+                final FeedbackFragment fragment = item.getFragment(i);
                 playEarconsFromFragment(fragment);
                 playHapticsFromFragment(fragment);
             }
 
+            recycleItemIfUnused(item);
             return;
         }
 
@@ -387,8 +385,8 @@ public class SpeechController {
                 }
             }
 
-            mCurrentFragmentIterator = null;
-            mFeedbackQueue.clear();
+            mNextFragmentIndex = -1;
+            clearFeedbackQueue();
         }
 
         mFeedbackQueue.add(item);
@@ -566,7 +564,9 @@ public class SpeechController {
         }
 
         if ((item != null) && !item.hasFlag(FeedbackItem.FLAG_NO_HISTORY)) {
+            final FeedbackItem previousLastItem = mLastFeedbackItem;
             mLastFeedbackItem = item;
+            recycleItemIfUnused(previousLastItem);
         }
 
         if (mSpeechListener != null) {
@@ -577,33 +577,19 @@ public class SpeechController {
     }
 
     private boolean processNextFragmentInternal() {
-        if (mCurrentFragmentIterator == null || !mCurrentFragmentIterator.hasNext()) {
+        if ((mCurrentFeedbackItem == null) || (mNextFragmentIndex < 0)
+                || (mNextFragmentIndex >= mCurrentFeedbackItem.getFragmentCount())) {
             return false;
         }
 
-        FeedbackFragment fragment = mCurrentFragmentIterator.next();
+        final FeedbackFragment fragment = mCurrentFeedbackItem.getFragment(mNextFragmentIndex++);
         playEarconsFromFragment(fragment);
         playHapticsFromFragment(fragment);
 
-        // Reuse the global instance of speech parameters.
-        final HashMap<String, String> params = mSpeechParametersMap;
-        params.clear();
-
-        // Add all custom speech parameters.
-        final Bundle speechParams = fragment.getSpeechParams();
-        for (String key : speechParams.keySet()) {
-            params.put(key, String.valueOf(speechParams.get(key)));
-        }
-
-        // Utterance ID, stream, and volume override item params.
-        params.put(Engine.KEY_PARAM_UTTERANCE_ID, mCurrentFeedbackItem.getUtteranceId());
-        params.put(Engine.KEY_PARAM_STREAM, String.valueOf(DEFAULT_STREAM));
-        params.put(EngineCompatUtils.KEY_PARAM_VOLUME, String.valueOf(mSpeechVolume));
-
-        final float pitch =
-                mSpeechPitch * (mUseIntonation ? parseFloatParam(params, SpeechParam.PITCH, 1) : 1);
-        final float rate =
-                mSpeechRate * (mUseIntonation ? parseFloatParam(params, SpeechParam.RATE, 1) : 1);
+        // Fragment volume is relative to the user's speech volume.
+        final float pitch = mSpeechPitch * (mUseIntonation ? fragment.getPitch() : 1);
+        final float rate = mSpeechRate * (mUseIntonation ? fragment.getRate() : 1);
+        final float volume = mSpeechVolume * fragment.getVolume();
         final String text;
         if (shouldSilenceSpeech(mCurrentFeedbackItem) || TextUtils.isEmpty(fragment.getText())) {
             text = null;
@@ -616,7 +602,8 @@ public class SpeechController {
         // It's okay if the utterance is empty, the fail-over TTS will
         // immediately call the fragment completion listener. This process is
         // important for things like continuous reading.
-        mFailoverTts.speak(text, pitch, rate, params);
+        mFailoverTts.speak(text, mCurrentFeedbackItem.getUtteranceId(), pitch, rate, volume,
+                fragment.getPan());
 
         if (mTtsOverlay != null) {
             mTtsOverlay.speak(text);
@@ -631,13 +618,11 @@ public class SpeechController {
      * @param fragment The fragment to process
      */
     private void playEarconsFromFragment(FeedbackFragment fragment) {
-        final Bundle nonSpeechParams = fragment.getNonSpeechParams();
-        final float earconRate = nonSpeechParams.getFloat(Utterance.KEY_METADATA_EARCON_RATE, 1.0f);
-        final float earconVolume = nonSpeechParams.getFloat(
-                Utterance.KEY_METADATA_EARCON_VOLUME, 1.0f);
+        final float earconRate = fragment.getEarconRate();
+        final float earconVolume = fragment.getEarconVolume();
 
-        for (int keyResId : fragment.getEarcons()) {
-            mFeedbackController.playAuditory(keyResId, earconRate, earconVolume, 0);
+        for (int i = 0; i < fragment.getEarconCount(); i++) {
+            mFeedbackController.playAuditory(fragment.getEarcon(i), earconRate, earconVolume, 0);
         }
     }
 
@@ -647,11 +632,36 @@ public class SpeechController {
      * @param fragment The fragment to process
      */
     private void playHapticsFromFragment(FeedbackFragment fragment) {
-        for (int keyResId : fragment.getHaptics()) {
-            mFeedbackController.playHaptic(keyResId);
+        for (int i = 0; i < fragment.getHapticCount(); i++) {
+            mFeedbackController.playHaptic(fragment.getHaptic(i));
         }
     }
 
+    /**
+     * Removes all items from the speech queue, recycling any that are no
+     * longer referenced.
+     */
+    private void clearFeedbackQueue() {
+        while (!mFeedbackQueue.isEmpty()) {
+            recycleItemIfUnused(mFeedbackQueue.removeFirst());
+        }
+    }
+
+    /**
+     * Recycles an item unless it is the current item, the last item (which
+     * may be repeated), or still queued.
+     *
+     * @param item The item to recycle, may be {@code null}.
+     */
+    private void recycleItemIfUnused(FeedbackItem item) {
+        if ((item == null) || (item == mCurrentFeedbackItem) || (item == mLastFeedbackItem)
+                || mFeedbackQueue.contains(item)) {
+            return;
+        }
+
+        item.recycle();
+    }
+
     /**
      * @return The utterance ID, or -1 if the ID is invalid.
      */
@@ -719,13 +729,15 @@ public class SpeechController {
      * Clears the speech queue and completes the current speech item, if any.
      */
     private void clearCurrentAndQueuedUtterances() {
-        mFeedbackQueue.clear();
-        mCurrentFragmentIterator = null;
+        clearFeedbackQueue();
+        mNextFragmentIndex = -1;
 
         if (mCurrentFeedbackItem != null) {
-            final String utteranceId = mCurrentFeedbackItem.getUtteranceId();
+            final FeedbackItem currentItem = mCurrentFeedbackItem;
+            final String utteranceId = currentItem.getUtteranceId();
             onFragmentCompleted(utteranceId, false /* success */, true /* advance */);
             mCurrentFeedbackItem = null;
+            recycleItemIfUnused(currentItem);
         }
     }
 
@@ -827,9 +839,11 @@ public class SpeechController {
         // The previous engine may not have shut down correctly, so make sure to
         // clear the "current" speech item.
         if (mCurrentFeedbackItem != null) {
-            onFragmentCompleted(mCurrentFeedbackItem.getUtteranceId(),
+            final FeedbackItem currentItem = mCurrentFeedbackItem;
+            onFragmentCompleted(currentItem.getUtteranceId(),
                     false /* success */, false /* advance */);
             mCurrentFeedbackItem = null;
+            recycleItemIfUnused(currentItem);
         }
 
         if (wasSwitchingEngines) {
@@ -852,6 +866,10 @@ public class SpeechController {
 
         mCurrentFeedbackItem = nextItem;
 
+        if (previousItem != nextItem) {
+            recycleItemIfUnused(previousItem);
+        }
+
         if (nextItem == null) {
             LogUtils.log(this, Log.VERBOSE, "No next item, stopping speech queue");
             return false;
@@ -861,36 +879,11 @@ public class SpeechController {
             handleSpeechStarting();
         }
 
-        mCurrentFragmentIterator = nextItem.getFragments().iterator();
+        mNextFragmentIndex = 0;
         speakNextItemInternal(nextItem);
         return true;
     }
 
-    /**
-     * Attempts to parse a float value from a {@link HashMap} of strings.
-     *
-     * @param params The map to obtain the value from.
-     * @param key The key that the value is assigned to.
-     * @param defaultValue The default value.
-     * @return The parsed float value, or the default value on failure.
-     */
-    private static float parseFloatParam(
-            HashMap<String, String> params, String key, float defaultValue) {
-        final String value = params.get(key);
-
-        if (value == null) {
-            return defaultValue;
-        }
-
-        try {
-            return Float.parseFloat(value);
-        } catch (NumberFormatException e) {
-            e.printStackTrace();
-        }
-
-        return defaultValue;
-    }
-
     /**
      * Enables/disables the proximity sensor. The proximity sensor should be
      * disabled when not in use to save battery.
@@ -82,10 +82,14 @@ import com.googlecode.eyesfree.utils.AccessibilityEventUtils;
 import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
 import com.googlecode.eyesfree.utils.ClassLoadingManager;
 import com.googlecode.eyesfree.utils.LogUtils;
+import com.googlecode.eyesfree.utils.NodeTreeSnapshotCache;
+import com.googlecode.eyesfree.utils.PackageVersionCache;
 import com.googlecode.eyesfree.utils.SharedPreferencesUtils;
 import com.googlecode.eyesfree.utils.TtsEngineUtils.TtsEngineInfo;
 import com.googlecode.eyesfree.utils.WebInterfaceUtils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.LinkedList;
 import java.util.List;
@@ -331,6 +335,17 @@ public class TalkBackService extends AccessibilityService
         mServiceStateListeners.clear();
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        final NodeSpeechRuleProcessor nodeProcessor = NodeSpeechRuleProcessor.getInstance();
+        writer.println("Node description cache: hits=" + nodeProcessor.getCacheHitCount()
+                + " misses=" + nodeProcessor.getCacheMissCount());
+
+        if (mProcessorEventQueue != null) {
+            mProcessorEventQueue.dump(writer);
+        }
+    }
+
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         if (isServiceActive() && (mOrientationMonitor != null)) {
@@ -850,6 +865,8 @@ public class TalkBackService extends AccessibilityService
         // Initialize static instances that do not have dependencies.
         NodeSpeechRuleProcessor.initialize(this);
         ClassLoadingManager.getInstance().init(this);
+        PackageVersionCache.getInstance().init(this);
+        NodeTreeSnapshotCache.getInstance().init();
 
         mAccessibilityManager = (AccessibilityManager) getSystemService(ACCESSIBILITY_SERVICE);
         mPowerManager = (PowerManager) getSystemService(POWER_SERVICE);
@@ -861,6 +878,12 @@ public class TalkBackService extends AccessibilityService
 
         mSpeechController = new SpeechController(this);
 
+        // The node tree snapshot and node description cache must be
+        // invalidated before any other listener traverses or describes nodes
+        // for the current event.
+        mAccessibilityEventListeners.add(NodeTreeSnapshotCache.getInstance());
+        mAccessibilityEventListeners.add(NodeSpeechRuleProcessor.getInstance());
+
         if (Build.VERSION.SDK_INT >= CursorController.MIN_API_LEVEL) {
             mCursorController = new CursorController(this);
             mCursorController.setListener(mCursorControllerListener);
@@ -1123,6 +1146,9 @@ public class TalkBackService extends AccessibilityService
         }
 
         ClassLoadingManager.getInstance().shutdown();
+        PackageVersionCache.getInstance().shutdown();
+        NodeTreeSnapshotCache.getInstance().shutdown();
+        NodeSpeechRuleProcessor.getInstance().clearDescriptionCache();
         mFeedbackController.shutdown();
         mSpeechController.shutdown();
     }
@@ -16,17 +16,18 @@
 
 package com.google.android.marvin.talkback.formatter;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.Resources;
 import android.os.Build;
 import android.os.Bundle;
 import android.support.v4.view.accessibility.AccessibilityEventCompat;
 import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
-import android.support.v4.view.accessibility.AccessibilityRecordCompat;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
 
 import com.google.android.marvin.talkback.R;
 import com.google.android.marvin.talkback.TalkBackService;
@@ -37,12 +38,15 @@ import com.googlecode.eyesfree.utils.AccessibilityEventUtils;
 import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
 import com.googlecode.eyesfree.utils.ClassLoadingManager;
 import com.googlecode.eyesfree.utils.LogUtils;
-import com.googlecode.eyesfree.utils.PackageManagerUtils;
+import com.googlecode.eyesfree.utils.PackageVersionCache;
 
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -109,18 +113,107 @@ public class EventSpeechRule {
     private static final int PROPERTY_TYPE_INTEGER = 3;
     private static final int PROPERTY_TYPE_STRING = 4;
 
+    // Property identifiers, resolved from property names when rules load.
+    private static final int PROPERTY_ID_UNKNOWN = -1;
+    private static final int PROPERTY_ID_EVENT_TYPE = 0;
+    private static final int PROPERTY_ID_PACKAGE_NAME = 1;
+    private static final int PROPERTY_ID_CLASS_NAME = 2;
+    private static final int PROPERTY_ID_CLASS_NAME_STRICT = 3;
+    private static final int PROPERTY_ID_TEXT = 4;
+    private static final int PROPERTY_ID_BEFORE_TEXT = 5;
+    private static final int PROPERTY_ID_CONTENT_DESCRIPTION = 6;
+    private static final int PROPERTY_ID_CONTENT_DESCRIPTION_OR_TEXT = 7;
+    private static final int PROPERTY_ID_NODE_DESCRIPTION_OR_FALLBACK = 8;
+    private static final int PROPERTY_ID_EVENT_TIME = 9;
+    private static final int PROPERTY_ID_ITEM_COUNT = 10;
+    private static final int PROPERTY_ID_CURRENT_ITEM_INDEX = 11;
+    private static final int PROPERTY_ID_FROM_INDEX = 12;
+    private static final int PROPERTY_ID_TO_INDEX = 13;
+    private static final int PROPERTY_ID_SCROLLABLE = 14;
+    private static final int PROPERTY_ID_SCROLL_X = 15;
+    private static final int PROPERTY_ID_SCROLL_Y = 16;
+    private static final int PROPERTY_ID_RECORD_COUNT = 17;
+    private static final int PROPERTY_ID_CHECKED = 18;
+    private static final int PROPERTY_ID_ENABLED = 19;
+    private static final int PROPERTY_ID_FULL_SCREEN = 20;
+    private static final int PROPERTY_ID_PASSWORD = 21;
+    private static final int PROPERTY_ID_ADDED_COUNT = 22;
+    private static final int PROPERTY_ID_REMOVED_COUNT = 23;
+    private static final int PROPERTY_ID_VERSION_CODE = 24;
+    private static final int PROPERTY_ID_VERSION_NAME = 25;
+    private static final int PROPERTY_ID_PLATFORM_RELEASE = 26;
+    private static final int PROPERTY_ID_PLATFORM_SDK = 27;
+
+    /** Mask returned for rules that may match events of any type. */
+    static final int EVENT_TYPE_MASK_ALL = 0xFFFFFFFF;
+
+    /** Mapping from property name to its pre-resolved identifier. */
+    private static final HashMap<String, Integer> sPropertyNameToIdMap =
+            new HashMap<String, Integer>();
+    static {
+        sPropertyNameToIdMap.put(PROPERTY_EVENT_TYPE, PROPERTY_ID_EVENT_TYPE);
+        sPropertyNameToIdMap.put(PROPERTY_PACKAGE_NAME, PROPERTY_ID_PACKAGE_NAME);
+        sPropertyNameToIdMap.put(PROPERTY_CLASS_NAME, PROPERTY_ID_CLASS_NAME);
+        sPropertyNameToIdMap.put(PROPERTY_CLASS_NAME_STRICT, PROPERTY_ID_CLASS_NAME_STRICT);
+        sPropertyNameToIdMap.put(PROPERTY_TEXT, PROPERTY_ID_TEXT);
+        sPropertyNameToIdMap.put(PROPERTY_BEFORE_TEXT, PROPERTY_ID_BEFORE_TEXT);
+        sPropertyNameToIdMap.put(PROPERTY_CONTENT_DESCRIPTION, PROPERTY_ID_CONTENT_DESCRIPTION);
+        sPropertyNameToIdMap.put(PROPERTY_CONTENT_DESCRIPTION_OR_TEXT,
+                PROPERTY_ID_CONTENT_DESCRIPTION_OR_TEXT);
+        sPropertyNameToIdMap.put(PROPERTY_NODE_DESCRIPTION_OR_FALLBACK,
+                PROPERTY_ID_NODE_DESCRIPTION_OR_FALLBACK);
+        sPropertyNameToIdMap.put(PROPERTY_EVENT_TIME, PROPERTY_ID_EVENT_TIME);
+        sPropertyNameToIdMap.put(PROPERTY_ITEM_COUNT, PROPERTY_ID_ITEM_COUNT);
+        sPropertyNameToIdMap.put(PROPERTY_CURRENT_ITEM_INDEX, PROPERTY_ID_CURRENT_ITEM_INDEX);
+        sPropertyNameToIdMap.put(PROPERTY_FROM_INDEX, PROPERTY_ID_FROM_INDEX);
+        sPropertyNameToIdMap.put(PROPERTY_TO_INDEX, PROPERTY_ID_TO_INDEX);
+        sPropertyNameToIdMap.put(PROPERTY_SCROLLABLE, PROPERTY_ID_SCROLLABLE);
+        sPropertyNameToIdMap.put(PROPERTY_SCROLL_X, PROPERTY_ID_SCROLL_X);
+        sPropertyNameToIdMap.put(PROPERTY_SCROLL_Y, PROPERTY_ID_SCROLL_Y);
+        sPropertyNameToIdMap.put(PROPERTY_RECORD_COUNT, PROPERTY_ID_RECORD_COUNT);
+        sPropertyNameToIdMap.put(PROPERTY_CHECKED, PROPERTY_ID_CHECKED);
+        sPropertyNameToIdMap.put(PROPERTY_ENABLED, PROPERTY_ID_ENABLED);
+        sPropertyNameToIdMap.put(PROPERTY_FULL_SCREEN, PROPERTY_ID_FULL_SCREEN);
+        sPropertyNameToIdMap.put(PROPERTY_PASSWORD, PROPERTY_ID_PASSWORD);
+        sPropertyNameToIdMap.put(PROPERTY_ADDED_COUNT, PROPERTY_ID_ADDED_COUNT);
+        sPropertyNameToIdMap.put(PROPERTY_REMOVED_COUNT, PROPERTY_ID_REMOVED_COUNT);
+        sPropertyNameToIdMap.put(PROPERTY_VERSION_CODE, PROPERTY_ID_VERSION_CODE);
+        sPropertyNameToIdMap.put(PROPERTY_VERSION_NAME, PROPERTY_ID_VERSION_NAME);
+        sPropertyNameToIdMap.put(PROPERTY_PLATFORM_RELEASE, PROPERTY_ID_PLATFORM_RELEASE);
+        sPropertyNameToIdMap.put(PROPERTY_PLATFORM_SDK, PROPERTY_ID_PLATFORM_SDK);
+    }
+
     /**
      * Constant used for storing all speech rules that either do not define a
      * filter package or have custom filters.
      */
     private static final String UNDEFINED_PACKAGE_NAME = "undefined_package_name";
 
+    // Rule image component kinds.
+    private static final byte KIND_NONE = 0;
+    private static final byte KIND_CUSTOM = 1;
+    private static final byte KIND_DEFAULT = 2;
+
+    // Rule image value tags.
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_INTEGER = 1;
+    private static final byte VALUE_FLOAT = 2;
+    private static final byte VALUE_BOOLEAN = 3;
+    private static final byte VALUE_STRING = 4;
+
     /** Regular expression pattern for resource identifiers. */
     private static final Pattern mResourceIdentifier = Pattern.compile("@([\\w\\.]+:)?\\w+/\\w+");
 
     /** Reusable builder to avoid object creation. */
     private static final SpannableStringBuilder sTempBuilder = new SpannableStringBuilder();
 
+    /**
+     * Whether events are {@link android.view.accessibility.AccessibilityRecord}s
+     * and expose the record properties directly.
+     */
+    private static final boolean HAS_RECORD_PROPERTIES =
+            (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH);
+
     /** Mapping from event type name to its type. */
     private static final HashMap<String, Integer> sEventTypeNameToValueMap =
             new HashMap<String, Integer>();
@@ -237,6 +330,18 @@ public class EventSpeechRule {
     /** Lazily populated XML representation of this node. */
     private String mCachedXmlString;
 
+    /**
+     * Bitmask of event types this rule may accept, or
+     * {@link #EVENT_TYPE_MASK_ALL} if the rule does not constrain event type.
+     */
+    private int mEventTypeMask = EVENT_TYPE_MASK_ALL;
+
+    /**
+     * The class name this rule strictly requires, or {@code null} if the rule
+     * does not specify a strict class name.
+     */
+    private String mStrictClassName;
+
     /**
      * Creates a new speech rule that loads resources form the given <code>context
      * </code> and classes from the APK specified by the <code>publicSourceDird</code>. The rule
@@ -289,6 +394,133 @@ public class EventSpeechRule {
         mFilter = filter;
         mFormatter = formatter;
         mRuleIndex = ruleIndex;
+
+        if (filter instanceof DefaultFilter) {
+            ((DefaultFilter) filter).compile();
+        }
+    }
+
+    /**
+     * Creates a new speech rule from a binary rule image written by
+     * {@link #writeToStream}. Custom filters and formatters are instantiated
+     * from the TalkBack {@link ClassLoader}.
+     *
+     * @throws IOException If the rule could not be read.
+     */
+    private EventSpeechRule(TalkBackService context, DataInputStream in) throws IOException {
+        mContext = context;
+        mRuleIndex = in.readInt();
+        mPackageName = in.readUTF();
+
+        final int metadataCount = in.readInt();
+        for (int i = 0; i < metadataCount; i++) {
+            final String key = in.readUTF();
+            if (in.readByte() == VALUE_INTEGER) {
+                mMetadata.putInt(key, in.readInt());
+            } else {
+                mMetadata.putString(key, readNullableString(in));
+            }
+        }
+
+        readIntList(mEarcons, in);
+        readIntList(mVibrationPatterns, in);
+        readIntList(mCustomEarcons, in);
+        readIntList(mCustomVibrations, in);
+
+        AccessibilityEventFilter filter = null;
+        AccessibilityEventFormatter formatter = null;
+
+        final byte filterKind = in.readByte();
+        if (filterKind == KIND_CUSTOM) {
+            filter = createNewInstance(in.readUTF(), AccessibilityEventFilter.class);
+        } else if (filterKind == KIND_DEFAULT) {
+            filter = new DefaultFilter(in);
+        }
+
+        final byte formatterKind = in.readByte();
+        if (formatterKind == KIND_CUSTOM) {
+            formatter = createNewInstance(in.readUTF(), AccessibilityEventFormatter.class);
+        } else if (formatterKind == KIND_DEFAULT) {
+            formatter = new DefaultFormatter(in);
+        }
+
+        if (formatter instanceof ContextBasedRule) {
+            ((ContextBasedRule) formatter).initialize(context);
+        }
+
+        if (filter instanceof ContextBasedRule) {
+            ((ContextBasedRule) filter).initialize(context);
+        }
+
+        mFilter = filter;
+        mFormatter = formatter;
+
+        if (filter instanceof DefaultFilter) {
+            ((DefaultFilter) filter).compile();
+        }
+    }
+
+    /**
+     * Writes this rule to a binary rule image that can be restored with
+     * {@link #readFromStream} without parsing XML.
+     *
+     * @param out The stream to which the rule is written.
+     * @throws IOException If the rule could not be written.
+     */
+    void writeToStream(DataOutputStream out) throws IOException {
+        out.writeInt(mRuleIndex);
+        out.writeUTF(mPackageName);
+
+        out.writeInt(mMetadata.size());
+        for (String key : mMetadata.keySet()) {
+            final Object value = mMetadata.get(key);
+            out.writeUTF(key);
+            if (value instanceof Integer) {
+                out.writeByte(VALUE_INTEGER);
+                out.writeInt((Integer) value);
+            } else {
+                out.writeByte(VALUE_STRING);
+                writeNullableString((String) value, out);
+            }
+        }
+
+        writeIntList(mEarcons, out);
+        writeIntList(mVibrationPatterns, out);
+        writeIntList(mCustomEarcons, out);
+        writeIntList(mCustomVibrations, out);
+
+        if (mFilter instanceof DefaultFilter) {
+            out.writeByte(KIND_DEFAULT);
+            ((DefaultFilter) mFilter).writeToStream(out);
+        } else if (mFilter != null) {
+            out.writeByte(KIND_CUSTOM);
+            out.writeUTF(mFilter.getClass().getName());
+        } else {
+            out.writeByte(KIND_NONE);
+        }
+
+        if (mFormatter instanceof DefaultFormatter) {
+            out.writeByte(KIND_DEFAULT);
+            ((DefaultFormatter) mFormatter).writeToStream(out);
+        } else if (mFormatter != null) {
+            out.writeByte(KIND_CUSTOM);
+            out.writeUTF(mFormatter.getClass().getName());
+        } else {
+            out.writeByte(KIND_NONE);
+        }
+    }
+
+    /**
+     * Reads a speech rule from a binary rule image.
+     *
+     * @param context The parent service.
+     * @param in The stream from which to read the rule.
+     * @return The speech rule.
+     * @throws IOException If the rule could not be read.
+     */
+    static EventSpeechRule readFromStream(TalkBackService context, DataInputStream in)
+            throws IOException {
+        return new EventSpeechRule(context, in);
     }
 
     /**
@@ -301,6 +533,12 @@ public class EventSpeechRule {
             mNode = null;
         }
 
+        if (mCachedXmlString == null) {
+            // Rules loaded from a binary rule image don't retain their XML.
+            return String.format("<rule index=\"%d\" package=\"%s\" />", mRuleIndex,
+                    mPackageName);
+        }
+
         return mCachedXmlString;
     }
 
@@ -325,6 +563,30 @@ public class EventSpeechRule {
         return mFormatter;
     }
 
+    /**
+     * @return A bitmask of the event types this rule may accept, or
+     *         {@link #EVENT_TYPE_MASK_ALL} if the rule may accept any type.
+     */
+    int getEventTypeMask() {
+        return mEventTypeMask;
+    }
+
+    /**
+     * Returns whether this rule may accept an event with the specified class
+     * name. Only the strict class name constraint is considered, so a return
+     * value of {@code true} does not guarantee that the filter will match.
+     *
+     * @param className The class name of the event.
+     * @return {@code false} if the rule can never accept the class name.
+     */
+    boolean mayAcceptClassName(CharSequence className) {
+        if (mStrictClassName == null) {
+            return true;
+        }
+
+        return !TextUtils.isEmpty(className) && mStrictClassName.equals(className);
+    }
+
     /**
      * Applies this rule's {@link AccessibilityEventFilter} to an
      * {@link AccessibilityEvent}.
@@ -639,13 +901,10 @@ public class EventSpeechRule {
     }
 
     /**
-     * Returns from the given <code>context</code> the text content of a <code>node</code>
-     * after it has been localized.
+     * Returns the localized string for <code>resId</code>, or the unmodified
+     * <code>textContent</code> if it does not reference a resource.
      */
-    private static String getLocalizedTextContent(Context context, Node node) {
-        final String textContent = getTextContent(node);
-        final int resId = getResourceIdentifierContent(context, textContent);
-
+    private static String getLocalizedText(Context context, int resId, String textContent) {
         if (resId > 0) {
             return context.getString(resId);
         }
@@ -653,6 +912,48 @@ public class EventSpeechRule {
         return textContent;
     }
 
+    /**
+     * Reads a string written by {@link #writeLocalizedText}. If the string was
+     * a resource reference, it is reloaded from the current resources.
+     */
+    private static String readLocalizedText(Context context, int resId, DataInputStream in)
+            throws IOException {
+        if (resId > 0) {
+            return context.getString(resId);
+        }
+
+        return readNullableString(in);
+    }
+
+    /**
+     * Writes a string that may have been loaded from a resource. Only the
+     * resource identifier is stored for resource strings, so that they are
+     * localized again when the rule image is read.
+     */
+    private static void writeLocalizedText(int resId, String text, DataOutputStream out)
+            throws IOException {
+        if (resId <= 0) {
+            writeNullableString(text, out);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+
+        return null;
+    }
+
+    private static void writeNullableString(String value, DataOutputStream out)
+            throws IOException {
+        out.writeBoolean(value != null);
+
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
     /**
      * Returns a resource identifier from the given <code>context</code> for the text
      * content of a <code>node</code>.
@@ -723,6 +1024,23 @@ public class EventSpeechRule {
         }
     }
 
+    private static void readIntList(List<Integer> list, DataInputStream in) throws IOException {
+        final int count = in.readInt();
+
+        for (int i = 0; i < count; i++) {
+            list.add(in.readInt());
+        }
+    }
+
+    private static void writeIntList(List<Integer> list, DataOutputStream out)
+            throws IOException {
+        out.writeInt(list.size());
+
+        for (Integer value : list) {
+            out.writeInt(value);
+        }
+    }
+
     /**
      * Returns the unqualified <code>node</code> name i.e. without the prefix.
      *
@@ -743,6 +1061,12 @@ public class EventSpeechRule {
      * {@link AccessibilityEvent}.
      */
     private class DefaultFilter implements AccessibilityEventFilter {
+        /** Property matchers in evaluation order, populated by {@link #compile}. */
+        private PropertyMatcher[] mCompiledMatchers;
+
+        /** The package name this filter requires, or {@code null} if any. */
+        private String mFilteringPackage;
+
         public DefaultFilter(Context context, Node node) {
             NodeList properties = node.getChildNodes();
 
@@ -768,116 +1092,282 @@ public class EventSpeechRule {
             }
         }
 
+        /**
+         * Creates a new filter from a binary rule image.
+         *
+         * @param in The stream from which to read the filter.
+         * @throws IOException If the filter could not be read.
+         */
+        public DefaultFilter(DataInputStream in) throws IOException {
+            final int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                final PropertyMatcher propertyMatcher = new PropertyMatcher(mContext, in);
+                mPropertyMatchers.put(propertyMatcher.mPropertyName, propertyMatcher);
+            }
+        }
+
+        /**
+         * Writes this filter to a binary rule image.
+         *
+         * @param out The stream to which the filter is written.
+         * @throws IOException If the filter could not be written.
+         */
+        public void writeToStream(DataOutputStream out) throws IOException {
+            out.writeInt(mPropertyMatchers.size());
+
+            for (PropertyMatcher propertyMatcher : mPropertyMatchers.values()) {
+                propertyMatcher.writeToStream(out);
+            }
+        }
+
+        /**
+         * Compiles the parsed property matchers into an array and resolves the
+         * constraints used by {@link EventSpeechRuleProcessor} to index this
+         * rule by event type and class name.
+         */
+        void compile() {
+            mCompiledMatchers = mPropertyMatchers.values().toArray(
+                    new PropertyMatcher[mPropertyMatchers.size()]);
+
+            final PropertyMatcher packageNameMatcher = mPropertyMatchers.get(
+                    PROPERTY_PACKAGE_NAME);
+            if ((packageNameMatcher != null) && (packageNameMatcher.mAcceptedValues != null)) {
+                mFilteringPackage = (String) packageNameMatcher.mAcceptedValues[0];
+            }
+
+            final PropertyMatcher eventTypeMatcher = mPropertyMatchers.get(PROPERTY_EVENT_TYPE);
+            if (eventTypeMatcher != null) {
+                mEventTypeMask = eventTypeMatcher.getEventTypeMask();
+            }
+
+            final PropertyMatcher strictClassMatcher = mPropertyMatchers.get(
+                    PROPERTY_CLASS_NAME_STRICT);
+            if ((strictClassMatcher != null) && (strictClassMatcher.mAcceptedValues != null)) {
+                // Strict matching only ever considers the first accepted value.
+                mStrictClassName = (String) strictClassMatcher.mAcceptedValues[0];
+            }
+        }
+
         @Override
         public boolean accept(AccessibilityEvent event, TalkBackService context) {
-            final AccessibilityRecordCompat record = new AccessibilityRecordCompat(event);
+            final PropertyMatcher[] matchers = mCompiledMatchers;
 
-            for (PropertyMatcher matcher : mPropertyMatchers.values()) {
-                if (!evaluatePropertyForEvent(context, matcher, event, record)) {
+            for (int i = 0; i < matchers.length; i++) {
+                // Class names are filtered based on package.
+                // TODO(alanv): Is this necessary?
+                if (!matchers[i].accept(context, event, mFilteringPackage)) {
                     return false;
                 }
             }
 
             return true;
         }
+    }
 
-        private boolean evaluatePropertyForEvent(Context context, PropertyMatcher matcher,
-                AccessibilityEvent event, AccessibilityRecordCompat record) {
-            final String propertyName = matcher.mPropertyName;
-            final Object propertyValue = getPropertyValue(context, propertyName, event);
-
-            // Special case for filtering based classes on package.
-            // TODO(alanv): Is this necessary?
-            if (PROPERTY_CLASS_NAME.equals(propertyName)
-                    || PROPERTY_CLASS_NAME_STRICT.equals(propertyName)) {
-                final CharSequence eventPackage = event.getPackageName();
-                final PropertyMatcher packageNameMatcher = mPropertyMatchers.get(
-                        PROPERTY_PACKAGE_NAME);
-                final String filteringPackage;
-
-                if (packageNameMatcher != null) {
-                    filteringPackage = (String) packageNameMatcher.getAcceptedValues()[0];
-                } else {
-                    filteringPackage = null;
-                }
-
-                return matcher.accept(propertyValue, eventPackage, filteringPackage);
-            }
+    /**
+     * Returns the identifier for a given <code>property</code> name.
+     *
+     * @param property The property name.
+     * @return The property identifier, or {@link #PROPERTY_ID_UNKNOWN}.
+     */
+    private static int getPropertyId(String property) {
+        final Integer propertyId = sPropertyNameToIdMap.get(property);
 
-            return matcher.accept(propertyValue);
+        if (propertyId == null) {
+            return PROPERTY_ID_UNKNOWN;
         }
+
+        return propertyId;
     }
 
     /**
      * Returns the value of a given <code>property</code> of an <code>event</code>.
+     * Primitive values are boxed, so this should only be used for formatting.
      *
-     * @param property The property
+     * @param propertyId The pre-resolved property identifier.
      * @param event The event.
      * @return the value.
      */
-    private Object getPropertyValue(Context context, String property, AccessibilityEvent event) {
-        final AccessibilityRecordCompat record = new AccessibilityRecordCompat(event);
-
-        // TODO(alanv): Don't do so many string comparisons here.
-        if (PROPERTY_EVENT_TYPE.equals(property)) {
-            return event.getEventType();
-        } else if (PROPERTY_PACKAGE_NAME.equals(property)) {
-            return event.getPackageName();
-        } else if (PROPERTY_CLASS_NAME.equals(property)) {
-            return event.getClassName();
-        } else if (PROPERTY_CLASS_NAME_STRICT.equals(property)) {
-            return event.getClassName();
-        } else if (PROPERTY_TEXT.equals(property)) {
-            return AccessibilityEventUtils.getEventAggregateText(event);
-        } else if (PROPERTY_BEFORE_TEXT.equals(property)) {
-            return event.getBeforeText();
-        } else if (PROPERTY_CONTENT_DESCRIPTION.equals(property)) {
-            return event.getContentDescription();
-        } else if (PROPERTY_CONTENT_DESCRIPTION_OR_TEXT.equals(property)) {
-            return AccessibilityEventUtils.getEventTextOrDescription(event);
-        } else if (PROPERTY_NODE_DESCRIPTION_OR_FALLBACK.equals(property)) {
-            return getNodeDescriptionOrFallback(event);
-        } else if (PROPERTY_EVENT_TIME.equals(property)) {
-            return event.getEventTime();
-        } else if (PROPERTY_ITEM_COUNT.equals(property)) {
-            return event.getItemCount();
-        } else if (PROPERTY_CURRENT_ITEM_INDEX.equals(property)) {
-            return event.getCurrentItemIndex();
-        } else if (PROPERTY_FROM_INDEX.equals(property)) {
-            return event.getFromIndex();
-        } else if (PROPERTY_TO_INDEX.equals(property)) {
-            return record.getToIndex();
-        } else if (PROPERTY_SCROLLABLE.equals(property)) {
-            return record.isScrollable();
-        } else if (PROPERTY_SCROLL_X.equals(property)) {
-            return record.getScrollX();
-        } else if (PROPERTY_SCROLL_Y.equals(property)) {
-            return record.getScrollY();
-        } else if (PROPERTY_RECORD_COUNT.equals(property)) {
-            return AccessibilityEventCompat.getRecordCount(event);
-        } else if (PROPERTY_CHECKED.equals(property)) {
-            return event.isChecked();
-        } else if (PROPERTY_ENABLED.equals(property)) {
-            return event.isEnabled();
-        } else if (PROPERTY_FULL_SCREEN.equals(property)) {
-            return event.isFullScreen();
-        } else if (PROPERTY_PASSWORD.equals(property)) {
-            return event.isPassword();
-        } else if (PROPERTY_ADDED_COUNT.equals(property)) {
-            return event.getAddedCount();
-        } else if (PROPERTY_REMOVED_COUNT.equals(property)) {
-            return event.getRemovedCount();
-        } else if (PROPERTY_VERSION_CODE.equals(property)) {
-            return PackageManagerUtils.getVersionCode(context, event.getPackageName());
-        } else if (PROPERTY_VERSION_NAME.equals(property)) {
-            return PackageManagerUtils.getVersionName(context, event.getPackageName());
-        } else if (PROPERTY_PLATFORM_RELEASE.equals(property)) {
-            return Build.VERSION.RELEASE;
-        } else if (PROPERTY_PLATFORM_SDK.equals(property)) {
-            return Build.VERSION.SDK_INT;
-        } else {
-            throw new IllegalArgumentException("Unknown property : " + property);
+    private static Object getPropertyValue(
+            TalkBackService context, int propertyId, AccessibilityEvent event) {
+        switch (propertyId) {
+            case PROPERTY_ID_EVENT_TIME:
+                // Event time is formatted as a long, not a float.
+                return event.getEventTime();
+            case PROPERTY_ID_EVENT_TYPE:
+            case PROPERTY_ID_ITEM_COUNT:
+            case PROPERTY_ID_CURRENT_ITEM_INDEX:
+            case PROPERTY_ID_FROM_INDEX:
+            case PROPERTY_ID_TO_INDEX:
+            case PROPERTY_ID_SCROLL_X:
+            case PROPERTY_ID_SCROLL_Y:
+            case PROPERTY_ID_RECORD_COUNT:
+            case PROPERTY_ID_ADDED_COUNT:
+            case PROPERTY_ID_REMOVED_COUNT:
+            case PROPERTY_ID_VERSION_CODE:
+            case PROPERTY_ID_PLATFORM_SDK:
+                return getIntPropertyValue(context, propertyId, event);
+            case PROPERTY_ID_SCROLLABLE:
+            case PROPERTY_ID_CHECKED:
+            case PROPERTY_ID_ENABLED:
+            case PROPERTY_ID_FULL_SCREEN:
+            case PROPERTY_ID_PASSWORD:
+                return getBooleanPropertyValue(propertyId, event);
+            default:
+                return getTextPropertyValue(context, propertyId, event);
+        }
+    }
+
+    /**
+     * Returns the value of an integer <code>property</code> of an
+     * <code>event</code>. Record properties are read from the event itself,
+     * which is an {@link android.view.accessibility.AccessibilityRecord} on
+     * ICS and later, so no compatibility wrapper is allocated.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static int getIntPropertyValue(
+            TalkBackService context, int propertyId, AccessibilityEvent event) {
+        switch (propertyId) {
+            case PROPERTY_ID_EVENT_TYPE:
+                return event.getEventType();
+            case PROPERTY_ID_ITEM_COUNT:
+                return event.getItemCount();
+            case PROPERTY_ID_CURRENT_ITEM_INDEX:
+                return event.getCurrentItemIndex();
+            case PROPERTY_ID_FROM_INDEX:
+                return event.getFromIndex();
+            case PROPERTY_ID_TO_INDEX:
+                return HAS_RECORD_PROPERTIES ? event.getToIndex() : 0;
+            case PROPERTY_ID_SCROLL_X:
+                return HAS_RECORD_PROPERTIES ? event.getScrollX() : 0;
+            case PROPERTY_ID_SCROLL_Y:
+                return HAS_RECORD_PROPERTIES ? event.getScrollY() : 0;
+            case PROPERTY_ID_RECORD_COUNT:
+                return AccessibilityEventCompat.getRecordCount(event);
+            case PROPERTY_ID_ADDED_COUNT:
+                return event.getAddedCount();
+            case PROPERTY_ID_REMOVED_COUNT:
+                return event.getRemovedCount();
+            case PROPERTY_ID_VERSION_CODE:
+                return PackageVersionCache.getInstance().getVersionCode(
+                        context, event.getPackageName());
+            case PROPERTY_ID_PLATFORM_SDK:
+                return Build.VERSION.SDK_INT;
+            default:
+                throw new IllegalArgumentException("Not an integer property : " + propertyId);
+        }
+    }
+
+    /**
+     * Returns the value of a float <code>property</code> of an
+     * <code>event</code>.
+     */
+    private static float getFloatPropertyValue(int propertyId, AccessibilityEvent event) {
+        switch (propertyId) {
+            case PROPERTY_ID_EVENT_TIME:
+                return event.getEventTime();
+            default:
+                throw new IllegalArgumentException("Not a float property : " + propertyId);
+        }
+    }
+
+    /**
+     * Returns the value of a boolean <code>property</code> of an
+     * <code>event</code>.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static boolean getBooleanPropertyValue(int propertyId, AccessibilityEvent event) {
+        switch (propertyId) {
+            case PROPERTY_ID_SCROLLABLE:
+                return HAS_RECORD_PROPERTIES && event.isScrollable();
+            case PROPERTY_ID_CHECKED:
+                return event.isChecked();
+            case PROPERTY_ID_ENABLED:
+                return event.isEnabled();
+            case PROPERTY_ID_FULL_SCREEN:
+                return event.isFullScreen();
+            case PROPERTY_ID_PASSWORD:
+                return event.isPassword();
+            default:
+                throw new IllegalArgumentException("Not a boolean property : " + propertyId);
+        }
+    }
+
+    /**
+     * Returns the value of a string <code>property</code> of an
+     * <code>event</code>.
+     */
+    private static CharSequence getTextPropertyValue(
+            TalkBackService context, int propertyId, AccessibilityEvent event) {
+        switch (propertyId) {
+            case PROPERTY_ID_PACKAGE_NAME:
+                return event.getPackageName();
+            case PROPERTY_ID_CLASS_NAME:
+            case PROPERTY_ID_CLASS_NAME_STRICT:
+                return event.getClassName();
+            case PROPERTY_ID_TEXT:
+                return AccessibilityEventUtils.getEventAggregateText(event);
+            case PROPERTY_ID_BEFORE_TEXT:
+                return event.getBeforeText();
+            case PROPERTY_ID_CONTENT_DESCRIPTION:
+                return event.getContentDescription();
+            case PROPERTY_ID_CONTENT_DESCRIPTION_OR_TEXT:
+                return AccessibilityEventUtils.getEventTextOrDescription(event);
+            case PROPERTY_ID_NODE_DESCRIPTION_OR_FALLBACK:
+                return getNodeDescriptionOrFallback(event);
+            case PROPERTY_ID_VERSION_NAME:
+                return PackageVersionCache.getInstance().getVersionName(
+                        context, event.getPackageName());
+            case PROPERTY_ID_PLATFORM_RELEASE:
+                return Build.VERSION.RELEASE;
+            default:
+                throw new IllegalArgumentException("Not a string property : " + propertyId);
+        }
+    }
+
+    /**
+     * Returns the value of a string <code>property</code> of an
+     * <code>event</code> for matching. When the event has at most one
+     * non-empty text item, its aggregate text is that item, so the aggregate
+     * is not built.
+     */
+    private static CharSequence getFilterTextPropertyValue(
+            TalkBackService context, int propertyId, AccessibilityEvent event) {
+        if ((propertyId == PROPERTY_ID_TEXT)
+                || ((propertyId == PROPERTY_ID_CONTENT_DESCRIPTION_OR_TEXT)
+                        && TextUtils.isEmpty(event.getContentDescription()))) {
+            final CharSequence text = getSingleEventText(event);
+            if (text != null) {
+                return text;
+            }
+        }
+
+        return getTextPropertyValue(context, propertyId, event);
+    }
+
+    /**
+     * Returns the only non-empty text item of an event, an empty string if
+     * the event has none, or {@code null} if it has several.
+     */
+    private static CharSequence getSingleEventText(AccessibilityEvent event) {
+        final List<CharSequence> texts = event.getText();
+        CharSequence singleText = "";
+
+        for (int i = 0, count = texts.size(); i < count; i++) {
+            final CharSequence text = texts.get(i);
+            if (TextUtils.isEmpty(text)) {
+                continue;
+            }
+
+            if (singleText.length() > 0) {
+                return null;
+            }
+
+            singleText = text;
         }
+
+        return singleText;
     }
 
     /**
@@ -889,12 +1379,15 @@ public class EventSpeechRule {
      * @param event The event to generate a description for.
      * @return A description of the event, or an empty string on failure.
      */
-    private CharSequence getNodeDescriptionOrFallback(AccessibilityEvent event) {
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static CharSequence getNodeDescriptionOrFallback(AccessibilityEvent event) {
         AccessibilityNodeInfoCompat source = null;
 
         try {
-            source = new AccessibilityRecordCompat(event).getSource();
-            if (source != null) {
+            final AccessibilityNodeInfo sourceInfo =
+                    HAS_RECORD_PROPERTIES ? event.getSource() : null;
+            if (sourceInfo != null) {
+                source = new AccessibilityNodeInfoCompat(sourceInfo);
                 final NodeSpeechRuleProcessor nodeProcessor = NodeSpeechRuleProcessor.getInstance();
                 final CharSequence treeDescription = nodeProcessor.getDescriptionForTree(
                         source, event, source);
@@ -936,16 +1429,27 @@ public class EventSpeechRule {
         /** Optional template to populate with selected values. */
         private final String mTemplate;
 
+        /** Resource identifier of the template, or {@code -1} if not a resource. */
+        private final int mTemplateResId;
+
         private final List<Pair<String, String>> mSelectors;
 
+        /** Resource identifiers of the selector values, or {@code -1} if none. */
+        private final int[] mSelectorResIds;
+
+        /** Pre-resolved property identifiers for each selector. */
+        private final int[] mSelectorPropertyIds;
+
         /**
          * Creates a new formatter from a given DOM {@link Node}.
          *
          * @param node The node.
          */
         public DefaultFormatter(Node node) {
+            final ArrayList<Integer> selectorResIds = new ArrayList<Integer>();
             mSelectors = new ArrayList<Pair<String, String>>();
             String template = null;
+            int templateResId = -1;
 
             NodeList children = node.getChildNodes();
             for (int i = 0, count = children.getLength(); i < count; i++) {
@@ -959,17 +1463,84 @@ public class EventSpeechRule {
                 // some elements contain mandatory reference to a string
                 // resource
                 if (NODE_NAME_TEMPLATE.equals(unqualifiedName)) {
-                    template = getLocalizedTextContent(mContext, child);
+                    final String textContent = getTextContent(child);
+                    templateResId = getResourceIdentifierContent(mContext, textContent);
+                    template = getLocalizedText(mContext, templateResId, textContent);
                 } else if (NODE_NAME_PROPERTY.equals(unqualifiedName)) {
+                    final String textContent = getTextContent(child);
+                    final int resId = getResourceIdentifierContent(mContext, textContent);
                     mSelectors.add(new Pair<String, String>(unqualifiedName,
-                            getLocalizedTextContent(mContext, child)));
+                            getLocalizedText(mContext, resId, textContent)));
+                    selectorResIds.add(resId);
                 } else {
                     mSelectors
                             .add(new Pair<String, String>(unqualifiedName, getTextContent(child)));
+                    selectorResIds.add(-1);
                 }
             }
 
             mTemplate = template;
+            mTemplateResId = templateResId;
+            mSelectorResIds = new int[selectorResIds.size()];
+
+            for (int i = 0; i < mSelectorResIds.length; i++) {
+                mSelectorResIds[i] = selectorResIds.get(i);
+            }
+
+            mSelectorPropertyIds = resolveSelectorPropertyIds(mSelectors);
+        }
+
+        /**
+         * Creates a new formatter from a binary rule image.
+         *
+         * @param in The stream from which to read the formatter.
+         * @throws IOException If the formatter could not be read.
+         */
+        public DefaultFormatter(DataInputStream in) throws IOException {
+            mTemplateResId = in.readInt();
+            mTemplate = readLocalizedText(mContext, mTemplateResId, in);
+
+            final int count = in.readInt();
+            mSelectors = new ArrayList<Pair<String, String>>(count);
+            mSelectorResIds = new int[count];
+
+            for (int i = 0; i < count; i++) {
+                final String selectorType = in.readUTF();
+                mSelectorResIds[i] = in.readInt();
+                mSelectors.add(new Pair<String, String>(selectorType,
+                        readLocalizedText(mContext, mSelectorResIds[i], in)));
+            }
+
+            mSelectorPropertyIds = resolveSelectorPropertyIds(mSelectors);
+        }
+
+        /**
+         * Writes this formatter to a binary rule image.
+         *
+         * @param out The stream to which the formatter is written.
+         * @throws IOException If the formatter could not be written.
+         */
+        public void writeToStream(DataOutputStream out) throws IOException {
+            out.writeInt(mTemplateResId);
+            writeLocalizedText(mTemplateResId, mTemplate, out);
+            out.writeInt(mSelectors.size());
+
+            for (int i = 0, count = mSelectors.size(); i < count; i++) {
+                final Pair<String, String> selector = mSelectors.get(i);
+                out.writeUTF(selector.first);
+                out.writeInt(mSelectorResIds[i]);
+                writeLocalizedText(mSelectorResIds[i], selector.second, out);
+            }
+        }
+
+        private int[] resolveSelectorPropertyIds(List<Pair<String, String>> selectors) {
+            final int[] propertyIds = new int[selectors.size()];
+
+            for (int i = 0; i < propertyIds.length; i++) {
+                propertyIds[i] = getPropertyId(selectors.get(i).second);
+            }
+
+            return propertyIds;
         }
 
         @Override
@@ -983,7 +1554,12 @@ public class EventSpeechRule {
                 final String selectorValue = selector.second;
 
                 if (NODE_NAME_PROPERTY.equals(selectorType)) {
-                    final Object propertyValue = getPropertyValue(context, selectorValue, event);
+                    final int propertyId = mSelectorPropertyIds[i];
+                    if (propertyId == PROPERTY_ID_UNKNOWN) {
+                        throw new IllegalArgumentException("Unknown property : " + selectorValue);
+                    }
+
+                    final Object propertyValue = getPropertyValue(context, propertyId, event);
                     arguments[i] = (propertyValue != null) ? propertyValue : "";
                 } else {
                     throw new IllegalArgumentException("Unknown selector type: [" + selector.first
@@ -1155,6 +1731,9 @@ public class EventSpeechRule {
          */
         private final String mPropertyName;
 
+        /** The pre-resolved identifier of the property matched by this instance. */
+        private final int mPropertyId;
+
         /** The type of property matched by this instance. */
         private final int mPropertyType;
 
@@ -1168,6 +1747,18 @@ public class EventSpeechRule {
          */
         private final Object[] mAcceptedValues;
 
+        /** The accepted values of an integer property, without boxing. */
+        private int[] mAcceptedInts;
+
+        /** The accepted values of a float property, without boxing. */
+        private float[] mAcceptedFloats;
+
+        /** The accepted values of a boolean property, without boxing. */
+        private boolean[] mAcceptedBooleans;
+
+        /** The accepted values of a string property. */
+        private String[] mAcceptedStrings;
+
         /**
          * Context handled for accessing resources.
          */
@@ -1183,6 +1774,7 @@ public class EventSpeechRule {
         public PropertyMatcher(Context context, String propertyName, String acceptedValue) {
             mContext = context;
             mPropertyName = propertyName;
+            mPropertyId = getPropertyId(propertyName);
             mPropertyType = getPropertyType(propertyName);
 
             if (acceptedValue == null) {
@@ -1239,6 +1831,91 @@ public class EventSpeechRule {
                         parsePropertyValue(propertyName, acceptedValue)
                 };
             }
+
+            compileTypedValues();
+        }
+
+        /**
+         * Creates a new instance from a binary rule image. The accepted values
+         * were parsed when the image was written, so no patterns are matched.
+         *
+         * @param context The Context for accessing resources.
+         * @param in The stream from which to read the matcher.
+         * @throws IOException If the matcher could not be read.
+         */
+        public PropertyMatcher(Context context, DataInputStream in) throws IOException {
+            mContext = context;
+            mPropertyName = in.readUTF();
+            mPropertyId = getPropertyId(mPropertyName);
+            mPropertyType = getPropertyType(mPropertyName);
+            mType = in.readInt();
+
+            final int count = in.readInt();
+            if (count < 0) {
+                mAcceptedValues = null;
+                return;
+            }
+
+            mAcceptedValues = new Object[count];
+            for (int i = 0; i < count; i++) {
+                mAcceptedValues[i] = readValue(in);
+            }
+
+            compileTypedValues();
+        }
+
+        /**
+         * Writes this matcher to a binary rule image.
+         *
+         * @param out The stream to which the matcher is written.
+         * @throws IOException If the matcher could not be written.
+         */
+        public void writeToStream(DataOutputStream out) throws IOException {
+            out.writeUTF(mPropertyName);
+            out.writeInt(mType);
+
+            if (mAcceptedValues == null) {
+                out.writeInt(-1);
+                return;
+            }
+
+            out.writeInt(mAcceptedValues.length);
+            for (Object value : mAcceptedValues) {
+                writeValue(value, out);
+            }
+        }
+
+        private static Object readValue(DataInputStream in) throws IOException {
+            switch (in.readByte()) {
+                case VALUE_INTEGER:
+                    return in.readInt();
+                case VALUE_FLOAT:
+                    return in.readFloat();
+                case VALUE_BOOLEAN:
+                    return in.readBoolean();
+                case VALUE_STRING:
+                    return in.readUTF();
+                default:
+                    return null;
+            }
+        }
+
+        private static void writeValue(Object value, DataOutputStream out) throws IOException {
+            if (value instanceof Integer) {
+                out.writeByte(VALUE_INTEGER);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Float) {
+                out.writeByte(VALUE_FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(VALUE_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof String) {
+                out.writeByte(VALUE_STRING);
+                out.writeUTF((String) value);
+            } else {
+                out.writeByte(VALUE_NULL);
+            }
         }
 
         /**
@@ -1249,33 +1926,122 @@ public class EventSpeechRule {
         }
 
         /**
-         * @return True if the given <code>value</code> with specified <code>arguments</code>
-         *         is accepted by this matcher.
+         * Returns a bitmask of the event types accepted by this matcher. Event
+         * types are single-bit flags, so an event of type {@code t} can only
+         * be accepted if {@code (mask & t) != 0}.
+         *
+         * @return The accepted event type mask, or
+         *         {@link EventSpeechRule#EVENT_TYPE_MASK_ALL} if this matcher
+         *         does not constrain the event type to a fixed set.
          */
-        public boolean accept(Object value, Object... arguments) {
+        public int getEventTypeMask() {
+            if ((mPropertyId != PROPERTY_ID_EVENT_TYPE) || (mAcceptedValues == null)
+                    || ((mType != TYPE_EQUALS) && (mType != TYPE_OR))) {
+                return EVENT_TYPE_MASK_ALL;
+            }
+
+            int mask = 0;
+
+            for (Object acceptedValue : mAcceptedValues) {
+                if (acceptedValue instanceof Integer) {
+                    mask |= (Integer) acceptedValue;
+                }
+            }
+
+            return mask;
+        }
+
+        /**
+         * Resolves the accepted values into primitive arrays, so that typed
+         * properties can be compared without boxing. Accepted values that
+         * failed to parse are omitted, since they never match.
+         */
+        private void compileTypedValues() {
+            int count = 0;
+            for (Object acceptedValue : mAcceptedValues) {
+                if (acceptedValue != null) {
+                    count++;
+                }
+            }
+
+            switch (mPropertyType) {
+                case PROPERTY_TYPE_INTEGER:
+                    mAcceptedInts = new int[count];
+                    break;
+                case PROPERTY_TYPE_FLOAT:
+                    mAcceptedFloats = new float[count];
+                    break;
+                case PROPERTY_TYPE_BOOLEAN:
+                    mAcceptedBooleans = new boolean[count];
+                    break;
+                default:
+                    mAcceptedStrings = new String[count];
+                    break;
+            }
+
+            int index = 0;
+            for (Object acceptedValue : mAcceptedValues) {
+                if (acceptedValue == null) {
+                    continue;
+                }
+
+                switch (mPropertyType) {
+                    case PROPERTY_TYPE_INTEGER:
+                        mAcceptedInts[index] = (Integer) acceptedValue;
+                        break;
+                    case PROPERTY_TYPE_FLOAT:
+                        mAcceptedFloats[index] = (Float) acceptedValue;
+                        break;
+                    case PROPERTY_TYPE_BOOLEAN:
+                        mAcceptedBooleans[index] = (Boolean) acceptedValue;
+                        break;
+                    default:
+                        mAcceptedStrings[index] = (String) acceptedValue;
+                        break;
+                }
+
+                index++;
+            }
+        }
+
+        /**
+         * Returns whether this matcher accepts the value of its property for
+         * the given <code>event</code>. Integer, float, and boolean properties
+         * are read and compared without allocating.
+         *
+         * @param context The parent service.
+         * @param event The event to match.
+         * @param filteringPackageName The package targeted by the filter, used
+         *            when matching class names.
+         * @return True if the event is accepted by this matcher.
+         */
+        public boolean accept(TalkBackService context, AccessibilityEvent event,
+                String filteringPackageName) {
             if (mAcceptedValues == null) {
                 return true;
             }
 
-            if (value == null) {
-                if (mPropertyType == PROPERTY_TYPE_STRING) {
-                    value = "";
-                } else {
-                    return false;
-                }
+            switch (mPropertyType) {
+                case PROPERTY_TYPE_INTEGER:
+                    return acceptIntProperty(getIntPropertyValue(context, mPropertyId, event));
+                case PROPERTY_TYPE_FLOAT:
+                    return acceptFloatProperty(getFloatPropertyValue(mPropertyId, event));
+                case PROPERTY_TYPE_BOOLEAN:
+                    return acceptBooleanProperty(getBooleanPropertyValue(mPropertyId, event));
             }
 
-            if (PROPERTY_CLASS_NAME.equals(mPropertyName)
-                    || PROPERTY_CLASS_NAME_STRICT.equals(mPropertyName)) {
-                final String eventClassName = (String) value;
-                final String eventPackageName = (String) arguments[0];
-                final String filteringPackageName = (String) arguments[1];
+            CharSequence value = getFilterTextPropertyValue(context, mPropertyId, event);
+            if (value == null) {
+                value = "";
+            }
 
-                return acceptClassNameProperty(eventClassName, eventPackageName,
-                        filteringPackageName, PROPERTY_CLASS_NAME_STRICT.equals(mPropertyName));
+            if ((mPropertyId == PROPERTY_ID_CLASS_NAME)
+                    || (mPropertyId == PROPERTY_ID_CLASS_NAME_STRICT)) {
+                return acceptClassNameProperty(value, event.getPackageName(),
+                        filteringPackageName, (mPropertyId == PROPERTY_ID_CLASS_NAME_STRICT));
             }
 
-            return acceptProperty(value);
+            return acceptTextProperty(value);
         }
 
         /**
@@ -1283,19 +2049,18 @@ public class EventSpeechRule {
          *         <code>packageName</code> while comparing it against the filtered event
          *         (#PROPERTY_CLASS_NAME) from the <code>filteredPackageName</code>.
          */
-        private boolean acceptClassNameProperty(String eventClassName, String eventPackageName,
-                String filteringPackageName, boolean requireExactMatch) {
+        private boolean acceptClassNameProperty(CharSequence eventClassName,
+                CharSequence eventPackageName, String filteringPackageName,
+                boolean requireExactMatch) {
 
             // Events with empty class names won't match the filter.
             if (TextUtils.isEmpty(eventClassName)) {
                 return false;
             }
 
-            for (Object acceptedValue : mAcceptedValues) {
-                final String filteringClassName = (String) acceptedValue;
-
+            for (String filteringClassName : mAcceptedStrings) {
                 // Try a shortcut for efficiency.
-                if (filteringClassName.equals(eventClassName)) {
+                if (TextUtils.equals(filteringClassName, eventClassName)) {
                     return true;
                 } else if (requireExactMatch) {
                     return false;
@@ -1306,7 +2071,7 @@ public class EventSpeechRule {
                                 filteringClassName, filteringPackageName);
                 final Class<?> eventClass =
                         ClassLoadingManager.getInstance().loadOrGetCachedClass(mContext,
-                                eventClassName.toString(), eventPackageName);
+                                eventClassName, eventPackageName);
 
                 if ((filteringClass != null) && (eventClass != null)) {
                     return (filteringClass.isAssignableFrom(eventClass));
@@ -1316,18 +2081,48 @@ public class EventSpeechRule {
         }
 
         /**
-         * @return True if this matcher accepts the given <code>value</code> for the
-         *         property it matches.
+         * @return True if this matcher accepts the given text <code>value</code>.
          */
-        private boolean acceptProperty(Object value) {
-            // Convert CharSequences to Strings.
-            if (value instanceof CharSequence) {
-                value = value.toString();
+        private boolean acceptTextProperty(CharSequence value) {
+            if ((mType != TYPE_EQUALS) && (mType != TYPE_OR)) {
+                return false;
             }
 
+            for (String acceptedValue : mAcceptedStrings) {
+                if (TextUtils.equals(acceptedValue, value)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * @return True if this matcher accepts the given boolean <code>value</code>.
+         */
+        private boolean acceptBooleanProperty(boolean value) {
+            if ((mType != TYPE_EQUALS) && (mType != TYPE_OR)) {
+                return false;
+            }
+
+            for (boolean acceptedValue : mAcceptedBooleans) {
+                if (value == acceptedValue) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * @return True if this matcher accepts the given integer <code>value</code>.
+         */
+        private boolean acceptIntProperty(int value) {
+            final int[] acceptedValues = mAcceptedInts;
+
             if ((mType == TYPE_EQUALS) || (mType == TYPE_OR)) {
-                for (Object acceptedValue : mAcceptedValues) {
-                    if (value.equals(acceptedValue)) {
+                for (int acceptedValue : acceptedValues) {
+                    if (value == acceptedValue) {
                         return true;
                     }
                 }
@@ -1335,19 +2130,38 @@ public class EventSpeechRule {
                 return false;
             }
 
-            switch (mPropertyType) {
-                case PROPERTY_TYPE_INTEGER:
-                    return acceptComparableProperty((Integer) value, (Integer) mAcceptedValues[0]);
-                case PROPERTY_TYPE_FLOAT:
-                    return acceptComparableProperty((Float) value, (Float) mAcceptedValues[0]);
-                default:
-                    return false;
+            if (acceptedValues.length == 0) {
+                return false;
             }
+
+            return acceptComparison((value < acceptedValues[0]) ? -1
+                    : ((value == acceptedValues[0]) ? 0 : 1));
         }
 
-        private <T> boolean acceptComparableProperty(Comparable<T> value, T accepted) {
-            final int result = value.compareTo(accepted);
+        /**
+         * @return True if this matcher accepts the given float <code>value</code>.
+         */
+        private boolean acceptFloatProperty(float value) {
+            final float[] acceptedValues = mAcceptedFloats;
+
+            if ((mType == TYPE_EQUALS) || (mType == TYPE_OR)) {
+                for (float acceptedValue : acceptedValues) {
+                    if (Float.compare(value, acceptedValue) == 0) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+            if (acceptedValues.length == 0) {
+                return false;
+            }
+
+            return acceptComparison(Float.compare(value, acceptedValues[0]));
+        }
 
+        private boolean acceptComparison(int result) {
             switch (mType) {
                 case TYPE_LESS_THAN_OR_EQUAL:
                     return (result <= 0);
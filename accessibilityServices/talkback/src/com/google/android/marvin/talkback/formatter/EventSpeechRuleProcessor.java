@@ -17,6 +17,7 @@
 package com.google.android.marvin.talkback.formatter;
 
 import android.content.res.Resources;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
 
@@ -31,7 +32,6 @@ import org.w3c.dom.Document;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -90,12 +90,21 @@ public class EventSpeechRuleProcessor {
      */
     private static final String UNDEFINED_PACKAGE_NAME = "undefined_package_name";
 
+    /**
+     * The maximum number of class names for which candidate rules are cached
+     * per event type before the cache is cleared.
+     */
+    private static final int MAX_CACHED_CLASS_NAMES = 64;
+
     /** Context for accessing resources. */
     private final TalkBackService mContext;
 
     /** Mapping from package name to speech rules for that package. */
-    private final Map<String, List<EventSpeechRule>>
-            mPackageNameToSpeechRulesMap = new HashMap<String, List<EventSpeechRule>>();
+    private final Map<String, CompiledRuleSet>
+            mPackageNameToSpeechRulesMap = new HashMap<String, CompiledRuleSet>();
+
+    /** Cache of precompiled binary rule images. */
+    private final SpeechStrategyCache mSpeechStrategyCache;
 
     /** A lazily-constructed shared instance of a document builder. */
     private DocumentBuilder mDocumentBuilder;
@@ -107,6 +116,7 @@ public class EventSpeechRuleProcessor {
      */
     public EventSpeechRuleProcessor(TalkBackService context) {
         mContext = context;
+        mSpeechStrategyCache = new SpeechStrategyCache(context);
     }
 
     /**
@@ -122,11 +132,12 @@ public class EventSpeechRuleProcessor {
     public boolean processEvent(AccessibilityEvent event, Utterance utterance) {
         synchronized (mPackageNameToSpeechRulesMap) {
             // Try package specific speech rules first.
-            List<EventSpeechRule> speechRules = mPackageNameToSpeechRulesMap
+            CompiledRuleSet speechRules = mPackageNameToSpeechRulesMap
                     .get(event.getPackageName());
 
             if ((speechRules != null)) {
-                RuleProcessorResult packageResult = processEvent(speechRules, event, utterance);
+                RuleProcessorResult packageResult = processEvent(
+                        speechRules.getCandidates(event), event, utterance);
                 switch (packageResult) {
                     case FORMATTED:
                         return true;
@@ -141,7 +152,8 @@ public class EventSpeechRuleProcessor {
             speechRules = mPackageNameToSpeechRulesMap.get(UNDEFINED_PACKAGE_NAME);
 
             if ((speechRules != null)) {
-                return processEvent(speechRules, event, utterance) == RuleProcessorResult.FORMATTED;
+                return processEvent(speechRules.getCandidates(event), event, utterance)
+                        == RuleProcessorResult.FORMATTED;
             }
         }
 
@@ -159,21 +171,34 @@ public class EventSpeechRuleProcessor {
      * using the TalkBack {@link ClassLoader}.
      */
     public void addSpeechStrategy(int resourceId) {
+        final long startTime = SystemClock.uptimeMillis();
         final Resources res = mContext.getResources();
         final String speechStrategy = res.getResourceName(resourceId);
-        final InputStream inputStream = res.openRawResource(resourceId);
-        final Document document = parseSpeechStrategy(inputStream);
-        final ArrayList<EventSpeechRule> speechRules = EventSpeechRule.createSpeechRules(
-                mContext, document);
+        final String strategyName = res.getResourceEntryName(resourceId);
+
+        List<EventSpeechRule> speechRules = mSpeechStrategyCache.read(strategyName);
+        final boolean loadedFromImage = (speechRules != null);
+
+        if (!loadedFromImage) {
+            final InputStream inputStream = res.openRawResource(resourceId);
+            final Document document = parseSpeechStrategy(inputStream);
+            speechRules = EventSpeechRule.createSpeechRules(mContext, document);
+
+            if (document != null) {
+                mSpeechStrategyCache.write(strategyName, speechRules);
+            }
+        }
 
         final int added = addSpeechStrategy(speechRules);
+        final long elapsedTime = (SystemClock.uptimeMillis() - startTime);
 
-        LogUtils.log(EventSpeechRuleProcessor.class, Log.INFO, "%d speech rules appended from: %s",
-                added, speechStrategy);
+        LogUtils.log(EventSpeechRuleProcessor.class, Log.INFO,
+                "%d speech rules appended from: %s (%s, %d ms)", added, speechStrategy,
+                (loadedFromImage ? "binary" : "xml"), elapsedTime);
     }
 
     /**
-     * Loads speech rules from a list.
+     * Loads speech rules from a list and recompiles the rule index.
      *
      * @return The number of rules that were loaded successfully.
      */
@@ -186,6 +211,10 @@ public class EventSpeechRuleProcessor {
                     count++;
                 }
             }
+
+            for (CompiledRuleSet packageSpeechRules : mPackageNameToSpeechRulesMap.values()) {
+                packageSpeechRules.compile();
+            }
         }
 
         return count;
@@ -197,10 +226,10 @@ public class EventSpeechRuleProcessor {
     private boolean addSpeechRuleLocked(EventSpeechRule speechRule) {
         final String packageName = speechRule.getPackageName();
 
-        List<EventSpeechRule> packageSpeechRules = mPackageNameToSpeechRulesMap.get(packageName);
+        CompiledRuleSet packageSpeechRules = mPackageNameToSpeechRulesMap.get(packageName);
 
         if (packageSpeechRules == null) {
-            packageSpeechRules = new LinkedList<EventSpeechRule>();
+            packageSpeechRules = new CompiledRuleSet();
             mPackageNameToSpeechRulesMap.put(packageName, packageSpeechRules);
         }
 
@@ -216,7 +245,7 @@ public class EventSpeechRuleProcessor {
      *         processed.
      */
     private RuleProcessorResult processEvent(
-            List<EventSpeechRule> speechRules, AccessibilityEvent event, Utterance utterance) {
+            EventSpeechRule[] speechRules, AccessibilityEvent event, Utterance utterance) {
         for (EventSpeechRule speechRule : speechRules) {
             // We should never crash because of a bug in speech rules.
             try {
@@ -277,4 +306,120 @@ public class EventSpeechRuleProcessor {
 
         return mDocumentBuilder;
     }
+
+    /**
+     * An ordered list of speech rules for a single package, compiled into an
+     * index keyed on event type and class name. Looking up the candidates for
+     * an event returns, in their original order, only the rules whose event
+     * type and strict class name constraints could accept the event. Since
+     * rules that are skipped could never have matched, the first matching
+     * rule is the same as when iterating over the full list.
+     */
+    private static class CompiledRuleSet {
+        /** The number of distinct single-bit event types. */
+        private static final int EVENT_TYPE_BIT_COUNT = 32;
+
+        /** All rules for this package, in the order they were defined. */
+        private final ArrayList<EventSpeechRule> mRules = new ArrayList<EventSpeechRule>();
+
+        /** Candidate rules indexed by the bit position of the event type. */
+        private final EventSpeechRule[][] mRulesByEventType =
+                new EventSpeechRule[EVENT_TYPE_BIT_COUNT][];
+
+        /**
+         * Cached candidate rules indexed by the bit position of the event type
+         * and then by class name. Only populated for event types that have at
+         * least one rule with a strict class name constraint.
+         */
+        private final ArrayList<HashMap<String, EventSpeechRule[]>> mRulesByClassName =
+                new ArrayList<HashMap<String, EventSpeechRule[]>>(EVENT_TYPE_BIT_COUNT);
+
+        /** All rules for this package, used when the event type is unusual. */
+        private EventSpeechRule[] mAllRules = new EventSpeechRule[0];
+
+        public boolean add(EventSpeechRule speechRule) {
+            return mRules.add(speechRule);
+        }
+
+        /**
+         * Rebuilds the event type index. Must be called after adding rules.
+         */
+        public void compile() {
+            mAllRules = mRules.toArray(new EventSpeechRule[mRules.size()]);
+            mRulesByClassName.clear();
+
+            final ArrayList<EventSpeechRule> candidates = new ArrayList<EventSpeechRule>();
+
+            for (int bit = 0; bit < EVENT_TYPE_BIT_COUNT; bit++) {
+                final int eventType = (1 << bit);
+                boolean hasStrictClassName = false;
+
+                candidates.clear();
+
+                for (EventSpeechRule rule : mAllRules) {
+                    if ((rule.getEventTypeMask() & eventType) != 0) {
+                        candidates.add(rule);
+                        hasStrictClassName |= !rule.mayAcceptClassName(null);
+                    }
+                }
+
+                mRulesByEventType[bit] = candidates.toArray(
+                        new EventSpeechRule[candidates.size()]);
+
+                if (hasStrictClassName) {
+                    mRulesByClassName.add(new HashMap<String, EventSpeechRule[]>());
+                } else {
+                    mRulesByClassName.add(null);
+                }
+            }
+        }
+
+        /**
+         * Returns the rules that may accept an event, in definition order.
+         *
+         * @param event The event to match.
+         * @return An array of candidate rules.
+         */
+        public EventSpeechRule[] getCandidates(AccessibilityEvent event) {
+            final int eventType = event.getEventType();
+
+            if (Integer.bitCount(eventType) != 1) {
+                return mAllRules;
+            }
+
+            final int bit = Integer.numberOfTrailingZeros(eventType);
+            final EventSpeechRule[] typeCandidates = mRulesByEventType[bit];
+            final HashMap<String, EventSpeechRule[]> classNameCache =
+                    mRulesByClassName.get(bit);
+
+            if (classNameCache == null) {
+                return typeCandidates;
+            }
+
+            // Copy the class name, since event instances may be recycled.
+            final CharSequence eventClassName = event.getClassName();
+            final String className = (eventClassName == null) ? null : eventClassName.toString();
+            EventSpeechRule[] classCandidates = classNameCache.get(className);
+
+            if (classCandidates == null) {
+                final ArrayList<EventSpeechRule> candidates = new ArrayList<EventSpeechRule>();
+
+                for (EventSpeechRule rule : typeCandidates) {
+                    if (rule.mayAcceptClassName(className)) {
+                        candidates.add(rule);
+                    }
+                }
+
+                classCandidates = candidates.toArray(new EventSpeechRule[candidates.size()]);
+
+                if (classNameCache.size() >= MAX_CACHED_CLASS_NAMES) {
+                    classNameCache.clear();
+                }
+
+                classNameCache.put(className, classCandidates);
+            }
+
+            return classCandidates;
+        }
+    }
 }
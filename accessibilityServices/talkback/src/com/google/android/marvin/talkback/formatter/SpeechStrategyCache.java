@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.android.marvin.talkback.formatter;
+
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.util.Log;
+
+import com.google.android.marvin.talkback.TalkBackService;
+import com.googlecode.eyesfree.utils.LogUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Caches speech strategies as compact binary rule images, so that warm starts
+ * can load {@link EventSpeechRule}s with a streaming reader instead of parsing
+ * the speech strategy XML.
+ * <p>
+ * Each image begins with a header containing the image format version and the
+ * version key of the TalkBack APK that wrote it. Images written by a different
+ * APK are discarded, since resource identifiers stored in the image are only
+ * valid for the APK that assigned them.
+ * </p>
+ */
+class SpeechStrategyCache {
+    /** Name of the cache directory for rule images. */
+    private static final String CACHE_DIR_NAME = "speechstrategy";
+
+    /** File extension for rule images. */
+    private static final String IMAGE_FILE_EXTENSION = ".bin";
+
+    /** Magic number identifying a rule image. */
+    private static final int IMAGE_MAGIC = 0x54425352;
+
+    /** Version of the image format. Increment when the format changes. */
+    private static final int IMAGE_FORMAT_VERSION = 1;
+
+    /** The parent service. */
+    private final TalkBackService mContext;
+
+    /** Directory containing cached rule images. */
+    private final File mCacheDir;
+
+    /** Version code of the TalkBack APK. */
+    private final int mVersionCode;
+
+    /** Modification time of the TalkBack APK. */
+    private final long mApkTimestamp;
+
+    /**
+     * Creates a new rule image cache.
+     *
+     * @param context The parent service.
+     */
+    public SpeechStrategyCache(TalkBackService context) {
+        mContext = context;
+        mCacheDir = new File(context.getCacheDir(), CACHE_DIR_NAME);
+        mApkTimestamp = new File(context.getApplicationInfo().sourceDir).lastModified();
+
+        int versionCode;
+        try {
+            final PackageManager pm = context.getPackageManager();
+            versionCode = pm.getPackageInfo(context.getPackageName(), 0).versionCode;
+        } catch (NameNotFoundException e) {
+            versionCode = -1;
+        }
+
+        mVersionCode = versionCode;
+    }
+
+    /**
+     * Reads the rules for a speech strategy from its cached rule image.
+     *
+     * @param strategyName The resource entry name of the speech strategy.
+     * @return The cached rules, or {@code null} if there is no valid image.
+     */
+    public List<EventSpeechRule> read(String strategyName) {
+        final File imageFile = getImageFile(strategyName);
+
+        if (!imageFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(imageFile)));
+
+            if ((in.readInt() != IMAGE_MAGIC) || (in.readInt() != IMAGE_FORMAT_VERSION)
+                    || (in.readInt() != mVersionCode) || (in.readLong() != mApkTimestamp)) {
+                LogUtils.log(this, Log.INFO, "Discarding stale rule image: %s", strategyName);
+                imageFile.delete();
+                return null;
+            }
+
+            final int count = in.readInt();
+            final ArrayList<EventSpeechRule> speechRules = new ArrayList<EventSpeechRule>(count);
+
+            for (int i = 0; i < count; i++) {
+                speechRules.add(EventSpeechRule.readFromStream(mContext, in));
+            }
+
+            return speechRules;
+        } catch (Exception e) {
+            LogUtils.log(this, Log.ERROR, "Failed to read rule image %s: %s", strategyName,
+                    e.toString());
+            imageFile.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the rules for a speech strategy to a rule image. The image is
+     * written to a temporary file first, so a partially written image is
+     * never read.
+     *
+     * @param strategyName The resource entry name of the speech strategy.
+     * @param speechRules The rules loaded from the speech strategy.
+     */
+    public void write(String strategyName, List<EventSpeechRule> speechRules) {
+        if (!mCacheDir.exists() && !mCacheDir.mkdirs()) {
+            LogUtils.log(this, Log.ERROR, "Failed to create rule image directory");
+            return;
+        }
+
+        final File imageFile = getImageFile(strategyName);
+        final File tempFile = new File(mCacheDir, strategyName + ".tmp");
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(IMAGE_MAGIC);
+            out.writeInt(IMAGE_FORMAT_VERSION);
+            out.writeInt(mVersionCode);
+            out.writeLong(mApkTimestamp);
+            out.writeInt(speechRules.size());
+
+            for (EventSpeechRule speechRule : speechRules) {
+                speechRule.writeToStream(out);
+            }
+
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(imageFile)) {
+                LogUtils.log(this, Log.ERROR, "Failed to save rule image: %s", strategyName);
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            LogUtils.log(this, Log.ERROR, "Failed to write rule image %s: %s", strategyName,
+                    e.toString());
+            tempFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private File getImageFile(String strategyName) {
+        return new File(mCacheDir, strategyName + IMAGE_FILE_EXTENSION);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Do nothing.
+        }
+    }
+}
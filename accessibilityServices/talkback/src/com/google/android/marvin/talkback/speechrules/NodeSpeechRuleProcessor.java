@@ -17,7 +17,10 @@
 package com.google.android.marvin.talkback.speechrules;
 
 import android.content.Context;
+import android.support.v4.view.accessibility.AccessibilityEventCompat;
 import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.support.v4.view.accessibility.AccessibilityRecordCompat;
+import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
 import android.util.Log;
@@ -25,26 +28,63 @@ import android.view.accessibility.AccessibilityEvent;
 
 import com.google.android.marvin.talkback.R;
 import com.googlecode.eyesfree.compat.view.accessibility.AccessibilityNodeInfoCompatUtils;
+import com.googlecode.eyesfree.utils.AccessibilityEventListener;
 import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils;
 import com.googlecode.eyesfree.utils.AccessibilityNodeInfoUtils.TopToBottomLeftToRightComparator;
 import com.googlecode.eyesfree.utils.LogUtils;
 import com.googlecode.eyesfree.utils.StringBuilderUtils;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.TreeSet;
 
 /**
  * Rule-based processor for {@link AccessibilityNodeInfoCompat}s.
+ * <p>
+ * Tree descriptions are cached by node identity, which is the window ID and
+ * source ID of the root node, and are only reused while the root node's own
+ * state (class, text, content description, child count and checked, selected
+ * and enabled state) is unchanged. Cached descriptions for a window are
+ * discarded when an event indicates that the window's content may have
+ * changed, for example when a list scrolls and reuses its rows.
+ * </p>
+ * <p>
+ * Descriptions may be computed ahead of time on a background thread using
+ * {@link #prefetchDescriptionForTree(AccessibilityNodeInfoCompat)}. Only
+ * access to the cache is synchronized, so building a description never
+ * blocks other threads.
+ * </p>
  *
  * @author alanv@google.com (Alan Viverette)
  */
-public class NodeSpeechRuleProcessor {
+public class NodeSpeechRuleProcessor implements AccessibilityEventListener {
     /** Comparator for sorting on-screen content. */
     private static final TopToBottomLeftToRightComparator
             COMPARATOR = new TopToBottomLeftToRightComparator();
 
+    /** The maximum number of tree descriptions to cache. */
+    private static final int MAX_CACHED_DESCRIPTIONS = 32;
+
+    /**
+     * Event types that invalidate cached descriptions for the event's window.
+     */
+    private static final int MASK_INVALIDATE_WINDOW =
+            AccessibilityEventCompat.TYPE_WINDOW_CONTENT_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED
+            | AccessibilityEvent.TYPE_VIEW_CLICKED
+            | AccessibilityEvent.TYPE_VIEW_SELECTED
+            | AccessibilityEvent.TYPE_VIEW_SCROLLED
+            | AccessibilityEvent.TYPE_VIEW_FOCUSED;
+
+    /** Event types that invalidate all cached descriptions. */
+    private static final int MASK_INVALIDATE_ALL =
+            AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED;
+
     private static final LinkedList<NodeSpeechRule> mRules = new LinkedList<NodeSpeechRule>();
     private static final RuleSwitch mRuleSwitch = new RuleSwitch();
+    private static final RuleSeekBar mRuleSeekBar = new RuleSeekBar();
 
     private static NodeSpeechRuleProcessor sInstance;
 
@@ -62,7 +102,7 @@ public class NodeSpeechRuleProcessor {
         mRules.add(new RuleSimpleTemplate(android.widget.Button.class,
                 R.string.template_button));
         mRules.add(new RuleEditText());
-        mRules.add(new RuleSeekBar());
+        mRules.add(mRuleSeekBar);
         mRules.add(new RuleContainer());
         mRules.add(new RuleViewGroup());
 
@@ -85,10 +125,103 @@ public class NodeSpeechRuleProcessor {
     /** The parent context. */
     private final Context mContext;
 
+    /**
+     * Cached tree descriptions, in access order. Keys are copies of the
+     * described root nodes, which compare equal when they have the same
+     * window ID and source ID.
+     */
+    private final LinkedHashMap<AccessibilityNodeInfoCompat, CachedDescription>
+            mDescriptionCache = new LinkedHashMap<AccessibilityNodeInfoCompat, CachedDescription>(
+                    MAX_CACHED_DESCRIPTIONS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<AccessibilityNodeInfoCompat, CachedDescription> eldest) {
+                    if (size() <= MAX_CACHED_DESCRIPTIONS) {
+                        return false;
+                    }
+
+                    eldest.getKey().recycle();
+                    return true;
+                }
+            };
+
+    /**
+     * Incremented whenever cached descriptions are discarded, so that
+     * descriptions built from older content are not cached. Guarded by this.
+     */
+    private int mCacheGeneration;
+
+    /** The number of tree descriptions served from the cache. Guarded by this. */
+    private int mCacheHitCount;
+
+    /** The number of tree descriptions that had to be built. Guarded by this. */
+    private int mCacheMissCount;
+
     private NodeSpeechRuleProcessor(Context context) {
         mContext = context;
     }
 
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        final int eventType = event.getEventType();
+
+        if ((eventType & MASK_INVALIDATE_ALL) != 0) {
+            clearDescriptionCache();
+        } else if ((eventType & MASK_INVALIDATE_WINDOW) != 0) {
+            invalidateWindow(new AccessibilityRecordCompat(event).getWindowId());
+        }
+    }
+
+    /**
+     * Returns the number of tree descriptions served from the cache since the
+     * processor was initialized. May be called from any thread.
+     *
+     * @return The number of tree descriptions served from the cache.
+     */
+    public synchronized int getCacheHitCount() {
+        return mCacheHitCount;
+    }
+
+    /**
+     * Returns the number of tree descriptions that had to be built since the
+     * processor was initialized. May be called from any thread.
+     *
+     * @return The number of tree descriptions that were not cached.
+     */
+    public synchronized int getCacheMissCount() {
+        return mCacheMissCount;
+    }
+
+    /**
+     * Discards all cached tree descriptions.
+     */
+    public synchronized void clearDescriptionCache() {
+        for (AccessibilityNodeInfoCompat node : mDescriptionCache.keySet()) {
+            node.recycle();
+        }
+
+        mDescriptionCache.clear();
+        mCacheGeneration++;
+    }
+
+    /**
+     * Discards cached tree descriptions for nodes in the specified window.
+     */
+    private synchronized void invalidateWindow(int windowId) {
+        final Iterator<AccessibilityNodeInfoCompat> iterator =
+                mDescriptionCache.keySet().iterator();
+
+        while (iterator.hasNext()) {
+            final AccessibilityNodeInfoCompat node = iterator.next();
+            if (node.getWindowId() == windowId) {
+                iterator.remove();
+                node.recycle();
+            }
+        }
+
+        mCacheGeneration++;
+    }
+
     /**
      * Returns the best description for the subtree rooted at
      * {@code announcedNode}.
@@ -99,19 +232,93 @@ public class NodeSpeechRuleProcessor {
      * @param source The event's source node.
      * @return The best description for a node.
      */
-    public CharSequence getDescriptionForTree(AccessibilityNodeInfoCompat announcedNode,
-            AccessibilityEvent event, AccessibilityNodeInfoCompat source) {
+    public CharSequence getDescriptionForTree(
+            AccessibilityNodeInfoCompat announcedNode, AccessibilityEvent event,
+            AccessibilityNodeInfoCompat source) {
         if (announcedNode == null) {
             return null;
         }
 
+        final int generation;
+
+        synchronized (this) {
+            final CachedDescription cachedDescription = mDescriptionCache.get(announcedNode);
+            if ((cachedDescription != null) && cachedDescription.matches(announcedNode)) {
+                mCacheHitCount++;
+                LogUtils.log(this, Log.VERBOSE, "Description cache hit (%d hits, %d misses)",
+                        mCacheHitCount, mCacheMissCount);
+                return cachedDescription.description;
+            }
+
+            mCacheMissCount++;
+            generation = mCacheGeneration;
+        }
+
+        return buildDescriptionForTree(announcedNode, event, source, generation);
+    }
+
+    /**
+     * Computes and caches the description for the subtree rooted at
+     * {@code announcedNode}, as it would be described when the node receives
+     * accessibility focus. Descriptions that contain a switch or seek bar are
+     * not cached. This method may be called from any thread.
+     *
+     * @param announcedNode The root node of the subtree to describe.
+     */
+    public void prefetchDescriptionForTree(AccessibilityNodeInfoCompat announcedNode) {
+        if (announcedNode == null) {
+            return;
+        }
+
+        final int generation;
+
+        synchronized (this) {
+            final CachedDescription cachedDescription = mDescriptionCache.get(announcedNode);
+            if ((cachedDescription != null) && cachedDescription.matches(announcedNode)) {
+                return;
+            }
+
+            generation = mCacheGeneration;
+        }
+
+        buildDescriptionForTree(announcedNode, null, announcedNode, generation);
+    }
+
+    /**
+     * Builds the description for a tree without holding the lock, and caches
+     * it unless it is not reusable or the cache was invalidated since
+     * {@code generation} was read.
+     */
+    private CharSequence buildDescriptionForTree(AccessibilityNodeInfoCompat announcedNode,
+            AccessibilityEvent event, AccessibilityNodeInfoCompat source, int generation) {
+        final DescriptionState state = new DescriptionState();
         final SpannableStringBuilder builder = new SpannableStringBuilder();
 
-        appendDescriptionForTree(announcedNode, builder, event, source);
-        formatTextWithLabel(announcedNode, builder);
+        appendDescriptionForTree(announcedNode, builder, event, source, state);
+        formatTextWithLabel(announcedNode, builder, state);
         appendRootMetadataToBuilder(announcedNode, builder);
 
-        return builder;
+        if (!state.cacheable) {
+            return builder;
+        }
+
+        final CharSequence description = new SpannableString(builder);
+        final CachedDescription cachedDescription =
+                new CachedDescription(announcedNode, description);
+
+        synchronized (this) {
+            if (generation == mCacheGeneration) {
+                if (mDescriptionCache.containsKey(announcedNode)) {
+                    // Replaces the value only, keeping the existing key.
+                    mDescriptionCache.put(announcedNode, cachedDescription);
+                } else {
+                    mDescriptionCache.put(
+                            AccessibilityNodeInfoCompat.obtain(announcedNode), cachedDescription);
+                }
+            }
+        }
+
+        return description;
     }
 
     /**
@@ -133,14 +340,14 @@ public class NodeSpeechRuleProcessor {
 
     private void appendDescriptionForTree(AccessibilityNodeInfoCompat announcedNode,
             SpannableStringBuilder builder, AccessibilityEvent event,
-            AccessibilityNodeInfoCompat source) {
+            AccessibilityNodeInfoCompat source, DescriptionState state) {
         if (announcedNode == null) {
             return;
         }
 
         // Append the full description for the root node.
         final AccessibilityEvent nodeEvent = (announcedNode.equals(source)) ? event : null;
-        final CharSequence nodeDesc = getDescriptionForNode(announcedNode, nodeEvent);
+        final CharSequence nodeDesc = getDescriptionForNode(announcedNode, nodeEvent, state);
         if (!TextUtils.isEmpty(nodeDesc)) {
             StringBuilderUtils.appendWithSeparator(builder, nodeDesc);
 
@@ -158,7 +365,7 @@ public class NodeSpeechRuleProcessor {
         for (AccessibilityNodeInfoCompat child : children) {
             if (AccessibilityNodeInfoUtils.isVisibleOrLegacy(child)
                     && !AccessibilityNodeInfoUtils.isAccessibilityFocusable(mContext, child)) {
-                appendDescriptionForTree(child, builder, event, source);
+                appendDescriptionForTree(child, builder, event, source, state);
             }
         }
 
@@ -191,14 +398,23 @@ public class NodeSpeechRuleProcessor {
      * @param node The node to process.
      * @param event The source event, may be {@code null} when called with
      *            non-source nodes.
+     * @param state The state of the description being built.
      * @return A string representing the given node, or {@code null} if the node
      *         could not be processed.
      */
     private CharSequence getDescriptionForNode(
-            AccessibilityNodeInfoCompat node, AccessibilityEvent event) {
+            AccessibilityNodeInfoCompat node, AccessibilityEvent event, DescriptionState state) {
         for (NodeSpeechRule rule : mRules) {
             if (rule.accept(mContext, node)) {
                 LogUtils.log(this, Log.VERBOSE, "Processing node using %s", rule);
+
+                // The switch and seek bar rules read the event when there is
+                // one, and describe state that may change without
+                // invalidating the window, so never cache them.
+                if ((rule == mRuleSwitch) || (rule == mRuleSeekBar)) {
+                    state.cacheable = false;
+                }
+
                 return rule.format(mContext, node, event);
             }
         }
@@ -210,8 +426,8 @@ public class NodeSpeechRuleProcessor {
      * If the supplied node has a label, replaces the builder text with a
      * version formatted with the label.
      */
-    private void formatTextWithLabel(
-            AccessibilityNodeInfoCompat node, SpannableStringBuilder builder) {
+    private void formatTextWithLabel(AccessibilityNodeInfoCompat node,
+            SpannableStringBuilder builder, DescriptionState state) {
         final AccessibilityNodeInfoCompat labelNode =
                 AccessibilityNodeInfoCompatUtils.getLabeledBy(node);
         if (labelNode == null) {
@@ -219,7 +435,7 @@ public class NodeSpeechRuleProcessor {
         }
 
         final SpannableStringBuilder labelDescription = new SpannableStringBuilder();
-        appendDescriptionForTree(labelNode, labelDescription, null, null);
+        appendDescriptionForTree(labelNode, labelDescription, null, null, state);
         if (TextUtils.isEmpty(labelDescription)) {
             return;
         }
@@ -268,4 +484,60 @@ public class NodeSpeechRuleProcessor {
             StringBuilderUtils.appendWithSeparator(descriptionBuilder, mContext.getString(res));
         }
     }
+
+    /**
+     * State of a single description while it is being built.
+     */
+    private static class DescriptionState {
+        /**
+         * Whether the description may be cached. Descriptions from rules that
+         * read the event or describe a value are not cached.
+         */
+        public boolean cacheable = true;
+    }
+
+    /**
+     * A cached tree description, along with the state of the root node it
+     * was built for.
+     */
+    private static class CachedDescription {
+        public final CharSequence description;
+
+        private final CharSequence mClassName;
+        private final CharSequence mText;
+        private final CharSequence mContentDescription;
+        private final int mChildCount;
+        private final boolean mChecked;
+        private final boolean mSelected;
+        private final boolean mEnabled;
+
+        public CachedDescription(AccessibilityNodeInfoCompat node, CharSequence description) {
+            this.description = description;
+            mClassName = node.getClassName();
+            mText = copyOf(node.getText());
+            mContentDescription = copyOf(node.getContentDescription());
+            mChildCount = node.getChildCount();
+            mChecked = node.isChecked();
+            mSelected = node.isSelected();
+            mEnabled = node.isEnabled();
+        }
+
+        /**
+         * @return Whether {@code node} is in the same state as the node this
+         *         description was built for.
+         */
+        public boolean matches(AccessibilityNodeInfoCompat node) {
+            return (mChildCount == node.getChildCount())
+                    && (mChecked == node.isChecked())
+                    && (mSelected == node.isSelected())
+                    && (mEnabled == node.isEnabled())
+                    && TextUtils.equals(mClassName, node.getClassName())
+                    && TextUtils.equals(mText, node.getText())
+                    && TextUtils.equals(mContentDescription, node.getContentDescription());
+        }
+
+        private static CharSequence copyOf(CharSequence text) {
+            return (text == null) ? null : text.toString();
+        }
+    }
 }
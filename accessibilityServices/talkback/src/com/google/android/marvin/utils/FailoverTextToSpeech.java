@@ -23,6 +23,7 @@ import android.util.Log;
 import com.google.android.marvin.talkback.SpeechController;
 import com.googlecode.eyesfree.compat.provider.SettingsCompatUtils.SecureCompatUtils;
 import com.googlecode.eyesfree.compat.speech.tts.TextToSpeechCompatUtils;
+import com.googlecode.eyesfree.compat.speech.tts.TextToSpeechCompatUtils.EngineCompatUtils;
 import com.googlecode.eyesfree.utils.LogUtils;
 import com.googlecode.eyesfree.utils.WeakReferenceHandler;
 
@@ -75,6 +76,13 @@ public class FailoverTextToSpeech {
     /** A list of installed TTS engines. */
     private final LinkedList<String> mInstalledTtsEngines = new LinkedList<String>();
 
+    /**
+     * Reusable map used for passing parameters to the TextToSpeech. Since the
+     * same keys are written for every utterance, updating it doesn't allocate
+     * map entries.
+     */
+    private final HashMap<String, String> mSpeechParams = new HashMap<String, String>();
+
     private final Context mContext;
     private final ContentResolver mResolver;
 
@@ -111,6 +119,12 @@ public class FailoverTextToSpeech {
     /** The most recent pitch sent to {@link TextToSpeech#setSpeechRate}. */
     private float mCurrentPitch = 1.0f;
 
+    /** The most recent volume written to {@link #mSpeechParams}. */
+    private float mParamsVolume = Float.NaN;
+
+    /** The most recent pan written to {@link #mSpeechParams}. */
+    private float mParamsPan = 0.0f;
+
     private FailoverTtsListener mListener;
 
     public FailoverTextToSpeech(Context context) {
@@ -130,6 +144,8 @@ public class FailoverTextToSpeech {
             registerGoogleTtsFixCallbacks();
         }
 
+        mSpeechParams.put(Engine.KEY_PARAM_STREAM, String.valueOf(SpeechController.DEFAULT_STREAM));
+
         updateDefaultPitch();
         updateDefaultRate();
 
@@ -165,6 +181,43 @@ public class FailoverTextToSpeech {
         return TextToSpeechUtils.getLabelForEngine(mContext, mTtsEngine);
     }
 
+    /**
+     * Speak the specified text on the default speech stream. Engine parameters
+     * are written to a reusable map, and numeric parameters are only
+     * converted to strings when they change.
+     *
+     * @param text The text to speak.
+     * @param utteranceId The utterance ID to report on completion.
+     * @param pitch The pitch adjustment, in the range [0 ... 1].
+     * @param rate The rate adjustment, in the range [0 ... 1].
+     * @param volume The volume, in the range [0 ... 1].
+     * @param pan The pan, in the range [-1 ... 1], or {@code 0} for the engine
+     *            default.
+     */
+    public void speak(String text, String utteranceId, float pitch, float rate, float volume,
+            float pan) {
+        final HashMap<String, String> params = mSpeechParams;
+
+        params.put(Engine.KEY_PARAM_UTTERANCE_ID, utteranceId);
+
+        if (volume != mParamsVolume) {
+            params.put(EngineCompatUtils.KEY_PARAM_VOLUME, String.valueOf(volume));
+            mParamsVolume = volume;
+        }
+
+        if (pan != mParamsPan) {
+            if (pan == 0) {
+                params.remove(EngineCompatUtils.KEY_PARAM_PAN);
+            } else {
+                params.put(EngineCompatUtils.KEY_PARAM_PAN, String.valueOf(pan));
+            }
+
+            mParamsPan = pan;
+        }
+
+        speak(text, pitch, rate, params);
+    }
+
     /**
      * Speak the specified text.
      *
@@ -270,8 +323,9 @@ public class FailoverTextToSpeech {
 
         // Split long utterances to avoid killing TTS. TTS will die if
         // the incoming string is greater than 3999 characters.
-        final LinkedList<String> speakableUtterances = new LinkedList<String>();
+        LinkedList<String> speakableUtterances = null;
         if (text.length() > MAX_UTTERANCE_LENGTH) {
+            speakableUtterances = new LinkedList<String>();
             splitUtteranceIntoSpeakableStrings(text, speakableUtterances);
             text = speakableUtterances.removeFirst();
         }
@@ -281,6 +335,10 @@ public class FailoverTextToSpeech {
         LogUtils.log(this, Log.DEBUG, "Speak call for \"%s\" returned %d", utteranceId, result);
 
         if (result == TextToSpeech.SUCCESS) {
+            if (speakableUtterances == null) {
+                return result;
+            }
+
             // If we were able to speak, queue any remaining fragments.
             for (String speakableUtterance : speakableUtterances) {
                 LogUtils.log(this, Log.DEBUG, "Queue overflow speech: \"%s\"", speakableUtterance);
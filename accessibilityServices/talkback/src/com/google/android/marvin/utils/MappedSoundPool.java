@@ -4,19 +4,25 @@ package com.google.android.marvin.utils;
 import android.content.Context;
 import android.content.res.Resources;
 import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnCompletionListener;
+import android.media.MediaPlayer.OnPreparedListener;
 import android.media.SoundPool;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import com.googlecode.eyesfree.utils.LogUtils;
+import com.googlecode.eyesfree.utils.MidiSynthesizer;
 import com.googlecode.eyesfree.utils.MidiUtils;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * Wrapper for {@link SoundPool} that maps client-specified IDs to cached
- * sounds.
+ * sounds. MIDI array resources are rendered in memory and played through a
+ * {@link MidiSynthesizer} instead.
  */
 public class MappedSoundPool {
     /** Default stream for audio feedback. */
@@ -49,6 +55,13 @@ public class MappedSoundPool {
     /** Map of assigned stream types to sound pools. */
     private final SparseArray<SoundPool> mSoundPoolStreams = new SparseArray<SoundPool>();
 
+    /** Map of assigned IDs to MIDI note arrays. */
+    private final SparseArray<int[]> mMidiNotesMap = new SparseArray<int[]>();
+
+    /** Map of assigned stream types to synthesizers. */
+    private final SparseArray<MidiSynthesizer> mSynthesizerStreams =
+            new SparseArray<MidiSynthesizer>();
+
     /** The parent context. */
     private final Context mContext;
 
@@ -91,21 +104,19 @@ public class MappedSoundPool {
             return false;
         }
 
-        final SoundPool soundPool = getOrCreateSoundPool(streamType);
         final String resType = mResources.getResourceTypeName(resId);
-        final int soundId;
 
         if (RES_TYPE_RAW.equals(resType)) {
-            soundId = soundPool.load(mContext, resId, 1);
+            final SoundPool soundPool = getOrCreateSoundPool(streamType);
+            final int soundId = soundPool.load(mContext, resId, 1);
+            return assign(id, soundId, streamType);
         } else if (RES_TYPE_ARRAY.equals(resType)) {
             final int[] notes = mResources.getIntArray(resId);
-            soundId = loadMidiSoundFromArray(soundPool, notes);
-        } else {
-            LogUtils.log(this, Log.ERROR, "Unknown resource type for %d", resId);
-            return false;
+            return assignMidiNotes(id, notes, streamType);
         }
 
-        return assign(id, soundId, streamType);
+        LogUtils.log(this, Log.ERROR, "Unknown resource type for %d", resId);
+        return false;
     }
 
     /**
@@ -143,6 +154,11 @@ public class MappedSoundPool {
      *         could not be found.
      */
     public boolean unload(int id) {
+        if (mMidiNotesMap.get(id) != null) {
+            mMidiNotesMap.remove(id);
+            return true;
+        }
+
         final int soundId = mSoundPoolMap.get(id);
         if (soundId == 0) {
             return false;
@@ -168,6 +184,17 @@ public class MappedSoundPool {
      * @return Whether sound playback started successfully.
      */
     public boolean play(int id, float rate, float volume, float pan) {
+        final int[] notes = mMidiNotesMap.get(id);
+        if (notes != null) {
+            final int streamType = mStreamTypeMap.get(id);
+            if (playMidiNotes(notes, streamType, rate, volume, pan)) {
+                return true;
+            }
+
+            // Fall back to a MIDI file if audio output isn't available.
+            return playMidiFile(notes, streamType, volume);
+        }
+
         final int soundId = mSoundPoolMap.get(id);
         if (soundId == 0) {
             return false;
@@ -192,11 +219,85 @@ public class MappedSoundPool {
         return true;
     }
 
+    /**
+     * Plays an array of MIDI notes on the specified stream. Rendered notes are
+     * cached, so repeated calls with the same notes don't render them again.
+     *
+     * @param notes An array specifying a MIDI track.
+     * @param streamType The stream type for playback.
+     * @param rate The playback rate modifier, range {0...2}.
+     * @param volume The volume level modifier, range {0...1}.
+     * @param pan The panning value, range {-1...1} where 0 is center.
+     * @return Whether sound playback started successfully.
+     */
+    public boolean playMidiNotes(int[] notes, int streamType, float rate, float volume, float pan) {
+        final MidiSynthesizer synthesizer = getOrCreateSynthesizer(streamType);
+        final boolean result = synthesizer.play(
+                notes, (DEFAULT_RATE * rate), (DEFAULT_VOLUME * volume), pan);
+        if (!result) {
+            LogUtils.log(this, Log.ERROR, "Failed to play MIDI notes");
+        }
+
+        return result;
+    }
+
+    /**
+     * Writes an array of MIDI notes to a temporary file and plays it using a
+     * {@link MediaPlayer}. Used when the synthesizer can't create an audio
+     * track.
+     *
+     * @param notes An array specifying a MIDI track.
+     * @param streamType The stream type for playback.
+     * @param volume The volume level modifier, range {0...1}.
+     * @return Whether sound playback started successfully.
+     */
+    private boolean playMidiFile(int[] notes, int streamType, float volume) {
+        final File file = MidiUtils.generateMidiFileFromArray(mContext, notes);
+        if (file == null) {
+            return false;
+        }
+
+        final MediaPlayer player = new MediaPlayer();
+        player.setOnPreparedListener(new OnPreparedListener() {
+            @Override
+            public void onPrepared(MediaPlayer mp) {
+                mp.start();
+            }
+        });
+
+        player.setOnCompletionListener(new OnCompletionListener() {
+            @Override
+            public void onCompletion(MediaPlayer mp) {
+                mp.release();
+                file.delete();
+            }
+        });
+
+        final float playVolume = DEFAULT_VOLUME * volume;
+        player.setAudioStreamType(streamType);
+        try {
+            player.setDataSource(file.getPath());
+            player.setVolume(playVolume, playVolume);
+            player.prepareAsync();
+        } catch (IOException e) {
+            LogUtils.log(this, Log.ERROR, "Failed to play MIDI file: %s", e.toString());
+            player.release();
+            file.delete();
+            return false;
+        }
+
+        return true;
+    }
+
     /**
      * Stops all active sound playback.
      */
     public void interrupt() {
-        // TODO: Stop all active streams.
+        for (int i = (mSynthesizerStreams.size() - 1); i >= 0; i--) {
+            mSynthesizerStreams.valueAt(i).interrupt();
+        }
+
+        // TODO: Stop all active sound pool streams.
     }
 
     /**
@@ -209,6 +310,12 @@ public class MappedSoundPool {
         }
 
         mSoundPoolStreams.clear();
+
+        for (int i = (mSynthesizerStreams.size() - 1); i >= 0; i--) {
+            mSynthesizerStreams.valueAt(i).shutdown();
+        }
+
+        mSynthesizerStreams.clear();
     }
 
     /**
@@ -229,6 +336,24 @@ public class MappedSoundPool {
         return newPool;
     }
 
+    /**
+     * Returns a {@link MidiSynthesizer} for the specified stream type,
+     * creating a new synthesizer if necessary.
+     *
+     * @param streamType The playback stream type.
+     * @return A {@link MidiSynthesizer} for the specified stream type.
+     */
+    private MidiSynthesizer getOrCreateSynthesizer(int streamType) {
+        final MidiSynthesizer synthesizer = mSynthesizerStreams.get(streamType);
+        if (synthesizer != null) {
+            return synthesizer;
+        }
+
+        final MidiSynthesizer newSynthesizer = new MidiSynthesizer(streamType);
+        mSynthesizerStreams.put(streamType, newSynthesizer);
+        return newSynthesizer;
+    }
+
     /**
      * Associates a loaded sound identifier on a particular stream with a
      * client-specified identifier. If the identifier was already assigned,
@@ -245,7 +370,7 @@ public class MappedSoundPool {
             return false;
         }
 
-        if (mSoundPoolMap.indexOfKey(id) >= 0) {
+        if ((mSoundPoolMap.indexOfKey(id) >= 0) || (mMidiNotesMap.get(id) != null)) {
             unload(id);
         }
 
@@ -255,20 +380,29 @@ public class MappedSoundPool {
     }
 
     /**
-     * Generates a MIDI file from the specified {@code notes} array and loads it
-     * into the specified {@code soundPool}.
+     * Associates an array of MIDI notes on a particular stream with a
+     * client-specified identifier, rendering the notes ahead of playback. If
+     * the identifier was already assigned, unloads the previously assigned
+     * sound.
      *
-     * @param soundPool The sound pool to load the MIDI file into.
+     * @param id The client-specified identifier.
      * @param notes An array specifying a MIDI track.
-     * @return The sound identifier for the loaded MIDI notes, or {@code -1} on
-     *         error.
+     * @param streamType The client-specified playback stream.
+     * @return Whether the notes were assigned successfully.
      */
-    private int loadMidiSoundFromArray(SoundPool soundPool, int[] notes) {
-        final File midiFile = MidiUtils.generateMidiFileFromArray(mContext, notes);
-        if (midiFile == null) {
-            return -1;
+    private boolean assignMidiNotes(int id, int[] notes, int streamType) {
+        if (getOrCreateSynthesizer(streamType).render(notes, DEFAULT_RATE) == null) {
+            LogUtils.log(this, Log.ERROR, "Failed to assign MIDI notes for %d", id);
+            return false;
         }
 
-        return soundPool.load(midiFile.getPath(), 1);
+        if (mSoundPoolMap.indexOfKey(id) >= 0) {
+            unload(id);
+            mSoundPoolMap.delete(id);
+        }
+
+        mMidiNotesMap.put(id, notes);
+        mStreamTypeMap.put(id, streamType);
+        return true;
     }
 }
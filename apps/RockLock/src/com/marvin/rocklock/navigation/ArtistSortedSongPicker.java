@@ -51,6 +51,17 @@ public class ArtistSortedSongPicker extends ColumnGroupedSongPicker {
         return mCurrentGroup;
     }
 
+    /**
+     * Groups tracks by album within artist for navigation, matching
+     * {@link #isNewGroup()}
+     *
+     * @return group key
+     */
+    @Override
+    protected String getGroupKey() {
+        return mMusicCursor.getString(ARTIST) + "\n" + mMusicCursor.getString(ALBUM);
+    }
+
     /**
      * Returns true is we are pointing to a new group
      *
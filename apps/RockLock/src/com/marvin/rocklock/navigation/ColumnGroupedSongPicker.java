@@ -70,37 +70,23 @@ public abstract class ColumnGroupedSongPicker extends SongPicker {
     }
 
     /**
-     * Gets cursor with filter for current group so we know how many elements it
-     * has
+     * Groups tracks by the group column for navigation
+     *
+     * @return group key
      */
     @Override
-    protected Cursor getGroupCursor() {
-        String formattedGroup = mCurrentGroup.replace("'", "''");
-        String filter = mProjection[mGroupColumn] + " == '" + formattedGroup + "'";
-        CursorLoader loader = new CursorLoader(mParentActivity,
-                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, mProjection,
-                filter, null, null);
-        Cursor query = loader.loadInBackground();
-        return query;
+    protected String getGroupKey() {
+        return mMusicCursor.getString(mGroupColumn);
     }
 
     /**
-     * Returns first index for given group
+     * Shuffles tracks within the current value of the group column
      *
-     * @return base index
+     * @return shuffle group key
      */
     @Override
-    protected int getBaseIdx() {
-        String currentGroup = mMusicCursor.getString(mGroupColumn);
-        while (mMusicCursor.getString(mGroupColumn).equals(currentGroup)
-                && !mMusicCursor.isFirst()) {
-            navigateTracks(-1);
-        }
-
-        if (!mMusicCursor.isFirst()) {
-            return mMusicCursor.getPosition() + 1;
-        }
-        return 0;
+    protected String getShuffleGroupKey() {
+        return mMusicCursor.getString(mGroupColumn);
     }
 
     /**
@@ -373,6 +373,7 @@ public class DirectoryGroupedSongPicker extends SongPicker {
     public void saveCurrentSongFile() {
         String file = getCurrentSongFile();
         mEditor.putString(PREF_FILE, file);
+        mEditor.remove(PREF_TRACK_ID);
         mEditor.commit();
     }
 
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.marvin.rocklock.navigation;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.provider.MediaStore;
+import android.provider.MediaStore.MediaColumns;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Process-wide snapshot of which audio tracks in the media store refer to
+ * files that exist. Tracks are stored by ID in a sorted array with one
+ * validity bit each, so lookups don't touch the file system.
+ * <p>
+ * The snapshot is refreshed in the background whenever the media store
+ * reports a change. Only tracks that are new or whose modification date
+ * changed are checked against the file system again.
+ */
+public class MusicCatalog {
+
+    public static final int UNKNOWN = 0;
+    public static final int VALID = 1;
+    public static final int INVALID = 2;
+
+    private static final String[] PROJECTION = {
+            MediaColumns._ID, MediaColumns.DATA, MediaColumns.DATE_MODIFIED };
+
+    private static MusicCatalog sInstance;
+
+    private final Context mContext;
+
+    // Snapshot, sorted by ID
+    private long[] mIds = new long[0];
+    private long[] mModified = new long[0];
+    private BitSet mValid = new BitSet();
+
+    private int mGeneration;
+
+    private RefreshTask mRefreshTask;
+    private boolean mRefreshPending;
+
+    /**
+     * Returns the shared catalog, creating and loading it on first use. Must
+     * be called on the main thread.
+     *
+     * @param context
+     * @return catalog
+     */
+    public static MusicCatalog getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MusicCatalog(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MusicCatalog(Context context) {
+        mContext = context;
+        mContext.getContentResolver().registerContentObserver(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true,
+                new ContentObserver(new Handler()) {
+                        @Override
+                    public void onChange(boolean selfChange) {
+                        refresh();
+                    }
+                });
+        refresh();
+    }
+
+    /**
+     * Gets whether the file for a track exists, as of the last refresh
+     *
+     * @param trackId
+     * @return {@link #VALID}, {@link #INVALID}, or {@link #UNKNOWN} if the
+     *         track is not in the snapshot yet
+     */
+    public synchronized int getValidity(long trackId) {
+        int index = Arrays.binarySearch(mIds, trackId);
+        if (index < 0) {
+            return UNKNOWN;
+        }
+        return mValid.get(index) ? VALID : INVALID;
+    }
+
+    /**
+     * Gets a number that changes every time the snapshot is refreshed, so
+     * that callers know when to drop values they derived from it
+     *
+     * @return generation
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Starts refreshing the snapshot in the background. If a refresh is
+     * already running, another one runs after it finishes.
+     */
+    private void refresh() {
+        if (mRefreshTask != null) {
+            mRefreshPending = true;
+            return;
+        }
+        mRefreshPending = false;
+        mRefreshTask = new RefreshTask();
+        mRefreshTask.execute();
+    }
+
+    /**
+     * Replaces the snapshot with new values
+     */
+    private synchronized void swap(long[] ids, long[] modified, BitSet valid) {
+        mIds = ids;
+        mModified = modified;
+        mValid = valid;
+        mGeneration++;
+    }
+
+    /**
+     * Queries the media store and builds a new snapshot, reusing the validity
+     * of tracks that have not been modified since the last snapshot
+     */
+    private class RefreshTask extends AsyncTask<Void, Void, Void> {
+        @Override
+        protected Void doInBackground(Void... params) {
+            final long[] oldIds;
+            final long[] oldModified;
+            final BitSet oldValid;
+            synchronized (MusicCatalog.this) {
+                oldIds = mIds;
+                oldModified = mModified;
+                oldValid = mValid;
+            }
+
+            Cursor cursor = mContext.getContentResolver().query(
+                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, PROJECTION, null, null,
+                    MediaColumns._ID + " ASC");
+            if (cursor == null) {
+                return null;
+            }
+
+            int count = cursor.getCount();
+            long[] ids = new long[count];
+            long[] modified = new long[count];
+            BitSet valid = new BitSet(count);
+
+            int n = 0;
+            int oldIndex = 0;
+            while (cursor.moveToNext() && n < count) {
+                long id = cursor.getLong(0);
+                long dateModified = cursor.getLong(2);
+                // Both snapshots are sorted by ID, so walk them together
+                while (oldIndex < oldIds.length && oldIds[oldIndex] < id) {
+                    oldIndex++;
+                }
+                boolean exists;
+                if (oldIndex < oldIds.length && oldIds[oldIndex] == id
+                        && oldModified[oldIndex] == dateModified) {
+                    exists = oldValid.get(oldIndex);
+                } else {
+                    String path = cursor.getString(1);
+                    exists = path != null && new File(path).exists();
+                }
+                ids[n] = id;
+                modified[n] = dateModified;
+                valid.set(n, exists);
+                n++;
+            }
+            cursor.close();
+
+            if (n < count) {
+                long[] trimmedIds = new long[n];
+                long[] trimmedModified = new long[n];
+                System.arraycopy(ids, 0, trimmedIds, 0, n);
+                System.arraycopy(modified, 0, trimmedModified, 0, n);
+                ids = trimmedIds;
+                modified = trimmedModified;
+            }
+            swap(ids, modified, valid);
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            mRefreshTask = null;
+            if (mRefreshPending) {
+                refresh();
+            }
+        }
+    }
+}
@@ -47,6 +47,7 @@ import com.marvin.rocklock.R;
 public abstract class SongPicker {
 
     protected static final String PREF_FILE = "TAG_FILE";
+    protected static final String PREF_TRACK_ID = "TAG_TRACK_ID";
 
     protected static final int ARTIST = 0;
     protected static final int ALBUM = 1;
@@ -74,6 +75,7 @@ public abstract class SongPicker {
     protected String mCurrentGroup;
 
     protected Activity mParentActivity;
+    protected MusicCatalog mCatalog;
     protected Editor mEditor;
     protected int mRestorePos = 0;
     protected boolean mHoldPosition;
@@ -83,6 +85,9 @@ public abstract class SongPicker {
     protected ListIterator<Integer> mShuffleIter;
     protected boolean mShuffling;
 
+    // Index of the music cursor, rebuilt when the cursor changes
+    private TrackIndex mTrackIndex;
+
     /**
      * Base constructor to be called by subclasses
      *
@@ -90,6 +95,7 @@ public abstract class SongPicker {
      */
     public SongPicker(Activity parentActivity) {
         mParentActivity = parentActivity;
+        mCatalog = MusicCatalog.getInstance(parentActivity);
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(parentActivity);
         mEditor = prefs.edit();
         mProjection = PROJECTION;
@@ -125,6 +131,29 @@ public abstract class SongPicker {
      */
     protected abstract String groupTag(boolean filtering);
 
+    /**
+     * Returns the navigation group of the current row of the music cursor,
+     * so that adjacent groups can be found from an index. Groups are runs of
+     * consecutive rows with equal keys. Subclasses that return null use
+     * {@link #stepGroups(int)} and {@link #isNewGroup()} instead.
+     *
+     * @return group key
+     */
+    protected String getGroupKey() {
+        return null;
+    }
+
+    /**
+     * Returns the shuffle group of the current row of the music cursor.
+     * Groups are runs of consecutive rows with equal keys. By default, the
+     * whole music cursor is shuffled together.
+     *
+     * @return shuffle group key
+     */
+    protected String getShuffleGroupKey() {
+        return null;
+    }
+
     /**
      * Moves towards a new group. Returns true if this move did not require a
      * loop through the groups
@@ -146,6 +175,19 @@ public abstract class SongPicker {
             return mParentActivity.getString(R.string.no_results);
         }
 
+        TrackIndex index = getTrackIndex();
+        if (index.hasGroups()) {
+            int position = findAdjacentGroupStart(index, dir);
+            if (position >= 0) {
+                mMusicCursor.moveToPosition(position);
+            }
+            String group = updateGroup();
+            if (mShuffling) {
+                createShuffleOrder();
+            }
+            return group;
+        }
+
         boolean hasLooped = false;
         // If we are searching backwards: Move to the end of the two groups
         // before this so we end up on the first track in the previous group
@@ -195,6 +237,27 @@ public abstract class SongPicker {
         return group;
     }
 
+    /**
+     * Finds the first valid track of the nearest group in the given direction
+     * that has any valid tracks, looping around the ends
+     *
+     * @return position, or -1 if there are no valid tracks
+     */
+    private int findAdjacentGroupStart(TrackIndex index, int dir) {
+        int groupCount = index.getGroupCount();
+        int group = index.getGroup(mMusicCursor.getPosition());
+        for (int i = 0; i < groupCount; i++) {
+            group = (group + dir + groupCount) % groupCount;
+            int end = index.getGroupEnd(group);
+            for (int pos = index.getGroupStart(group); pos < end; pos++) {
+                if (isValidPosition(pos)) {
+                    return pos;
+                }
+            }
+        }
+        return -1;
+    }
+
     /**
      * Speak adjacent group in given direction, but do not navigate to it
      *
@@ -319,73 +382,60 @@ public abstract class SongPicker {
     }
 
     /**
-     * Gets cursor for the elements in the current group Subclasses that group
-     * within the music table should override this
+     * Gets the index of the music cursor, building it if the cursor has
+     * changed since the last call
      *
-     * @return cursor
+     * @return index
      */
-    protected Cursor getGroupCursor() {
-        return mMusicCursor;
-    }
+    protected TrackIndex getTrackIndex() {
+        if (mTrackIndex != null && mTrackIndex.cursor == mMusicCursor) {
+            return mTrackIndex;
+        }
 
-    /**
-     * Returns first index for given group
-     *
-     * @return base index
-     */
-    protected int getBaseIdx() {
-        return 0;
-    }
+        int pos = mMusicCursor.getPosition();
+        int n = mMusicCursor.getCount();
+        long[] ids = new long[n];
+        String[] titleKeys = new String[n];
+        String[] groupKeys = new String[n];
+        String[] shuffleGroupKeys = new String[n];
+        boolean hasGroups = false;
+        boolean hasShuffleGroups = false;
+        for (int i = 0; i < n && mMusicCursor.moveToPosition(i); i++) {
+            ids[i] = mMusicCursor.getLong(TRACK_ID);
+            titleKeys[i] = mMusicCursor.getString(TITLE_KEY);
+            groupKeys[i] = getGroupKey();
+            shuffleGroupKeys[i] = getShuffleGroupKey();
+            hasGroups |= groupKeys[i] != null;
+            hasShuffleGroups |= shuffleGroupKeys[i] != null;
+        }
+        mMusicCursor.moveToPosition(pos);
 
-    /**
-     * Returns number of valid songs in group (invalid songs are songs whose
-     * file does not exist)
-     *
-     * @param eCursor
-     * @return count
-     */
-    protected int getValidCount(Cursor eCursor) {
-        int n = eCursor.getCount();
-        eCursor.moveToFirst();
-        do {
-            if (!exists(eCursor.getPosition())) {
-                n--;
-            }
-        } while (eCursor.moveToNext());
-        return n;
+        mTrackIndex = new TrackIndex(mMusicCursor, ids, titleKeys,
+                hasGroups ? groupKeys : null, hasShuffleGroups ? shuffleGroupKeys : null,
+                mCatalog.getGeneration());
+        return mTrackIndex;
     }
 
     /**
      * Creates a random play order for this group with no repeats
      */
     private void createShuffleOrder() {
+        TrackIndex index = getTrackIndex();
         int pos = mMusicCursor.getPosition();
-        // get number of elements in this group
-        Cursor elementCursor = getGroupCursor();
-        int n = elementCursor.getCount();
-        // get number of valid elements
-        int nValid = getValidCount(elementCursor);
-        // get base index
-        int baseIdx = getBaseIdx();
-        moveTo(baseIdx);
-        // map to let us know which values are already placed
-        ArrayList<Integer> takenMap = new ArrayList<Integer>(n);
-        for (int i = 0; i < n; i++) {
-            takenMap.add(-1);
-        }
-        // generate shuffle order
-        ArrayList<Integer> shuffleOrder = new ArrayList<Integer>(nValid);
-        int i = 0;
-        while (i < nValid) {
-            int random = mGenerator.nextInt(n);
-            if (takenMap.get(random) == -1 && exists(random)) {
-                shuffleOrder.add(random + baseIdx);
-                takenMap.set(random, 0);
-                ++i;
+        int start = index.getShuffleStart(pos);
+        int end = index.getShuffleEnd(pos);
+        // collect valid positions, then permute them in place
+        ArrayList<Integer> shuffleOrder = new ArrayList<Integer>(end - start);
+        for (int i = start; i < end; i++) {
+            if (isValidPosition(i)) {
+                shuffleOrder.add(i);
             }
         }
+        for (int i = shuffleOrder.size() - 1; i > 0; i--) {
+            int random = mGenerator.nextInt(i + 1);
+            shuffleOrder.set(random, shuffleOrder.set(i, shuffleOrder.get(random)));
+        }
         mShuffleIter = shuffleOrder.listIterator();
-        mMusicCursor.moveToPosition(pos);
     }
 
     /**
@@ -397,6 +447,22 @@ public abstract class SongPicker {
         mMusicCursor.moveToFirst();
         save();
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mParentActivity);
+        if (prefs.contains(PREF_TRACK_ID)) {
+            long trackId = prefs.getLong(PREF_TRACK_ID, -1);
+            int position = findTrackPosition(trackId);
+            if (position >= 0 && isValidPosition(position)) {
+                mMusicCursor.moveToPosition(position);
+                save();
+                return true;
+            }
+            // A track the catalog knows is in another group, so its path
+            // won't match here either
+            if (isKnownTrack(trackId)) {
+                return false;
+            }
+        }
+        // Preferences saved before track IDs were stored, or IDs reassigned
+        // by a media store rescan
         String currentFile = prefs.getString(PREF_FILE, "");
         while (mMusicCursor.moveToNext()) {
             // TODO(sainsley): pull in integer columns for cheaper comparison
@@ -412,6 +478,44 @@ public abstract class SongPicker {
         return false;
     }
 
+    /**
+     * Finds the position of a track in the music cursor without building a
+     * track index, since groups are searched one after another on restore
+     *
+     * @param trackId
+     * @return position, or -1 if not found
+     */
+    private int findTrackPosition(long trackId) {
+        if (mTrackIndex != null && mTrackIndex.cursor == mMusicCursor) {
+            return mTrackIndex.findPosition(trackId);
+        }
+        if (mCatalog.getGeneration() > 0 && !isKnownTrack(trackId)) {
+            return -1;
+        }
+
+        int pos = mMusicCursor.getPosition();
+        int position = -1;
+        for (int i = 0; mMusicCursor.moveToPosition(i); i++) {
+            if (mMusicCursor.getLong(TRACK_ID) == trackId) {
+                position = i;
+                break;
+            }
+        }
+        mMusicCursor.moveToPosition(pos);
+        return position;
+    }
+
+    /**
+     * Gets whether the catalog has the given track. Once the catalog has
+     * loaded, it knows every track ID in the media store.
+     *
+     * @param trackId
+     * @return true if the track is in the catalog
+     */
+    private boolean isKnownTrack(long trackId) {
+        return mCatalog.getValidity(trackId) != MusicCatalog.UNKNOWN;
+    }
+
     /**
      * Format sort order string for a given mode
      *
@@ -471,6 +575,7 @@ public abstract class SongPicker {
             return;
         }
         mEditor.putString(PREF_FILE, mMusicCursor.getString(FILEPATH));
+        mEditor.putLong(PREF_TRACK_ID, mMusicCursor.getLong(TRACK_ID));
         mEditor.commit();
     }
 
@@ -538,34 +643,33 @@ public abstract class SongPicker {
      * @return true if we looped in this move
      */
     public boolean navigateTracks(int dir) {
-        String currentKey = mMusicCursor.getString(TITLE_KEY);
-        boolean valid = true;
+        TrackIndex index = getTrackIndex();
+        int n = index.getCount();
+        int current = mMusicCursor.getPosition();
         boolean hasLooped = false;
-        do {
-
-            boolean success = true;
-            // Move according to direction
-            if (dir > 0) {
-                if (!mMusicCursor.moveToNext()) {
-                    mMusicCursor.moveToFirst();
-                    success = false;
-                }
-            } else {
-                if (!mMusicCursor.moveToPrevious()) {
-                    mMusicCursor.moveToLast();
-                    success = false;
-                }
-            }
-            // Make sure we are not looping in search of valid files
-            if (!success) {
+        // Rows with the current title are skipped in one step
+        int pos = index.getDistinct(current, dir);
+        while (pos < 0 || !isValidPosition(pos)) {
+            if (pos < 0) {
+                // Make sure we are not looping in search of valid files
                 if (hasLooped) {
+                    mMusicCursor.moveToPosition(dir > 0 ? 0 : n - 1);
                     return false;
                 }
                 hasLooped = true;
+                pos = dir > 0 ? 0 : n - 1;
+            } else {
+                pos += dir;
+                if (pos < 0 || pos >= n) {
+                    pos = -1;
+                    continue;
+                }
             }
-            File test = new File(mMusicCursor.getString(FILEPATH));
-            valid = !currentKey.equals(mMusicCursor.getString(TITLE_KEY)) && test.exists();
-        } while (!valid);
+            if (index.sameTitle(pos, current)) {
+                pos = index.getDistinct(pos, dir);
+            }
+        }
+        mMusicCursor.moveToPosition(pos);
         return !hasLooped;
     }
 
@@ -601,13 +705,30 @@ public abstract class SongPicker {
         if (!mMusicAvailable) {
             return false;
         }
+        return isValidPosition(position);
+    }
 
-        int originalPos = mMusicCursor.getPosition();
-        mMusicCursor.moveToPosition(position);
-        File test = new File(mMusicCursor.getString(FILEPATH));
-        boolean valid = test.exists();
-        mMusicCursor.moveToPosition(originalPos);
-        return valid;
+    /**
+     * Checks if file at given position exists, using cached values when
+     * possible
+     */
+    private boolean isValidPosition(int position) {
+        TrackIndex index = getTrackIndex();
+        int generation = mCatalog.getGeneration();
+        int validity = index.getValidity(position, generation);
+        if (validity == MusicCatalog.UNKNOWN) {
+            validity = mCatalog.getValidity(index.getId(position));
+        }
+        if (validity == MusicCatalog.UNKNOWN) {
+            // Not in the catalog yet, so check the file directly
+            int originalPos = mMusicCursor.getPosition();
+            mMusicCursor.moveToPosition(position);
+            File test = new File(mMusicCursor.getString(FILEPATH));
+            validity = test.exists() ? MusicCatalog.VALID : MusicCatalog.INVALID;
+            mMusicCursor.moveToPosition(originalPos);
+        }
+        index.setValidity(position, validity);
+        return validity == MusicCatalog.VALID;
     }
 
     /**
@@ -650,8 +771,7 @@ public abstract class SongPicker {
             return false;
         }
         // Is first file valid?
-        File testFile = new File(mMusicCursor.getString(FILEPATH));
-        if (testFile.exists()) {
+        if (isValidPosition(0)) {
             return true;
         }
         // Are there any valid files?
@@ -669,11 +789,12 @@ public abstract class SongPicker {
             return;
         }
 
-        boolean found = false;
-        mMusicCursor.moveToFirst();
-        do {
-            found = mMusicCursor.getInt(TRACK_ID) == bookmark.getId();
-        } while (!found && mMusicCursor.moveToNext());
+        int position = getTrackIndex().findPosition(bookmark.getId());
+        if (position < 0) {
+            mMusicCursor.moveToLast();
+        } else {
+            mMusicCursor.moveToPosition(position);
+        }
     }
 
     /**
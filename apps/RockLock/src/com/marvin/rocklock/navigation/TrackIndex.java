@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.marvin.rocklock.navigation;
+
+import android.database.Cursor;
+
+import java.util.HashMap;
+
+/**
+ * Snapshot of the rows of a music cursor, used to navigate without reading
+ * the cursor. Each position links to the nearest positions with a different
+ * title key, so runs of duplicate tracks are skipped in one step, and rows
+ * are split into runs of equal group keys so that adjacent groups are found
+ * without walking the tracks in between. File validity is looked up lazily
+ * and cached per position.
+ */
+class TrackIndex {
+
+    public final Cursor cursor;
+
+    private final long[] mIds;
+    private final int[] mTitleKeys;
+    private final int[] mNextDistinct;
+    private final int[] mPrevDistinct;
+    private final Runs mGroups;
+    private final Runs mShuffleGroups;
+
+    private byte[] mValidity;
+    private int mGeneration;
+
+    /**
+     * @param cursor the indexed cursor
+     * @param ids track ID of each row
+     * @param titleKeys title key of each row
+     * @param groupKeys navigation group of each row, or null if groups are
+     *            not indexed
+     * @param shuffleGroupKeys shuffle group of each row, or null if the whole
+     *            cursor is shuffled together
+     * @param generation catalog generation the validity cache is based on
+     */
+    public TrackIndex(Cursor cursor, long[] ids, String[] titleKeys, String[] groupKeys,
+            String[] shuffleGroupKeys, int generation) {
+        this.cursor = cursor;
+        mIds = ids;
+        mTitleKeys = internKeys(titleKeys);
+        mGroups = groupKeys == null ? null : new Runs(groupKeys);
+        mShuffleGroups = shuffleGroupKeys == null ? null : new Runs(shuffleGroupKeys);
+        mValidity = new byte[ids.length];
+        mGeneration = generation;
+
+        int n = ids.length;
+        mNextDistinct = new int[n];
+        mPrevDistinct = new int[n];
+        // A neighbor with the same key links on to that neighbor's neighbor
+        for (int i = n - 1; i >= 0; i--) {
+            int next = i + 1;
+            if (next < n && mTitleKeys[next] == mTitleKeys[i]) {
+                next = mNextDistinct[next];
+            }
+            mNextDistinct[i] = next < n ? next : -1;
+        }
+        for (int i = 0; i < n; i++) {
+            int prev = i - 1;
+            if (prev >= 0 && mTitleKeys[prev] == mTitleKeys[i]) {
+                prev = mPrevDistinct[prev];
+            }
+            mPrevDistinct[i] = prev;
+        }
+    }
+
+    /**
+     * @return number of rows
+     */
+    public int getCount() {
+        return mIds.length;
+    }
+
+    /**
+     * @return track ID at given position
+     */
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    /**
+     * Finds the first position of a track ID
+     *
+     * @param trackId
+     * @return position, or -1 if not found
+     */
+    public int findPosition(long trackId) {
+        for (int i = 0; i < mIds.length; i++) {
+            if (mIds[i] == trackId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if both positions have the same title key
+     */
+    public boolean sameTitle(int first, int second) {
+        return mTitleKeys[first] == mTitleKeys[second];
+    }
+
+    /**
+     * Gets the nearest position in the given direction whose title key
+     * differs from the one at given position
+     *
+     * @return position, or -1 if there is none before the end of the cursor
+     */
+    public int getDistinct(int position, int dir) {
+        return dir > 0 ? mNextDistinct[position] : mPrevDistinct[position];
+    }
+
+    /**
+     * Gets cached validity, dropping the cache if the catalog has changed
+     *
+     * @return {@link MusicCatalog#VALID}, {@link MusicCatalog#INVALID}, or
+     *         {@link MusicCatalog#UNKNOWN}
+     */
+    public int getValidity(int position, int generation) {
+        if (generation != mGeneration) {
+            mValidity = new byte[mIds.length];
+            mGeneration = generation;
+        }
+        return mValidity[position];
+    }
+
+    public void setValidity(int position, int validity) {
+        mValidity[position] = (byte) validity;
+    }
+
+    /**
+     * @return true if navigation groups are indexed
+     */
+    public boolean hasGroups() {
+        return mGroups != null;
+    }
+
+    /**
+     * @return number of navigation groups
+     */
+    public int getGroupCount() {
+        return mGroups.getCount();
+    }
+
+    /**
+     * @return navigation group at given position
+     */
+    public int getGroup(int position) {
+        return mGroups.groupOf[position];
+    }
+
+    /**
+     * @return first position of given navigation group
+     */
+    public int getGroupStart(int group) {
+        return mGroups.starts[group];
+    }
+
+    /**
+     * @return position after the last position of given navigation group
+     */
+    public int getGroupEnd(int group) {
+        return mGroups.starts[group + 1];
+    }
+
+    /**
+     * @return first position of the shuffle group containing given position
+     */
+    public int getShuffleStart(int position) {
+        if (mShuffleGroups == null) {
+            return 0;
+        }
+        return mShuffleGroups.starts[mShuffleGroups.groupOf[position]];
+    }
+
+    /**
+     * @return position after the end of the shuffle group containing given
+     *         position
+     */
+    public int getShuffleEnd(int position) {
+        if (mShuffleGroups == null) {
+            return mIds.length;
+        }
+        return mShuffleGroups.starts[mShuffleGroups.groupOf[position] + 1];
+    }
+
+    /**
+     * Replaces strings with small integers that are equal for equal strings
+     */
+    private static int[] internKeys(String[] keys) {
+        HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        int[] result = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            Integer id = ids.get(keys[i]);
+            if (id == null) {
+                id = ids.size();
+                ids.put(keys[i], id);
+            }
+            result[i] = id;
+        }
+        return result;
+    }
+
+    /**
+     * Runs of consecutive rows with equal keys
+     */
+    private static class Runs {
+        public final int[] groupOf;
+        public final int[] starts;
+
+        public Runs(String[] keys) {
+            int n = keys.length;
+            groupOf = new int[n];
+            int[] runStarts = new int[n + 1];
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                if (i == 0 || !equal(keys[i], keys[i - 1])) {
+                    runStarts[count++] = i;
+                }
+                groupOf[i] = count - 1;
+            }
+            runStarts[count] = n;
+            starts = new int[count + 1];
+            System.arraycopy(runStarts, 0, starts, 0, count + 1);
+        }
+
+        public int getCount() {
+            return starts.length - 1;
+        }
+
+        private static boolean equal(String first, String second) {
+            return first == null ? second == null : first.equals(second);
+        }
+    }
+}
@@ -18,7 +18,6 @@ package com.marvin.rocklock.navigation;
 
 import android.app.Activity;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.provider.MediaStore;
 
 import com.marvin.rocklock.R;
@@ -33,6 +32,7 @@ public class TrackSortedSongPicker extends ColumnGroupedSongPicker {
 
     private String mCurrentTrack;
     private String mCurrentLetter;
+    private String[] mArticles;
 
     public TrackSortedSongPicker(Activity parentActivity) {
         super(parentActivity, TRACK, TRACK_ID, MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, null);
@@ -46,11 +46,13 @@ public class TrackSortedSongPicker extends ColumnGroupedSongPicker {
      */
     private String getFormattedTrack(String track) {
         track = track.toLowerCase();
-        Resources res = mParentActivity.getResources();
-        String[] articles = res.getStringArray(R.array.articles_to_ignore);
-        for (int i = 0; i < articles.length; ++i) {
-            if (track.startsWith(articles[i] + " ")) {
-                track = track.substring(articles[i].length() + 1);
+        if (mArticles == null) {
+            Resources res = mParentActivity.getResources();
+            mArticles = res.getStringArray(R.array.articles_to_ignore);
+        }
+        for (int i = 0; i < mArticles.length; ++i) {
+            if (track.startsWith(mArticles[i] + " ")) {
+                track = track.substring(mArticles[i].length() + 1);
             }
         }
         return track;
@@ -110,21 +112,24 @@ public class TrackSortedSongPicker extends ColumnGroupedSongPicker {
     }
 
     /**
-     * Gets cursor with filter for current group so we know how many elements it
-     * has
+     * Groups tracks by first letter for navigation, matching
+     * {@link #isNewGroup()}
+     *
+     * @return group key
      */
     @Override
-    protected Cursor getGroupCursor() {
-        return mMusicCursor;
+    protected String getGroupKey() {
+        String track = getFormattedTrack(mMusicCursor.getString(TRACK));
+        return track.length() > 0 ? track.substring(0, 1) : track;
     }
 
     /**
-     * Returns first index for given group
+     * Shuffles all tracks together
      *
-     * @return base index
+     * @return null
      */
     @Override
-    protected int getBaseIdx() {
-        return 0;
+    protected String getShuffleGroupKey() {
+        return null;
     }
 }
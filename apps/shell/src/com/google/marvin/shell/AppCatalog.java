@@ -0,0 +1,532 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.marvin.shell;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ResolveInfo;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Catalog of launchable applications. The catalog is saved between sessions
+ * so that the shell only loads labels for packages that changed while it was
+ * not running, or all labels if the system language changed. Titles are
+ * normalized once and indexed, so searches use binary searches instead of
+ * comparing the query against every title.
+ * <p>
+ * Changes are computed off the main thread with {@link #sync} or
+ * {@link #queryPackage} and applied on the main thread with {@link #apply}.
+ */
+public class AppCatalog {
+    private static final String FILE_NAME = "app_catalog";
+
+    private static final int FILE_FORMAT_VERSION = 2;
+
+    private final File file;
+
+    /** The locale that the application titles were loaded in. */
+    private String locale = Locale.getDefault().toString();
+
+    /** Launchable applications, sorted by search title. */
+    private final ArrayList<AppInfo> apps = new ArrayList<AppInfo>();
+
+    /**
+     * Version codes of every known package, including packages without
+     * launchable activities.
+     */
+    private final HashMap<String, Integer> packageVersions = new HashMap<String, Integer>();
+
+    /** Sorted title suffixes that start at a word after the first. */
+    private String[] wordKeys = new String[0];
+
+    /** Positions in {@link #apps} for each of {@link #wordKeys}. */
+    private int[] wordPositions = new int[0];
+
+    /** Sorted first letters of the words in multi-word titles. */
+    private String[] initialKeys = new String[0];
+
+    /** Positions in {@link #apps} for each of {@link #initialKeys}. */
+    private int[] initialPositions = new int[0];
+
+    public AppCatalog(Context context) {
+        file = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Returns a title folded for searching.
+     */
+    public static String normalize(String title) {
+        if (title == null) {
+            return "";
+        }
+        return title.toLowerCase();
+    }
+
+    /**
+     * Returns the sorted list of applications. The list is updated in place
+     * by {@link #apply} and must only be read on the main thread.
+     */
+    public ArrayList<AppInfo> getApps() {
+        return apps;
+    }
+
+    /**
+     * Loads the catalog saved by a previous session.
+     *
+     * @return {@code true} if a saved catalog was loaded.
+     */
+    public synchronized boolean load() {
+        if (!file.exists()) {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_FORMAT_VERSION) {
+                return false;
+            }
+
+            // Titles saved in another language must all be loaded again.
+            final String loadedLocale = in.readUTF();
+            if (!loadedLocale.equals(Locale.getDefault().toString())) {
+                return false;
+            }
+
+            final HashMap<String, Integer> loadedVersions = new HashMap<String, Integer>();
+            final ArrayList<AppInfo> loadedApps = new ArrayList<AppInfo>();
+            final int packageCount = in.readInt();
+            for (int i = 0; i < packageCount; i++) {
+                final String packageName = in.readUTF();
+                loadedVersions.put(packageName, in.readInt());
+
+                final int appCount = in.readInt();
+                for (int j = 0; j < appCount; j++) {
+                    final String title = in.readUTF();
+                    final String className = in.readUTF();
+                    loadedApps.add(new AppInfo(title, packageName, className));
+                }
+            }
+
+            locale = loadedLocale;
+            packageVersions.clear();
+            packageVersions.putAll(loadedVersions);
+            apps.clear();
+            apps.addAll(loadedApps);
+            Collections.sort(apps);
+            rebuildIndex();
+            return true;
+        } catch (IOException e) {
+            Log.e("AppCatalog", "Failed to load app catalog: " + e);
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Saves the catalog for the next session. This writes a file, so it
+     * should not be called on the main thread.
+     */
+    public synchronized void save() {
+        final HashMap<String, ArrayList<AppInfo>> appsByPackage =
+                new HashMap<String, ArrayList<AppInfo>>();
+        for (AppInfo app : apps) {
+            ArrayList<AppInfo> packageApps = appsByPackage.get(app.getPackageName());
+            if (packageApps == null) {
+                packageApps = new ArrayList<AppInfo>();
+                appsByPackage.put(app.getPackageName(), packageApps);
+            }
+            packageApps.add(app);
+        }
+
+        final File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(FILE_FORMAT_VERSION);
+            out.writeUTF(locale);
+            out.writeInt(packageVersions.size());
+            for (Map.Entry<String, Integer> entry : packageVersions.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+
+                final ArrayList<AppInfo> packageApps = appsByPackage.get(entry.getKey());
+                if (packageApps == null) {
+                    out.writeInt(0);
+                    continue;
+                }
+
+                out.writeInt(packageApps.size());
+                for (AppInfo app : packageApps) {
+                    out.writeUTF(app.getTitle());
+                    out.writeUTF(app.getClassName());
+                }
+            }
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Failed to rename " + tempFile);
+            }
+        } catch (IOException e) {
+            Log.e("AppCatalog", "Failed to save app catalog: " + e);
+            tempFile.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Compares the installed packages against the catalog and loads the
+     * applications of packages that were added or updated. Only labels for
+     * changed packages are loaded, so this is fast when little has changed.
+     * If the default locale changed since the titles were loaded, the
+     * applications of all packages are loaded again.
+     * This queries the package manager, so it should not be called on the
+     * main thread.
+     *
+     * @return The changes to pass to {@link #apply}.
+     */
+    public Changes sync(PackageManager pm) {
+        final String currentLocale = Locale.getDefault().toString();
+        final HashMap<String, Integer> knownVersions;
+        final boolean localeChanged;
+        synchronized (this) {
+            knownVersions = new HashMap<String, Integer>(packageVersions);
+            localeChanged = !currentLocale.equals(locale);
+        }
+
+        final Changes changes = new Changes();
+        changes.locale = currentLocale;
+        for (PackageInfo info : pm.getInstalledPackages(0)) {
+            final Integer knownVersion = knownVersions.remove(info.packageName);
+            if (localeChanged || (knownVersion == null)
+                    || (knownVersion != info.versionCode)) {
+                changes.versions.put(info.packageName, info.versionCode);
+                changes.apps.put(info.packageName, new ArrayList<AppInfo>());
+            }
+        }
+        changes.removed.addAll(knownVersions.keySet());
+
+        if (changes.apps.isEmpty()) {
+            return changes;
+        }
+
+        final Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+        mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+        for (ResolveInfo info : pm.queryIntentActivities(mainIntent, 0)) {
+            final ArrayList<AppInfo> packageApps = changes.apps.get(
+                    info.activityInfo.packageName);
+            if (packageApps != null) {
+                packageApps.add(createAppInfo(pm, info));
+            }
+        }
+
+        return changes;
+    }
+
+    /**
+     * Loads the applications of a single package. This queries the package
+     * manager, so it should not be called on the main thread.
+     *
+     * @return The changes to pass to {@link #apply}.
+     */
+    public static Changes queryPackage(PackageManager pm, String packageName) {
+        final Changes changes = new Changes();
+
+        final int versionCode;
+        try {
+            versionCode = pm.getPackageInfo(packageName, 0).versionCode;
+        } catch (NameNotFoundException e) {
+            changes.removed.add(packageName);
+            return changes;
+        }
+
+        final ArrayList<AppInfo> packageApps = new ArrayList<AppInfo>();
+        final Intent targetIntent = new Intent(Intent.ACTION_MAIN, null);
+        targetIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+        targetIntent.setPackage(packageName);
+        for (ResolveInfo info : pm.queryIntentActivities(targetIntent, 0)) {
+            packageApps.add(createAppInfo(pm, info));
+        }
+
+        changes.versions.put(packageName, versionCode);
+        changes.apps.put(packageName, packageApps);
+        return changes;
+    }
+
+    /**
+     * Applies changes computed by {@link #sync} or {@link #queryPackage}.
+     * Must be called on the main thread.
+     *
+     * @return {@code true} if the list of applications may have changed.
+     */
+    public synchronized boolean apply(Changes changes) {
+        if (changes.isEmpty()) {
+            return false;
+        }
+
+        final HashSet<String> affectedPackages = new HashSet<String>(changes.removed);
+        affectedPackages.addAll(changes.versions.keySet());
+
+        for (int i = apps.size() - 1; i >= 0; i--) {
+            if (affectedPackages.contains(apps.get(i).getPackageName())) {
+                apps.remove(i);
+            }
+        }
+
+        for (String packageName : changes.removed) {
+            packageVersions.remove(packageName);
+        }
+
+        for (Map.Entry<String, Integer> entry : changes.versions.entrySet()) {
+            packageVersions.put(entry.getKey(), entry.getValue());
+            apps.addAll(changes.apps.get(entry.getKey()));
+        }
+
+        if (changes.locale != null) {
+            locale = changes.locale;
+        }
+
+        Collections.sort(apps);
+        rebuildIndex();
+        return true;
+    }
+
+    /**
+     * Removes a package from the catalog. Must be called on the main thread.
+     */
+    public void removePackage(String packageName) {
+        final Changes changes = new Changes();
+        changes.removed.add(packageName);
+        apply(changes);
+    }
+
+    /**
+     * Returns the position in {@link #getApps()} of the best match for a
+     * search query, or -1 if nothing matches. Matches are ranked by type:
+     * title prefix, word prefix ("maps" for "Google Maps"), initials ("gm"),
+     * and finally letters in order ("gmp"). Within a type, the first match
+     * in title order wins.
+     */
+    public synchronized int findBestMatch(String query) {
+        final String key = normalize(query);
+
+        int position = findTitlePrefix(key);
+        if (position < 0) {
+            position = findKeyPrefix(wordKeys, wordPositions, key);
+        }
+        if (position < 0) {
+            position = findKeyPrefix(initialKeys, initialPositions, key);
+        }
+        if (position < 0) {
+            position = findSubsequence(key);
+        }
+
+        return position;
+    }
+
+    private int findTitlePrefix(String key) {
+        int low = 0;
+        int high = apps.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (apps.get(mid).getSearchTitle().compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        if ((low < apps.size()) && apps.get(low).getSearchTitle().startsWith(key)) {
+            return low;
+        }
+        return -1;
+    }
+
+    private static int findKeyPrefix(String[] keys, int[] positions, String key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        int position = -1;
+        for (int i = low; (i < keys.length) && keys[i].startsWith(key); i++) {
+            if ((position < 0) || (positions[i] < position)) {
+                position = positions[i];
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Finds the first title containing the letters and digits of the query
+     * in order. This is a linear scan, so it only runs when the indexed
+     * searches fail.
+     */
+    private int findSubsequence(String key) {
+        for (int i = 0; i < apps.size(); i++) {
+            final String title = apps.get(i).getSearchTitle();
+            int titleIndex = 0;
+            int keyIndex = 0;
+            while ((keyIndex < key.length()) && (titleIndex < title.length())) {
+                final char c = key.charAt(keyIndex);
+                if (!Character.isLetterOrDigit(c)) {
+                    keyIndex++;
+                } else if (title.charAt(titleIndex++) == c) {
+                    keyIndex++;
+                }
+            }
+            if (keyIndex == key.length()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Rebuilds the word and initials indices after {@link #apps} changes.
+     */
+    private void rebuildIndex() {
+        final ArrayList<IndexKey> words = new ArrayList<IndexKey>();
+        final ArrayList<IndexKey> initials = new ArrayList<IndexKey>();
+        final StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < apps.size(); i++) {
+            final String title = apps.get(i).getSearchTitle();
+            boolean atWordStart = true;
+            builder.setLength(0);
+
+            for (int j = 0; j < title.length(); j++) {
+                if (!Character.isLetterOrDigit(title.charAt(j))) {
+                    atWordStart = true;
+                    continue;
+                }
+                if (atWordStart) {
+                    builder.append(title.charAt(j));
+                    if (j > 0) {
+                        words.add(new IndexKey(title.substring(j), i));
+                    }
+                    atWordStart = false;
+                }
+            }
+
+            if (builder.length() > 1) {
+                initials.add(new IndexKey(builder.toString(), i));
+            }
+        }
+
+        Collections.sort(words);
+        Collections.sort(initials);
+
+        wordKeys = new String[words.size()];
+        wordPositions = new int[words.size()];
+        for (int i = 0; i < words.size(); i++) {
+            wordKeys[i] = words.get(i).key;
+            wordPositions[i] = words.get(i).position;
+        }
+
+        initialKeys = new String[initials.size()];
+        initialPositions = new int[initials.size()];
+        for (int i = 0; i < initials.size(); i++) {
+            initialKeys[i] = initials.get(i).key;
+            initialPositions[i] = initials.get(i).position;
+        }
+    }
+
+    private static AppInfo createAppInfo(PackageManager pm, ResolveInfo info) {
+        String title = info.loadLabel(pm).toString();
+        if (title.length() == 0) {
+            title = info.activityInfo.name.toString();
+        }
+        return new AppInfo(title, info);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * A set of catalog changes, computed off the main thread.
+     */
+    public static class Changes {
+        private final HashMap<String, Integer> versions = new HashMap<String, Integer>();
+
+        private final HashMap<String, ArrayList<AppInfo>> apps =
+                new HashMap<String, ArrayList<AppInfo>>();
+
+        private final HashSet<String> removed = new HashSet<String>();
+
+        /**
+         * The locale that all titles were loaded in, or {@code null} if only
+         * some packages were loaded.
+         */
+        private String locale;
+
+        public boolean isEmpty() {
+            return versions.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    private static class IndexKey implements Comparable<IndexKey> {
+        public final String key;
+        public final int position;
+
+        public IndexKey(String key, int position) {
+            this.key = key;
+            this.position = position;
+        }
+
+        @Override
+        public int compareTo(IndexKey other) {
+            return key.compareTo(other.key);
+        }
+    }
+}
@@ -16,9 +16,6 @@
 
 package com.google.marvin.shell;
 
-import java.util.ArrayList;
-import java.util.Collections;
-
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
@@ -35,18 +32,26 @@ import android.util.AttributeSet;
  */
 public class AppChooserView extends ChooserView<AppInfo> {
 
+    private AppCatalog catalog;
+
     public AppChooserView(Context context, AttributeSet attrs) {
         super(context, attrs);
     }
 
-    public void setAppList(ArrayList<AppInfo> installedApps) {
-        items = installedApps;
+    public void setAppCatalog(AppCatalog appCatalog) {
+        catalog = appCatalog;
+        items = appCatalog.getApps();
     }
 
     @Override
     public boolean matchesSearch(int index) {
-        String title = items.get(index).getTitle().toLowerCase();
-        return title.startsWith(currentString.toLowerCase());
+        String title = items.get(index).getSearchTitle();
+        return title.startsWith(AppCatalog.normalize(currentString));
+    }
+
+    @Override
+    protected int findFirstMatch() {
+        return catalog.findBestMatch(currentString);
     }
 
     @Override
@@ -71,24 +76,10 @@ public class AppChooserView extends ChooserView<AppInfo> {
         return items.get(currentIndex).getTitle();
     }
 
-    public void addApplication(AppInfo app) {
-        synchronized (items) {
-            items.add(app);
-            Collections.sort(items);
-        }
-        currentIndex = 0;
-        currentString = "";
-    }
-
-    public void removePackage(String packageName) {
-        synchronized (items) {
-            for (int i = 0; i < items.size(); ++i) {
-                if (items.get(i).getPackageName().equals(packageName)) {
-                    items.remove(i);
-                    i--;
-                }
-            }
-        }
+    /**
+     * Resets the selection after the catalog changes.
+     */
+    public void onAppsChanged() {
         currentIndex = 0;
         currentString = "";
     }
@@ -31,22 +31,31 @@ public class AppInfo implements Comparable<AppInfo> {
 
     private String className;
 
+    private String searchTitle;
+
     AppInfo(String appTitle, String appPackageName, String appClassName) {
         title = appTitle;
         packageName = appPackageName;
         className = appClassName;
+        searchTitle = AppCatalog.normalize(appTitle);
     }
 
     AppInfo(String appTitle, ResolveInfo info) {
-        title = appTitle;
-        packageName = info.activityInfo.packageName;
-        className = info.activityInfo.name;
+        this(appTitle, info.activityInfo.packageName, info.activityInfo.name);
     }
 
     public String getTitle() {
         return title;
     }
 
+    /**
+     * Returns the title normalized for searching, computed once when this
+     * object is created.
+     */
+    public String getSearchTitle() {
+        return searchTitle;
+    }
+
     public String getPackageName() {
         return packageName;
     }
@@ -57,9 +66,7 @@ public class AppInfo implements Comparable<AppInfo> {
 
     @Override
     public int compareTo(AppInfo o) {
-        String title0 = this.getTitle().toLowerCase();
-        String title1 = o.getTitle().toLowerCase();
-        return title0.compareTo(title1);
+        return searchTitle.compareTo(o.searchTitle);
     }
 
     /**
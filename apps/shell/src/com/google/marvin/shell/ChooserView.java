@@ -294,16 +294,8 @@ public abstract class ChooserView<T> extends TextView {
     }
 
     private void jumpToFirstMatchingApp() {
-        int index = 0;
-        boolean foundMatch = false;
-        while (!foundMatch && (index < items.size())) {
-            if (matchesSearch(index)) {
-                currentIndex = index - 1;
-                foundMatch = true;
-            }
-            index++;
-        }
-        if (!foundMatch) {
+        int index = findFirstMatch();
+        if (index < 0) {
             parent.tts.playEarcon(parent.getString(R.string.earcon_tock), 0, null);
             if (currentString.length() > 0) {
                 currentString = currentString.substring(0, currentString.length() - 1);
@@ -311,10 +303,25 @@ public abstract class ChooserView<T> extends TextView {
             speakCurrentItem(true);
             return;
         } else {
+            currentIndex = index - 1;
             nextItem();
         }
     }
 
+    /**
+     * Returns the index of the first item matching the current search string,
+     * or -1 if no item matches. By default, this checks each item with
+     * {@link #matchesSearch(int)}.
+     */
+    protected int findFirstMatch() {
+        for (int index = 0; index < items.size(); index++) {
+            if (matchesSearch(index)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
     public abstract boolean matchesSearch(int index);
 
     public abstract void speakCurrentItem(boolean interrupt);
@@ -67,6 +67,7 @@ import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 import com.google.marvin.shell.ProximitySensor.ProximityChangeListener;
+import com.googlecode.eyesfree.utils.BasePackageMonitor;
 import com.googlecode.eyesfree.utils.FeedbackController;
 import com.googlecode.eyesfree.widget.GestureOverlay;
 import com.googlecode.eyesfree.widget.GestureOverlay.Gesture;
@@ -77,7 +78,6 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 
@@ -152,6 +152,8 @@ public class MarvinShell extends Activity {
 
     private AppChooserView appChooserView;
 
+    private AppCatalog appCatalog;
+
     private WidgetChooserView widgetChooserView;
 
     public TextToSpeech tts;
@@ -235,10 +237,8 @@ public class MarvinShell extends Activity {
         pm = getPackageManager();
         awm = AppWidgetManager.getInstance(this);
 
-        IntentFilter appChangeFilter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
-        appChangeFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
-        appChangeFilter.addDataScheme("package");
-        registerReceiver(appChangeReceiver, appChangeFilter);
+        appCatalog = new AppCatalog(this);
+        appChangeMonitor.register(this);
 
         IntentFilter screenStateChangeFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
         registerReceiver(screenStateChangeReceiver, screenStateChangeFilter);
@@ -347,9 +347,7 @@ public class MarvinShell extends Activity {
             if (screenStateChangeReceiver != null) {
                 unregisterReceiver(screenStateChangeReceiver);
             }
-            if (appChangeReceiver != null) {
-                unregisterReceiver(appChangeReceiver);
-            }
+            appChangeMonitor.unregister();
             if (sdcardReceiver != null) {
                 unregisterReceiver(sdcardReceiver);
             }
@@ -358,6 +356,8 @@ public class MarvinShell extends Activity {
              * Sometimes there may be two shutdown requests, in which case the
              * second request will fail.
              */
+        } catch (IllegalStateException e) {
+            // The package monitor was already unregistered.
         }
     }
 
@@ -420,34 +420,40 @@ public class MarvinShell extends Activity {
     };
 
     /**
-     * Listens for changes in the installed packages. If a package is added, we
-     * reset our list of the activities for that package by querying with a
-     * launch intent.
+     * Listens for changes in the installed packages. Only the catalog entries
+     * for the changed package are updated; if a package is added or changed,
+     * its activities are reloaded by querying with a launch intent.
      */
-    private BroadcastReceiver appChangeReceiver = new BroadcastReceiver() {
-            @Override
-        public void onReceive(Context context, Intent intent) {
-            String packageName = intent.getData().getSchemeSpecificPart();
-            if (intent.getAction().equals(Intent.ACTION_PACKAGE_REMOVED)) {
-                appChooserView.removePackage(packageName);
-                tts.speak(getString(R.string.applist_reload), TextToSpeech.QUEUE_FLUSH, null);
-            } else if (intent.getAction().equals(Intent.ACTION_PACKAGE_ADDED)) {
-                appChooserView.removePackage(packageName);
-                Intent targetIntent = new Intent(Intent.ACTION_MAIN, null);
-                targetIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-                targetIntent.setPackage(packageName);
-                for (ResolveInfo info : pm.queryIntentActivities(targetIntent, 0)) {
-                    String title = info.loadLabel(pm).toString();
-                    if (title.length() == 0) {
-                        title = info.activityInfo.name.toString();
-                    }
-                    appChooserView.addApplication(new AppInfo(title, info));
-                }
-                tts.speak(getString(R.string.applist_reload), TextToSpeech.QUEUE_FLUSH, null);
-            }
+    private BasePackageMonitor appChangeMonitor = new BasePackageMonitor() {
+        @Override
+        protected void onPackageAdded(String packageName) {
+            new UpdatePackageTask(true).execute(packageName);
+        }
+
+        @Override
+        protected void onPackageRemoved(String packageName) {
+            appCatalog.removePackage(packageName);
+            onAppCatalogChanged();
+            tts.speak(getString(R.string.applist_reload), TextToSpeech.QUEUE_FLUSH, null);
+        }
+
+        @Override
+        protected void onPackageChanged(String packageName) {
+            new UpdatePackageTask(false).execute(packageName);
         }
     };
 
+    /**
+     * Resets the app chooser, if it is ready, and saves the catalog after it
+     * has changed.
+     */
+    private void onAppCatalogChanged() {
+        if (appChooserView != null) {
+            appChooserView.onAppsChanged();
+        }
+        new SaveAppCatalogTask().execute();
+    }
+
     /**
      * Initializes the shortcut type descriptions from resources.
      */
@@ -1586,32 +1592,77 @@ public class MarvinShell extends Activity {
     }
 
     /**
-     * This is an asynchronous task that queries the package manager for
-     * launchable activities, builds a sorted list of AppInfo and uses it to
-     * initialize the AppChooserView.
+     * This is an asynchronous task that loads the saved app catalog and uses
+     * it to initialize the AppChooserView, then brings the catalog up to date
+     * with the package manager. Only packages that changed since the catalog
+     * was saved are queried.
      */
-    private class InitAppChooserTask extends AsyncTask<Void, Void, ArrayList<AppInfo>> {
+    private class InitAppChooserTask extends AsyncTask<Void, Void, AppCatalog.Changes> {
         @Override
-        public ArrayList<AppInfo> doInBackground(Void... params) {
-            Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
-            mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
-            List<ResolveInfo> apps = pm.queryIntentActivities(mainIntent, 0);
-            ArrayList<AppInfo> appList = new ArrayList<AppInfo>();
-            for (ResolveInfo info : apps) {
-                String title = info.loadLabel(pm).toString();
-                if (title.length() == 0) {
-                    title = info.activityInfo.name.toString();
-                }
-                appList.add(new AppInfo(title, info));
+        public AppCatalog.Changes doInBackground(Void... params) {
+            if (appCatalog.load() && !appCatalog.getApps().isEmpty()) {
+                publishProgress();
             }
-            Collections.sort(appList);
-            return appList;
+            return appCatalog.sync(pm);
+        }
+
+        @Override
+        public void onProgressUpdate(Void... values) {
+            initAppChooserView();
         }
 
         @Override
-        public void onPostExecute(ArrayList<AppInfo> appList) {
-            appChooserView = (AppChooserView) findViewById(R.id.appChooserView);
-            appChooserView.setAppList(appList);
+        public void onPostExecute(AppCatalog.Changes changes) {
+            if (appCatalog.apply(changes)) {
+                onAppCatalogChanged();
+            }
+            initAppChooserView();
+        }
+
+        private void initAppChooserView() {
+            if (appChooserView == null) {
+                appChooserView = (AppChooserView) findViewById(R.id.appChooserView);
+                appChooserView.setAppCatalog(appCatalog);
+            }
+        }
+    }
+
+    /**
+     * This is an asynchronous task that reloads the launchable activities of
+     * a single package and updates the app catalog.
+     */
+    private class UpdatePackageTask extends AsyncTask<String, Void, AppCatalog.Changes> {
+        private final boolean announce;
+
+        public UpdatePackageTask(boolean announce) {
+            this.announce = announce;
+        }
+
+        @Override
+        public AppCatalog.Changes doInBackground(String... packageNames) {
+            return AppCatalog.queryPackage(pm, packageNames[0]);
+        }
+
+        @Override
+        public void onPostExecute(AppCatalog.Changes changes) {
+            if (appCatalog.apply(changes)) {
+                onAppCatalogChanged();
+            }
+            if (announce) {
+                tts.speak(getString(R.string.applist_reload), TextToSpeech.QUEUE_FLUSH, null);
+            }
+        }
+    }
+
+    /**
+     * This is an asynchronous task that saves the app catalog for the next
+     * session.
+     */
+    private class SaveAppCatalogTask extends AsyncTask<Void, Void, Void> {
+        @Override
+        public Void doInBackground(Void... params) {
+            appCatalog.save();
+            return null;
         }
     }
 
@@ -0,0 +1,190 @@
+// Copyright 2013 Google Inc. All Rights Reserved.
+
+package com.google.marvin.talkingdialer;
+
+import android.database.Cursor;
+import android.os.Build;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Sorted index of normalized contact display names, used to find contacts by
+ * name prefix in logarithmic time. Names are folded to lower case with
+ * accents removed, so "\u00e9mile" matches a search for "EM".
+ * <p>
+ * The index records the cursor position of each name, so it is only valid
+ * for the cursor it was built from.
+ */
+public class ContactNameIndex {
+    /** Unaccented replacements for Latin-1 letters, starting at U+00C0. */
+    private static final String LATIN_1_FOLDED =
+            "aaaaaaaceeeeiiiidnooooo\u00d7ouuuuyts"
+            + "aaaaaaaceeeeiiiidnooooo\u00f7ouuuuyty";
+
+    /** The first character in {@link #LATIN_1_FOLDED}. */
+    private static final char LATIN_1_START = '\u00c0';
+
+    /** Normalized names in ascending order. */
+    private final String[] mNames;
+
+    /** The cursor position of each name in {@link #mNames}. */
+    private final int[] mPositions;
+
+    private ContactNameIndex(String[] names, int[] positions) {
+        mNames = names;
+        mPositions = positions;
+    }
+
+    /**
+     * Builds an index from every row of a cursor. This reads the entire
+     * cursor, so it should not be called on the main thread.
+     *
+     * @param cursor The cursor to index. Its position is changed.
+     * @param nameColumn The column containing display names.
+     * @return An index of the cursor's names.
+     */
+    public static ContactNameIndex build(Cursor cursor, int nameColumn) {
+        final Entry[] entries = new Entry[cursor.getCount()];
+        int count = 0;
+
+        if (cursor.moveToFirst()) {
+            do {
+                final String name = cursor.getString(nameColumn);
+                if (name != null) {
+                    entries[count++] = new Entry(normalize(name), cursor.getPosition());
+                }
+            } while (cursor.moveToNext() && (count < entries.length));
+        }
+
+        Arrays.sort(entries, 0, count);
+
+        final String[] names = new String[count];
+        final int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = entries[i].name;
+            positions[i] = entries[i].position;
+        }
+
+        return new ContactNameIndex(names, positions);
+    }
+
+    /**
+     * Returns a name folded to lower case with accents removed.
+     *
+     * @param name The name to normalize.
+     * @return The normalized name.
+     */
+    public static String normalize(String name) {
+        final String lowerCase = name.toLowerCase(Locale.getDefault());
+
+        if (Build.VERSION.SDK_INT >= 9) {
+            return removeMarks(lowerCase);
+        }
+
+        return foldLatin1(lowerCase);
+    }
+
+    /**
+     * @return The number of names in the index.
+     */
+    public int size() {
+        return mNames.length;
+    }
+
+    /**
+     * Returns the index of the first name that is not less than
+     * {@code normalizedPrefix}. If any names start with the prefix, they
+     * begin at this index.
+     *
+     * @param normalizedPrefix A prefix returned by {@link #normalize}.
+     * @return The index of the first candidate match.
+     */
+    public int findFirst(String normalizedPrefix) {
+        int low = 0;
+        int high = mNames.length;
+
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+
+            if (mNames[mid].compareTo(normalizedPrefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * @param index An index in the range [0, {@link #size()}).
+     * @param normalizedPrefix A prefix returned by {@link #normalize}.
+     * @return Whether the name at {@code index} starts with the prefix.
+     */
+    public boolean startsWith(int index, String normalizedPrefix) {
+        return mNames[index].startsWith(normalizedPrefix);
+    }
+
+    /**
+     * @param index An index in the range [0, {@link #size()}).
+     * @return The cursor position of the name at {@code index}.
+     */
+    public int getPosition(int index) {
+        return mPositions[index];
+    }
+
+    /**
+     * Decomposes a string and removes combining marks. Requires API 9.
+     */
+    private static String removeMarks(String name) {
+        final String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+        final StringBuilder builder = new StringBuilder(decomposed.length());
+
+        for (int i = 0; i < decomposed.length(); i++) {
+            final char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                builder.append(c);
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Replaces accented Latin-1 letters with their unaccented equivalents.
+     */
+    private static String foldLatin1(String name) {
+        final char[] chars = name.toCharArray();
+
+        for (int i = 0; i < chars.length; i++) {
+            final int offset = chars[i] - LATIN_1_START;
+            if ((offset >= 0) && (offset < LATIN_1_FOLDED.length())) {
+                chars[i] = LATIN_1_FOLDED.charAt(offset);
+            }
+        }
+
+        return new String(chars);
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        public final String name;
+        public final int position;
+
+        public Entry(String name, int position) {
+            this.name = name;
+            this.position = position;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            final int result = name.compareTo(other.name);
+            if (result != 0) {
+                return result;
+            }
+
+            return (position - other.position);
+        }
+    }
+}
@@ -4,10 +4,12 @@ package com.google.marvin.talkingdialer;
 
 import android.content.ContentUris;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Handler;
 import android.provider.ContactsContract.StatusUpdates;
 import android.provider.ContactsContract.CommonDataKinds.Email;
 import android.provider.ContactsContract.Contacts;
@@ -17,6 +19,8 @@ import android.support.v4.content.AsyncTaskLoader;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.util.LruCache;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
@@ -38,6 +42,9 @@ public class ContactsManager {
     private static final String SORTORDER = Contacts.DISPLAY_NAME
             + " COLLATE NOCASE ASC";
 
+    /** Number of matches after a prefix match to prefetch phone data for. */
+    private static final int PREFETCH_MATCHES = 5;
+
     private Context context;
     private CursorLoader loader;
     private Cursor mCursor;
@@ -45,6 +52,22 @@ public class ContactsManager {
     private final boolean isVideoSupported;
     private final int mode;
 
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mFilter;
+
+    /** Observer that rebuilds the name index when contacts change. */
+    private final ContentObserver mContactsObserver;
+
+    /** Prefix index over {@link #mCursor}, or {@code null} if not built yet. */
+    private ContactNameIndex mNameIndex;
+
+    /** Task building the name index, or {@code null} if not running. */
+    private NameIndexTask mNameIndexTask;
+
+    /** Whether contacts changed while the name index was being built. */
+    private boolean mNameIndexStale;
+
     private LruCache<String, Contact> contactsCache;
 
     private static class ContactQuery {
@@ -195,6 +218,10 @@ public class ContactsManager {
             proj = EmailQuery.COLUMNS;
         }
 
+        mUri = uri;
+        mProjection = proj;
+        mFilter = filter;
+
         loader = new CursorLoader(context, uri, proj, filter,
                 null, SORTORDER);
         mCursor = loader.loadInBackground();
@@ -206,9 +233,84 @@ public class ContactsManager {
             // So this should be << 1 MB
             int cacheSize = 100;
             contactsCache = new LruCache<String, Contact>(cacheSize);
-            new ContactDataTask(filter, uri, proj).execute();
         }
 
+        mContactsObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                rebuildNameIndex();
+            }
+        };
+
+        if (hasFirst) {
+            context.getContentResolver().registerContentObserver(
+                    uri, true, mContactsObserver);
+
+            // Contact details are loaded from the initial cursor once the
+            // indexed cursor replaces it.
+            rebuildNameIndex();
+        }
+    }
+
+    /**
+     * Stops observing contacts and releases the cursor. No calls should be
+     * made to this object after calling this method.
+     */
+    public void shutdown() {
+        context.getContentResolver().unregisterContentObserver(mContactsObserver);
+
+        if (mNameIndexTask != null) {
+            mNameIndexTask.cancel(false);
+            mNameIndexTask = null;
+        }
+
+        if (mCursor != null) {
+            mCursor.close();
+        }
+    }
+
+    /**
+     * @return {@code true} if the prefix index is available for
+     *         {@link #moveToFirstMatch(String)}.
+     */
+    public boolean hasNameIndex() {
+        return mNameIndex != null;
+    }
+
+    /**
+     * Moves to the first contact, in normalized name order, whose name starts
+     * with {@code prefix} and has data. Case and accents are ignored. Phone
+     * data for the following matches is prefetched in the background.
+     *
+     * @param prefix The prefix to search for.
+     * @return The matching contact, or {@code null} if there is no match or the
+     *         prefix index isn't available. The position is unchanged if there
+     *         is no match.
+     */
+    public Contact moveToFirstMatch(String prefix) {
+        final ContactNameIndex index = mNameIndex;
+        if (index == null) {
+            return null;
+        }
+
+        final String normalizedPrefix = ContactNameIndex.normalize(prefix);
+        final int startPos = mCursor.getPosition();
+
+        for (int i = index.findFirst(normalizedPrefix);
+                (i < index.size()) && index.startsWith(i, normalizedPrefix); i++) {
+            if (!mCursor.moveToPosition(index.getPosition(i))) {
+                continue;
+            }
+
+            final Contact contact = getCurrentContact();
+            if ((contact != null) && contact.hasData()) {
+                prefetchMatches(index, (i + 1), normalizedPrefix);
+                return contact;
+            }
+        }
+
+        mCursor.moveToPosition(startPos);
+        return null;
     }
 
     /**
@@ -262,23 +364,7 @@ public class ContactsManager {
                         cursor.getInt(4);
                         String normalizedNumber = cursor.getString(1)
                                 .replaceAll("[^0-9*#,;]", "");
-                        String type = "";
-                        if (!cursor.isNull(2)) {
-                            switch (cursor.getInt(2)) {
-                                case Phone.TYPE_HOME:
-                                    type = context.getString(R.string.home);
-                                    break;
-                                case Phone.TYPE_MOBILE:
-                                    type = context.getString(R.string.cell);
-                                    break;
-                                case Phone.TYPE_WORK:
-                                    type = context.getString(R.string.work);
-                                    break;
-                                default:
-                                    type = context.getString(R.string.phone);
-                                    break;
-                            }
-                        }
+                        final String type = getPhoneType(cursor, 2);
                         numbers.add(new ContactData(normalizedNumber, type,
                                 true, cursor.getInt(4)));
 
@@ -292,6 +378,26 @@ public class ContactsManager {
         return loader.loadInBackground();
     }
 
+    /**
+     * Returns the spoken label for the phone type in the specified column.
+     */
+    private String getPhoneType(Cursor cursor, int column) {
+        if (cursor.isNull(column)) {
+            return "";
+        }
+
+        switch (cursor.getInt(column)) {
+            case Phone.TYPE_HOME:
+                return context.getString(R.string.home);
+            case Phone.TYPE_MOBILE:
+                return context.getString(R.string.cell);
+            case Phone.TYPE_WORK:
+                return context.getString(R.string.work);
+            default:
+                return context.getString(R.string.phone);
+        }
+    }
+
     /**
      * Gets email addresses for given contact, eliminating duplicates with set
      */
@@ -508,6 +614,276 @@ public class ContactsManager {
         return null;
     }
 
+    /**
+     * Starts building a new name index in the background, or marks the index
+     * as stale if a build is already running.
+     */
+    private void rebuildNameIndex() {
+        if (mNameIndexTask != null) {
+            mNameIndexStale = true;
+            return;
+        }
+
+        mNameIndexStale = false;
+        mNameIndexTask = new NameIndexTask();
+        mNameIndexTask.execute();
+    }
+
+    /**
+     * Queues a batched load of phone data for up to {@link #PREFETCH_MATCHES}
+     * uncached contacts starting at {@code start} in the name index.
+     */
+    private void prefetchMatches(ContactNameIndex index, int start, String normalizedPrefix) {
+        if (mode == TalkingDialer.SELECT_EMAIL) {
+            // Email contacts are loaded directly from the cursor.
+            return;
+        }
+
+        final int startPos = mCursor.getPosition();
+        final ArrayList<Contact> contacts = new ArrayList<Contact>();
+        final ArrayList<Long> contactIds = new ArrayList<Long>();
+
+        for (int i = start; (i < index.size()) && (contacts.size() < PREFETCH_MATCHES)
+                && index.startsWith(i, normalizedPrefix); i++) {
+            if (!mCursor.moveToPosition(index.getPosition(i))) {
+                continue;
+            }
+
+            final String key = mCursor.getString(ContactQuery.CONTACT_LOOKUP);
+            if (contactsCache.get(key) != null) {
+                continue;
+            }
+
+            contacts.add(new Contact(
+                    mCursor.getString(ContactQuery.DISPLAY_NAME), key,
+                    mCursor.getInt(ContactQuery.CONTACT_PRESENCE),
+                    mCursor.getInt(ContactQuery.CONTACT_CAPABILITY)));
+            contactIds.add(mCursor.getLong(ContactQuery.CONTACT_ID));
+        }
+
+        mCursor.moveToPosition(startPos);
+
+        if (!contacts.isEmpty()) {
+            new PrefetchTask(contacts, contactIds).execute();
+        }
+    }
+
+    /**
+     * Builds a name index from a fresh query, then replaces the current
+     * cursor with the indexed cursor while keeping the current contact
+     * selected.
+     */
+    private class NameIndexTask extends AsyncTask<Void, Void, Cursor> {
+        private ContactNameIndex mIndex;
+        private HashMap<String, Integer> mKeyPositions;
+
+        /** The indexed cursor, kept so it can be closed if cancelled. */
+        private Cursor mResult;
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            final Cursor cursor = context.getContentResolver().query(
+                    mUri, mProjection, mFilter, null, SORTORDER);
+            if (cursor == null) {
+                return null;
+            }
+
+            mIndex = ContactNameIndex.build(cursor, ContactQuery.DISPLAY_NAME);
+            mKeyPositions = new HashMap<String, Integer>();
+
+            if (cursor.moveToFirst()) {
+                do {
+                    mKeyPositions.put(cursor.getString(ContactQuery.CONTACT_LOOKUP),
+                            cursor.getPosition());
+                } while (cursor.moveToNext());
+            }
+
+            if (isCancelled()) {
+                cursor.close();
+                return null;
+            }
+
+            mResult = cursor;
+            return cursor;
+        }
+
+        @Override
+        protected void onCancelled() {
+            // The result is dropped if the task is cancelled after
+            // doInBackground() returns.
+            if (mResult != null) {
+                mResult.close();
+                mResult = null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Cursor cursor) {
+            mNameIndexTask = null;
+
+            if (cursor == null) {
+                return;
+            }
+
+            final Cursor oldCursor = mCursor;
+            String currentKey = null;
+            if (!oldCursor.isBeforeFirst() && !oldCursor.isAfterLast()) {
+                currentKey = oldCursor.getString(ContactQuery.CONTACT_LOOKUP);
+            }
+
+            final boolean isRefresh = (mNameIndex != null);
+            final Integer position = mKeyPositions.get(currentKey);
+
+            mCursor = cursor;
+            mNameIndex = mIndex;
+
+            if ((position == null) || !mCursor.moveToPosition(position)) {
+                mCursor.moveToFirst();
+            }
+
+            if (isRefresh) {
+                // Contact details may have changed.
+                oldCursor.close();
+                contactsCache.evictAll();
+            } else {
+                // The initial cursor is no longer used here, so reuse it to
+                // load contact details instead of querying again.
+                new ContactDataTask(oldCursor).execute();
+            }
+
+            if (mNameIndexStale) {
+                rebuildNameIndex();
+            }
+        }
+    }
+
+    /**
+     * Loads phone data, and video chat addresses if supported, for several
+     * contacts using a single query per data type.
+     */
+    private class PrefetchTask extends AsyncTask<Void, Void, Void> {
+        private final ArrayList<Contact> mContacts;
+        private final ArrayList<Long> mContactIds;
+
+        public PrefetchTask(ArrayList<Contact> contacts, ArrayList<Long> contactIds) {
+            mContacts = contacts;
+            mContactIds = contactIds;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            final StringBuilder ids = new StringBuilder();
+            for (Long contactId : mContactIds) {
+                if (ids.length() > 0) {
+                    ids.append(',');
+                }
+                ids.append(contactId);
+            }
+
+            final HashMap<Long, HashSet<ContactData>> numbers = queryNumbers(ids.toString());
+            final HashMap<Long, HashSet<ContactData>> emails = isVideoSupported
+                    ? queryEmails(ids.toString()) : null;
+
+            for (int i = 0; i < mContacts.size(); i++) {
+                final Contact contact = mContacts.get(i);
+                final Long contactId = mContactIds.get(i);
+
+                if (numbers.containsKey(contactId)) {
+                    contact.addData(numbers.get(contactId));
+                }
+
+                if ((emails != null) && emails.containsKey(contactId)) {
+                    contact.addData(emails.get(contactId));
+                }
+
+                contact.resetIter();
+
+                if (contactsCache.get(contact.key) == null) {
+                    contactsCache.put(contact.key, contact);
+                }
+            }
+
+            return null;
+        }
+
+        private HashMap<Long, HashSet<ContactData>> queryNumbers(String ids) {
+            final HashMap<Long, HashSet<ContactData>> result =
+                    new HashMap<Long, HashSet<ContactData>>();
+            final String[] projection = new String[] {
+                    Phone.CONTACT_ID, Phone.NUMBER, Phone.TYPE, Phone.RAW_CONTACT_ID };
+            final String filter = Phone.CONTACT_ID + " IN (" + ids + ")";
+
+            final Cursor cursor = context.getContentResolver().query(
+                    Phone.CONTENT_URI, projection, filter, null, null);
+            if (cursor == null) {
+                return result;
+            }
+
+            if (cursor.moveToFirst()) {
+                do {
+                    final String number = cursor.getString(1);
+                    if (number == null) {
+                        continue;
+                    }
+
+                    final String normalizedNumber = number.replaceAll("[^0-9*#,;]", "");
+                    getOrCreateSet(result, cursor.getLong(0)).add(new ContactData(
+                            normalizedNumber, getPhoneType(cursor, 2), true, cursor.getInt(3)));
+                } while (cursor.moveToNext());
+            }
+
+            cursor.close();
+            return result;
+        }
+
+        private HashMap<Long, HashSet<ContactData>> queryEmails(String ids) {
+            final HashMap<Long, HashSet<ContactData>> result =
+                    new HashMap<Long, HashSet<ContactData>>();
+            final String[] projection = new String[] {
+                    Email.CONTACT_ID, Email.ADDRESS, Email.CHAT_CAPABILITY, Email.RAW_CONTACT_ID };
+            final String filter = Email.CHAT_CAPABILITY + " > -1 AND "
+                    + Email.CONTACT_ID + " IN (" + ids + ")";
+
+            final Cursor cursor = context.getContentResolver().query(
+                    Email.CONTENT_URI, projection, filter, null, null);
+            if (cursor == null) {
+                return result;
+            }
+
+            if (cursor.moveToFirst()) {
+                do {
+                    if (cursor.isNull(2)) {
+                        continue;
+                    }
+
+                    final int videoChat = cursor.getInt(2) & StatusUpdates.CAPABILITY_HAS_CAMERA;
+                    final String address = cursor.getString(1);
+                    if ((videoChat != StatusUpdates.CAPABILITY_HAS_CAMERA) || (address == null)) {
+                        continue;
+                    }
+
+                    final String[] parts = address.split("@");
+                    final String type = (parts.length > 1) ? parts[1] : "";
+                    getOrCreateSet(result, cursor.getLong(0)).add(
+                            new ContactData(address, type, false, cursor.getInt(3)));
+                } while (cursor.moveToNext());
+            }
+
+            cursor.close();
+            return result;
+        }
+
+        private HashSet<ContactData> getOrCreateSet(
+                HashMap<Long, HashSet<ContactData>> map, long contactId) {
+            HashSet<ContactData> set = map.get(contactId);
+            if (set == null) {
+                set = new HashSet<ContactData>();
+                map.put(contactId, set);
+            }
+            return set;
+        }
+    }
+
     /**
      * This is an asynchronous task that queries individual contact entities for
      * phone, email, and chat data
@@ -515,21 +891,23 @@ public class ContactsManager {
     private class ContactDataTask extends AsyncTask<Void, Void, Void> {
         Cursor cursor;
 
-        public ContactDataTask(String filter, Uri uri, String[] proj) {
+        /**
+         * @param cursor A contacts cursor that is not used elsewhere. It is
+         *            closed when the task finishes.
+         */
+        public ContactDataTask(Cursor cursor) {
             super();
-            CursorLoader asyncLoader = new CursorLoader(context, uri,
-                    proj, filter, null, SORTORDER);
-            cursor = asyncLoader.loadInBackground();
+            this.cursor = cursor;
         }
 
         @Override
         public Void doInBackground(Void... params) {
-            if (!cursor.moveToFirst()) {
-                return null;
+            if (cursor.moveToFirst()) {
+                do {
+                    loadContact(cursor);
+                } while (cursor.moveToNext());
             }
-            do {
-                loadContact(cursor);
-            } while (cursor.moveToNext());
+            cursor.close();
             return null;
         }
 
@@ -224,6 +224,10 @@ public class ContactsView extends TextView {
     }
 
     private void jumpToFirstFilteredResult(String partialName) {
+        if (parent.contactManager.hasNameIndex()) {
+            jumpToFirstIndexedResult(partialName);
+            return;
+        }
 
         int currentPos = parent.contactManager.getPos();
 
@@ -268,6 +272,34 @@ public class ContactsView extends TextView {
 
     }
 
+    /**
+     * Jumps to the first contact whose name starts with {@code partialName}
+     * using the contact manager's prefix index, ignoring case and accents.
+     */
+    private void jumpToFirstIndexedResult(String partialName) {
+        final String normalizedPrefix = ContactNameIndex.normalize(partialName);
+
+        if ((currentContact != null)
+                && ContactNameIndex.normalize(currentContact.name).startsWith(normalizedPrefix)) {
+            speakCurrentContact(true);
+            return;
+        }
+
+        final Contact match = parent.contactManager.moveToFirstMatch(partialName);
+
+        if (match == null) {
+            parent.tts.playEarcon(parent.getString(R.string.earcon_tock), 0, null);
+            if (currentString.length() > 0) {
+                currentString = currentString.substring(0, currentString.length() - 1);
+            }
+            return;
+        }
+
+        currentContact = match;
+        currentData = currentContact.nextData();
+        speakCurrentContact(true);
+    }
+
     /**
      * Speaks the currently selected contact and sets the internal current
      * contact.
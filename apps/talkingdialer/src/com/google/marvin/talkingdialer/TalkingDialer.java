@@ -120,6 +120,9 @@ public class TalkingDialer extends Activity {
                 }
             }
         }
+        if (contactManager != null) {
+            contactManager.shutdown();
+        }
         contactManager = new ContactsManager(getBaseContext(), mIntentMode, isVideoSupported);
 
         if (tts == null) {
@@ -262,6 +265,9 @@ public class TalkingDialer extends Activity {
     protected void onDestroy() {
         Log.i("SlideDial", "DESTROY");
         tts.shutdown();
+        if (contactManager != null) {
+            contactManager.shutdown();
+        }
         super.onDestroy();
     }
 
@@ -285,6 +285,12 @@ public class DisplayManager
      * are not used and currently set to 1.
     */
     private final SparseIntArray mSplitPoints = new SparseIntArray();
+    /**
+     * Translates content that is split into paragraphs, so that editing
+     * long text only retranslates the paragraphs that changed.
+     */
+    private final ParagraphTranslator mParagraphTranslator =
+            new ParagraphTranslator();
 
     // Displayed content, already trimmed based on the display position.
     // Updated in updateDisplayedContent() and used in refresh().
@@ -643,6 +649,8 @@ public class DisplayManager
                 return;
             }
             TranslationResult oldTranslationResult = mTranslationResult;
+            // The tables changed, so the kept paragraphs are stale.
+            mParagraphTranslator.clear();
             translateCurrentContent();
             mDisplayPosition = textToDisplayPosition(
                     mTranslationResult,
@@ -766,7 +774,10 @@ public class DisplayManager
                 ? mTranslatorManager.getTranslator()
                 : mTranslatorManager.getUncontractedTranslator();
         String textContent = mCurrentContent.mText.toString();
-        if (translator != null) {
+        if (translator != null && mCurrentContent.isSplitParagraphs()) {
+            mTranslationResult = mParagraphTranslator.translate(translator,
+                    textContent, mCursorPosition);
+        } else if (translator != null) {
             mTranslationResult = translator.translate(textContent,
                     mCursorPosition);
         } else {
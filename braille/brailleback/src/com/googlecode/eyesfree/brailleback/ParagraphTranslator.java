@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import com.googlecode.eyesfree.braille.translate.BrailleTranslator;
+import com.googlecode.eyesfree.braille.translate.TranslationResult;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Translates text one paragraph at a time and keeps the translation of each
+ * paragraph, so that only paragraphs that changed since the previous call
+ * are sent to the translator.  This makes editing long multi-line text
+ * cheap, since a keystroke usually only changes the paragraph that contains
+ * the cursor.
+ *
+ * Paragraphs end after each line break.  The paragraph that contains the
+ * cursor is always translated with the cursor so that the cursor position
+ * is mapped by the translator, and is not kept.  Only the paragraphs of the
+ * most recently translated text are kept.
+ *
+ * Threading: This class is not thread safe.
+ */
+class ParagraphTranslator {
+    private BrailleTranslator mTranslator;
+    private HashMap<String, TranslationResult> mParagraphResults =
+            new HashMap<String, TranslationResult>();
+
+    /**
+     * Translates {@code text} using {@code translator}, reusing the
+     * translations of paragraphs that were translated by the previous call
+     * with the same translator.  The result is equivalent to
+     * {@link BrailleTranslator#translate}, with the position maps and cursor
+     * position stitched together from the paragraphs.  Returns {@code null}
+     * if the translation of any paragraph fails.
+     */
+    public TranslationResult translate(BrailleTranslator translator,
+            String text, int cursorPosition) {
+        if (text.indexOf('\n') < 0) {
+            return translator.translate(text, cursorPosition);
+        }
+        if (translator != mTranslator) {
+            mParagraphResults.clear();
+            mTranslator = translator;
+        }
+        HashMap<String, TranslationResult> paragraphResults =
+                new HashMap<String, TranslationResult>();
+        List<TranslationResult> pieces = new ArrayList<TranslationResult>();
+        List<Integer> paragraphEnds = new ArrayList<Integer>();
+        int cursorPiece = -1;
+        int cellCount = 0;
+        int start = 0;
+        while (start < text.length()) {
+            int end = text.indexOf('\n', start);
+            end = (end < 0) ? text.length() : end + 1;
+            String paragraph = text.substring(start, end);
+            TranslationResult result;
+            // A cursor past the end of the text belongs to the last
+            // paragraph.
+            if (cursorPosition >= start && (cursorPosition < end
+                            || end == text.length())) {
+                result = translator.translate(paragraph,
+                        cursorPosition - start);
+                cursorPiece = pieces.size();
+            } else {
+                result = paragraphResults.get(paragraph);
+                if (result == null) {
+                    result = mParagraphResults.get(paragraph);
+                }
+                if (result == null) {
+                    result = translator.translate(paragraph, -1);
+                }
+                if (result != null) {
+                    paragraphResults.put(paragraph, result);
+                }
+            }
+            if (result == null) {
+                return null;
+            }
+            pieces.add(result);
+            paragraphEnds.add(end);
+            cellCount += result.getCells().length;
+            start = end;
+        }
+        mParagraphResults = paragraphResults;
+
+        byte[] cells = new byte[cellCount];
+        int[] textToBraillePositions = new int[text.length()];
+        int[] brailleToTextPositions = new int[cellCount];
+        int translatedCursorPosition = -1;
+        int textStart = 0;
+        int brailleStart = 0;
+        for (int i = 0; i < pieces.size(); ++i) {
+            TranslationResult piece = pieces.get(i);
+            byte[] pieceCells = piece.getCells();
+            int textLength = paragraphEnds.get(i) - textStart;
+            System.arraycopy(pieceCells, 0, cells, brailleStart,
+                    pieceCells.length);
+            // Positions missing from the piece's maps map to the end of the
+            // paragraph, like positions past the end of a whole translation.
+            int[] posMap = piece.getTextToBraillePositions();
+            for (int j = 0; j < textLength; ++j) {
+                textToBraillePositions[textStart + j] = brailleStart
+                        + (j < posMap.length ? posMap[j] : pieceCells.length);
+            }
+            posMap = piece.getBrailleToTextPositions();
+            for (int j = 0; j < pieceCells.length; ++j) {
+                brailleToTextPositions[brailleStart + j] = textStart
+                        + (j < posMap.length ? posMap[j] : textLength);
+            }
+            if (i == cursorPiece && piece.getCursorPosition() >= 0) {
+                translatedCursorPosition =
+                        brailleStart + piece.getCursorPosition();
+            }
+            textStart += textLength;
+            brailleStart += pieceCells.length;
+        }
+        return new TranslationResult(cells, textToBraillePositions,
+                brailleToTextPositions, translatedCursorPosition);
+    }
+
+    /**
+     * Forgets all kept paragraph translations.  Must be called when the
+     * translation tables change.
+     */
+    public void clear() {
+        mParagraphResults.clear();
+        mTranslator = null;
+    }
+}
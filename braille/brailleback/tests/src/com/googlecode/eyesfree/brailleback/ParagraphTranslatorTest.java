@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.brailleback;
+
+import com.googlecode.eyesfree.braille.translate.BrailleTranslator;
+import com.googlecode.eyesfree.braille.translate.TranslationResult;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link ParagraphTranslator}.
+ */
+@SmallTest
+public class ParagraphTranslatorTest extends TestCase {
+
+    private ParagraphTranslator mParagraphTranslator;
+    private FakeTranslator mTranslator;
+
+    @Override
+    public void setUp() {
+        mParagraphTranslator = new ParagraphTranslator();
+        mTranslator = new FakeTranslator();
+    }
+
+    /** Tests that the paragraph translations are stitched together. */
+    public void testStitchesParagraphs() {
+        TranslationResult result =
+                mParagraphTranslator.translate(mTranslator, "ab\ncd", 4);
+        // Every character doubles, so cells are twice as many as characters.
+        assertEquals(10, result.getCells().length);
+        // The second paragraph is translated on its own.
+        assertEquals(0, result.getCells()[6]);
+        assertTrue(Arrays.equals(new int[] { 0, 2, 4, 6, 8 },
+                        result.getTextToBraillePositions()));
+        assertTrue(Arrays.equals(new int[] { 0, 0, 1, 1, 2, 2, 3, 3, 4, 4 },
+                        result.getBrailleToTextPositions()));
+        assertEquals(8, result.getCursorPosition());
+    }
+
+    /** Tests that only changed paragraphs are translated again. */
+    public void testRetranslatesChangedParagraphs() {
+        mParagraphTranslator.translate(mTranslator, "ab\ncd\nef", -1);
+        assertEquals(Arrays.asList("ab\n", "cd\n", "ef"),
+                mTranslator.mTranslatedTexts);
+        mTranslator.mTranslatedTexts.clear();
+
+        mParagraphTranslator.translate(mTranslator, "ab\ncxd\nef", -1);
+        assertEquals(Arrays.asList("cxd\n"), mTranslator.mTranslatedTexts);
+    }
+
+    /** Tests that the paragraph with the cursor is translated with it. */
+    public void testTranslatesCursorParagraph() {
+        mParagraphTranslator.translate(mTranslator, "ab\ncd\n", -1);
+        mTranslator.mTranslatedTexts.clear();
+
+        TranslationResult result =
+                mParagraphTranslator.translate(mTranslator, "ab\ncd\n", 6);
+        assertEquals(Arrays.asList("cd\n"), mTranslator.mTranslatedTexts);
+        assertEquals(3, mTranslator.mLastCursorPosition);
+        assertEquals(12, result.getCursorPosition());
+    }
+
+    /** Tests that kept paragraphs aren't used by another translator. */
+    public void testTranslatorChange() {
+        mParagraphTranslator.translate(mTranslator, "ab\ncd", -1);
+        FakeTranslator otherTranslator = new FakeTranslator();
+        mParagraphTranslator.translate(otherTranslator, "ab\ncd", -1);
+        assertEquals(Arrays.asList("ab\n", "cd"),
+                otherTranslator.mTranslatedTexts);
+    }
+
+    /** Tests that a failing paragraph translation fails the whole text. */
+    public void testTranslationFailure() {
+        mTranslator.mFailingText = "cd";
+        assertNull(mParagraphTranslator.translate(mTranslator, "ab\ncd", -1));
+    }
+
+    /**
+     * Translator that outputs two cells, both containing the character
+     * position, for every character.
+     */
+    private static class FakeTranslator implements BrailleTranslator {
+        private final List<String> mTranslatedTexts = new ArrayList<String>();
+        private int mLastCursorPosition;
+        private String mFailingText;
+
+        @Override
+        public TranslationResult translate(String text, int cursorPosition) {
+            mTranslatedTexts.add(text);
+            mLastCursorPosition = cursorPosition;
+            if (text.equals(mFailingText)) {
+                return null;
+            }
+            byte[] cells = new byte[text.length() * 2];
+            int[] textToBraille = new int[text.length()];
+            int[] brailleToText = new int[cells.length];
+            for (int i = 0; i < text.length(); ++i) {
+                cells[2 * i] = cells[2 * i + 1] = (byte) i;
+                textToBraille[i] = 2 * i;
+                brailleToText[2 * i] = brailleToText[2 * i + 1] = i;
+            }
+            return new TranslationResult(cells, textToBraille, brailleToText,
+                    cursorPosition < 0 ? -1 : 2 * cursorPosition);
+        }
+
+        @Override
+        public String backTranslate(byte[] cells) {
+            return null;
+        }
+    }
+}
@@ -27,6 +27,8 @@ import android.os.RemoteException;
 import android.util.Log;
 
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 /**
@@ -41,6 +43,11 @@ import java.util.List;
  * instance is destroyed and recreated if braille translation is not going to
  * be need for a long period of time.
  *
+ * Translations are cached, so {@link TranslationResult} objects returned
+ * by translators from this class may be shared between calls and must not
+ * be modified.  The cache is cleared whenever the connection to the
+ * translator service changes, since the installed tables may have changed.
+ *
  * Threading:<br>
  * The object must be destroyed on the same thread it was created.
  * Other methods may be called from any thread.
@@ -58,6 +65,10 @@ public class TranslatorClient {
      */
     private static final int REBIND_DELAY_MILLIS = 500;
     private static final int MAX_REBIND_ATTEMPTS = 5;
+    /** Maximum number of translation results to keep in memory. */
+    private static final int MAX_CACHED_TRANSLATIONS = 100;
+    /** Longer texts are translated without caching the result. */
+    private static final int MAX_CACHED_TEXT_LENGTH = 1000;
     public static final int ERROR = -1;
     public static final int SUCCESS = 0;
 
@@ -79,6 +90,7 @@ public class TranslatorClient {
     private final TranslatorClientHandler mHandler =
             new TranslatorClientHandler();
     private final ServiceCallback mServiceCallback = new ServiceCallback();
+    private final TranslationCache mTranslationCache = new TranslationCache();
 
     private OnInitListener mOnInitListener;
     private Connection mConnection;
@@ -142,6 +154,21 @@ public class TranslatorClient {
         return null;
     }
 
+    /**
+     * Returns the number of translations that were served from the cache
+     * without calling the translator service.
+     */
+    public int getTranslationCacheHits() {
+        return mTranslationCache.getHits();
+    }
+
+    /**
+     * Returns the number of translations that were not found in the cache.
+     */
+    public int getTranslationCacheMisses() {
+        return mTranslationCache.getMisses();
+    }
+
     private void doBindService() {
         Connection localConnection = new Connection();
         if (!mContext.bindService(mServiceIntent, localConnection,
@@ -181,6 +208,7 @@ public class TranslatorClient {
                     ITranslatorService.Stub.asInterface(binder);
             try {
                 localService.setCallback(mServiceCallback);
+                mTranslationCache.clear();
                 mService = localService;
                 synchronized (mHandler) {
                     mNumFailedBinds = 0;
@@ -196,6 +224,7 @@ public class TranslatorClient {
         public void onServiceDisconnected(ComponentName className) {
             Log.e(LOG_TAG, "Disconnected from translator service");
             mService = null;
+            mTranslationCache.clear();
             // Retry by rebinding, and finally call the onInit if aplicable.
             mHandler.scheduleRebind();
         }
@@ -210,11 +239,28 @@ public class TranslatorClient {
 
         @Override
         public TranslationResult translate(String text, int cursorPosition) {
+            boolean cacheable = text.length() <= MAX_CACHED_TEXT_LENGTH;
+            TranslationKey key = null;
+            int generation = 0;
+            if (cacheable) {
+                key = new TranslationKey(mTableId, text, cursorPosition);
+                synchronized (mTranslationCache) {
+                    TranslationResult cached = mTranslationCache.lookup(key);
+                    if (cached != null) {
+                        return cached;
+                    }
+                    generation = mTranslationCache.getGeneration();
+                }
+            }
             ITranslatorService localService = getTranslatorService();
             if (localService != null) {
                 try {
-                    return localService.translate(text, mTableId,
-                            cursorPosition);
+                    TranslationResult result = localService.translate(text,
+                            mTableId, cursorPosition);
+                    if (cacheable && result != null) {
+                        mTranslationCache.store(key, result, generation);
+                    }
+                    return result;
                 } catch (RemoteException ex) {
                     Log.e(LOG_TAG, "Error in translate", ex);
                 }
@@ -258,6 +304,102 @@ public class TranslatorClient {
         }
     }
 
+    /**
+     * Identifies a translation by its table, text and cursor position.
+     */
+    private static class TranslationKey {
+        private final String mTableId;
+        private final String mText;
+        private final int mCursorPosition;
+
+        public TranslationKey(String tableId, String text,
+                int cursorPosition) {
+            mTableId = tableId;
+            mText = text;
+            mCursorPosition = cursorPosition;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o instanceof TranslationKey) {
+                TranslationKey other = (TranslationKey) o;
+                return mCursorPosition == other.mCursorPosition
+                        && mTableId.equals(other.mTableId)
+                        && mText.equals(other.mText);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mTableId.hashCode() * 31 + mText.hashCode()) * 31
+                    + mCursorPosition;
+        }
+    }
+
+    /**
+     * Least recently used cache of translation results, shared by all
+     * translators of this client.  All methods synchronize on the cache
+     * itself.
+     */
+    private static class TranslationCache {
+        private final LinkedHashMap<TranslationKey, TranslationResult>
+                mResults = new LinkedHashMap<TranslationKey, TranslationResult>(
+                        MAX_CACHED_TRANSLATIONS + 1, 1.0f,
+                        true /* accessOrder */);
+        /**
+         * Incremented when the cache is cleared so that results of
+         * translations that were started before are not stored.
+         */
+        private int mGeneration;
+        private int mHits;
+        private int mMisses;
+
+        public synchronized TranslationResult lookup(TranslationKey key) {
+            TranslationResult result = mResults.get(key);
+            if (result != null) {
+                ++mHits;
+            } else {
+                ++mMisses;
+            }
+            return result;
+        }
+
+        public synchronized void store(TranslationKey key,
+                TranslationResult result, int generation) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mResults.put(key, result);
+            if (mResults.size() > MAX_CACHED_TRANSLATIONS) {
+                // Iteration starts at the least recently used entry.
+                Iterator<TranslationKey> iter = mResults.keySet().iterator();
+                iter.next();
+                iter.remove();
+            }
+        }
+
+        public synchronized int getGeneration() {
+            return mGeneration;
+        }
+
+        public synchronized int getHits() {
+            return mHits;
+        }
+
+        public synchronized int getMisses() {
+            return mMisses;
+        }
+
+        public synchronized void clear() {
+            mResults.clear();
+            ++mGeneration;
+        }
+    }
+
     private class ServiceCallback extends ITranslatorServiceCallback.Stub {
         @Override
         public void onInit(int status) {
@@ -79,7 +79,8 @@ public class LibLouisWrapper {
     // Native methods.  Since liblouis is neither reentrant, nor
     // thread-safe, all native methods are called inside synchronized
     // blocks on the class object, allowing multiple translators
-    // to exist.
+    // to exist.  TableTranslator takes the same lock to measure how long
+    // calls wait for it.
 
     private static native TranslationResult translateNative(String text,
             String tableName, int cursorPosition);
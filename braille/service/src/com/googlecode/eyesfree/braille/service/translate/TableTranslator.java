@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013 Google Inc.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.googlecode.eyesfree.braille.service.translate;
+
+import com.googlecode.eyesfree.braille.translate.TranslationResult;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translation context for one braille table.  Forwards calls to
+ * {@link LibLouisWrapper} and keeps statistics about how long calls for
+ * this table wait for calls for other tables to finish, and how long they
+ * spend in liblouis.
+ *
+ * Threading: All methods may be called from any thread.
+ */
+class TableTranslator {
+    private final String mTableId;
+    private final String mTableName;
+
+    // Guarded by this.
+    private int mCallCount;
+    private long mTotalWaitNanos;
+    private long mMaxWaitNanos;
+    private long mTotalExecutionNanos;
+    private long mMaxExecutionNanos;
+
+    /**
+     * Creates a context for the table with id {@code tableId}, which
+     * liblouis knows as {@code tableName}.
+     */
+    public TableTranslator(String tableId, String tableName) {
+        mTableId = tableId;
+        mTableName = tableName;
+    }
+
+    public String getTableId() {
+        return mTableId;
+    }
+
+    /** See {@link LibLouisWrapper#checkTable}. */
+    public boolean checkTable() {
+        long requestTime = System.nanoTime();
+        long startTime;
+        boolean result;
+        // Take the lock that serializes all liblouis calls here, so that
+        // waiting for it is measured separately from the call itself.
+        synchronized (LibLouisWrapper.class) {
+            startTime = System.nanoTime();
+            result = LibLouisWrapper.checkTable(mTableName);
+        }
+        recordCall(requestTime, startTime);
+        return result;
+    }
+
+    /** See {@link LibLouisWrapper#translate}. */
+    public TranslationResult translate(String text, int cursorPosition) {
+        long requestTime = System.nanoTime();
+        long startTime;
+        TranslationResult result;
+        synchronized (LibLouisWrapper.class) {
+            startTime = System.nanoTime();
+            result = LibLouisWrapper.translate(text, mTableName,
+                    cursorPosition);
+        }
+        recordCall(requestTime, startTime);
+        return result;
+    }
+
+    /** See {@link LibLouisWrapper#backTranslate}. */
+    public String backTranslate(byte[] cells) {
+        long requestTime = System.nanoTime();
+        long startTime;
+        String result;
+        synchronized (LibLouisWrapper.class) {
+            startTime = System.nanoTime();
+            result = LibLouisWrapper.backTranslate(cells, mTableName);
+        }
+        recordCall(requestTime, startTime);
+        return result;
+    }
+
+    /**
+     * Prints the statistics for this table, if it has been used, on one
+     * line.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        if (mCallCount == 0) {
+            return;
+        }
+        writer.printf("  %s: calls=%d wait(avg/max)=%.2f/%.2fms"
+                + " execution(avg/max)=%.2f/%.2fms\n",
+                mTableId, mCallCount,
+                toMillis(mTotalWaitNanos / mCallCount),
+                toMillis(mMaxWaitNanos),
+                toMillis(mTotalExecutionNanos / mCallCount),
+                toMillis(mMaxExecutionNanos));
+    }
+
+    private void recordCall(long requestTime, long startTime) {
+        long waitNanos = startTime - requestTime;
+        long executionNanos = System.nanoTime() - startTime;
+        synchronized (this) {
+            ++mCallCount;
+            mTotalWaitNanos += waitNanos;
+            mMaxWaitNanos = Math.max(mMaxWaitNanos, waitNanos);
+            mTotalExecutionNanos += executionNanos;
+            mMaxExecutionNanos = Math.max(mMaxExecutionNanos, executionNanos);
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
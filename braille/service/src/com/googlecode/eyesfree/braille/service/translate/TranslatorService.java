@@ -33,10 +33,15 @@ import android.os.RemoteException;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -56,11 +61,19 @@ public class TranslatorService extends Service {
             new HashSet<ITranslatorServiceCallback>();
     private int mDataFileState = FILES_NOT_EXTRACTED;
     private TableList mTableList;
+    private Map<String, TableTranslator> mTableTranslators;
 
     @Override
     public void onCreate() {
         super.onCreate();
         mTableList = new TableList(getResources());
+        Map<String, TableTranslator> tableTranslators =
+                new HashMap<String, TableTranslator>();
+        for (TableInfo info : mTableList.getTables()) {
+            tableTranslators.put(info.getId(), new TableTranslator(
+                    info.getId(), mTableList.getFileName(info.getId())));
+        }
+        mTableTranslators = Collections.unmodifiableMap(tableTranslators);
         extractDataFiles();
     }
 
@@ -75,6 +88,15 @@ public class TranslatorService extends Service {
         return mServiceImpl;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer,
+            String[] args) {
+        writer.println("Translation times per table:");
+        for (TableInfo info : mTableList.getTables()) {
+            mTableTranslators.get(info.getId()).dump(writer);
+        }
+    }
+
     private void extractDataFiles() {
         File tablesDir = getDir("translator", MODE_PRIVATE);
         LibLouisWrapper.setTablesDir(tablesDir.getPath());
@@ -165,12 +187,12 @@ public class TranslatorService extends Service {
             if (!checkDataFiles()) {
                 return false;
             }
-            String tableName = mTableList.getFileName(tableId);
-            if (tableName == null) {
+            TableTranslator tableTranslator = mTableTranslators.get(tableId);
+            if (tableTranslator == null) {
                 Log.e(LOG_TAG, "Unknown table id in checkTable: " + tableId);
                 return false;
             }
-            return LibLouisWrapper.checkTable(tableName);
+            return tableTranslator.checkTable();
         }
 
         @Override
@@ -187,12 +209,12 @@ public class TranslatorService extends Service {
             if (!checkDataFiles()) {
                 return null;
             }
-            String tableName = mTableList.getFileName(tableId);
-            if (tableName == null) {
+            TableTranslator tableTranslator = mTableTranslators.get(tableId);
+            if (tableTranslator == null) {
                 Log.e(LOG_TAG, "Unknown table id in translate: " + tableId);
                 return null;
             }
-            return LibLouisWrapper.translate(text, tableName, cursorPosition);
+            return tableTranslator.translate(text, cursorPosition);
         }
 
         @Override
@@ -208,13 +230,13 @@ public class TranslatorService extends Service {
             if (!checkDataFiles()) {
                 return null;
             }
-            String tableName = mTableList.getFileName(tableId);
-            if (tableName == null) {
+            TableTranslator tableTranslator = mTableTranslators.get(tableId);
+            if (tableTranslator == null) {
                 Log.e(LOG_TAG, "Unknown table id in backTranslate: "
                         + tableId);
                 return null;
             }
-            return LibLouisWrapper.backTranslate(cells, tableName);
+            return tableTranslator.backTranslate(cells);
         }
     }
 }
@@ -16,19 +16,19 @@
 
 package com.googlecode.eyesfree.inputmethod.latin;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.util.Log;
 
 import java.util.HashMap;
 import java.util.Map.Entry;
-import java.util.Set;
 
 /**
  * Stores new words temporarily until they are promoted to the user dictionary
@@ -37,6 +37,8 @@ import java.util.Set;
  * repeatedly will promote it to the user dictionary.
  */
 public class AutoDictionary extends ExpandableDictionary {
+    private static final String TAG = "AutoDictionary";
+
     // Weight added to a user picking a new word from the suggestion strip
     static final int FREQUENCY_FOR_PICKED = 3;
     // Weight added to a user typing a new word that doesn't get corrected (or is reverted)
@@ -57,7 +59,8 @@ public class AutoDictionary extends ExpandableDictionary {
     private final Object mPendingWritesLock = new Object();
 
     private static final String DATABASE_NAME = "auto_dict.db";
-    private static final int DATABASE_VERSION = 1;
+    // Version 2 makes each word unique per locale.
+    private static final int DATABASE_VERSION = 2;
 
     // These are the columns in the dictionary
     // TODO: Consume less space by using a unique id for locale instead of the whole
@@ -73,6 +76,15 @@ public class AutoDictionary extends ExpandableDictionary {
     /** Name of the words table in the auto_dict.db */
     private static final String AUTODICT_TABLE_NAME = "words";
 
+    private static final String AUTODICT_INDEX_NAME = "words_word_locale";
+
+    /** Replaces the frequency of a word, relying on the unique word index. */
+    private static final String UPSERT_WORD_SQL = "INSERT OR REPLACE INTO " + AUTODICT_TABLE_NAME
+            + " (" + COLUMN_WORD + ", " + COLUMN_FREQUENCY + ", " + COLUMN_LOCALE
+            + ") VALUES (?, ?, ?)";
+    private static final String DELETE_WORD_SQL = "DELETE FROM " + AUTODICT_TABLE_NAME
+            + " WHERE " + COLUMN_WORD + "=? AND " + COLUMN_LOCALE + "=?";
+
     private static HashMap<String, String> sDictProjectionMap;
 
     static {
@@ -192,15 +204,34 @@ public class AutoDictionary extends ExpandableDictionary {
                     + COLUMN_FREQUENCY + " INTEGER,"
                     + COLUMN_LOCALE + " TEXT"
                     + ");");
+            createIndex(db);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w("AutoDictionary", "Upgrading database from version " + oldVersion + " to "
+            if (oldVersion == 1) {
+                // Version 1 kept a single row per word in practice, but didn't
+                // enforce it. Keep the newest row before adding the unique
+                // index so that no user data is lost.
+                Log.i(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion);
+                db.execSQL("DELETE FROM " + AUTODICT_TABLE_NAME + " WHERE " + COLUMN_ID
+                        + " NOT IN (SELECT MAX(" + COLUMN_ID + ") FROM " + AUTODICT_TABLE_NAME
+                        + " GROUP BY " + COLUMN_WORD + ", " + COLUMN_LOCALE + ")");
+                createIndex(db);
+                return;
+            }
+
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
             db.execSQL("DROP TABLE IF EXISTS " + AUTODICT_TABLE_NAME);
             onCreate(db);
         }
+
+        private static void createIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + AUTODICT_INDEX_NAME + " ON "
+                    + AUTODICT_TABLE_NAME + " (" + COLUMN_WORD + ", " + COLUMN_LOCALE + ");");
+        }
     }
 
     private Cursor query(String selection, String[] selectionArgs) {
@@ -217,7 +248,8 @@ public class AutoDictionary extends ExpandableDictionary {
 
     /**
      * Async task to write pending words to the database so that it stays in sync with
-     * the in-memory trie.
+     * the in-memory trie. All pending words are written in a single transaction
+     * with precompiled statements.
      */
     private static class UpdateDbTask extends AsyncTask<Void, Void, Void> {
         private final HashMap<String, Integer> mMap;
@@ -233,27 +265,40 @@ public class AutoDictionary extends ExpandableDictionary {
 
         @Override
         protected Void doInBackground(Void... v) {
-            SQLiteDatabase db = mDbHelper.getWritableDatabase();
-            // Write all the entries to the db
-            Set<Entry<String,Integer>> mEntries = mMap.entrySet();
-            for (Entry<String,Integer> entry : mEntries) {
-                Integer freq = entry.getValue();
-                db.delete(AUTODICT_TABLE_NAME, COLUMN_WORD + "=? AND " + COLUMN_LOCALE + "=?",
-                        new String[] { entry.getKey(), mLocale });
-                if (freq != null) {
-                    db.insert(AUTODICT_TABLE_NAME, null,
-                            getContentValues(entry.getKey(), freq, mLocale));
+            final long startTime = SystemClock.uptimeMillis();
+            final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            final SQLiteStatement upsertWord = db.compileStatement(UPSERT_WORD_SQL);
+            final SQLiteStatement deleteWord = db.compileStatement(DELETE_WORD_SQL);
+            db.beginTransaction();
+            try {
+                // Write all the entries to the db
+                for (Entry<String, Integer> entry : mMap.entrySet()) {
+                    final Integer freq = entry.getValue();
+                    if (freq != null) {
+                        upsertWord.bindString(1, entry.getKey());
+                        upsertWord.bindLong(2, freq);
+                        upsertWord.bindString(3, mLocale);
+                        upsertWord.execute();
+                    } else {
+                        deleteWord.bindString(1, entry.getKey());
+                        deleteWord.bindString(2, mLocale);
+                        deleteWord.execute();
+                    }
                 }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                upsertWord.close();
+                deleteWord.close();
             }
-            return null;
-        }
 
-        private ContentValues getContentValues(String word, int frequency, String locale) {
-            ContentValues values = new ContentValues(4);
-            values.put(COLUMN_WORD, word);
-            values.put(COLUMN_FREQUENCY, frequency);
-            values.put(COLUMN_LOCALE, locale);
-            return values;
+            final long elapsedMillis = SystemClock.uptimeMillis() - startTime;
+            LatinImeLogger.logOnFlushPendingWrites(TAG, mMap.size(), elapsedMillis);
+            if (LatinIME.DEBUG) {
+                Log.d(TAG, "Wrote " + mMap.size() + " words in " + elapsedMillis + " ms");
+            }
+
+            return null;
         }
     }
 }
@@ -17,14 +17,25 @@
 package com.googlecode.eyesfree.inputmethod.latin;
 
 import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.zip.CRC32;
 
 /**
  * Implements a static, compacted, binary dictionary of standard words.
@@ -45,6 +56,13 @@ public class BinaryDictionary extends Dictionary {
     private static final int MAX_BIGRAMS = 60;
 
     private static final int TYPED_LETTER_MULTIPLIER = 2;
+
+    /** Directory in app storage holding extracted dictionary files. */
+    private static final String EXTRACTED_DIR_NAME = "dictionaries";
+    /** Magic number at the start of an extracted dictionary file. */
+    private static final int EXTRACTED_MAGIC = 0x4c44494d;
+    /** Version of the extracted file header. Increment when the header changes. */
+    private static final int EXTRACTED_FORMAT_VERSION = 1;
     private static final boolean ENABLE_MISSED_CHARACTERS = true;
 
     private int mDicTypeId;
@@ -55,6 +73,7 @@ public class BinaryDictionary extends Dictionary {
     private char[] mOutputChars_bigrams = new char[MAX_WORD_LENGTH * MAX_BIGRAMS];
     private int[] mFrequencies = new int[MAX_WORDS];
     private int[] mFrequencies_bigrams = new int[MAX_BIGRAMS];
+    private char[] mWordChars = new char[MAX_WORD_LENGTH];
     // Keep a reference to the native dict direct buffer in Java to avoid
     // unexpected deallocation of the direct buffer.
     private ByteBuffer mNativeDictDirectBuffer;
@@ -73,8 +92,22 @@ public class BinaryDictionary extends Dictionary {
      * @param resId the resource containing the raw binary dictionary
      */
     public BinaryDictionary(Context context, int[] resId, int dicTypeId) {
+        this(context, resId, dicTypeId, false);
+    }
+
+    /**
+     * Create a dictionary from a raw resource file
+     * @param context application context for reading resources
+     * @param resId the resource containing the raw binary dictionary
+     * @param useMappedFile if true, the dictionary is extracted once to app storage and
+     *        memory-mapped instead of being copied into memory on every load
+     */
+    public BinaryDictionary(Context context, int[] resId, int dicTypeId,
+            boolean useMappedFile) {
         if (resId != null && resId.length > 0 && resId[0] != 0) {
-            loadDictionary(context, resId);
+            if (!useMappedFile || !loadMappedDictionary(context, resId)) {
+                loadDictionary(context, resId);
+            }
         }
         mDicTypeId = dicTypeId;
     }
@@ -150,12 +183,228 @@ public class BinaryDictionary extends Dictionary {
         }
     }
 
+    /**
+     * Memory-maps the dictionary from a file extracted to app storage, extracting it first if
+     * there is no valid extracted file. The mapped pages are backed by the file, so they are
+     * not copied at startup and can be shared and evicted by the OS.
+     * @return true if the dictionary was loaded
+     */
+    private boolean loadMappedDictionary(Context context, int[] resId) {
+        final File dir = new File(context.getFilesDir(), EXTRACTED_DIR_NAME);
+        final Resources res = context.getResources();
+        final String locale = String.valueOf(res.getConfiguration().locale);
+        final File file;
+        try {
+            file = new File(dir, res.getResourceEntryName(resId[0]) + "_" + locale + ".dict");
+        } catch (Resources.NotFoundException e) {
+            return false;
+        }
+        final DictionaryFileHeader header = new DictionaryFileHeader(context, resId, locale);
+
+        if (!header.matches(file) && !extractDictionary(context, resId, dir, file, header)) {
+            return false;
+        }
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            // The header is skipped, since native code reads from the start of the buffer.
+            mNativeDictDirectBuffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    header.getSize(), header.dataLength).order(ByteOrder.nativeOrder());
+            mNativeDict = openNative(mNativeDictDirectBuffer,
+                    TYPED_LETTER_MULTIPLIER, FULL_WORD_FREQ_MULTIPLIER);
+            mDictLength = header.dataLength;
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to map dictionary file " + file);
+            mNativeDictDirectBuffer = null;
+            return false;
+        } finally {
+            // The mapping remains valid after the file is closed.
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Copies the dictionary resources to a file in app storage, preceded by a header. The file
+     * is written to a temporary file and renamed, so a partially written file is never mapped.
+     * @return true if the dictionary was extracted
+     */
+    private static boolean extractDictionary(Context context, int[] resId, File dir, File file,
+            DictionaryFileHeader header) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Failed to create dictionary directory");
+            return false;
+        }
+
+        final File tempFile = new File(dir, file.getName() + ".tmp");
+        final byte[] buffer = new byte[8192];
+        final CRC32 crc = new CRC32();
+        RandomAccessFile raf = null;
+        InputStream is = null;
+        try {
+            raf = new RandomAccessFile(tempFile, "rw");
+            raf.setLength(0);
+            // Reserve space for the header, which is written once the data is known.
+            raf.seek(header.getSize());
+            int total = 0;
+            for (int i = 0; i < resId.length; i++) {
+                is = context.getResources().openRawResource(resId[i]);
+                int read;
+                while ((read = is.read(buffer)) > 0) {
+                    raf.write(buffer, 0, read);
+                    crc.update(buffer, 0, read);
+                    total += read;
+                }
+                is.close();
+                is = null;
+            }
+            header.dataLength = total;
+            header.checksum = crc.getValue();
+            raf.seek(0);
+            header.write(raf);
+            raf.close();
+            raf = null;
+
+            if (!header.verify(tempFile) || !tempFile.renameTo(file)) {
+                Log.w(TAG, "Failed to save dictionary file " + file);
+                tempFile.delete();
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to extract dictionary file " + file);
+            tempFile.delete();
+            return false;
+        } finally {
+            closeQuietly(is);
+            closeQuietly(raf);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close stream");
+        }
+    }
+
+    /**
+     * Header of an extracted dictionary file. A file is only valid for the same resources,
+     * locale and APK that extracted it, since resource ids and contents change across updates.
+     */
+    private static class DictionaryFileHeader {
+        final int versionCode;
+        final long apkTimestamp;
+        final int[] resId;
+        final String locale;
+        int dataLength;
+        long checksum;
+
+        DictionaryFileHeader(Context context, int[] resId, String locale) {
+            int code;
+            try {
+                code = context.getPackageManager().getPackageInfo(
+                        context.getPackageName(), 0).versionCode;
+            } catch (NameNotFoundException e) {
+                code = -1;
+            }
+            this.versionCode = code;
+            this.apkTimestamp = new File(context.getApplicationInfo().sourceDir).lastModified();
+            this.resId = resId;
+            this.locale = locale;
+        }
+
+        /** Returns the size of the header in bytes. */
+        int getSize() {
+            // magic, format, version code, timestamp, resource ids, locale, length, checksum
+            return 4 + 4 + 4 + 8 + (4 + 4 * resId.length) + (2 + locale.length()) + 4 + 8;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeInt(EXTRACTED_MAGIC);
+            out.writeInt(EXTRACTED_FORMAT_VERSION);
+            out.writeInt(versionCode);
+            out.writeLong(apkTimestamp);
+            out.writeInt(resId.length);
+            for (int id : resId) {
+                out.writeInt(id);
+            }
+            // Locale names are ASCII, so the modified UTF-8 length matches getSize().
+            out.writeUTF(locale);
+            out.writeInt(dataLength);
+            out.writeLong(checksum);
+        }
+
+        /**
+         * Reads the header of an existing file and, if it was written for the same resources,
+         * locale and APK, takes its data length and checksum. Stale files are deleted.
+         * @return true if the file can be mapped
+         */
+        boolean matches(File file) {
+            if (!file.exists()) return false;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new FileInputStream(file));
+                boolean valid = in.readInt() == EXTRACTED_MAGIC
+                        && in.readInt() == EXTRACTED_FORMAT_VERSION
+                        && in.readInt() == versionCode
+                        && in.readLong() == apkTimestamp
+                        && in.readInt() == resId.length;
+                for (int i = 0; valid && i < resId.length; i++) {
+                    valid = in.readInt() == resId[i];
+                }
+                valid = valid && locale.equals(in.readUTF());
+                if (valid) {
+                    dataLength = in.readInt();
+                    checksum = in.readLong();
+                    valid = file.length() == getSize() + (long) dataLength;
+                }
+                if (!valid) {
+                    file.delete();
+                }
+                return valid;
+            } catch (IOException e) {
+                file.delete();
+                return false;
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+        /**
+         * Checks the data of a newly written file against the checksum of the resources. This
+         * is done once after extraction, since checking on every load would read every page.
+         * @return true if the file contains the expected data
+         */
+        boolean verify(File file) throws IOException {
+            final InputStream in = new FileInputStream(file);
+            try {
+                if (in.skip(getSize()) != getSize()) return false;
+                final byte[] buffer = new byte[8192];
+                final CRC32 crc = new CRC32();
+                int total = 0;
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, read);
+                    total += read;
+                }
+                return total == dataLength && crc.getValue() == checksum;
+            } finally {
+                in.close();
+            }
+        }
+    }
 
     @Override
     public void getBigrams(final WordComposer codes, final CharSequence previousWord,
             final WordCallback callback, int[] nextLettersFrequencies) {
 
-        char[] chars = previousWord.toString().toCharArray();
+        final int prevWordLength = previousWord.length();
+        final char[] chars = getWordChars(previousWord, prevWordLength);
         Arrays.fill(mOutputChars_bigrams, (char) 0);
         Arrays.fill(mFrequencies_bigrams, 0);
 
@@ -165,7 +414,7 @@ public class BinaryDictionary extends Dictionary {
         System.arraycopy(alternatives, 0, mInputCodes, 0,
                 Math.min(alternatives.length, MAX_ALTERNATIVES));
 
-        int count = getBigramsNative(mNativeDict, chars, chars.length, mInputCodes, codesSize,
+        int count = getBigramsNative(mNativeDict, chars, prevWordLength, mInputCodes, codesSize,
                 mOutputChars_bigrams, mFrequencies_bigrams, MAX_WORD_LENGTH, MAX_BIGRAMS,
                 MAX_ALTERNATIVES);
 
@@ -237,8 +486,19 @@ public class BinaryDictionary extends Dictionary {
     @Override
     public boolean isValidWord(CharSequence word) {
         if (word == null) return false;
-        char[] chars = word.toString().toCharArray();
-        return isValidWordNative(mNativeDict, chars, chars.length);
+        final int length = word.length();
+        return isValidWordNative(mNativeDict, getWordChars(word, length), length);
+    }
+
+    /**
+     * Copies the word into a reusable buffer, growing it for unusually long words.
+     */
+    private char[] getWordChars(CharSequence word, int length) {
+        if (mWordChars.length < length) {
+            mWordChars = new char[length];
+        }
+        TextUtils.getChars(word, 0, length, mWordChars, 0);
+        return mWordChars;
     }
 
     public int getSize() {
@@ -19,8 +19,6 @@ package com.googlecode.eyesfree.inputmethod.latin;
 import android.content.Context;
 import android.os.AsyncTask;
 
-import java.util.LinkedList;
-
 /**
  * Base class for an in-memory dictionary that can grow dynamically and can
  * be searched for suggestions and valid words.
@@ -38,7 +36,7 @@ public class ExpandableDictionary extends Dictionary {
     private int mMaxDepth;
     private int mInputLength;
     private int[] mNextLettersFrequencies;
-    private StringBuilder sb = new StringBuilder(MAX_WORD_LENGTH);
+    private char[] mLookUpBuilder = new char[MAX_WORD_LENGTH];
 
     private static final char QUOTE = '\'';
 
@@ -49,49 +47,38 @@ public class ExpandableDictionary extends Dictionary {
     // Use this lock before touching mUpdatingDictionary & mRequiresDownload
     private Object mUpdatingLock = new Object();
 
-    static class Node {
-        char code;
-        int frequency;
-        boolean terminal;
-        Node parent;
-        NodeArray children;
-        LinkedList<NextWord> ngrams; // Supports ngram
-    }
+    /*
+     * The trie is stored as parallel arrays indexed by node. Node 0 is the
+     * root, which has no code. Children of a node are linked through
+     * mNextSibling in insertion order, and compact() renumbers the nodes in
+     * breadth-first order so that siblings are stored next to each other.
+     * Bigrams are stored the same way, as a linked list per node.
+     */
 
-    static class NodeArray {
-        Node[] data;
-        int length = 0;
-        private static final int INCREMENT = 2;
+    /** Index of the root node. */
+    private static final int ROOT = 0;
 
-        NodeArray() {
-            data = new Node[INCREMENT];
-        }
+    /** Index used to terminate child, sibling and bigram lists. */
+    private static final int NONE = -1;
 
-        void add(Node n) {
-            if (length + 1 > data.length) {
-                Node[] tempData = new Node[length + INCREMENT];
-                if (length > 0) {
-                    System.arraycopy(data, 0, tempData, 0, length);
-                }
-                data = tempData;
-            }
-            data[length++] = n;
-        }
-    }
+    /** Frequency of a node that does not terminate a word. */
+    private static final int NOT_TERMINAL = -1;
 
-    static class NextWord {
-        Node word;
-        NextWord nextWord;
-        int frequency;
-
-        NextWord(Node word, int frequency) {
-            this.word = word;
-            this.frequency = frequency;
-        }
-    }
+    private static final int INITIAL_NODE_CAPACITY = 64;
+    private static final int INITIAL_BIGRAM_CAPACITY = 16;
 
+    private char[] mNodeCodes;
+    private int[] mNodeFrequencies;
+    private int[] mNodeParents;
+    private int[] mNodeFirstChildren;
+    private int[] mNodeNextSiblings;
+    private int[] mNodeFirstBigrams;
+    private int mNodeCount;
 
-    private NodeArray mRoots;
+    private int[] mBigramWords;
+    private int[] mBigramFrequencies;
+    private int[] mBigramNexts;
+    private int mBigramCount;
 
     private int[][] mCodes;
 
@@ -133,47 +120,147 @@ public class ExpandableDictionary extends Dictionary {
     Context getContext() {
         return mContext;
     }
-    
+
     int getMaxWordLength() {
         return MAX_WORD_LENGTH;
     }
 
     public void addWord(String word, int frequency) {
-        addWordRec(mRoots, word, 0, frequency, null);
+        // Words may be added from the UI thread while the loading task is
+        // compacting the trie.
+        synchronized (mUpdatingLock) {
+            final int node = findOrAddNode(word);
+            // Terminate this word
+            int nodeFrequency = Math.max(frequency, Math.max(mNodeFrequencies[node], 0));
+            if (nodeFrequency > 255) nodeFrequency = 255;
+            mNodeFrequencies[node] = nodeFrequency;
+        }
     }
 
-    private void addWordRec(NodeArray children, final String word, final int depth,
-            final int frequency, Node parentNode) {
+    /**
+     * Searches for the node that spells the word, adding any missing nodes.
+     * @return Returns the last node of the word.
+     */
+    private int findOrAddNode(String word) {
         final int wordLength = word.length();
-        final char c = word.charAt(depth);
-        // Does children have the current character?
-        final int childrenLength = children.length;
-        Node childNode = null;
-        boolean found = false;
-        for (int i = 0; i < childrenLength; i++) {
-            childNode = children.data[i];
-            if (childNode.code == c) {
-                found = true;
-                break;
+        int node = ROOT;
+        for (int depth = 0; depth < wordLength; depth++) {
+            final char c = word.charAt(depth);
+            // Does node have the current character as a child?
+            int lastChild = NONE;
+            int child = mNodeFirstChildren[node];
+            while (child != NONE && mNodeCodes[child] != c) {
+                lastChild = child;
+                child = mNodeNextSiblings[child];
             }
+            if (child == NONE) {
+                child = newNode(c, node);
+                if (lastChild == NONE) {
+                    mNodeFirstChildren[node] = child;
+                } else {
+                    mNodeNextSiblings[lastChild] = child;
+                }
+            }
+            node = child;
         }
-        if (!found) {
-            childNode = new Node();
-            childNode.code = c;
-            childNode.parent = parentNode;
-            children.add(childNode);
+        return node;
+    }
+
+    private int newNode(char code, int parent) {
+        if (mNodeCount == mNodeCodes.length) {
+            resizeNodes(mNodeCount + (mNodeCount >> 1) + 1);
         }
-        if (wordLength == depth + 1) {
-            // Terminate this word
-            childNode.terminal = true;
-            childNode.frequency = Math.max(frequency, childNode.frequency);
-            if (childNode.frequency > 255) childNode.frequency = 255;
-            return;
+        final int node = mNodeCount++;
+        mNodeCodes[node] = code;
+        mNodeFrequencies[node] = NOT_TERMINAL;
+        mNodeParents[node] = parent;
+        mNodeFirstChildren[node] = NONE;
+        mNodeNextSiblings[node] = NONE;
+        mNodeFirstBigrams[node] = NONE;
+        return node;
+    }
+
+    private void resizeNodes(int capacity) {
+        mNodeCodes = copyOf(mNodeCodes, capacity);
+        mNodeFrequencies = copyOf(mNodeFrequencies, capacity);
+        mNodeParents = copyOf(mNodeParents, capacity);
+        mNodeFirstChildren = copyOf(mNodeFirstChildren, capacity);
+        mNodeNextSiblings = copyOf(mNodeNextSiblings, capacity);
+        mNodeFirstBigrams = copyOf(mNodeFirstBigrams, capacity);
+    }
+
+    private void resizeBigrams(int capacity) {
+        mBigramWords = copyOf(mBigramWords, capacity);
+        mBigramFrequencies = copyOf(mBigramFrequencies, capacity);
+        mBigramNexts = copyOf(mBigramNexts, capacity);
+    }
+
+    // Arrays.copyOf() is not available before API level 9.
+    private static int[] copyOf(int[] array, int length) {
+        final int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static char[] copyOf(char[] array, int length) {
+        final char[] copy = new char[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /**
+     * Renumbers the nodes in breadth-first order so that siblings are adjacent in memory, and
+     * trims all arrays to their used size. Called once the dictionary has finished loading.
+     * Words added afterwards are appended as usual. Must be called while holding
+     * mUpdatingLock, which also guards all additions to the trie.
+     */
+    protected void compact() {
+        final int nodeCount = mNodeCount;
+        // order[i] is the old index of the i-th node in breadth-first order.
+        final int[] order = new int[nodeCount];
+        final int[] newIndices = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        order[tail++] = ROOT;
+        while (head < tail) {
+            final int node = order[head++];
+            for (int child = mNodeFirstChildren[node]; child != NONE;
+                    child = mNodeNextSiblings[child]) {
+                order[tail++] = child;
+            }
         }
-        if (childNode.children == null) {
-            childNode.children = new NodeArray();
+        for (int i = 0; i < nodeCount; i++) {
+            newIndices[order[i]] = i;
+        }
+
+        final char[] codes = new char[nodeCount];
+        final int[] frequencies = new int[nodeCount];
+        final int[] parents = new int[nodeCount];
+        final int[] firstChildren = new int[nodeCount];
+        final int[] nextSiblings = new int[nodeCount];
+        final int[] firstBigrams = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            final int node = order[i];
+            final int firstChild = mNodeFirstChildren[node];
+            final int nextSibling = mNodeNextSiblings[node];
+            codes[i] = mNodeCodes[node];
+            frequencies[i] = mNodeFrequencies[node];
+            parents[i] = (node == ROOT) ? NONE : newIndices[mNodeParents[node]];
+            firstChildren[i] = (firstChild == NONE) ? NONE : newIndices[firstChild];
+            nextSiblings[i] = (nextSibling == NONE) ? NONE : newIndices[nextSibling];
+            firstBigrams[i] = mNodeFirstBigrams[node];
         }
-        addWordRec(childNode.children, word, depth + 1, frequency, childNode);
+        mNodeCodes = codes;
+        mNodeFrequencies = frequencies;
+        mNodeParents = parents;
+        mNodeFirstChildren = firstChildren;
+        mNodeNextSiblings = nextSiblings;
+        mNodeFirstBigrams = firstBigrams;
+
+        for (int i = 0; i < mBigramCount; i++) {
+            mBigramWords[i] = newIndices[mBigramWords[i]];
+        }
+        resizeBigrams(Math.max(mBigramCount, 1));
     }
 
     @Override
@@ -194,9 +281,9 @@ public class ExpandableDictionary extends Dictionary {
             mCodes[i] = codes.getCodesAt(i);
         }
         mMaxDepth = mInputLength * 3;
-        getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, -1, callback);
+        getWordsRec(ROOT, codes, mWordBuilder, 0, false, 1, 0, -1, callback);
         for (int i = 0; i < mInputLength; i++) {
-            getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1, 0, i, callback);
+            getWordsRec(ROOT, codes, mWordBuilder, 0, false, 1, 0, i, callback);
         }
     }
 
@@ -215,8 +302,8 @@ public class ExpandableDictionary extends Dictionary {
      * Returns the word's frequency or -1 if not found
      */
     public int getWordFrequency(CharSequence word) {
-        Node node = searchNode(mRoots, word, 0, word.length());
-        return (node == null) ? -1 : node.frequency;
+        final int node = searchNode(word);
+        return (node == NONE) ? -1 : mNodeFrequencies[node];
     }
 
     /**
@@ -225,23 +312,22 @@ public class ExpandableDictionary extends Dictionary {
      * character is actually an array of multiple possible candidates. This function is not
      * optimized for speed, assuming that the user dictionary will only be a few hundred words in
      * size.
-     * @param roots node whose children have to be search for matches
+     * @param parent node whose children have to be search for matches
      * @param codes the input character codes
      * @param word the word being composed as a possible match
      * @param depth the depth of traversal - the length of the word being composed thus far
      * @param completion whether the traversal is now in completion mode - meaning that we've
      * exhausted the input and we're looking for all possible suffixes.
      * @param snr current weight of the word being formed
-     * @param inputIndex position in the input characters. This can be off from the depth in 
+     * @param inputIndex position in the input characters. This can be off from the depth in
      * case we skip over some punctuations such as apostrophe in the traversal. That is, if you type
      * "wouldve", it could be matching "would've", so the depth will be one more than the
      * inputIndex
      * @param callback the callback class for adding a word
      */
-    protected void getWordsRec(NodeArray roots, final WordComposer codes, final char[] word, 
+    protected void getWordsRec(int parent, final WordComposer codes, final char[] word,
             final int depth, boolean completion, int snr, int inputIndex, int skipPos,
             WordCallback callback) {
-        final int count = roots.length;
         final int codeSize = mInputLength;
         // Optimization: Prune out words that are too long compared to how much was typed.
         if (depth > mMaxDepth) {
@@ -254,13 +340,13 @@ public class ExpandableDictionary extends Dictionary {
             currentChars = mCodes[inputIndex];
         }
 
-        for (int i = 0; i < count; i++) {
-            final Node node = roots.data[i];
-            final char c = node.code;
+        for (int node = mNodeFirstChildren[parent]; node != NONE;
+                node = mNodeNextSiblings[node]) {
+            final char c = mNodeCodes[node];
             final char lowerC = toLowerCase(c);
-            final boolean terminal = node.terminal;
-            final NodeArray children = node.children;
-            final int freq = node.frequency;
+            final int freq = mNodeFrequencies[node];
+            final boolean terminal = (freq != NOT_TERMINAL);
+            final boolean hasChildren = (mNodeFirstChildren[node] != NONE);
             if (completion) {
                 word[depth] = c;
                 if (terminal) {
@@ -274,15 +360,15 @@ public class ExpandableDictionary extends Dictionary {
                         mNextLettersFrequencies[word[inputIndex]]++;
                     }
                 }
-                if (children != null) {
-                    getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex,
+                if (hasChildren) {
+                    getWordsRec(node, codes, word, depth + 1, completion, snr, inputIndex,
                             skipPos, callback);
                 }
             } else if ((c == QUOTE && currentChars[0] != QUOTE) || depth == skipPos) {
                 // Skip the ' and continue deeper
                 word[depth] = c;
-                if (children != null) {
-                    getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex, 
+                if (hasChildren) {
+                    getWordsRec(node, codes, word, depth + 1, completion, snr, inputIndex,
                             skipPos, callback);
                 }
             } else {
@@ -299,7 +385,7 @@ public class ExpandableDictionary extends Dictionary {
 
                         if (codeSize == inputIndex + 1) {
                             if (terminal) {
-                                if (INCLUDE_TYPED_WORD_IF_VALID 
+                                if (INCLUDE_TYPED_WORD_IF_VALID
                                         || !same(word, depth + 1, codes.getTypedWord())) {
                                     int finalFreq = freq * snr * addedAttenuation;
                                     if (skipPos < 0) finalFreq *= FULL_WORD_FREQ_MULTIPLIER;
@@ -307,13 +393,13 @@ public class ExpandableDictionary extends Dictionary {
                                             DataType.UNIGRAM);
                                 }
                             }
-                            if (children != null) {
-                                getWordsRec(children, codes, word, depth + 1,
+                            if (hasChildren) {
+                                getWordsRec(node, codes, word, depth + 1,
                                         true, snr * addedAttenuation, inputIndex + 1,
                                         skipPos, callback);
                             }
-                        } else if (children != null) {
-                            getWordsRec(children, codes, word, depth + 1, 
+                        } else if (hasChildren) {
+                            getWordsRec(node, codes, word, depth + 1,
                                     false, snr * addedAttenuation, inputIndex + 1,
                                     skipPos, callback);
                         }
@@ -338,26 +424,40 @@ public class ExpandableDictionary extends Dictionary {
      * @return returns the final frequency
      */
     private int addOrSetBigram(String word1, String word2, int frequency, boolean addFrequency) {
-        Node firstWord = searchWord(mRoots, word1, 0, null);
-        Node secondWord = searchWord(mRoots, word2, 0, null);
-        LinkedList<NextWord> bigram = firstWord.ngrams;
-        if (bigram == null || bigram.size() == 0) {
-            firstWord.ngrams = new LinkedList<NextWord>();
-            bigram = firstWord.ngrams;
-        } else {
-            for (NextWord nw : bigram) {
-                if (nw.word == secondWord) {
-                    if (addFrequency) {
-                        nw.frequency += frequency;
-                    } else {
-                        nw.frequency = frequency;
-                    }
-                    return nw.frequency;
+        synchronized (mUpdatingLock) {
+            return addOrSetBigramLocked(word1, word2, frequency, addFrequency);
+        }
+    }
+
+    private int addOrSetBigramLocked(String word1, String word2, int frequency,
+            boolean addFrequency) {
+        final int firstWord = searchWord(word1);
+        final int secondWord = searchWord(word2);
+        int lastBigram = NONE;
+        for (int bigram = mNodeFirstBigrams[firstWord]; bigram != NONE;
+                bigram = mBigramNexts[bigram]) {
+            if (mBigramWords[bigram] == secondWord) {
+                if (addFrequency) {
+                    mBigramFrequencies[bigram] += frequency;
+                } else {
+                    mBigramFrequencies[bigram] = frequency;
                 }
+                return mBigramFrequencies[bigram];
             }
+            lastBigram = bigram;
+        }
+        if (mBigramCount == mBigramWords.length) {
+            resizeBigrams(mBigramCount + (mBigramCount >> 1) + 1);
+        }
+        final int bigram = mBigramCount++;
+        mBigramWords[bigram] = secondWord;
+        mBigramFrequencies[bigram] = frequency;
+        mBigramNexts[bigram] = NONE;
+        if (lastBigram == NONE) {
+            mNodeFirstBigrams[firstWord] = bigram;
+        } else {
+            mBigramNexts[lastBigram] = bigram;
         }
-        NextWord nw = new NextWord(secondWord, frequency);
-        firstWord.ngrams.add(nw);
         return frequency;
     }
 
@@ -365,35 +465,13 @@ public class ExpandableDictionary extends Dictionary {
      * Searches for the word and add the word if it does not exist.
      * @return Returns the terminal node of the word we are searching for.
      */
-    private Node searchWord(NodeArray children, String word, int depth, Node parentNode) {
-        final int wordLength = word.length();
-        final char c = word.charAt(depth);
-        // Does children have the current character?
-        final int childrenLength = children.length;
-        Node childNode = null;
-        boolean found = false;
-        for (int i = 0; i < childrenLength; i++) {
-            childNode = children.data[i];
-            if (childNode.code == c) {
-                found = true;
-                break;
-            }
-        }
-        if (!found) {
-            childNode = new Node();
-            childNode.code = c;
-            childNode.parent = parentNode;
-            children.add(childNode);
-        }
-        if (wordLength == depth + 1) {
-            // Terminate this word
-            childNode.terminal = true;
-            return childNode;
-        }
-        if (childNode.children == null) {
-            childNode.children = new NodeArray();
+    private int searchWord(String word) {
+        final int node = findOrAddNode(word);
+        // Terminate this word
+        if (mNodeFrequencies[node] == NOT_TERMINAL) {
+            mNodeFrequencies[node] = 0;
         }
-        return searchWord(childNode.children, word, depth + 1, childNode);
+        return node;
     }
 
     // @VisibleForTesting
@@ -407,9 +485,9 @@ public class ExpandableDictionary extends Dictionary {
     }
 
     private void runReverseLookUp(final CharSequence previousWord, final WordCallback callback) {
-        Node prevWord = searchNode(mRoots, previousWord, 0, previousWord.length());
-        if (prevWord != null && prevWord.ngrams != null) {
-            reverseLookUp(prevWord.ngrams, callback);
+        final int prevWord = searchNode(previousWord);
+        if (prevWord != NONE) {
+            reverseLookUp(mNodeFirstBigrams[prevWord], callback);
         }
     }
 
@@ -437,59 +515,71 @@ public class ExpandableDictionary extends Dictionary {
     /**
      * reverseLookUp retrieves the full word given a list of terminal nodes and adds those words
      * through callback.
-     * @param terminalNodes list of terminal nodes we want to add
+     * @param firstBigram the first bigram in the list of terminal nodes we want to add
      */
-    private void reverseLookUp(LinkedList<NextWord> terminalNodes,
-            final WordCallback callback) {
-        Node node;
-        int freq;
-        for (NextWord nextWord : terminalNodes) {
-            node = nextWord.word;
-            freq = nextWord.frequency;
+    private void reverseLookUp(int firstBigram, final WordCallback callback) {
+        for (int bigram = firstBigram; bigram != NONE; bigram = mBigramNexts[bigram]) {
+            final int freq = mBigramFrequencies[bigram];
             // TODO Not the best way to limit suggestion threshold
             if (freq >= UserBigramDictionary.SUGGEST_THRESHOLD) {
-                sb.setLength(0);
-                do {
-                    sb.insert(0, node.code);
-                    node = node.parent;
-                } while(node != null);
-
-                // TODO better way to feed char array?
-                callback.addWord(sb.toString().toCharArray(), 0, sb.length(), freq, mDicTypeId,
-                        DataType.BIGRAM);
+                final int node = mBigramWords[bigram];
+                int length = 0;
+                for (int n = node; n != ROOT; n = mNodeParents[n]) {
+                    length++;
+                }
+                if (mLookUpBuilder.length < length) {
+                    mLookUpBuilder = new char[length];
+                }
+                int index = length;
+                for (int n = node; n != ROOT; n = mNodeParents[n]) {
+                    mLookUpBuilder[--index] = mNodeCodes[n];
+                }
+
+                callback.addWord(mLookUpBuilder, 0, length, freq, mDicTypeId, DataType.BIGRAM);
             }
         }
     }
 
     /**
      * Search for the terminal node of the word
-     * @return Returns the terminal node of the word if the word exists
+     * @return Returns the terminal node of the word if the word exists, or {@link #NONE}
      */
-    private Node searchNode(final NodeArray children, final CharSequence word, final int offset,
-            final int length) {
-        // TODO Consider combining with addWordRec
-        final int count = children.length;
-        char currentChar = word.charAt(offset);
-        for (int j = 0; j < count; j++) {
-            final Node node = children.data[j];
-            if (node.code == currentChar) {
-                if (offset == length - 1) {
-                    if (node.terminal) {
-                        return node;
-                    }
-                } else {
-                    if (node.children != null) {
-                        Node returnNode = searchNode(node.children, word, offset + 1, length);
-                        if (returnNode != null) return returnNode;
-                    }
-                }
+    private int searchNode(final CharSequence word) {
+        final int length = word.length();
+        if (length == 0) {
+            return NONE;
+        }
+        int node = ROOT;
+        for (int offset = 0; offset < length; offset++) {
+            final char currentChar = word.charAt(offset);
+            int child = mNodeFirstChildren[node];
+            while (child != NONE && mNodeCodes[child] != currentChar) {
+                child = mNodeNextSiblings[child];
+            }
+            if (child == NONE) {
+                return NONE;
             }
+            node = child;
         }
-        return null;
+        return (mNodeFrequencies[node] == NOT_TERMINAL) ? NONE : node;
     }
 
     protected void clearDictionary() {
-        mRoots = new NodeArray();
+        synchronized (mUpdatingLock) {
+            mNodeCodes = new char[INITIAL_NODE_CAPACITY];
+            mNodeFrequencies = new int[INITIAL_NODE_CAPACITY];
+            mNodeParents = new int[INITIAL_NODE_CAPACITY];
+            mNodeFirstChildren = new int[INITIAL_NODE_CAPACITY];
+            mNodeNextSiblings = new int[INITIAL_NODE_CAPACITY];
+            mNodeFirstBigrams = new int[INITIAL_NODE_CAPACITY];
+            mNodeCount = 0;
+            newNode((char) 0, NONE);
+
+            mBigramWords = new int[INITIAL_BIGRAM_CAPACITY];
+            mBigramFrequencies = new int[INITIAL_BIGRAM_CAPACITY];
+            mBigramNexts = new int[INITIAL_BIGRAM_CAPACITY];
+            mBigramCount = 0;
+        }
     }
 
     private class LoadDictionaryTask extends AsyncTask<Void, Void, Void> {
@@ -497,6 +587,7 @@ public class ExpandableDictionary extends Dictionary {
         protected Void doInBackground(Void... v) {
             loadDictionaryAsync();
             synchronized (mUpdatingLock) {
+                compact();
                 mUpdatingDictionary = false;
             }
             return null;
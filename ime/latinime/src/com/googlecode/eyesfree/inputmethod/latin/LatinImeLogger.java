@@ -60,10 +60,13 @@ public class LatinImeLogger implements SharedPreferences.OnSharedPreferenceChang
     public static void logOnWarning(String warning) {
     }
 
+    public static void logOnFlushPendingWrites(String dictionary, int writes, long elapsedMillis) {
+    }
+
     public static void onStartSuggestion(CharSequence previousWords) {
     }
 
-    public static void onAddSuggestedWord(String word, int typeId, DataType dataType) {
+    public static void onAddSuggestedWord(CharSequence word, int typeId, DataType dataType) {
     }
 
     public static void onSetKeyboard(Keyboard kb) {
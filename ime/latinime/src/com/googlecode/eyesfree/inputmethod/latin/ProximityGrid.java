@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.inputmethod.latin;
+
+import android.inputmethodservice.Keyboard.Key;
+
+/**
+ * Fine-grained grid over a keyboard that records, for each cell, which keys
+ * can be within the proximity threshold of some point in the cell. Keys that
+ * are not listed for a cell are known to be too far away from every point in
+ * it, so their distance doesn't need to be computed.
+ * <p>
+ * The grid depends only on the key layout and the threshold, so it is built
+ * once per keyboard.
+ */
+class ProximityGrid {
+    private static final int GRID_WIDTH = 32;
+    private static final int GRID_HEIGHT = 16;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mCellWidth;
+    private final int mCellHeight;
+
+    /** For each cell, a flag per key telling whether the key is reachable. */
+    private final boolean[][] mReachable;
+
+    /**
+     * Builds a grid for the given keys.
+     *
+     * @param keys The keys of the keyboard.
+     * @param width The width of the keyboard.
+     * @param height The height of the keyboard.
+     * @param thresholdSquare The squared proximity threshold.
+     */
+    public ProximityGrid(Key[] keys, int width, int height, int thresholdSquare) {
+        mWidth = width;
+        mHeight = height;
+        mCellWidth = Math.max(1, (width + GRID_WIDTH - 1) / GRID_WIDTH);
+        mCellHeight = Math.max(1, (height + GRID_HEIGHT - 1) / GRID_HEIGHT);
+        mReachable = new boolean[GRID_WIDTH * GRID_HEIGHT][];
+
+        final int keyCount = keys.length;
+        final int[] centerX = new int[keyCount];
+        final int[] centerY = new int[keyCount];
+        final boolean[] isCentered = new boolean[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            isCentered[i] = findCenter(keys[i], centerX, centerY, i);
+        }
+
+        for (int row = 0; row < GRID_HEIGHT; row++) {
+            final int top = row * mCellHeight;
+            final int bottom = top + mCellHeight - 1;
+            for (int col = 0; col < GRID_WIDTH; col++) {
+                final int left = col * mCellWidth;
+                final int right = left + mCellWidth - 1;
+                final boolean[] reachable = new boolean[keyCount];
+                for (int i = 0; i < keyCount; i++) {
+                    if (!isCentered[i]) {
+                        // Unknown distance function, so always compute it.
+                        reachable[i] = true;
+                        continue;
+                    }
+
+                    // The nearest point of the cell to the key's center.
+                    final int dx = centerX[i] - clamp(centerX[i], left, right);
+                    final int dy = centerY[i] - clamp(centerY[i], top, bottom);
+                    reachable[i] = (dx * dx + dy * dy) < thresholdSquare;
+                }
+                mReachable[row * GRID_WIDTH + col] = reachable;
+            }
+        }
+    }
+
+    /**
+     * Returns which keys can be within the proximity threshold of a point.
+     *
+     * @param x The x-coordinate of the point, in keyboard coordinates.
+     * @param y The y-coordinate of the point, in keyboard coordinates.
+     * @return An array indexed by key index, where {@code false} means the
+     *         key's squared distance from the point is at least the threshold,
+     *         or {@code null} if the point is outside the keyboard. The array
+     *         must not be modified.
+     */
+    public boolean[] getReachableKeys(int x, int y) {
+        if (x < 0 || x >= mWidth || y < 0 || y >= mHeight) {
+            return null;
+        }
+
+        final int col = Math.min(x / mCellWidth, GRID_WIDTH - 1);
+        final int row = Math.min(y / mCellHeight, GRID_HEIGHT - 1);
+        return mReachable[row * GRID_WIDTH + col];
+    }
+
+    /**
+     * Recovers the center that {@link Key#squaredDistanceFrom(int, int)}
+     * measures from, which differs between key classes.
+     *
+     * @return {@code true} if the key measures plain squared distance from a
+     *         single point.
+     */
+    private static boolean findCenter(Key key, int[] centerX, int[] centerY, int index) {
+        // For d(x, y) = (cx - x)^2 + (cy - y)^2, d(0, 0) - d(1, 0) = 2cx - 1.
+        final int origin = key.squaredDistanceFrom(0, 0);
+        final int cx = (origin - key.squaredDistanceFrom(1, 0) + 1) / 2;
+        final int cy = (origin - key.squaredDistanceFrom(0, 1) + 1) / 2;
+
+        // Verify the recovered center at a few more points.
+        final int[] probes = { key.x, key.y, key.x + key.width, key.y + key.height, 7, 13 };
+        for (int i = 0; i < probes.length; i += 2) {
+            final int dx = cx - probes[i];
+            final int dy = cy - probes[i + 1];
+            if (key.squaredDistanceFrom(probes[i], probes[i + 1]) != dx * dx + dy * dy) {
+                return false;
+            }
+        }
+
+        centerX[index] = cx;
+        centerY[index] = cy;
+        return true;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(value, max));
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.googlecode.eyesfree.inputmethod.latin;
 
+import android.inputmethodservice.Keyboard;
 import android.inputmethodservice.Keyboard.Key;
 
 import java.util.Arrays;
@@ -26,6 +27,31 @@ class ProximityKeyDetector extends KeyDetector {
     // working area
     private int[] mDistances = new int[MAX_NEARBY_KEYS];
 
+    // Keys within the proximity threshold of each region of the keyboard
+    private ProximityGrid mGrid;
+
+    @Override
+    public Key[] setKeyboard(Keyboard keyboard, float correctionX, float correctionY) {
+        final Key[] keys = super.setKeyboard(keyboard, correctionX, correctionY);
+        updateGrid();
+        return keys;
+    }
+
+    @Override
+    public void setProximityThreshold(int threshold) {
+        super.setProximityThreshold(threshold);
+        updateGrid();
+    }
+
+    private void updateGrid() {
+        if (mKeyboard == null || mProximityThresholdSquare <= 0) {
+            mGrid = null;
+            return;
+        }
+        mGrid = new ProximityGrid(getKeys(), mKeyboard.getMinWidth(), mKeyboard.getHeight(),
+                mProximityThresholdSquare);
+    }
+
     @Override
     protected int getMaxNearbyKeys() {
         return MAX_NEARBY_KEYS;
@@ -40,18 +66,27 @@ class ProximityKeyDetector extends KeyDetector {
         int closestKey = LatinKeyboardBaseView.NOT_A_KEY;
         int closestKeyDist = mProximityThresholdSquare + 1;
         int[] distances = mDistances;
-        Arrays.fill(distances, Integer.MAX_VALUE);
+        if (allKeys != null) {
+            Arrays.fill(distances, Integer.MAX_VALUE);
+        }
+        final boolean[] reachable = (mGrid != null) ? mGrid.getReachableKeys(touchX, touchY)
+                : null;
         int [] nearestKeyIndices = mKeyboard.getNearestKeys(touchX, touchY);
         final int keyCount = nearestKeyIndices.length;
         for (int i = 0; i < keyCount; i++) {
             final Key key = keys[nearestKeyIndices[i]];
             int dist = 0;
+            // isInside() may update the keyboard's preferred letter state, so
+            // it is called for every nearby key, in order.
             boolean isInside = key.isInside(touchX, touchY);
             if (isInside) {
                 primaryIndex = nearestKeyIndices[i];
             }
 
+            // Keys that the grid rules out are never within the threshold, so
+            // their distance is only needed if the touch is inside them.
             if (((mProximityCorrectOn
+                    && (isInside || reachable == null || reachable[nearestKeyIndices[i]])
                     && (dist = key.squaredDistanceFrom(touchX, touchY)) < mProximityThresholdSquare)
                     || isInside)
                     && key.codes[0] > 32) {
@@ -26,6 +26,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * This class loads a dictionary and provides a list of suggestions for a given sequence of 
@@ -79,6 +80,12 @@ public class Suggest implements Dictionary.WordCallback {
 
     private static final int PREF_MAX_BIGRAMS = 60;
 
+    /**
+     * Size of the open-addressing hash table indexing bigram suggestions. This is a power of two
+     * at least twice PREF_MAX_BIGRAMS, so probe sequences stay short.
+     */
+    private static final int BIGRAM_INDEX_SIZE = 128;
+
     private boolean mAutoTextEnabled;
 
     private int[] mPriorities = new int[mPrefMaxSuggestions];
@@ -95,7 +102,15 @@ public class Suggest implements Dictionary.WordCallback {
     private ArrayList<CharSequence> mStringPool = new ArrayList<CharSequence>();
     private boolean mHaveCorrection;
     private CharSequence mOriginalWord;
-    private String mLowerOriginalWord;
+    private final StringBuilder mLowerOriginalWord = new StringBuilder(APPROX_MAX_WORD_LENGTH);
+    private final StringBuilder mLowerPrevWord = new StringBuilder(APPROX_MAX_WORD_LENGTH);
+    private final StringBuilder mAutoTextWord = new StringBuilder(APPROX_MAX_WORD_LENGTH);
+
+    // Hash index from bigram suggestion text to its position in mBigramSuggestions, plus one.
+    // Zero marks an empty slot.
+    private final int[] mBigramIndex = new int[BIGRAM_INDEX_SIZE];
+    // Hash set of suggestion positions used by removeDupes(), plus one. Grown as needed.
+    private int[] mDupeIndex = new int[32];
 
     // TODO: Remove these member variables by passing more context to addWord() callback method
     private boolean mIsFirstCharCapitalized;
@@ -104,7 +119,7 @@ public class Suggest implements Dictionary.WordCallback {
     private int mCorrectionMode = CORRECTION_BASIC;
 
     public Suggest(Context context, int[] dictionaryResId) {
-        mMainDict = new BinaryDictionary(context, dictionaryResId, DIC_MAIN);
+        mMainDict = new BinaryDictionary(context, dictionaryResId, DIC_MAIN, true);
         initPool();
     }
 
@@ -120,6 +135,22 @@ public class Suggest implements Dictionary.WordCallback {
         }
     }
 
+    /**
+     * Returns the maximum number of builders kept in the pool: one per suggestion, one per
+     * bigram suggestion and one for the typed word.
+     */
+    private int getMaxPoolSize() {
+        return mPrefMaxSuggestions + PREF_MAX_BIGRAMS + 1;
+    }
+
+    private StringBuilder obtainStringBuilder() {
+        int poolSize = mStringPool.size();
+        StringBuilder sb = poolSize > 0 ? (StringBuilder) mStringPool.remove(poolSize - 1)
+                : new StringBuilder(getApproxMaxWordLength());
+        sb.setLength(0);
+        return sb;
+    }
+
     public void setAutoTextEnabled(boolean enabled) {
         mAutoTextEnabled = enabled;
     }
@@ -176,14 +207,14 @@ public class Suggest implements Dictionary.WordCallback {
         mPrefMaxSuggestions = maxSuggestions;
         mPriorities = new int[mPrefMaxSuggestions];
         mBigramPriorities = new int[PREF_MAX_BIGRAMS];
-        collectGarbage(mSuggestions, mPrefMaxSuggestions);
+        collectGarbage(mSuggestions);
         while (mStringPool.size() < mPrefMaxSuggestions) {
             StringBuilder sb = new StringBuilder(getApproxMaxWordLength());
             mStringPool.add(sb);
         }
     }
 
-    private boolean haveSufficientCommonality(String original, CharSequence suggestion) {
+    private boolean haveSufficientCommonality(CharSequence original, CharSequence suggestion) {
         final int originalLength = original.length();
         final int suggestionLength = suggestion.length();
         final int minLength = Math.min(originalLength, suggestionLength);
@@ -224,33 +255,36 @@ public class Suggest implements Dictionary.WordCallback {
         mHaveCorrection = false;
         mIsFirstCharCapitalized = wordComposer.isFirstCharCapitalized();
         mIsAllUpperCase = wordComposer.isAllUpperCase();
-        collectGarbage(mSuggestions, mPrefMaxSuggestions);
+        collectGarbage(mSuggestions);
         Arrays.fill(mPriorities, 0);
         Arrays.fill(mNextLettersFrequencies, 0);
 
-        // Save a lowercase version of the original word
-        mOriginalWord = wordComposer.getTypedWord();
-        if (mOriginalWord != null) {
-            final String mOriginalWordString = mOriginalWord.toString();
-            mOriginalWord = mOriginalWordString;
-            mLowerOriginalWord = mOriginalWordString.toLowerCase();
+        // Save a copy and a lowercase version of the original word
+        final CharSequence typedWord = wordComposer.getTypedWord();
+        mLowerOriginalWord.setLength(0);
+        if (typedWord != null) {
+            final StringBuilder originalWord = obtainStringBuilder();
+            originalWord.append(typedWord);
+            mOriginalWord = originalWord;
+            appendLowerCase(mLowerOriginalWord, typedWord);
             // Treating USER_TYPED as UNIGRAM suggestion for logging now.
-            LatinImeLogger.onAddSuggestedWord(mOriginalWordString, Suggest.DIC_USER_TYPED,
+            LatinImeLogger.onAddSuggestedWord(mOriginalWord, Suggest.DIC_USER_TYPED,
                     Dictionary.DataType.UNIGRAM);
         } else {
-            mLowerOriginalWord = "";
+            mOriginalWord = null;
         }
 
         if (wordComposer.size() == 1 && (mCorrectionMode == CORRECTION_FULL_BIGRAM
                 || mCorrectionMode == CORRECTION_BASIC)) {
             // At first character typed, search only the bigrams
             Arrays.fill(mBigramPriorities, 0);
-            collectGarbage(mBigramSuggestions, PREF_MAX_BIGRAMS);
+            collectGarbage(mBigramSuggestions);
 
             if (!TextUtils.isEmpty(prevWordForBigram)) {
-                CharSequence lowerPrevWord = prevWordForBigram.toString().toLowerCase();
-                if (mMainDict.isValidWord(lowerPrevWord)) {
-                    prevWordForBigram = lowerPrevWord;
+                mLowerPrevWord.setLength(0);
+                appendLowerCase(mLowerPrevWord, prevWordForBigram);
+                if (mMainDict.isValidWord(mLowerPrevWord)) {
+                    prevWordForBigram = mLowerPrevWord;
                 }
                 if (mUserBigramDictionary != null) {
                     mUserBigramDictionary.getBigrams(wordComposer, prevWordForBigram, this,
@@ -264,6 +298,7 @@ public class Suggest implements Dictionary.WordCallback {
                     mMainDict.getBigrams(wordComposer, prevWordForBigram, this,
                             mNextLettersFrequencies);
                 }
+                buildBigramIndex();
                 char currentChar = wordComposer.getTypedWord().charAt(0);
                 char currentCharUpper = Character.toUpperCase(currentChar);
                 int count = 0;
@@ -271,11 +306,7 @@ public class Suggest implements Dictionary.WordCallback {
                 for (int i = 0; i < bigramSuggestionSize; i++) {
                     if (mBigramSuggestions.get(i).charAt(0) == currentChar
                             || mBigramSuggestions.get(i).charAt(0) == currentCharUpper) {
-                        int poolSize = mStringPool.size();
-                        StringBuilder sb = poolSize > 0 ?
-                                (StringBuilder) mStringPool.remove(poolSize - 1)
-                                : new StringBuilder(getApproxMaxWordLength());
-                        sb.setLength(0);
+                        StringBuilder sb = obtainStringBuilder();
                         sb.append(mBigramSuggestions.get(i));
                         mSuggestions.add(count++, sb);
                         if (count > mPrefMaxSuggestions) break;
@@ -306,7 +337,7 @@ public class Suggest implements Dictionary.WordCallback {
             }
         }
         if (mOriginalWord != null) {
-            mSuggestions.add(0, mOriginalWord.toString());
+            mSuggestions.add(0, mOriginalWord);
         }
 
         // Check if the first suggestion has a minimum number of characters in common
@@ -323,7 +354,9 @@ public class Suggest implements Dictionary.WordCallback {
             // Don't autotext the suggestions from the dictionaries
             if (mCorrectionMode == CORRECTION_BASIC) max = 1;
             while (i < mSuggestions.size() && i < max) {
-                String suggestedWord = mSuggestions.get(i).toString().toLowerCase();
+                final StringBuilder suggestedWord = mAutoTextWord;
+                suggestedWord.setLength(0);
+                appendLowerCase(suggestedWord, mSuggestions.get(i));
                 CharSequence autoText =
                         AutoText.get(suggestedWord, 0, suggestedWord.length(), view);
                 // Is there an AutoText correction?
@@ -353,20 +386,38 @@ public class Suggest implements Dictionary.WordCallback {
     private void removeDupes() {
         final ArrayList<CharSequence> suggestions = mSuggestions;
         if (suggestions.size() < 2) return;
-        int i = 1;
-        // Don't cache suggestions.size(), since we may be removing items
+        // Size the hash set to at least twice the number of suggestions
+        int indexSize = mDupeIndex.length;
+        while (indexSize < suggestions.size() * 2) {
+            indexSize *= 2;
+        }
+        if (indexSize != mDupeIndex.length) {
+            mDupeIndex = new int[indexSize];
+        } else {
+            Arrays.fill(mDupeIndex, 0);
+        }
+        final int[] index = mDupeIndex;
+        final int mask = indexSize - 1;
+        int i = 0;
+        // Don't cache suggestions.size(), since we may be removing items. Removing an item only
+        // shifts later items, so positions stored for previous candidates stay valid.
         while (i < suggestions.size()) {
             final CharSequence cur = suggestions.get(i);
-            // Compare each candidate with each previous candidate
-            for (int j = 0; j < i; j++) {
-                CharSequence previous = suggestions.get(j);
-                if (TextUtils.equals(cur, previous)) {
-                    removeFromSuggestions(i);
-                    i--;
+            int slot = hash(cur) & mask;
+            boolean duplicate = false;
+            while (index[slot] != 0) {
+                if (TextUtils.equals(cur, suggestions.get(index[slot] - 1))) {
+                    duplicate = true;
                     break;
                 }
+                slot = (slot + 1) & mask;
+            }
+            if (duplicate) {
+                removeFromSuggestions(i);
+            } else {
+                index[slot] = i + 1;
+                i++;
             }
-            i++;
         }
     }
 
@@ -381,7 +432,7 @@ public class Suggest implements Dictionary.WordCallback {
         return mHaveCorrection;
     }
 
-    private boolean compareCaseInsensitive(final String mLowerOriginalWord, 
+    private boolean compareCaseInsensitive(final CharSequence mLowerOriginalWord, 
             final char[] word, final int offset, final int length) {
         final int originalLength = mLowerOriginalWord.length();
         if (originalLength == length && Character.isUpperCase(word[offset])) {
@@ -453,12 +504,9 @@ public class Suggest implements Dictionary.WordCallback {
         System.arraycopy(priorities, pos, priorities, pos + 1,
                 prefMaxSuggestions - pos - 1);
         priorities[pos] = freq;
-        int poolSize = mStringPool.size();
-        StringBuilder sb = poolSize > 0 ? (StringBuilder) mStringPool.remove(poolSize - 1) 
-                : new StringBuilder(getApproxMaxWordLength());
-        sb.setLength(0);
+        StringBuilder sb = obtainStringBuilder();
         if (mIsAllUpperCase) {
-            sb.append(new String(word, offset, length).toUpperCase());
+            appendUpperCase(sb, word, offset, length);
         } else if (mIsFirstCharCapitalized) {
             sb.append(Character.toUpperCase(word[offset]));
             if (length > 1) {
@@ -474,29 +522,144 @@ public class Suggest implements Dictionary.WordCallback {
                 mStringPool.add(garbage);
             }
         } else {
-            LatinImeLogger.onAddSuggestedWord(sb.toString(), dicTypeId, dataTypeForLog);
+            LatinImeLogger.onAddSuggestedWord(sb, dicTypeId, dataTypeForLog);
         }
         return true;
     }
 
+    /**
+     * Returns the position of the first bigram suggestion with the same text as the word, or -1
+     * if the word did not appear in bigram data.
+     */
     private int searchBigramSuggestion(final char[] word, final int offset, final int length) {
-        // TODO This is almost O(n^2). Might need fix.
-        // search whether the word appeared in bigram data
-        int bigramSuggestSize = mBigramSuggestions.size();
-        for(int i = 0; i < bigramSuggestSize; i++) {
-            if(mBigramSuggestions.get(i).length() == length) {
-                boolean chk = true;
-                for(int j = 0; j < length; j++) {
-                    if(mBigramSuggestions.get(i).charAt(j) != word[offset+j]) {
-                        chk = false;
-                        break;
-                    }
+        final int mask = BIGRAM_INDEX_SIZE - 1;
+        int slot = hash(word, offset, length) & mask;
+        while (mBigramIndex[slot] != 0) {
+            final int i = mBigramIndex[slot] - 1;
+            if (equals(mBigramSuggestions.get(i), word, offset, length)) {
+                return i;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Indexes the bigram suggestions by their text. Only the first of several equal suggestions
+     * is indexed, matching a linear search from the front of the list.
+     */
+    private void buildBigramIndex() {
+        final int mask = BIGRAM_INDEX_SIZE - 1;
+        Arrays.fill(mBigramIndex, 0);
+        final int bigramSuggestSize = mBigramSuggestions.size();
+        for (int i = 0; i < bigramSuggestSize; i++) {
+            final CharSequence suggestion = mBigramSuggestions.get(i);
+            int slot = hash(suggestion) & mask;
+            boolean duplicate = false;
+            while (mBigramIndex[slot] != 0) {
+                if (TextUtils.equals(suggestion, mBigramSuggestions.get(mBigramIndex[slot] - 1))) {
+                    duplicate = true;
+                    break;
                 }
-                if(chk) return i;
+                slot = (slot + 1) & mask;
+            }
+            if (!duplicate) {
+                mBigramIndex[slot] = i + 1;
             }
         }
+    }
 
-        return -1;
+    private static int hash(CharSequence text) {
+        if (text == null) return 0;
+        int h = 0;
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + text.charAt(i);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static int hash(final char[] word, final int offset, final int length) {
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + word[offset + i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(CharSequence text, final char[] word, final int offset,
+            final int length) {
+        if (text.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) != word[offset + i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Appends an uppercase copy of the word to the builder. Words with only simple case mappings
+     * are converted one character at a time, so that no intermediate strings are allocated.
+     * Other words use the locale-aware String conversion, which handles expansions such as
+     * "\u00df" to "SS".
+     */
+    private static void appendUpperCase(StringBuilder sb, final char[] word, final int offset,
+            final int length) {
+        if (!hasSimpleCaseMapping(word, offset, length)) {
+            sb.append(new String(word, offset, length).toUpperCase());
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            sb.append(Character.toUpperCase(word[offset + i]));
+        }
+    }
+
+    /**
+     * Appends a lowercase copy of the text to the builder. Text with only simple case mappings
+     * is converted one character at a time, so that no intermediate strings are allocated.
+     * Other text uses the locale-aware String conversion, which handles cases such as Greek
+     * final sigma.
+     */
+    private static void appendLowerCase(StringBuilder sb, CharSequence text) {
+        final int length = text.length();
+        if (!hasSimpleCaseMapping(text, length)) {
+            sb.append(text.toString().toLowerCase());
+            return;
+        }
+        for (int i = 0; i < length; i++) {
+            sb.append(Character.toLowerCase(text.charAt(i)));
+        }
+    }
+
+    /**
+     * Returns whether the default locale converts case the same way as Character. Turkish,
+     * Azerbaijani and Lithuanian have special rules for the letter i.
+     */
+    private static boolean hasSimpleCaseLocale() {
+        final String language = Locale.getDefault().getLanguage();
+        return !"tr".equals(language) && !"az".equals(language) && !"lt".equals(language);
+    }
+
+    /**
+     * Returns whether a character converts case the same way with Character as with String.
+     * This holds for Latin-1 except for the sharp s, which uppercases to two characters.
+     */
+    private static boolean hasSimpleCaseMapping(char c) {
+        return c < 0x100 && c != '\u00df';
+    }
+
+    private static boolean hasSimpleCaseMapping(final char[] word, final int offset,
+            final int length) {
+        for (int i = 0; i < length; i++) {
+            if (!hasSimpleCaseMapping(word[offset + i])) return false;
+        }
+        return hasSimpleCaseLocale();
+    }
+
+    private static boolean hasSimpleCaseMapping(CharSequence text, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (!hasSimpleCaseMapping(text.charAt(i))) return false;
+        }
+        return hasSimpleCaseLocale();
     }
 
     public boolean isValidWord(final CharSequence word) {
@@ -509,10 +672,11 @@ public class Suggest implements Dictionary.WordCallback {
                 || (mContactsDictionary != null && mContactsDictionary.isValidWord(word));
     }
     
-    private void collectGarbage(ArrayList<CharSequence> suggestions, int prefMaxSuggestions) {
+    private void collectGarbage(ArrayList<CharSequence> suggestions) {
+        final int maxPoolSize = getMaxPoolSize();
         int poolSize = mStringPool.size();
         int garbageSize = suggestions.size();
-        while (poolSize < prefMaxSuggestions && garbageSize > 0) {
+        while (poolSize < maxPoolSize && garbageSize > 0) {
             CharSequence garbage = suggestions.get(garbageSize - 1);
             if (garbage != null && garbage instanceof StringBuilder) {
                 mStringPool.add(garbage);
@@ -520,9 +684,12 @@ public class Suggest implements Dictionary.WordCallback {
             }
             garbageSize--;
         }
-        if (poolSize == prefMaxSuggestions + 1) {
+        if (poolSize == maxPoolSize + 1) {
             Log.w("Suggest", "String pool got too big: " + poolSize);
         }
+        if (suggestions == mBigramSuggestions) {
+            Arrays.fill(mBigramIndex, 0);
+        }
         suggestions.clear();
     }
 
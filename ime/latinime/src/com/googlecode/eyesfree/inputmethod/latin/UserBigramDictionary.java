@@ -16,19 +16,20 @@
 
 package com.googlecode.eyesfree.inputmethod.latin;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.util.Log;
 
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 
 /**
  * Stores all the pairs user types in databases. Prune the database if the size
@@ -61,9 +62,11 @@ public class UserBigramDictionary extends ExpandableDictionary {
     private static int sDeleteUserBigrams = 1000;
 
     /**
-     * Database version should increase if the database structure changes
+     * Database version should increase if the database structure changes.
+     * Version 2 adds indexes on the pair columns and makes the pair ID unique
+     * in the frequency table.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
 
     private static final String DATABASE_NAME = "userbigram_dict.db";
 
@@ -82,6 +85,29 @@ public class UserBigramDictionary extends ExpandableDictionary {
     private static final String FREQ_COLUMN_PAIR_ID = "pair_id";
     private static final String FREQ_COLUMN_FREQUENCY = "freq";
 
+    private static final String MAIN_INDEX_NAME = "main_pair";
+    private static final String FREQ_INDEX_NAME = "frequency_pair_id";
+
+    private static final String SELECT_PAIR_ID_SQL = "SELECT " + MAIN_COLUMN_ID + " FROM "
+            + MAIN_TABLE_NAME + " WHERE " + MAIN_COLUMN_WORD1 + "=? AND " + MAIN_COLUMN_WORD2
+            + "=? AND " + MAIN_COLUMN_LOCALE + "=?";
+    private static final String INSERT_PAIR_SQL = "INSERT INTO " + MAIN_TABLE_NAME + " ("
+            + MAIN_COLUMN_WORD1 + ", " + MAIN_COLUMN_WORD2 + ", " + MAIN_COLUMN_LOCALE
+            + ") VALUES (?, ?, ?)";
+    /** Replaces the frequency of a pair, relying on the unique pair ID index. */
+    private static final String UPSERT_FREQUENCY_SQL = "INSERT OR REPLACE INTO "
+            + FREQ_TABLE_NAME + " (" + FREQ_COLUMN_PAIR_ID + ", " + FREQ_COLUMN_FREQUENCY
+            + ") VALUES (?, ?)";
+    private static final String COUNT_FREQUENCY_SQL = "SELECT COUNT(*) FROM " + FREQ_TABLE_NAME;
+    /**
+     * Deletes the pairs with the least recently written frequencies. Deleting
+     * from the main table deletes the frequencies due to FOREIGN KEY .. ON
+     * DELETE CASCADE.
+     */
+    private static final String PRUNE_SQL = "DELETE FROM " + MAIN_TABLE_NAME + " WHERE "
+            + MAIN_COLUMN_ID + " IN (SELECT " + FREQ_COLUMN_PAIR_ID + " FROM " + FREQ_TABLE_NAME
+            + " ORDER BY " + FREQ_COLUMN_ID + " LIMIT ?)";
+
     private final LatinIME mIme;
 
     /** Locale for which this auto dictionary is storing words */
@@ -283,21 +309,44 @@ public class UserBigramDictionary extends ExpandableDictionary {
                     + "FOREIGN KEY(" + FREQ_COLUMN_PAIR_ID + ") REFERENCES " + MAIN_TABLE_NAME
                     + "(" + MAIN_COLUMN_ID + ")" + " ON DELETE CASCADE"
                     + ");");
+            createIndexes(db);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion == 1) {
+                // Version 1 kept a single frequency row per pair in practice,
+                // but didn't enforce it. Keep the newest row before adding
+                // the unique index so that no user data is lost.
+                Log.i(TAG, "Upgrading database from version " + oldVersion + " to "
+                        + newVersion);
+                db.execSQL("DELETE FROM " + FREQ_TABLE_NAME + " WHERE " + FREQ_COLUMN_ID
+                        + " NOT IN (SELECT MAX(" + FREQ_COLUMN_ID + ") FROM " + FREQ_TABLE_NAME
+                        + " GROUP BY " + FREQ_COLUMN_PAIR_ID + ")");
+                createIndexes(db);
+                return;
+            }
+
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                     + newVersion + ", which will destroy all old data");
             db.execSQL("DROP TABLE IF EXISTS " + MAIN_TABLE_NAME);
             db.execSQL("DROP TABLE IF EXISTS " + FREQ_TABLE_NAME);
             onCreate(db);
         }
+
+        private static void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + MAIN_INDEX_NAME + " ON " + MAIN_TABLE_NAME
+                    + " (" + MAIN_COLUMN_WORD1 + ", " + MAIN_COLUMN_WORD2 + ", "
+                    + MAIN_COLUMN_LOCALE + ");");
+            db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS " + FREQ_INDEX_NAME + " ON "
+                    + FREQ_TABLE_NAME + " (" + FREQ_COLUMN_PAIR_ID + ");");
+        }
     }
 
     /**
      * Async task to write pending words to the database so that it stays in sync with
-     * the in-memory trie.
+     * the in-memory trie. All pending pairs are written in a single transaction
+     * with precompiled statements.
      */
     private static class UpdateDbTask extends AsyncTask<Void, Void, Void> {
         private final HashSet<Bigram> mMap;
@@ -313,29 +362,24 @@ public class UserBigramDictionary extends ExpandableDictionary {
 
         /** Prune any old data if the database is getting too big. */
         private void checkPruneData(SQLiteDatabase db) {
-            db.execSQL("PRAGMA foreign_keys = ON;");
-            Cursor c = db.query(FREQ_TABLE_NAME, new String[] { FREQ_COLUMN_PAIR_ID },
-                    null, null, null, null, null);
+            final SQLiteStatement count = db.compileStatement(COUNT_FREQUENCY_SQL);
+            final long totalRowCount;
             try {
-                int totalRowCount = c.getCount();
-                // prune out old data if we have too much data
-                if (totalRowCount > sMaxUserBigrams) {
-                    int numDeleteRows = (totalRowCount - sMaxUserBigrams) + sDeleteUserBigrams;
-                    int pairIdColumnId = c.getColumnIndex(FREQ_COLUMN_PAIR_ID);
-                    c.moveToFirst();
-                    int count = 0;
-                    while (count < numDeleteRows && !c.isAfterLast()) {
-                        String pairId = c.getString(pairIdColumnId);
-                        // Deleting from MAIN table will delete the frequencies
-                        // due to FOREIGN KEY .. ON DELETE CASCADE
-                        db.delete(MAIN_TABLE_NAME, MAIN_COLUMN_ID + "=?",
-                            new String[] { pairId });
-                        c.moveToNext();
-                        count++;
-                    }
-                }
+                totalRowCount = count.simpleQueryForLong();
             } finally {
-                c.close();
+                count.close();
+            }
+
+            // prune out old data if we have too much data
+            if (totalRowCount > sMaxUserBigrams) {
+                final long numDeleteRows = (totalRowCount - sMaxUserBigrams) + sDeleteUserBigrams;
+                final SQLiteStatement prune = db.compileStatement(PRUNE_SQL);
+                try {
+                    prune.bindLong(1, numDeleteRows);
+                    prune.execute();
+                } finally {
+                    prune.close();
+                }
             }
         }
 
@@ -346,56 +390,55 @@ public class UserBigramDictionary extends ExpandableDictionary {
 
         @Override
         protected Void doInBackground(Void... v) {
-            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            final long startTime = SystemClock.uptimeMillis();
+            final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            // Foreign keys can't be enabled inside a transaction.
             db.execSQL("PRAGMA foreign_keys = ON;");
-            // Write all the entries to the db
-            Iterator<Bigram> iterator = mMap.iterator();
-            while (iterator.hasNext()) {
-                Bigram bi = iterator.next();
-
-                // find pair id
-                Cursor c = db.query(MAIN_TABLE_NAME, new String[] { MAIN_COLUMN_ID },
-                        MAIN_COLUMN_WORD1 + "=? AND " + MAIN_COLUMN_WORD2 + "=? AND "
-                        + MAIN_COLUMN_LOCALE + "=?",
-                        new String[] { bi.word1, bi.word2, mLocale }, null, null, null);
-
-                int pairId;
-                if (c.moveToFirst()) {
-                    // existing pair
-                    pairId = c.getInt(c.getColumnIndex(MAIN_COLUMN_ID));
-                    db.delete(FREQ_TABLE_NAME, FREQ_COLUMN_PAIR_ID + "=?",
-                            new String[] { Integer.toString(pairId) });
-                } else {
-                    // new pair
-                    Long pairIdLong = db.insert(MAIN_TABLE_NAME, null,
-                            getContentValues(bi.word1, bi.word2, mLocale));
-                    pairId = pairIdLong.intValue();
+
+            final SQLiteStatement selectPairId = db.compileStatement(SELECT_PAIR_ID_SQL);
+            final SQLiteStatement insertPair = db.compileStatement(INSERT_PAIR_SQL);
+            final SQLiteStatement upsertFrequency = db.compileStatement(UPSERT_FREQUENCY_SQL);
+            db.beginTransaction();
+            try {
+                // Write all the entries to the db
+                for (Bigram bi : mMap) {
+                    long pairId;
+                    try {
+                        // existing pair
+                        selectPairId.bindString(1, bi.word1);
+                        selectPairId.bindString(2, bi.word2);
+                        selectPairId.bindString(3, mLocale);
+                        pairId = selectPairId.simpleQueryForLong();
+                    } catch (SQLiteDoneException e) {
+                        // new pair
+                        insertPair.bindString(1, bi.word1);
+                        insertPair.bindString(2, bi.word2);
+                        insertPair.bindString(3, mLocale);
+                        pairId = insertPair.executeInsert();
+                    }
+
+                    upsertFrequency.bindLong(1, pairId);
+                    upsertFrequency.bindLong(2, bi.frequency);
+                    upsertFrequency.execute();
                 }
-                c.close();
+                checkPruneData(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                selectPairId.close();
+                insertPair.close();
+                upsertFrequency.close();
+                sUpdatingDB = false;
+            }
 
-                // insert new frequency
-                db.insert(FREQ_TABLE_NAME, null, getFrequencyContentValues(pairId, bi.frequency));
+            final long elapsedMillis = SystemClock.uptimeMillis() - startTime;
+            LatinImeLogger.logOnFlushPendingWrites(TAG, mMap.size(), elapsedMillis);
+            if (LatinIME.DEBUG) {
+                Log.d(TAG, "Wrote " + mMap.size() + " pairs in " + elapsedMillis + " ms");
             }
-            checkPruneData(db);
-            sUpdatingDB = false;
 
             return null;
         }
-
-        private ContentValues getContentValues(String word1, String word2, String locale) {
-            ContentValues values = new ContentValues(3);
-            values.put(MAIN_COLUMN_WORD1, word1);
-            values.put(MAIN_COLUMN_WORD2, word2);
-            values.put(MAIN_COLUMN_LOCALE, locale);
-            return values;
-        }
-
-        private ContentValues getFrequencyContentValues(int pairId, int frequency) {
-           ContentValues values = new ContentValues(2);
-           values.put(FREQ_COLUMN_PAIR_ID, pairId);
-           values.put(FREQ_COLUMN_FREQUENCY, frequency);
-           return values;
-        }
     }
 
 }
@@ -43,7 +43,9 @@ import com.googlecode.eyesfree.utils.StringBuilderUtils;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -78,8 +80,8 @@ public class CustomLabelManager implements AccessibilityEventListener {
     /** The minimum API level supported by the manager. */
     public static final int MIN_API_LEVEL = Build.VERSION_CODES.JELLY_BEAN_MR2;
 
-    /** The maximum number of package sets of labels to keep in memory. */
-    private static final int MAX_CACHE_SIZE = 10;
+    /** The maximum total number of labels to keep in memory. */
+    private static final int MAX_CACHED_LABELS = 500;
 
     public static final String
             AUTHORITY = "com.google.android.marvin.talkback.providers.LabelProvider";
@@ -93,8 +95,19 @@ public class CustomLabelManager implements AccessibilityEventListener {
     private static final IntentFilter REFRESH_INTENT_FILTER = new IntentFilter(
             LabelOperationUtils.ACTION_REFRESH_LABEL_CACHE);
 
-    private final Map<String, Map<String, Label>>
-            mLabelCache = new LruCache<String, Map<String, Label>>(MAX_CACHE_SIZE);
+    private final LabelCache mLabelCache = new LabelCache(MAX_CACHED_LABELS);
+
+    /**
+     * Packages whose labels are being prefetched. Only accessed on the main
+     * thread.
+     */
+    private final Set<String> mPendingPackages = new HashSet<String>();
+
+    /**
+     * Pending packages whose labels changed after their prefetch started, so
+     * that its results are outdated. Only accessed on the main thread.
+     */
+    private final Set<String> mInvalidatedPackages = new HashSet<String>();
 
     private final CacheRefreshReceiver mRefreshReceiver = new CacheRefreshReceiver();
 
@@ -124,9 +137,14 @@ public class CustomLabelManager implements AccessibilityEventListener {
     public void onAccessibilityEvent(AccessibilityEvent event) {
         final Locale currentLocale = Locale.getDefault();
         if (!currentLocale.equals(mLastLocale)) {
-            // Refresh cache if device locale has changed since the last event
+            // Refresh cache if device locale has changed since the last
+            // event. Labels for the old locale must not be served meanwhile,
+            // including those of prefetches already in flight.
             mLastLocale = currentLocale;
-            refreshCacheInternal(null);
+            final Set<String> stalePackages = mLabelCache.keySet();
+            stalePackages.addAll(mPendingPackages);
+            mLabelCache.clear();
+            refreshCacheInternal(stalePackages);
         }
 
         switch (event.getEventType()) {
@@ -178,13 +196,7 @@ public class CustomLabelManager implements AccessibilityEventListener {
             return null;
         }
 
-        if (!mLabelCache.containsKey(parsedId.first)) {
-            // Cache miss or no labels for package
-            return null;
-        }
-
-        final Map<String, Label> packageLabels = mLabelCache.get(parsedId.first);
-        return packageLabels.get(parsedId.second);
+        return mLabelCache.getLabel(parsedId.first, parsedId.second);
     }
 
     /**
@@ -393,7 +405,8 @@ public class CustomLabelManager implements AccessibilityEventListener {
     }
 
     /**
-     * Invalidates and rebuilds the cache of labels managed by this class.
+     * Reloads the cache of labels managed by this class. Cached labels are
+     * served until their replacements have been loaded.
      *
      * @param packageNames specific package names to refresh, or {@code null}
      *            to refresh all existing. If a package name provided in this
@@ -440,26 +453,14 @@ public class CustomLabelManager implements AccessibilityEventListener {
 
     private void refreshCacheInternal(Set<String> packageNames) {
         if (packageNames == null || packageNames.size() == 0) {
-            // Since there aren't specific packages to reload, copy all the
-            // keys and invalidate the entire cache.
-            // TODO(caseyburkhardt): Test this. We shouldn't need a deep copy,
-            // but double check.
-            packageNames = Collections.unmodifiableSet(mLabelCache.keySet());
-            mLabelCache.clear();
-        } else {
-            // Since there are targeted packages to refresh, prune just those
-            // from the cache.
-            for (String p : packageNames) {
-                mLabelCache.remove(p);
-            }
+            // Since there aren't specific packages to reload, reload every
+            // cached package.
+            packageNames = mLabelCache.keySet();
         }
 
-        // Rebuild relevant parts of the cache.
-        for (String packageName : packageNames) {
-            if (!TextUtils.isEmpty(packageName)) {
-                prefetchLabelsForPackage(packageName);
-            }
-        }
+        // Existing entries are replaced when the new labels arrive, so
+        // lookups in the meantime don't miss.
+        prefetchLabelsForPackages(packageNames, true /* reload */);
     }
 
     /**
@@ -540,7 +541,7 @@ public class CustomLabelManager implements AccessibilityEventListener {
             // through the node's children to prefetch all relevant package
             // names. This prefetches labels for remote views.
             final AccessibilityNodeInfo source = event.getSource();
-            final HashSet<CharSequence> packages = new HashSet<CharSequence>();
+            final HashSet<String> packages = new HashSet<String>();
             final LinkedList<AccessibilityNodeInfo> seenNodes = new LinkedList<
                     AccessibilityNodeInfo>();
             seenNodes.add(source);
@@ -566,42 +567,62 @@ public class CustomLabelManager implements AccessibilityEventListener {
                 currentNode.recycle();
             }
 
-            for (CharSequence packageName : packages) {
-                prefetchLabelsForPackage(packageName.toString());
-            }
+            prefetchLabelsForPackages(packages, false /* reload */);
         } else {
             // Other AccessibilityEvent types should use the package name from its source.
             final AccessibilityNodeInfo node = event.getSource();
             if (node != null) {
                 final Pair<String, String> resId = splitResourceName(node.getViewIdResourceName());
                 if (resId != null) {
-                    prefetchLabelsForPackage(resId.first);
+                    prefetchLabelsForPackages(
+                            Collections.singleton(resId.first), false /* reload */);
                 }
             }
         }
     }
 
-    private void prefetchLabelsForPackage(final String packageName) {
-        if (TextUtils.isEmpty(packageName)) {
+    /**
+     * Loads labels for the given packages into the cache with a single
+     * database query. Packages that already have a prefetch in flight are
+     * not requested again.
+     *
+     * @param packageNames The packages to prefetch
+     * @param reload {@code true} to reload packages that are already cached
+     *            and discard the results of prefetches already in flight, or
+     *            {@code false} to skip cached packages
+     */
+    private void prefetchLabelsForPackages(Collection<String> packageNames, boolean reload) {
+        if (!isInitialized()) {
             return;
         }
 
-        // TODO(caseyburkhardt): Is it worth optimizing further by keeping a
-        // complete list of packages for which labels exist, and short
-        // circuiting on the execution of the task if no labels exist for the
-        // package?
-        if (!mLabelCache.containsKey(packageName)) {
-            final OnLabelsFetchedListener callback = new OnLabelsFetchedListener() {
-                @Override
-                public void onLabelsFetched(Map<String, Label> results) {
-                    if (results != null) {
-                        mLabelCache.put(packageName, results);
-                    }
+        final ArrayList<String> requested = new ArrayList<String>(packageNames.size());
+        for (String packageName : packageNames) {
+            if (TextUtils.isEmpty(packageName)) {
+                continue;
+            }
+
+            if (mPendingPackages.contains(packageName)) {
+                if (reload) {
+                    mInvalidatedPackages.add(packageName);
                 }
-            };
+                continue;
+            }
+
+            if (!reload && mLabelCache.containsKey(packageName)) {
+                continue;
+            }
 
-            getLabelsForPackageFromDatabase(packageName, callback);
+            mPendingPackages.add(packageName);
+            requested.add(packageName);
+        }
+
+        if (requested.isEmpty()) {
+            return;
         }
+
+        final LabelPrefetchTask task = new LabelPrefetchTask();
+        task.execute(requested.toArray(new String[requested.size()]));
     }
 
     private static String computePackageSignatureHash(PackageInfo packageInfo) {
@@ -774,6 +795,70 @@ public class CustomLabelManager implements AccessibilityEventListener {
         }
     }
 
+    private class LabelPrefetchTask
+            extends TrackedAsyncTask<String, Void, Map<String, Map<String, Label>>> {
+
+        private String[] mPackageNames;
+
+        @Override
+        protected Map<String, Map<String, Label>> doInBackground(String... packageNames) {
+            mPackageNames = packageNames;
+
+            LogUtils.log(this, Log.VERBOSE, "Spawning new LabelPrefetchTask(%d) for %d packages",
+                    hashCode(), packageNames.length);
+
+            final Map<String, Integer> maxPackageVersions =
+                    new HashMap<String, Integer>(packageNames.length);
+            for (String packageName : packageNames) {
+                int versionCode = Integer.MAX_VALUE;
+                try {
+                    final PackageInfo packageInfo = mPackageManager.getPackageInfo(
+                            packageName, 0);
+                    versionCode = packageInfo.versionCode;
+                } catch (NameNotFoundException e) {
+                    LogUtils.log(this, Log.WARN,
+                            "Unable to resolve package info during prefetch for %s",
+                            packageName);
+                }
+
+                maxPackageVersions.put(packageName, versionCode);
+            }
+
+            return mClient.getLabelsForPackages(
+                    maxPackageVersions, Locale.getDefault().toString());
+        }
+
+        @Override
+        protected void onPostExecute(Map<String, Map<String, Label>> result) {
+            LogUtils.log(this, Log.VERBOSE, "LabelPrefetchTask(%d) complete", hashCode());
+
+            final ArrayList<String> outdated = new ArrayList<String>();
+            for (String packageName : mPackageNames) {
+                mPendingPackages.remove(packageName);
+
+                if (mInvalidatedPackages.remove(packageName)) {
+                    outdated.add(packageName);
+                    continue;
+                }
+
+                final Map<String, Label> labels = (result != null) ? result.get(packageName)
+                        : null;
+                if (labels != null) {
+                    mLabelCache.put(packageName, labels);
+                } else {
+                    // Don't keep serving labels that failed to reload.
+                    mLabelCache.remove(packageName);
+                }
+            }
+
+            if (!outdated.isEmpty() && !mShouldShutdownClient) {
+                prefetchLabelsForPackages(outdated, true /* reload */);
+            }
+
+            super.onPostExecute(result);
+        }
+    }
+
     private class LabelAddTask extends TrackedAsyncTask<LabelAddRequest, Void, Label> {
 
         private LabelAddRequest mRequest;
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.eyesfree.labeling;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe, in-memory cache of custom labels grouped by package name.
+ * <p>
+ * Lookups never block: entries live in a {@link ConcurrentHashMap} and record
+ * their last access with a lock-free counter. Insertions and removals are
+ * serialized, and evict the least recently used packages once the total
+ * number of cached labels exceeds the cache's capacity. A package without
+ * labels still counts as one label, so that empty results stay cached.
+ */
+class LabelCache {
+
+    /** The maximum total weight of the cached packages. */
+    private final int mMaxLabels;
+
+    /** Cached entries, keyed by package name. */
+    private final ConcurrentHashMap<String, Entry> mEntries =
+            new ConcurrentHashMap<String, Entry>();
+
+    /** Source of access stamps used to order entries for eviction. */
+    private final AtomicLong mClock = new AtomicLong();
+
+    /** Serializes modifications and guards {@link #mTotalLabels}. */
+    private final Object mWriteLock = new Object();
+
+    /** The sum of the weights of all entries. */
+    private int mTotalLabels;
+
+    /**
+     * @param maxLabels The maximum total number of labels to keep in memory.
+     *            The most recently inserted package is always kept, even if
+     *            it alone exceeds this number.
+     */
+    public LabelCache(int maxLabels) {
+        mMaxLabels = maxLabels;
+    }
+
+    /**
+     * Returns the label for a view without blocking.
+     *
+     * @param packageName The package containing the view.
+     * @param viewName The view's ID name.
+     * @return The cached label, or {@code null} if the package isn't cached
+     *         or has no label for the view.
+     */
+    public Label getLabel(String packageName, String viewName) {
+        final Entry entry = mEntries.get(packageName);
+        if (entry == null) {
+            return null;
+        }
+
+        entry.lastAccess = mClock.incrementAndGet();
+        return entry.labels.get(viewName);
+    }
+
+    /**
+     * @return Whether labels for {@code packageName} are cached.
+     */
+    public boolean containsKey(String packageName) {
+        return mEntries.containsKey(packageName);
+    }
+
+    /**
+     * @return A snapshot of the cached package names.
+     */
+    public Set<String> keySet() {
+        return new HashSet<String>(mEntries.keySet());
+    }
+
+    /**
+     * Caches the labels of a package, replacing any previous labels for it,
+     * and evicts least recently used packages as needed.
+     *
+     * @param packageName The package name.
+     * @param labels A map from view names to labels, which must not be
+     *            modified after it is cached.
+     */
+    public void put(String packageName, Map<String, Label> labels) {
+        final Entry entry = new Entry(labels, mClock.incrementAndGet());
+
+        synchronized (mWriteLock) {
+            final Entry previous = mEntries.put(packageName, entry);
+            if (previous != null) {
+                mTotalLabels -= previous.weight;
+            }
+            mTotalLabels += entry.weight;
+
+            while ((mTotalLabels > mMaxLabels) && (mEntries.size() > 1)) {
+                evictEldest(packageName);
+            }
+        }
+    }
+
+    /**
+     * Removes the labels of a package from the cache.
+     *
+     * @param packageName The package name.
+     */
+    public void remove(String packageName) {
+        synchronized (mWriteLock) {
+            final Entry previous = mEntries.remove(packageName);
+            if (previous != null) {
+                mTotalLabels -= previous.weight;
+            }
+        }
+    }
+
+    /**
+     * Removes all labels from the cache.
+     */
+    public void clear() {
+        synchronized (mWriteLock) {
+            mEntries.clear();
+            mTotalLabels = 0;
+        }
+    }
+
+    /**
+     * Removes the least recently used entry other than {@code keepPackage}.
+     * Must be called while holding {@link #mWriteLock}.
+     */
+    private void evictEldest(String keepPackage) {
+        String eldestPackage = null;
+        Entry eldestEntry = null;
+
+        for (Map.Entry<String, Entry> candidate : mEntries.entrySet()) {
+            final Entry entry = candidate.getValue();
+            if (candidate.getKey().equals(keepPackage)) {
+                continue;
+            }
+
+            if ((eldestEntry == null) || (entry.lastAccess < eldestEntry.lastAccess)) {
+                eldestPackage = candidate.getKey();
+                eldestEntry = entry;
+            }
+        }
+
+        if (eldestPackage != null) {
+            mEntries.remove(eldestPackage);
+            mTotalLabels -= eldestEntry.weight;
+        }
+    }
+
+    private static class Entry {
+        public final Map<String, Label> labels;
+        public final int weight;
+
+        /** The value of {@link LabelCache#mClock} when this entry was last used. */
+        public volatile long lastAccess;
+
+        public Entry(Map<String, Label> labels, long lastAccess) {
+            this.labels = labels;
+            this.weight = Math.max(labels.size(), 1);
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -63,6 +63,12 @@ public class LabelProviderClient {
             .append(LabelsTable.KEY_LOCALE).append(EQUALS_ARGUMENT)
             .toString();
 
+    /**
+     * The maximum number of packages matched by a single query, which keeps
+     * the number of selection arguments well below SQLite's limit.
+     */
+    private static final int MAX_PACKAGES_PER_QUERY = 100;
+
     private static final String LABELS_PATH = "labels";
     private static final String PACKAGE_SUMMARY_PATH = "packageSummary";
 
@@ -266,6 +272,89 @@ public class LabelProviderClient {
         return getLabelsForPackage(packageName, locale, Integer.MAX_VALUE);
     }
 
+    /**
+     * Queries for labels matching any of several packages and a locale in a
+     * single round trip per {@link #MAX_PACKAGES_PER_QUERY} packages.
+     * <p>
+     * Don't run this method on the UI thread. Use {@link android.os.AsyncTask}.
+     *
+     * @param maxPackageVersions A map from the package names to match to the
+     *            maximum package version for result labels in that package.
+     * @param locale The locale to match.
+     * @return A map from each requested package name to an unmodifiable map
+     *         from view names to label objects, which is empty if the package
+     *         has no matching labels, or {@code null} if the query failed.
+     */
+    public Map<String, Map<String, Label>> getLabelsForPackages(
+            Map<String, Integer> maxPackageVersions, String locale) {
+        LogUtils.log(this, Log.DEBUG, "Querying labels for packages: packageNames=%s, locale=%s.",
+                maxPackageVersions.keySet(), locale);
+
+        if (!checkClient()) {
+            return null;
+        }
+
+        final Map<String, Map<String, Label>> mutableResult =
+                new HashMap<String, Map<String, Label>>();
+        for (String packageName : maxPackageVersions.keySet()) {
+            mutableResult.put(packageName, new HashMap<String, Label>());
+        }
+
+        final String[] packageNames = maxPackageVersions.keySet().toArray(
+                new String[maxPackageVersions.size()]);
+        for (int start = 0; start < packageNames.length; start += MAX_PACKAGES_PER_QUERY) {
+            final int count = Math.min(MAX_PACKAGES_PER_QUERY, packageNames.length - start);
+            final StringBuilder where = new StringBuilder()
+                    .append(LabelsTable.KEY_PACKAGE_NAME).append(" IN (");
+            final String[] whereArgs = new String[count + 1];
+            for (int i = 0; i < count; i++) {
+                where.append((i == 0) ? "?" : ", ?");
+                whereArgs[i] = packageNames[start + i];
+            }
+            where.append(")").append(AND).append(LabelsTable.KEY_LOCALE).append(EQUALS_ARGUMENT);
+            whereArgs[count] = locale;
+
+            Cursor cursor = null;
+            try {
+                cursor = mClient.query(mLabelsContentUri, LabelsTable.ALL_COLUMNS,
+                        where.toString(), whereArgs, null /* sortOrder */);
+                if (cursor == null) {
+                    continue;
+                }
+
+                while (cursor.moveToNext()) {
+                    final Label label = getLabelFromCursorAtCurrentPosition(cursor);
+                    if (label == null) {
+                        continue;
+                    }
+
+                    // The version bound differs per package, so apply it here
+                    // rather than in the selection.
+                    final Integer maxVersion = maxPackageVersions.get(label.getPackageName());
+                    if ((maxVersion != null) && (label.getPackageVersion() <= maxVersion)) {
+                        mutableResult.get(label.getPackageName()).put(label.getViewName(), label);
+                    }
+                }
+            } catch (RemoteException e) {
+                LogUtils.log(this, Log.ERROR, e.toString());
+                return null;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        final Map<String, Map<String, Label>> result =
+                new HashMap<String, Map<String, Label>>(mutableResult.size());
+        for (Map.Entry<String, Map<String, Label>> entry : mutableResult.entrySet()) {
+            logResult(entry.getValue().values());
+            result.put(entry.getKey(), Collections.unmodifiableMap(entry.getValue()));
+        }
+
+        return result;
+    }
+
     /**
      * Queries for a single label matching a particular view and locale.
      * <p>
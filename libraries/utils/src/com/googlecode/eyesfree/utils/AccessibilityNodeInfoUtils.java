@@ -28,8 +28,6 @@ import com.googlecode.eyesfree.compat.CompatUtils;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -444,32 +442,21 @@ public class AccessibilityNodeInfoUtils {
             return null;
         }
 
-        final HashSet<AccessibilityNodeInfoCompat> ancestors =
-                new HashSet<AccessibilityNodeInfoCompat>();
+        final NodeTreeSnapshot snapshot = NodeTreeSnapshotCache.getInstance().getSnapshot(node);
+        final int index = (snapshot != null) ? snapshot.indexOf(node) : NodeTreeSnapshot.NO_NODE;
 
-        try {
-            ancestors.add(AccessibilityNodeInfoCompat.obtain(node));
-            node = node.getParent();
-
-            while (node != null) {
-                if (!ancestors.add(node)) {
-                    // Already seen this node, so abort!
-                    node.recycle();
-                    return null;
-                }
+        if (index != NodeTreeSnapshot.NO_NODE) {
+            final int result = snapshot.getMatchingAncestor(context, index, filter);
+            return (result != NodeTreeSnapshot.NO_NODE) ? snapshot.obtainNode(result) : null;
+        }
 
-                if (filter.accept(context, node)) {
-                    // Send a copy since node gets recycled.
-                    return AccessibilityNodeInfoCompat.obtain(node);
-                }
+        final NodeTraversal traversal = NodeTraversal.obtain();
 
-                node = node.getParent();
-            }
+        try {
+            return traversal.getMatchingAncestor(context, node, filter);
         } finally {
-            recycleNodes(ancestors);
+            traversal.recycle();
         }
-
-        return null;
     }
 
     /**
@@ -816,30 +803,28 @@ public class AccessibilityNodeInfoUtils {
             return null;
         }
 
-        final LinkedList<AccessibilityNodeInfoCompat> queue =
-                new LinkedList<AccessibilityNodeInfoCompat>();
+        final NodeTreeSnapshot snapshot = NodeTreeSnapshotCache.getInstance().getSnapshot(node);
+        final int index = (snapshot != null) ? snapshot.indexOf(node) : NodeTreeSnapshot.NO_NODE;
 
-        queue.add(AccessibilityNodeInfoCompat.obtain(node));
+        if (index != NodeTreeSnapshot.NO_NODE) {
+            final int result = snapshot.searchFromBfs(context, index, filter);
 
-        while (!queue.isEmpty()) {
-            final AccessibilityNodeInfoCompat item = queue.removeFirst();
-
-            if (filter.accept(context, item)) {
-                return AccessibilityNodeInfoCompat.obtain(item);
+            if (result == NodeTreeSnapshot.NO_NODE) {
+                return null;
             }
 
-            final int childCount = item.getChildCount();
-
-            for (int i = 0; i < childCount; i++) {
-                final AccessibilityNodeInfoCompat child = item.getChild(i);
-
-                if (child != null) {
-                    queue.addLast(child);
-                }
+            if (result != NodeTreeSnapshot.INCOMPLETE) {
+                return snapshot.obtainNode(result);
             }
         }
 
-        return null;
+        final NodeTraversal traversal = NodeTraversal.obtain();
+
+        try {
+            return traversal.searchFromBfs(context, node, filter);
+        } finally {
+            traversal.recycle();
+        }
     }
 
     /**
@@ -860,27 +845,12 @@ public class AccessibilityNodeInfoUtils {
 
         final List<AccessibilityNodeInfoCompat> toReturn =
                 new ArrayList<AccessibilityNodeInfoCompat>();
-        final LinkedList<AccessibilityNodeInfoCompat> queue =
-                new LinkedList<AccessibilityNodeInfoCompat>();
-
-        queue.add(AccessibilityNodeInfoCompat.obtain(node));
-
-        while (!queue.isEmpty() && toReturn.size() < maxResults) {
-            final AccessibilityNodeInfoCompat item = queue.removeFirst();
-
-            if (filter.accept(context, item)) {
-                toReturn.add(AccessibilityNodeInfoCompat.obtain(item));
-            }
-
-            final int childCount = item.getChildCount();
+        final NodeTraversal traversal = NodeTraversal.obtain();
 
-            for (int i = 0; i < childCount; i++) {
-                final AccessibilityNodeInfoCompat child = item.getChild(i);
-
-                if (child != null) {
-                    queue.addLast(child);
-                }
-            }
+        try {
+            traversal.searchAllFromBfs(context, node, filter, maxResults, toReturn);
+        } finally {
+            traversal.recycle();
         }
 
         return toReturn;
@@ -898,21 +868,13 @@ public class AccessibilityNodeInfoUtils {
      */
     public static AccessibilityNodeInfoCompat searchFromInOrderTraversal(
             Context context, AccessibilityNodeInfoCompat root, NodeFilter filter, int direction) {
-        AccessibilityNodeInfoCompat currentNode = NodeFocusFinder.focusSearch(root, direction);
-
-        final HashSet<AccessibilityNodeInfoCompat> seenNodes =
-                new HashSet<AccessibilityNodeInfoCompat>();
+        final NodeTraversal traversal = NodeTraversal.obtain();
 
-        while ((currentNode != null) && !seenNodes.contains(currentNode)
-                && !filter.accept(context, currentNode)) {
-            seenNodes.add(currentNode);
-            currentNode = NodeFocusFinder.focusSearch(currentNode, direction);
+        try {
+            return traversal.searchFromInOrderTraversal(context, root, filter, direction);
+        } finally {
+            traversal.recycle();
         }
-
-        // Recycle all the seen nodes.
-        AccessibilityNodeInfoUtils.recycleNodes(seenNodes);
-
-        return currentNode;
     }
 
     /**
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.utils;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Persistent index of the shared ancestry of classes from other packages.
+ * Each indexed class maps to the names of the classes and interfaces in its
+ * hierarchy that are shared with the framework, which is enough to answer
+ * type checks against framework classes without loading the class again.
+ * <p>
+ * Each package is stored in its own file, tagged with the package version
+ * code. Files for other versions are discarded when read. Changes are batched
+ * and written on a background thread, replacing each file atomically.
+ */
+class ClassAncestryIndex {
+    /** The version of the index file format. */
+    private static final int FILE_FORMAT_VERSION = 1;
+
+    /** The name of the directory containing index files. */
+    private static final String DIRECTORY_NAME = "class_ancestry";
+
+    /**
+     * The suffix of partially written index files. Package names can't
+     * contain hyphens, so this never collides with another package.
+     */
+    private static final String TEMP_FILE_SUFFIX = "-tmp";
+
+    /** The delay in milliseconds before writing changed packages to disk. */
+    private static final long FLUSH_DELAY = 1000;
+
+    /** Lock for accessing the index. */
+    private final Object mLock = new Object();
+
+    /** Mapping from package names to loaded package indices. */
+    private final HashMap<String, PackageIndex> mPackageIndices =
+            new HashMap<String, PackageIndex>();
+
+    /** Names of packages with changes that haven't been written to disk. */
+    private final HashSet<String> mDirtyPackages = new HashSet<String>();
+
+    /** The directory containing index files, or {@code null} if disabled. */
+    private File mDirectory;
+
+    /** Thread used for writing index files, or {@code null} if disabled. */
+    private HandlerThread mWriteThread;
+
+    /** Handler for the write thread, or {@code null} if disabled. */
+    private Handler mWriteHandler;
+
+    /** Writes all changed packages to disk. */
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final ArrayList<PackageSnapshot> snapshots;
+
+            synchronized (mLock) {
+                snapshots = takeDirtySnapshots();
+            }
+
+            writeSnapshots(snapshots);
+        }
+    };
+
+    /**
+     * Enables persistence of the index.
+     *
+     * @param context The context used to obtain the index directory.
+     */
+    public void init(Context context) {
+        synchronized (mLock) {
+            mDirectory = context.getDir(DIRECTORY_NAME, Context.MODE_PRIVATE);
+
+            if (mWriteThread == null) {
+                mWriteThread = new HandlerThread(
+                        DIRECTORY_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+                mWriteThread.start();
+                mWriteHandler = new Handler(mWriteThread.getLooper());
+            }
+        }
+    }
+
+    /**
+     * Disables persistence and clears the in-memory index. Pending changes
+     * are written in the background and index files are kept for the next
+     * session.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            if (mWriteThread != null) {
+                final ArrayList<PackageSnapshot> snapshots = takeDirtySnapshots();
+                final HandlerThread writeThread = mWriteThread;
+
+                mWriteHandler.removeCallbacks(mFlushRunnable);
+                mWriteHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeSnapshots(snapshots);
+                        writeThread.quit();
+                    }
+                });
+
+                mWriteThread = null;
+                mWriteHandler = null;
+            }
+
+            mDirectory = null;
+            mPackageIndices.clear();
+            mDirtyPackages.clear();
+        }
+    }
+
+    /**
+     * Returns the shared ancestors of a class, or {@code null} if the class
+     * has not been indexed for the current version of its package.
+     *
+     * @param packageName The package containing the class.
+     * @param versionCode The current version code of the package.
+     * @param className The name of the class.
+     * @return The names of the shared ancestors, or {@code null}.
+     */
+    public String[] getAncestors(String packageName, int versionCode, String className) {
+        synchronized (mLock) {
+            return getPackageIndex(packageName, versionCode).classes.get(className);
+        }
+    }
+
+    /**
+     * Adds a class to the index and schedules the package index to be written
+     * to disk.
+     *
+     * @param packageName The package containing the class.
+     * @param versionCode The current version code of the package.
+     * @param className The name of the class.
+     * @param ancestors The names of the shared ancestors of the class.
+     */
+    public void putAncestors(
+            String packageName, int versionCode, String className, String[] ancestors) {
+        synchronized (mLock) {
+            final PackageIndex index = getPackageIndex(packageName, versionCode);
+            index.classes.put(className, ancestors);
+
+            if (mWriteHandler == null) {
+                return;
+            }
+
+            if (mDirtyPackages.isEmpty()) {
+                mWriteHandler.postDelayed(mFlushRunnable, FLUSH_DELAY);
+            }
+
+            mDirtyPackages.add(packageName);
+        }
+    }
+
+    /**
+     * Discards the index for a package, including its file.
+     *
+     * @param packageName The package to discard.
+     */
+    public void invalidatePackage(String packageName) {
+        synchronized (mLock) {
+            final PackageIndex index = mPackageIndices.remove(packageName);
+            if (index != null) {
+                index.discarded = true;
+            }
+
+            mDirtyPackages.remove(packageName);
+
+            final File file = getPackageFile(packageName);
+            if ((file != null) && file.exists()) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the in-memory index for a package, reading it from disk if
+     * necessary. Must be called while holding {@link #mLock}.
+     */
+    private PackageIndex getPackageIndex(String packageName, int versionCode) {
+        PackageIndex index = mPackageIndices.get(packageName);
+
+        if ((index == null) || (index.versionCode != versionCode)) {
+            if (index != null) {
+                index.discarded = true;
+            }
+
+            index = readPackageIndex(packageName, versionCode);
+            mPackageIndices.put(packageName, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns the index file for a package, or {@code null} if persistence is
+     * disabled. Must be called while holding {@link #mLock}.
+     */
+    private File getPackageFile(String packageName) {
+        if (mDirectory == null) {
+            return null;
+        }
+
+        return new File(mDirectory, packageName);
+    }
+
+    /**
+     * Reads the index for a package from disk, returning an empty index if
+     * there is no file or the file is for another version.
+     */
+    private PackageIndex readPackageIndex(String packageName, int versionCode) {
+        final PackageIndex index = new PackageIndex(versionCode);
+        final File file = getPackageFile(packageName);
+
+        if ((file == null) || !file.exists()) {
+            return index;
+        }
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if ((in.readInt() != FILE_FORMAT_VERSION) || (in.readInt() != versionCode)) {
+                LogUtils.log(this, Log.VERBOSE, "Discarding stale index for %s", packageName);
+                file.delete();
+                return index;
+            }
+
+            // Ancestor names are stored once and referenced by position.
+            final String[] names = new String[in.readInt()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = in.readUTF();
+            }
+
+            final int classCount = in.readInt();
+            for (int i = 0; i < classCount; i++) {
+                final String className = in.readUTF();
+                final String[] ancestors = new String[in.readUnsignedByte()];
+                for (int j = 0; j < ancestors.length; j++) {
+                    final int nameIndex = in.readUnsignedShort();
+                    if (nameIndex >= names.length) {
+                        throw new IOException("Invalid name index " + nameIndex);
+                    }
+
+                    ancestors[j] = names[nameIndex];
+                }
+
+                index.classes.put(className, ancestors);
+            }
+        } catch (IOException e) {
+            LogUtils.log(this, Log.ERROR, "Failed to read index for %s: %s", packageName,
+                    e.toString());
+            index.classes.clear();
+            file.delete();
+        } finally {
+            closeQuietly(in);
+        }
+
+        return index;
+    }
+
+    /**
+     * Copies the classes of each changed package so they can be written
+     * without holding the lock. Must be called while holding {@link #mLock}.
+     */
+    private ArrayList<PackageSnapshot> takeDirtySnapshots() {
+        final ArrayList<PackageSnapshot> snapshots = new ArrayList<PackageSnapshot>();
+
+        for (String packageName : mDirtyPackages) {
+            final PackageIndex index = mPackageIndices.get(packageName);
+            final File file = getPackageFile(packageName);
+            if ((index != null) && (file != null)) {
+                snapshots.add(new PackageSnapshot(packageName, file, index));
+            }
+        }
+
+        mDirtyPackages.clear();
+        return snapshots;
+    }
+
+    /**
+     * Writes each snapshot to a temporary file, then renames it over the
+     * package's index file unless the package was discarded in the meantime.
+     */
+    private void writeSnapshots(ArrayList<PackageSnapshot> snapshots) {
+        for (PackageSnapshot snapshot : snapshots) {
+            final File tempFile = new File(snapshot.file.getPath() + TEMP_FILE_SUFFIX);
+            if (!writePackageIndex(tempFile, snapshot)) {
+                tempFile.delete();
+                continue;
+            }
+
+            synchronized (mLock) {
+                if (snapshot.index.discarded || !tempFile.renameTo(snapshot.file)) {
+                    tempFile.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the index for a package to the specified file.
+     *
+     * @return {@code true} if the file was written successfully.
+     */
+    private boolean writePackageIndex(File file, PackageSnapshot snapshot) {
+        final ArrayList<String> names = new ArrayList<String>();
+        final HashMap<String, Integer> nameIndices = new HashMap<String, Integer>();
+
+        for (String[] ancestors : snapshot.classes.values()) {
+            for (String ancestor : ancestors) {
+                if (!nameIndices.containsKey(ancestor)) {
+                    nameIndices.put(ancestor, names.size());
+                    names.add(ancestor);
+                }
+            }
+        }
+
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(FILE_FORMAT_VERSION);
+            out.writeInt(snapshot.index.versionCode);
+
+            out.writeInt(names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+
+            out.writeInt(snapshot.classes.size());
+            for (Map.Entry<String, String[]> entry : snapshot.classes.entrySet()) {
+                final String[] ancestors = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeByte(ancestors.length);
+                for (String ancestor : ancestors) {
+                    out.writeShort(nameIndices.get(ancestor));
+                }
+            }
+
+            out.close();
+            out = null;
+            return true;
+        } catch (IOException e) {
+            LogUtils.log(this, Log.ERROR, "Failed to write index for %s: %s",
+                    snapshot.packageName, e.toString());
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+
+    /**
+     * The indexed classes of a single package version.
+     */
+    private static class PackageIndex {
+        public final int versionCode;
+        public final HashMap<String, String[]> classes = new HashMap<String, String[]>();
+
+        /** Whether this index was replaced or invalidated. */
+        public boolean discarded;
+
+        public PackageIndex(int versionCode) {
+            this.versionCode = versionCode;
+        }
+    }
+
+    /**
+     * A copy of a package index that is waiting to be written to disk.
+     */
+    private static class PackageSnapshot {
+        public final String packageName;
+        public final File file;
+        public final PackageIndex index;
+        public final HashMap<String, String[]> classes;
+
+        public PackageSnapshot(String packageName, File file, PackageIndex index) {
+            this.packageName = packageName;
+            this.file = file;
+            this.index = index;
+            this.classes = new HashMap<String, String[]>(index.classes);
+        }
+    }
+}
@@ -23,10 +23,15 @@ import android.util.Log;
 
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 /**
  * This class manages efficient loading of classes.
+ * <p>
+ * Type checks for classes from other packages are answered using a
+ * persistent {@link ClassAncestryIndex}, so a class from another package is
+ * only loaded the first time it is seen for each version of the package.
  *
  * @author svetoslavganov@google.com (Svetoslav R. Ganov)
  * @author alanv@google.com (Alan Viverette)
@@ -55,6 +60,17 @@ public class ClassLoadingManager {
      */
     private final HashSet<String> mInstalledPackagesSet = new HashSet<String>();
 
+    /**
+     * Mapping from class names to classes loaded by the current class loader.
+     * Names that could not be loaded map to {@code null}.
+     */
+    private final HashMap<String, Class<?>> mLocalClassMap = new HashMap<String, Class<?>>();
+
+    /**
+     * Index of the shared ancestry of classes from other packages.
+     */
+    private final ClassAncestryIndex mAncestryIndex = new ClassAncestryIndex();
+
     /**
      * The singleton instance of this class.
      *
@@ -74,6 +90,7 @@ public class ClassLoadingManager {
      */
     public void init(Context context) {
         buildInstalledPackagesCache(context);
+        mAncestryIndex.init(context);
         mPackageMonitor.register(context);
     }
 
@@ -82,7 +99,16 @@ public class ClassLoadingManager {
      */
     public void shutdown() {
         clearInstalledPackagesCache();
-        mClassNameToClassMap.clear();
+
+        synchronized (mClassNameToClassMap) {
+            mClassNameToClassMap.clear();
+        }
+
+        synchronized (mLocalClassMap) {
+            mLocalClassMap.clear();
+        }
+
+        mAncestryIndex.shutdown();
         mPackageMonitor.unregister();
     }
 
@@ -151,6 +177,18 @@ public class ClassLoadingManager {
             return null;
         }
 
+        final String classNameStr = className.toString();
+
+        // See if we have a cached class. Node descriptions may be computed on
+        // a background thread, so the cache is synchronized. This is checked
+        // first so that cached lookups don't build a package name.
+        synchronized (mClassNameToClassMap) {
+            final Class<?> clazz = mClassNameToClassMap.get(classNameStr);
+            if (clazz != null) {
+                return clazz;
+            }
+        }
+
         // If we don't know the package name, get it from the class name.
         if (TextUtils.isEmpty(packageName)) {
             final int lastDotIndex = TextUtils.lastIndexOf(className, '.');
@@ -164,7 +202,6 @@ public class ClassLoadingManager {
             packageName = TextUtils.substring(className, 0, lastDotIndex);
         }
 
-        final String classNameStr = className.toString();
         final String packageNameStr = packageName.toString();
 
         // If we failed loading this class once, don't bother trying again.
@@ -176,17 +213,13 @@ public class ClassLoadingManager {
             }
         }
 
-        // See if we have a cached class.
-        final Class<?> clazz = mClassNameToClassMap.get(classNameStr);
-        if (clazz != null) {
-            return clazz;
-        }
-
         // Try the current ClassLoader.
         try {
             final Class<?> insideClazz = getClass().getClassLoader().loadClass(classNameStr);
             if (insideClazz != null) {
-                mClassNameToClassMap.put(classNameStr, insideClazz);
+                synchronized (mClassNameToClassMap) {
+                    mClassNameToClassMap.put(classNameStr, insideClazz);
+                }
                 return insideClazz;
             }
         } catch (ClassNotFoundException e) {
@@ -205,7 +238,9 @@ public class ClassLoadingManager {
             final Class<?> outsideClazz = packageContext.getClassLoader().loadClass(classNameStr);
 
             if (outsideClazz != null) {
-                mClassNameToClassMap.put(classNameStr, outsideClazz);
+                synchronized (mClassNameToClassMap) {
+                    mClassNameToClassMap.put(classNameStr, outsideClazz);
+                }
                 return outsideClazz;
             }
         } catch (Exception e) {
@@ -213,12 +248,15 @@ public class ClassLoadingManager {
                     classNameStr);
         }
 
-        if (notFoundClassesSet == null) {
-            notFoundClassesSet = new HashSet<String>();
-            mNotFoundClassesMap.put(packageNameStr, notFoundClassesSet);
-        }
+        synchronized (mInstalledPackagesSet) {
+            notFoundClassesSet = mNotFoundClassesMap.get(packageNameStr);
+            if (notFoundClassesSet == null) {
+                notFoundClassesSet = new HashSet<String>();
+                mNotFoundClassesMap.put(packageNameStr, notFoundClassesSet);
+            }
 
-        notFoundClassesSet.add(classNameStr);
+            notFoundClassesSet.add(classNameStr);
+        }
 
         LogUtils.log(Log.DEBUG, "Failed to load class: %s", classNameStr);
 
@@ -243,8 +281,13 @@ public class ClassLoadingManager {
             return true;
         }
 
-        final Class<?> referenceClass = loadOrGetCachedClass(
-                context, referenceClassName, loaderPackage);
+        // Reference classes are almost always framework classes, so avoid
+        // loading them from the app package when possible.
+        Class<?> referenceClass = loadLocalClass(referenceClassName.toString());
+        if (referenceClass == null) {
+            referenceClass = loadOrGetCachedClass(context, referenceClassName, loaderPackage);
+        }
+
         if (referenceClass == null) {
             return false;
         }
@@ -265,12 +308,179 @@ public class ClassLoadingManager {
             return false;
         }
 
-        final Class<?> targetClass = loadOrGetCachedClass(context, targetClassName, loaderPackage);
-        if (targetClass == null) {
+        final String targetClassNameStr = targetClassName.toString();
+        final Class<?> localTargetClass = loadLocalClass(targetClassNameStr);
+        if (localTargetClass != null) {
+            return referenceClass.isAssignableFrom(localTargetClass);
+        }
+
+        // Classes from other packages can only extend shared classes, so the
+        // ancestry index can answer checks against shared reference classes.
+        final int versionCode = getPackageVersionCode(context, loaderPackage);
+        if ((versionCode == PackageManagerUtils.INVALID_VERSION_CODE)
+                || (loadLocalClass(referenceClass.getName()) != referenceClass)) {
+            final Class<?> targetClass = loadOrGetCachedClass(
+                    context, targetClassName, loaderPackage);
+            if (targetClass == null) {
+                return false;
+            }
+
+            return referenceClass.isAssignableFrom(targetClass);
+        }
+
+        final String packageName = loaderPackage.toString();
+        final String[] ancestors = getSharedAncestors(
+                context, targetClassNameStr, packageName, versionCode);
+        if (ancestors == null) {
             return false;
         }
 
-        return referenceClass.isAssignableFrom(targetClass);
+        for (String ancestor : ancestors) {
+            final Class<?> ancestorClass = loadLocalClass(ancestor);
+            if ((ancestorClass != null) && referenceClass.isAssignableFrom(ancestorClass)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns the version code of a package, or
+     * {@link PackageManagerUtils#INVALID_VERSION_CODE} if the package is
+     * unknown.
+     */
+    private int getPackageVersionCode(Context context, CharSequence packageName) {
+        if ((context == null) || TextUtils.isEmpty(packageName)) {
+            return PackageManagerUtils.INVALID_VERSION_CODE;
+        }
+
+        return PackageVersionCache.getInstance().getVersionCode(context, packageName);
+    }
+
+    /**
+     * Returns the names of the shared ancestors of a class from another
+     * package. If the class has not been indexed for this version of the
+     * package, loads the class once and adds it to the index.
+     *
+     * @return The names of the shared ancestors, or {@code null} if the class
+     *         could not be loaded.
+     */
+    private String[] getSharedAncestors(
+            Context context, String className, String packageName, int versionCode) {
+        final String[] indexedAncestors =
+                mAncestryIndex.getAncestors(packageName, versionCode, className);
+        if (indexedAncestors != null) {
+            return indexedAncestors;
+        }
+
+        // If we failed loading this class once, don't bother trying again.
+        synchronized (mInstalledPackagesSet) {
+            final HashSet<String> notFoundClassesSet = mNotFoundClassesMap.get(packageName);
+            if ((notFoundClassesSet != null) && notFoundClassesSet.contains(className)) {
+                return null;
+            }
+        }
+
+        final Class<?> clazz = loadPackageClass(context, className, packageName);
+        if (clazz == null) {
+            synchronized (mInstalledPackagesSet) {
+                HashSet<String> notFoundClassesSet = mNotFoundClassesMap.get(packageName);
+                if (notFoundClassesSet == null) {
+                    notFoundClassesSet = new HashSet<String>();
+                    mNotFoundClassesMap.put(packageName, notFoundClassesSet);
+                }
+
+                notFoundClassesSet.add(className);
+            }
+
+            return null;
+        }
+
+        final LinkedHashSet<String> ancestors = new LinkedHashSet<String>();
+        for (Class<?> current = clazz; current != null; current = current.getSuperclass()) {
+            if (isSharedClass(current)) {
+                ancestors.add(current.getName());
+                break;
+            }
+
+            addSharedInterfaces(current, ancestors);
+        }
+
+        final String[] ancestorsArray = ancestors.toArray(new String[ancestors.size()]);
+        mAncestryIndex.putAncestors(packageName, versionCode, className, ancestorsArray);
+
+        LogUtils.log(this, Log.VERBOSE, "Indexed %s with shared ancestors %s", className,
+                ancestors);
+
+        return ancestorsArray;
+    }
+
+    /**
+     * Adds the names of the nearest shared interfaces implemented by a class
+     * that is not shared.
+     */
+    private void addSharedInterfaces(Class<?> clazz, LinkedHashSet<String> ancestors) {
+        for (Class<?> implemented : clazz.getInterfaces()) {
+            if (isSharedClass(implemented)) {
+                ancestors.add(implemented.getName());
+            } else {
+                addSharedInterfaces(implemented, ancestors);
+            }
+        }
+    }
+
+    /**
+     * Returns whether a class loaded from another package is the same class
+     * that the current class loader provides, e.g. a framework class.
+     */
+    private boolean isSharedClass(Class<?> clazz) {
+        return (loadLocalClass(clazz.getName()) == clazz);
+    }
+
+    /**
+     * Loads a class using the current class loader, caching the result.
+     *
+     * @return The class, or {@code null} if the current class loader cannot
+     *         load it.
+     */
+    private Class<?> loadLocalClass(String className) {
+        synchronized (mLocalClassMap) {
+            if (mLocalClassMap.containsKey(className)) {
+                return mLocalClassMap.get(className);
+            }
+        }
+
+        Class<?> clazz = null;
+
+        try {
+            clazz = getClass().getClassLoader().loadClass(className);
+        } catch (ClassNotFoundException e) {
+            // Do nothing.
+        }
+
+        synchronized (mLocalClassMap) {
+            mLocalClassMap.put(className, clazz);
+        }
+
+        return clazz;
+    }
+
+    /**
+     * Loads a class from another package without caching it, so that the
+     * package's code is not retained once the class has been indexed.
+     */
+    private Class<?> loadPackageClass(Context context, String className, String packageName) {
+        try {
+            final int flags = (Context.CONTEXT_INCLUDE_CODE | Context.CONTEXT_IGNORE_SECURITY);
+            final Context packageContext = context.createPackageContext(packageName, flags);
+            return packageContext.getClassLoader().loadClass(className);
+        } catch (Exception e) {
+            LogUtils.log(this, Log.ERROR, "Error encountered. Failed to load outside class: %s",
+                    className);
+        }
+
+        return null;
     }
 
     /**
@@ -280,16 +490,18 @@ public class ClassLoadingManager {
         @Override
         protected void onPackageAdded(String packageName) {
             addInstalledPackageToCache(packageName);
+            mAncestryIndex.invalidatePackage(packageName);
         }
 
         @Override
         protected void onPackageRemoved(String packageName) {
             removeInstalledPackageFromCache(packageName);
+            mAncestryIndex.invalidatePackage(packageName);
         }
 
         @Override
         protected void onPackageChanged(String packageName) {
-            // Do nothing.
+            mAncestryIndex.invalidatePackage(packageName);
         }
     };
 }
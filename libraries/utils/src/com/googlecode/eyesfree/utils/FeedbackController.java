@@ -63,6 +63,9 @@ public class FeedbackController {
     /** Map of resource IDs to loaded sound stream IDs. */
     private final SparseIntArray mResourceIdToSoundMap = new SparseIntArray();
 
+    /** Map of resource IDs to MIDI note arrays played by the synthesizer. */
+    private final SparseArray<int[]> mResourceIdToNotesMap = new SparseArray<int[]>();
+
     /** Unloaded resources to play post-load */
     private final ArrayList<Integer> mPostLoadPlayables = new ArrayList<Integer>();
 
@@ -78,6 +81,9 @@ public class FeedbackController {
     /** Sound pool used to play auditory icons. */
     private final SoundPool mSoundPool;
 
+    /** Synthesizer used to play MIDI auditory icons and scales. */
+    private final MidiSynthesizer mSynthesizer;
+
     /** Handler used for delaying feedback */
     private final Handler mHandler;
 
@@ -142,6 +148,7 @@ public class FeedbackController {
                 }
             }
         });
+        mSynthesizer = new MidiSynthesizer(DEFAULT_STREAM);
         mHandler = new Handler();
 
         mResourceIdToSoundMap.clear();
@@ -193,6 +200,7 @@ public class FeedbackController {
     public void shutdown() {
         mVibrator.cancel();
         mSoundPool.release();
+        mSynthesizer.shutdown();
         MidiUtils.purgeMidiTempFiles(mContext);
     }
 
@@ -201,14 +209,22 @@ public class FeedbackController {
      * enabled. Sounds should be loaded using this function whenever audio
      * feedback is enabled.
      *
+     * MIDI array resources are rendered in memory and played through the
+     * synthesizer rather than the sound pool.
+     *
      * @param resId Resource ID of the sound to be loaded.
-     * @return The sound pool identifier for the resource.
+     * @return The sound pool identifier for the resource, {@code 0} for MIDI
+     *         array resources, or {@code -1} on error.
      */
     public int preloadSound(int resId) {
         if (mResourceIdToSoundMap.indexOfKey(resId) >= 0) {
             return mResourceIdToSoundMap.get(resId);
         }
 
+        if (mResourceIdToNotesMap.get(resId) != null) {
+            return 0;
+        }
+
         final int soundPoolId;
         final String resType = mResources.getResourceTypeName(resId);
 
@@ -216,7 +232,13 @@ public class FeedbackController {
             soundPoolId = mSoundPool.load(mContext, resId, 1);
         } else if ("array".equals(resType)) {
             final int[] notes = mResources.getIntArray(resId);
-            soundPoolId = loadMidiSoundFromArray(notes, false);
+            if (mSynthesizer.render(notes, DEFAULT_RATE) == null) {
+                LogUtils.log(this, Log.ERROR, "Failed to load sound: Invalid MIDI array");
+                return -1;
+            }
+
+            mResourceIdToNotesMap.put(resId, notes);
+            return 0;
         } else {
             LogUtils.log(this, Log.ERROR, "Failed to load sound: Unknown resource type");
             return -1;
@@ -319,8 +341,14 @@ public class FeedbackController {
             return false;
         }
 
-        if (mResourceIdToSoundMap.indexOfKey(resId) < 0) {
+        if ((mResourceIdToSoundMap.indexOfKey(resId) < 0)
+                && (mResourceIdToNotesMap.get(resId) == null)) {
             final int soundPoolId = preloadSound(resId);
+            if (soundPoolId == 0) {
+                // MIDI arrays are rendered synchronously, so play it now.
+                return playSound(resId, rate, volume);
+            }
+
             mPostLoadPlayables.add(soundPoolId);
 
             // Since we'll play the sound immediately after it loads, just
@@ -328,8 +356,25 @@ public class FeedbackController {
             return true;
         }
 
-        final int soundId = mResourceIdToSoundMap.get(resId);
         final float relativeVolume = mVolume * volume;
+        final int[] notes = mResourceIdToNotesMap.get(resId);
+        if ((notes != null) && mSynthesizer.play(notes, rate, relativeVolume, 0)) {
+            return true;
+        }
+
+        if (mResourceIdToSoundMap.indexOfKey(resId) < 0) {
+            // The synthesizer couldn't open an audio track, so fall back to
+            // loading a generated MIDI file into the sound pool.
+            final int soundPoolId = loadMidiSoundFromArray(notes, true);
+            if (soundPoolId <= 0) {
+                return false;
+            }
+
+            mResourceIdToSoundMap.put(resId, soundPoolId);
+            return true;
+        }
+
+        final int soundId = mResourceIdToSoundMap.get(resId);
         final int stream = mSoundPool.play(soundId, relativeVolume, relativeVolume, 1, 0, rate);
 
         return (stream != 0);
@@ -398,6 +443,11 @@ public class FeedbackController {
             return false;
         }
 
+        if (mSynthesizer.play(midiSequence, DEFAULT_RATE, DEFAULT_VOLUME, 0)) {
+            return true;
+        }
+
+        // Fall back to a MIDI file if audio output isn't available.
         final File file = MidiUtils.generateMidiFileFromArray(mContext, midiSequence);
         if (file == null) {
             return false;
@@ -0,0 +1,574 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.utils;
+
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.leff.midi.MidiFile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Renders MIDI note arrays to PCM in memory and plays them through a single
+ * long-lived streaming {@link AudioTrack}.
+ * <p>
+ * Note arrays use the same format as
+ * {@link MidiUtils#generateMidiFileFromArray}: a program ID followed by
+ * triplets of note pitch, velocity, and duration in ticks. Rendered sounds are
+ * cached by their notes and playback rate, so repeated earcons are mixed
+ * directly from memory without writing temporary files or starting a decoder.
+ * Overlapping sounds are mixed together, similar to a {@code SoundPool}.
+ * <p>
+ * Instruments are approximated by the General MIDI family of the program.
+ */
+public class MidiSynthesizer {
+    /** The sample rate used for rendering and playback. */
+    private static final int SAMPLE_RATE = 22050;
+
+    /** The number of frames mixed and written at a time. */
+    private static final int CHUNK_FRAMES = 256;
+
+    /** The maximum size of the rendered sound cache, in bytes. */
+    private static final int MAX_CACHE_BYTES = 512 * 1024;
+
+    /** The maximum number of sounds mixed at once. */
+    private static final int MAX_VOICES = 8;
+
+    /** The duration of the fade at the start of each note, in milliseconds. */
+    private static final int ATTACK_MILLIS = 3;
+
+    /** The duration of the fade after the end of each note, in milliseconds. */
+    private static final int RELEASE_MILLIS = 80;
+
+    /** The peak amplitude of a single note, leaving headroom for mixing. */
+    private static final float NOTE_AMPLITUDE = 0.4f * Short.MAX_VALUE;
+
+    /** The number of MIDI ticks per second at the default tempo. */
+    private static final float TICKS_PER_SECOND =
+            (MidiUtils.DEFAULT_BPM * MidiFile.DEFAULT_RESOLUTION) / 60.0f;
+
+    /** Cache of rendered sounds, sized by the number of bytes. */
+    private final LruCache<SoundKey, short[]> mCache =
+            new LruCache<SoundKey, short[]>(MAX_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(SoundKey key, short[] value) {
+                    return (value.length * 2);
+                }
+            };
+
+    /** Lock for accessing the active voices and the audio track. */
+    private final Object mLock = new Object();
+
+    /** Sounds that are currently playing. */
+    private final ArrayList<Voice> mVoices = new ArrayList<Voice>();
+
+    /** The stream type used for playback. */
+    private final int mStreamType;
+
+    /** The streaming audio track, or {@code null} if not created yet. */
+    private AudioTrack mAudioTrack;
+
+    /** The thread that mixes active voices into the audio track. */
+    private Thread mWriterThread;
+
+    /** Whether buffered audio should be discarded before the next write. */
+    private boolean mFlushRequested;
+
+    /** Whether the audio track failed to initialize. */
+    private boolean mFailed;
+
+    /** Whether this synthesizer has been shut down. */
+    private boolean mShutdown;
+
+    /**
+     * Creates a new synthesizer. The audio track is created when the first
+     * sound is played.
+     *
+     * @param streamType The {@link android.media.AudioManager} stream type to
+     *            use for playback.
+     */
+    public MidiSynthesizer(int streamType) {
+        mStreamType = streamType;
+    }
+
+    /**
+     * Returns the rendered PCM samples for the specified notes, rendering them
+     * if they aren't already cached.
+     *
+     * @param notes An array specifying a MIDI track.
+     * @param rate The playback rate, where 1.0 is normal speed and pitch.
+     * @return Mono 16-bit samples at the synthesizer's sample rate, or
+     *         {@code null} if the notes are invalid.
+     */
+    public short[] render(int[] notes, float rate) {
+        final SoundKey key = new SoundKey(notes, rate);
+        final short[] cached = mCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        final long startTime = SystemClock.uptimeMillis();
+        final short[] samples = renderNotes(notes, key.getRate());
+        if (samples == null) {
+            return null;
+        }
+
+        LogUtils.log(this, Log.VERBOSE, "Rendered %d samples in %d ms", samples.length,
+                (SystemClock.uptimeMillis() - startTime));
+
+        // Copy the notes, since the caller may reuse the array.
+        mCache.put(new SoundKey(notes.clone(), rate), samples);
+        return samples;
+    }
+
+    /**
+     * Plays the specified notes, mixing them with any sounds that are already
+     * playing.
+     *
+     * @param notes An array specifying a MIDI track.
+     * @param rate The playback rate, where 1.0 is normal speed and pitch.
+     * @param volume The volume, range {0...1}.
+     * @param pan The panning value, range {-1...1} where 0 is center.
+     * @return {@code true} if playback started, or {@code false} if the notes
+     *         are invalid or audio output is unavailable.
+     */
+    public boolean play(int[] notes, float rate, float volume, float pan) {
+        final short[] samples = render(notes, rate);
+        if (samples == null) {
+            return false;
+        }
+
+        final float leftVolume = Math.min(1.0f, (1.0f - pan)) * volume;
+        final float rightVolume = Math.min(1.0f, (1.0f + pan)) * volume;
+
+        synchronized (mLock) {
+            if (mShutdown || !ensureAudioTrackLocked()) {
+                return false;
+            }
+
+            if (mVoices.size() >= MAX_VOICES) {
+                // Drop the oldest sound to make room.
+                mVoices.remove(0);
+            }
+
+            mVoices.add(new Voice(samples, leftVolume, rightVolume));
+            mLock.notifyAll();
+        }
+
+        return true;
+    }
+
+    /**
+     * Stops all active sounds. Rendered sounds remain cached.
+     */
+    public void interrupt() {
+        synchronized (mLock) {
+            mVoices.clear();
+            mFlushRequested = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Stops playback and releases the audio track. No calls should be made to
+     * this object after calling this method.
+     */
+    public void shutdown() {
+        final Thread writerThread;
+
+        synchronized (mLock) {
+            mShutdown = true;
+            mVoices.clear();
+            writerThread = mWriterThread;
+            mWriterThread = null;
+            mLock.notifyAll();
+        }
+
+        if (writerThread != null) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                // Ignore.
+            }
+        }
+
+        synchronized (mLock) {
+            if (mAudioTrack != null) {
+                mAudioTrack.release();
+                mAudioTrack = null;
+            }
+        }
+
+        mCache.evictAll();
+    }
+
+    /**
+     * Creates the audio track and writer thread if necessary. Must be called
+     * while holding {@link #mLock}.
+     *
+     * @return {@code true} if the audio track is available.
+     */
+    private boolean ensureAudioTrackLocked() {
+        if (mAudioTrack != null) {
+            return true;
+        }
+
+        if (mFailed) {
+            return false;
+        }
+
+        final int minBufferSize = AudioTrack.getMinBufferSize(SAMPLE_RATE,
+                AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT);
+        final int bufferSize = Math.max(minBufferSize, (CHUNK_FRAMES * 2 * 2 * 2));
+
+        try {
+            mAudioTrack = new AudioTrack(mStreamType, SAMPLE_RATE,
+                    AudioFormat.CHANNEL_OUT_STEREO, AudioFormat.ENCODING_PCM_16BIT, bufferSize,
+                    AudioTrack.MODE_STREAM);
+        } catch (IllegalArgumentException e) {
+            LogUtils.log(this, Log.ERROR, "Failed to create audio track: %s", e.toString());
+            mAudioTrack = null;
+        }
+
+        if ((mAudioTrack == null)
+                || (mAudioTrack.getState() != AudioTrack.STATE_INITIALIZED)) {
+            if (mAudioTrack != null) {
+                mAudioTrack.release();
+                mAudioTrack = null;
+            }
+
+            mFailed = true;
+            return false;
+        }
+
+        mWriterThread = new WriterThread();
+        mWriterThread.start();
+        return true;
+    }
+
+    /**
+     * Renders notes to mono 16-bit samples, or returns {@code null} if the
+     * notes are invalid.
+     */
+    private short[] renderNotes(int[] notes, float rate) {
+        if ((notes == null) || ((notes.length % 3) != 1) || (rate <= 0)) {
+            LogUtils.log(this, Log.ERROR, "Invalid MIDI note array");
+            return null;
+        }
+
+        final int program = notes[0];
+        if ((program < 0) || (program > 127)) {
+            LogUtils.log(this, Log.ERROR, "MIDI program must be in the range [0,127]");
+            return null;
+        }
+
+        final Timbre timbre = Timbre.forProgram(program);
+        final float framesPerTick = (SAMPLE_RATE / TICKS_PER_SECOND) / rate;
+        final int releaseFrames = (int) ((SAMPLE_RATE * RELEASE_MILLIS) / 1000 / rate);
+        final int attackFrames = Math.max(1, (SAMPLE_RATE * ATTACK_MILLIS) / 1000);
+
+        int totalTicks = 0;
+        for (int i = 1; i < notes.length; i += 3) {
+            final int pitch = notes[i];
+            final int velocity = notes[i + 1];
+            if ((pitch < 21) || (pitch > 108) || (velocity < 0) || (velocity > 127)
+                    || (notes[i + 2] < 0)) {
+                LogUtils.log(this, Log.ERROR, "Invalid MIDI note at %d", i);
+                return null;
+            }
+
+            totalTicks += notes[i + 2];
+        }
+
+        final float[] mix = new float[(int) (totalTicks * framesPerTick) + releaseFrames];
+        int tick = 0;
+
+        for (int i = 1; i < notes.length; i += 3) {
+            final int pitch = notes[i];
+            final int velocity = notes[i + 1];
+            final int duration = notes[i + 2];
+            final int start = (int) (tick * framesPerTick);
+
+            tick += duration;
+
+            if (velocity == 0) {
+                // Zero velocity is a rest.
+                continue;
+            }
+
+            final int noteFrames = (int) (duration * framesPerTick);
+            final int length = Math.min((noteFrames + releaseFrames), (mix.length - start));
+            final double frequency = 440.0 * Math.pow(2.0, ((pitch - 69) / 12.0)) * rate;
+            final double phaseStep = (2.0 * Math.PI * frequency) / SAMPLE_RATE;
+            final double decayStep = Math.exp(-timbre.decay / (SAMPLE_RATE * rate));
+            final float amplitude = (NOTE_AMPLITUDE * velocity) / 127.0f;
+
+            double envelope = 1.0;
+
+            for (int j = 0; j < length; j++) {
+                double gain = envelope;
+
+                if (j < attackFrames) {
+                    gain *= ((double) j / attackFrames);
+                }
+
+                if (j >= noteFrames) {
+                    gain *= (1.0 - ((double) (j - noteFrames) / releaseFrames));
+                }
+
+                final double phase = phaseStep * j;
+                final double sample = Math.sin(phase)
+                        + (timbre.second * Math.sin(2 * phase))
+                        + (timbre.third * Math.sin(3 * phase));
+
+                mix[start + j] += (float) (amplitude * gain * sample / timbre.peak);
+                envelope *= decayStep;
+            }
+        }
+
+        final short[] samples = new short[mix.length];
+        for (int i = 0; i < mix.length; i++) {
+            samples[i] = clamp(mix[i]);
+        }
+
+        return samples;
+    }
+
+    private static short clamp(float sample) {
+        if (sample > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        } else if (sample < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+
+        return (short) sample;
+    }
+
+    /**
+     * Mixes the next chunk of active voices into {@code buffer} as
+     * interleaved stereo samples, removing finished voices. Must be called
+     * while holding {@link #mLock}.
+     *
+     * @return The number of frames mixed.
+     */
+    private int mixChunkLocked(int[] accumulator, short[] buffer) {
+        int frames = 0;
+
+        Arrays.fill(accumulator, 0);
+
+        for (int i = (mVoices.size() - 1); i >= 0; i--) {
+            final Voice voice = mVoices.get(i);
+            final int count = Math.min(CHUNK_FRAMES, (voice.samples.length - voice.position));
+
+            for (int j = 0; j < count; j++) {
+                final short sample = voice.samples[voice.position + j];
+                accumulator[2 * j] += (int) (sample * voice.leftVolume);
+                accumulator[(2 * j) + 1] += (int) (sample * voice.rightVolume);
+            }
+
+            voice.position += count;
+            frames = Math.max(frames, count);
+
+            if (voice.position >= voice.samples.length) {
+                mVoices.remove(i);
+            }
+        }
+
+        for (int i = 0; i < (frames * 2); i++) {
+            buffer[i] = clamp(accumulator[i]);
+        }
+
+        return frames;
+    }
+
+    /**
+     * Mixes active voices and writes them to the audio track, stopping the
+     * track while there is nothing to play.
+     */
+    private class WriterThread extends Thread {
+        private final int[] mAccumulator = new int[CHUNK_FRAMES * 2];
+        private final short[] mBuffer = new short[CHUNK_FRAMES * 2];
+
+        public WriterThread() {
+            super("MidiSynthesizer");
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+            final AudioTrack audioTrack;
+            synchronized (mLock) {
+                audioTrack = mAudioTrack;
+            }
+
+            boolean playing = false;
+
+            while (true) {
+                final int frames;
+
+                synchronized (mLock) {
+                    while (!mShutdown && mVoices.isEmpty() && !mFlushRequested) {
+                        if (playing) {
+                            // Play out buffered audio, then stop.
+                            audioTrack.stop();
+                            playing = false;
+                        }
+
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            // Ignore.
+                        }
+                    }
+
+                    if (mShutdown) {
+                        break;
+                    }
+
+                    if (mFlushRequested) {
+                        mFlushRequested = false;
+
+                        if (playing) {
+                            audioTrack.pause();
+                            audioTrack.flush();
+                            playing = false;
+                        }
+
+                        continue;
+                    }
+
+                    frames = mixChunkLocked(mAccumulator, mBuffer);
+                }
+
+                if (!playing) {
+                    audioTrack.play();
+                    playing = true;
+                }
+
+                audioTrack.write(mBuffer, 0, (frames * 2));
+            }
+
+            if (playing) {
+                audioTrack.pause();
+                audioTrack.flush();
+            }
+        }
+    }
+
+    /**
+     * A rendered sound being mixed into the output.
+     */
+    private static class Voice {
+        public final short[] samples;
+        public final float leftVolume;
+        public final float rightVolume;
+        public int position;
+
+        public Voice(short[] samples, float leftVolume, float rightVolume) {
+            this.samples = samples;
+            this.leftVolume = leftVolume;
+            this.rightVolume = rightVolume;
+        }
+    }
+
+    /**
+     * Cache key for a note array and quantized playback rate.
+     */
+    private static class SoundKey {
+        /** The number of rate steps per unit of playback rate. */
+        private static final int RATE_STEPS = 100;
+
+        private final int[] mNotes;
+        private final int mRateSteps;
+        private final int mHashCode;
+
+        public SoundKey(int[] notes, float rate) {
+            mNotes = notes;
+            mRateSteps = Math.round(rate * RATE_STEPS);
+            mHashCode = (31 * Arrays.hashCode(notes)) + mRateSteps;
+        }
+
+        public float getRate() {
+            return ((float) mRateSteps / RATE_STEPS);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SoundKey)) {
+                return false;
+            }
+
+            final SoundKey other = (SoundKey) o;
+            return (mRateSteps == other.mRateSteps) && Arrays.equals(mNotes, other.mNotes);
+        }
+    }
+
+    /**
+     * Approximation of a General MIDI instrument family using a decaying tone
+     * with two overtones.
+     */
+    private static class Timbre {
+        private static final Timbre PIANO = new Timbre(6, 0.4f, 0.15f);
+        private static final Timbre CHROMATIC_PERCUSSION = new Timbre(12, 0.1f, 0.05f);
+        private static final Timbre GUITAR = new Timbre(15, 0.5f, 0.25f);
+        private static final Timbre PERCUSSIVE = new Timbre(40, 0.3f, 0.2f);
+
+        /** The exponential decay rate of the note, per second. */
+        public final float decay;
+
+        /** The relative amplitude of the second harmonic. */
+        public final float second;
+
+        /** The relative amplitude of the third harmonic. */
+        public final float third;
+
+        /** The sum of harmonic amplitudes, used for normalization. */
+        public final float peak;
+
+        private Timbre(float decay, float second, float third) {
+            this.decay = decay;
+            this.second = second;
+            this.third = third;
+            this.peak = (1 + second + third);
+        }
+
+        public static Timbre forProgram(int program) {
+            switch (program / 8) {
+                case 1:
+                    return CHROMATIC_PERCUSSION;
+                case 3:
+                    return GUITAR;
+                case 14:
+                    return PERCUSSIVE;
+                default:
+                    return PIANO;
+            }
+        }
+    }
+}
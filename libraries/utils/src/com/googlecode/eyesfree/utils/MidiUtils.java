@@ -100,7 +100,7 @@ public class MidiUtils {
     public static final String MIDI_TEMP_DIR_NAME = "midi";
 
     /** Default beats-per-minute for MIDI tracks. You can dance to 95. */
-    private static final int DEFAULT_BPM = 95;
+    static final int DEFAULT_BPM = 95;
 
     /** Default channel for MIDI tracks. This should be 0. */
     private static final int DEFAULT_CHANNEL = 0;
@@ -32,23 +32,12 @@ public class NodeFocusFinder {
      */
     public static AccessibilityNodeInfoCompat focusSearch(
             AccessibilityNodeInfoCompat node, int direction) {
-        final AccessibilityNodeInfoRef ref = AccessibilityNodeInfoRef.unOwned(node);
+        final NodeTraversal traversal = NodeTraversal.obtain();
 
-        switch (direction) {
-            case SEARCH_FORWARD: {
-                if (!ref.nextInOrder()) {
-                    return null;
-                }
-                return ref.release();
-            }
-            case SEARCH_BACKWARD: {
-                if (!ref.previousInOrder()) {
-                    return null;
-                }
-                return ref.release();
-            }
+        try {
+            return traversal.focusSearch(node, direction);
+        } finally {
+            traversal.recycle();
         }
-
-        return null;
     }
 }
@@ -0,0 +1,729 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.utils;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.util.Log;
+
+import com.googlecode.eyesfree.compat.CompatUtils;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * A reusable engine for searching the live accessibility node tree.
+ * <p>
+ * Each search is bounded by a depth, node count, and time budget, and may be
+ * cancelled from another thread using {@link #cancel()}. Nodes are recycled
+ * as soon as the search moves past them, and cycles are detected by
+ * comparing source node IDs instead of retaining every visited node.
+ * <p>
+ * Instances are cached in a pool and should be obtained using
+ * {@link #obtain()} and returned using {@link #recycle()}. The queue arrays
+ * are kept across searches, so a recycled engine can search large trees
+ * without allocating.
+ */
+public class NodeTraversal {
+    /** The default maximum depth below the starting node. */
+    public static final int DEFAULT_MAX_DEPTH = 128;
+
+    /** The default maximum number of nodes to visit. */
+    public static final int DEFAULT_MAX_NODES = 5000;
+
+    /** The default maximum duration of a search, in milliseconds. */
+    public static final long DEFAULT_TIMEOUT = 2000;
+
+    /** The maximum number of engines to keep in the pool. */
+    private static final int MAX_POOL_SIZE = 2;
+
+    /** The initial capacity of the queue and the node ID set. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Value used for empty slots in the node ID set. */
+    private static final long NO_ID = Long.MIN_VALUE;
+
+    /** Hidden method returning the unique ID of a node within its window. */
+    private static final Method METHOD_getSourceNodeId = CompatUtils.getMethod(
+            CompatUtils.getClass("android.view.accessibility.AccessibilityNodeInfo"),
+            "getSourceNodeId");
+
+    /** Lock for accessing the pool. */
+    private static final Object sPoolLock = new Object();
+
+    /** The head of the pool. */
+    private static NodeTraversal sPool;
+
+    /** The current size of the pool. */
+    private static int sPoolSize;
+
+    /** Circular queue of nodes waiting to be visited. */
+    private AccessibilityNodeInfoCompat[] mQueue =
+            new AccessibilityNodeInfoCompat[INITIAL_CAPACITY];
+
+    /** The depth of each node in {@link #mQueue}. */
+    private int[] mQueueDepths = new int[INITIAL_CAPACITY];
+
+    /** The index of the first node in the queue. */
+    private int mQueueHead;
+
+    /** The number of nodes in the queue. */
+    private int mQueueSize;
+
+    /** Open-addressed set of the source node IDs seen by this search. */
+    private long[] mSeenIds = new long[INITIAL_CAPACITY];
+
+    /** The number of IDs in {@link #mSeenIds}. */
+    private int mSeenCount;
+
+    /** The maximum depth below the starting node. */
+    private int mMaxDepth = DEFAULT_MAX_DEPTH;
+
+    /** The maximum number of nodes to visit. */
+    private int mMaxNodes = DEFAULT_MAX_NODES;
+
+    /** The maximum duration of a search, in milliseconds. */
+    private long mTimeout = DEFAULT_TIMEOUT;
+
+    /** The number of nodes visited by the current search. */
+    private int mVisitedCount;
+
+    /** The uptime at which the current search must stop. */
+    private long mDeadline;
+
+    /** Whether the current search has been cancelled. */
+    private volatile boolean mCancelled;
+
+    /** Whether the last search stopped because it exceeded a budget. */
+    private boolean mExhausted;
+
+    /** The next engine in the pool. */
+    private NodeTraversal mNext;
+
+    /** Whether this engine is in the pool. */
+    private boolean mIsInPool;
+
+    /**
+     * Returns an engine from the pool, or a new engine if the pool is empty.
+     * The engine uses the default budgets.
+     *
+     * @return An engine.
+     */
+    public static NodeTraversal obtain() {
+        synchronized (sPoolLock) {
+            if (sPool != null) {
+                final NodeTraversal traversal = sPool;
+                sPool = sPool.mNext;
+                sPoolSize--;
+                traversal.mNext = null;
+                traversal.mIsInPool = false;
+                return traversal;
+            }
+        }
+
+        return new NodeTraversal();
+    }
+
+    private NodeTraversal() {
+        fillSeenIds(mSeenIds);
+    }
+
+    /**
+     * Returns this engine to the pool. The engine must not be used after
+     * calling this method.
+     */
+    public void recycle() {
+        if (mIsInPool) {
+            return;
+        }
+
+        clearQueue();
+        clearSeenIds();
+        mMaxDepth = DEFAULT_MAX_DEPTH;
+        mMaxNodes = DEFAULT_MAX_NODES;
+        mTimeout = DEFAULT_TIMEOUT;
+        mCancelled = false;
+        mExhausted = false;
+
+        synchronized (sPoolLock) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                mIsInPool = true;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum depth below the starting node. For in-order traversal,
+     * this bounds the number of ancestors and descendants crossed by a
+     * single step.
+     *
+     * @param maxDepth The maximum depth.
+     * @return This engine.
+     */
+    public NodeTraversal setMaxDepth(int maxDepth) {
+        mMaxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of nodes visited by a single search.
+     *
+     * @param maxNodes The maximum number of nodes.
+     * @return This engine.
+     */
+    public NodeTraversal setMaxNodes(int maxNodes) {
+        mMaxNodes = maxNodes;
+        return this;
+    }
+
+    /**
+     * Sets the maximum duration of a single search.
+     *
+     * @param timeout The maximum duration in milliseconds, or {@code 0} for no
+     *            time limit.
+     * @return This engine.
+     */
+    public NodeTraversal setTimeout(long timeout) {
+        mTimeout = timeout;
+        return this;
+    }
+
+    /**
+     * Stops the current search as soon as possible. The search returns the
+     * results found so far. May be called from any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Returns whether the last search stopped early because it was cancelled
+     * or exceeded one of its budgets.
+     *
+     * @return {@code true} if the last search was incomplete.
+     */
+    public boolean isIncomplete() {
+        return mExhausted || mCancelled;
+    }
+
+    /**
+     * Returns the first node reached by breadth-first traversal from
+     * {@code root} that satisfies the filter.
+     *
+     * @param context The parent context.
+     * @param root The node to traverse from. Not recycled.
+     * @param filter The filter to satisfy.
+     * @return A node that satisfies the filter, or {@code null} if none was
+     *         found within the budget. The caller must recycle the result.
+     */
+    public AccessibilityNodeInfoCompat searchFromBfs(
+            Context context, AccessibilityNodeInfoCompat root, NodeFilter filter) {
+        if (root == null) {
+            return null;
+        }
+
+        start();
+
+        try {
+            visit(root);
+            enqueue(AccessibilityNodeInfoCompat.obtain(root), 0);
+
+            while (mQueueSize > 0) {
+                if (mCancelled) {
+                    break;
+                }
+
+                final int depth = mQueueDepths[mQueueHead];
+                final AccessibilityNodeInfoCompat item = dequeue();
+
+                if (filter.accept(context, item)) {
+                    return item;
+                }
+
+                final boolean keepGoing = enqueueChildren(item, depth);
+                item.recycle();
+
+                if (!keepGoing) {
+                    break;
+                }
+            }
+        } finally {
+            clearQueue();
+            clearSeenIds();
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds nodes reached by breadth-first traversal from {@code root} that
+     * satisfy the filter to {@code results}.
+     *
+     * @param context The parent context.
+     * @param root The node to traverse from. Not recycled.
+     * @param filter The filter to satisfy.
+     * @param maxResults The number of results to stop searching after.
+     * @param results The list to which results are added. The caller must
+     *            recycle the results.
+     * @return The number of results added.
+     */
+    public int searchAllFromBfs(Context context, AccessibilityNodeInfoCompat root,
+            NodeFilter filter, int maxResults, List<AccessibilityNodeInfoCompat> results) {
+        if (root == null) {
+            return 0;
+        }
+
+        int resultCount = 0;
+
+        start();
+
+        try {
+            visit(root);
+            enqueue(AccessibilityNodeInfoCompat.obtain(root), 0);
+
+            while ((mQueueSize > 0) && (resultCount < maxResults)) {
+                if (mCancelled) {
+                    break;
+                }
+
+                final int depth = mQueueDepths[mQueueHead];
+                final AccessibilityNodeInfoCompat item = dequeue();
+
+                if (filter.accept(context, item)) {
+                    results.add(AccessibilityNodeInfoCompat.obtain(item));
+                    resultCount++;
+                }
+
+                final boolean keepGoing = enqueueChildren(item, depth);
+                item.recycle();
+
+                if (!keepGoing) {
+                    break;
+                }
+            }
+        } finally {
+            clearQueue();
+            clearSeenIds();
+        }
+
+        return resultCount;
+    }
+
+    /**
+     * Performs in-order traversal from a given node in a particular direction
+     * until a node matching the specified filter is reached. Uses the
+     * {@link NodeTreeSnapshotCache} where possible.
+     *
+     * @param context The parent context.
+     * @param start The node to traverse from. Not recycled.
+     * @param filter The filter to satisfy.
+     * @param direction The direction to travel, either
+     *            {@link NodeFocusFinder#SEARCH_FORWARD} or
+     *            {@link NodeFocusFinder#SEARCH_BACKWARD}.
+     * @return A node that satisfies the filter, or {@code null} if none was
+     *         found within the budget. The caller must recycle the result.
+     */
+    public AccessibilityNodeInfoCompat searchFromInOrderTraversal(Context context,
+            AccessibilityNodeInfoCompat start, NodeFilter filter, int direction) {
+        if (start == null) {
+            return null;
+        }
+
+        start();
+
+        try {
+            visit(start);
+
+            AccessibilityNodeInfoCompat current = focusSearch(start, direction);
+
+            while (current != null) {
+                if (!visit(current)) {
+                    // Already seen this node or out of budget, so abort!
+                    current.recycle();
+                    return null;
+                }
+
+                if (filter.accept(context, current)) {
+                    return current;
+                }
+
+                final AccessibilityNodeInfoCompat next = focusSearch(current, direction);
+                current.recycle();
+                current = next;
+            }
+        } finally {
+            clearSeenIds();
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the first ancestor of {@code node} that matches the filter.
+     *
+     * @param context The parent context.
+     * @param node The node whose ancestors to examine. Not recycled.
+     * @param filter The filter to satisfy.
+     * @return An ancestor that satisfies the filter, or {@code null} if none
+     *         was found within the budget. The caller must recycle the result.
+     */
+    public AccessibilityNodeInfoCompat getMatchingAncestor(
+            Context context, AccessibilityNodeInfoCompat node, NodeFilter filter) {
+        if (node == null) {
+            return null;
+        }
+
+        start();
+
+        try {
+            visit(node);
+
+            AccessibilityNodeInfoCompat current = node.getParent();
+            int depth = 1;
+
+            while (current != null) {
+                if (depth > mMaxDepth) {
+                    mExhausted = true;
+                }
+
+                if (mExhausted || !visit(current)) {
+                    // Already seen this node or out of budget, so abort!
+                    current.recycle();
+                    return null;
+                }
+
+                if (filter.accept(context, current)) {
+                    return current;
+                }
+
+                final AccessibilityNodeInfoCompat parent = current.getParent();
+                current.recycle();
+                current = parent;
+                depth++;
+            }
+        } finally {
+            clearSeenIds();
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the next node in the specified direction using in-order
+     * traversal, using the {@link NodeTreeSnapshotCache} where possible.
+     *
+     * @param node The node to traverse from. Not recycled.
+     * @param direction The direction to travel.
+     * @return The next node, or {@code null} if there are no more nodes
+     *         within the depth budget. The caller must recycle the result.
+     */
+    public AccessibilityNodeInfoCompat focusSearch(
+            AccessibilityNodeInfoCompat node, int direction) {
+        if (node == null) {
+            return null;
+        }
+
+        final NodeTreeSnapshot snapshot = NodeTreeSnapshotCache.getInstance().getSnapshot(node);
+        final int index = (snapshot != null) ? snapshot.indexOf(node) : NodeTreeSnapshot.NO_NODE;
+
+        if (index != NodeTreeSnapshot.NO_NODE) {
+            final int result;
+
+            switch (direction) {
+                case NodeFocusFinder.SEARCH_FORWARD:
+                    result = snapshot.nextInOrder(index);
+                    break;
+                case NodeFocusFinder.SEARCH_BACKWARD:
+                    result = snapshot.previousInOrder(index);
+                    break;
+                default:
+                    return null;
+            }
+
+            if (result == NodeTreeSnapshot.NO_NODE) {
+                return null;
+            }
+
+            if (result != NodeTreeSnapshot.INCOMPLETE) {
+                return snapshot.obtainNode(result);
+            }
+
+            // Otherwise the snapshot is missing part of the tree, so fall
+            // back to traversing the live tree.
+        }
+
+        switch (direction) {
+            case NodeFocusFinder.SEARCH_FORWARD:
+                return nextInOrder(node);
+            case NodeFocusFinder.SEARCH_BACKWARD:
+                return previousInOrder(node);
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the next visible node in depth-first order from the live tree,
+     * crossing at most {@link #mMaxDepth} ancestors.
+     */
+    private AccessibilityNodeInfoCompat nextInOrder(AccessibilityNodeInfoCompat node) {
+        final AccessibilityNodeInfoRef ref = AccessibilityNodeInfoRef.unOwned(node);
+
+        if (ref.firstChild() || ref.nextSibling()) {
+            return ref.release();
+        }
+
+        for (int depth = 0; (depth < mMaxDepth) && ref.parent(); depth++) {
+            if (ref.nextSibling()) {
+                return ref.release();
+            }
+        }
+
+        ref.recycle();
+        return null;
+    }
+
+    /**
+     * Returns the previous visible node in depth-first order from the live
+     * tree, crossing at most {@link #mMaxDepth} descendants.
+     */
+    private AccessibilityNodeInfoCompat previousInOrder(AccessibilityNodeInfoCompat node) {
+        final AccessibilityNodeInfoRef ref = AccessibilityNodeInfoRef.unOwned(node);
+
+        if (ref.previousSibling()) {
+            for (int depth = 0; (depth < mMaxDepth) && ref.lastChild(); depth++) {
+                // Nothing to do.
+            }
+
+            return ref.release();
+        }
+
+        if (ref.parent()) {
+            return ref.release();
+        }
+
+        ref.recycle();
+        return null;
+    }
+
+    /**
+     * Resets the budgets for a new search.
+     */
+    private void start() {
+        mCancelled = false;
+        mExhausted = false;
+        mVisitedCount = 0;
+        mDeadline = (mTimeout > 0) ? (SystemClock.uptimeMillis() + mTimeout) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Records a visit to {@code node}, returning {@code false} if the node has
+     * already been visited or the search is out of budget.
+     */
+    private boolean visit(AccessibilityNodeInfoCompat node) {
+        if (mCancelled) {
+            return false;
+        }
+
+        if ((mVisitedCount >= mMaxNodes) || (SystemClock.uptimeMillis() > mDeadline)) {
+            LogUtils.log(this, Log.WARN, "Stopped search after visiting %d nodes",
+                    mVisitedCount);
+            mExhausted = true;
+            return false;
+        }
+
+        if (!addSeenId(getSourceNodeId(node))) {
+            LogUtils.log(this, Log.WARN, "Found a cycle in the node tree");
+            return false;
+        }
+
+        mVisitedCount++;
+        return true;
+    }
+
+    /**
+     * Adds the unvisited children of {@code parent} to the queue, returning
+     * {@code false} if the search is out of budget.
+     */
+    private boolean enqueueChildren(AccessibilityNodeInfoCompat parent, int depth) {
+        if (depth >= mMaxDepth) {
+            return true;
+        }
+
+        final int childCount = parent.getChildCount();
+
+        for (int i = 0; i < childCount; i++) {
+            final AccessibilityNodeInfoCompat child = parent.getChild(i);
+            if (child == null) {
+                continue;
+            }
+
+            if (!visit(child)) {
+                child.recycle();
+
+                if (mCancelled || mExhausted) {
+                    return false;
+                }
+
+                continue;
+            }
+
+            enqueue(child, depth + 1);
+        }
+
+        return true;
+    }
+
+    private void enqueue(AccessibilityNodeInfoCompat node, int depth) {
+        if (mQueueSize == mQueue.length) {
+            growQueue();
+        }
+
+        final int tail = (mQueueHead + mQueueSize) % mQueue.length;
+        mQueue[tail] = node;
+        mQueueDepths[tail] = depth;
+        mQueueSize++;
+    }
+
+    private AccessibilityNodeInfoCompat dequeue() {
+        final AccessibilityNodeInfoCompat node = mQueue[mQueueHead];
+        mQueue[mQueueHead] = null;
+        mQueueHead = (mQueueHead + 1) % mQueue.length;
+        mQueueSize--;
+        return node;
+    }
+
+    /**
+     * Doubles the capacity of the queue, moving the queued nodes to the start
+     * of the new arrays.
+     */
+    private void growQueue() {
+        final int capacity = mQueue.length;
+        final AccessibilityNodeInfoCompat[] queue = new AccessibilityNodeInfoCompat[capacity * 2];
+        final int[] depths = new int[capacity * 2];
+
+        for (int i = 0; i < mQueueSize; i++) {
+            final int index = (mQueueHead + i) % capacity;
+            queue[i] = mQueue[index];
+            depths[i] = mQueueDepths[index];
+        }
+
+        mQueue = queue;
+        mQueueDepths = depths;
+        mQueueHead = 0;
+    }
+
+    /**
+     * Recycles any nodes left in the queue.
+     */
+    private void clearQueue() {
+        while (mQueueSize > 0) {
+            dequeue().recycle();
+        }
+
+        mQueueHead = 0;
+    }
+
+    /**
+     * Adds a source node ID to the seen set, returning {@code false} if it
+     * was already present. Always returns {@code true} if the ID is unknown.
+     */
+    private boolean addSeenId(long id) {
+        if (id == NO_ID) {
+            return true;
+        }
+
+        // Keep the load factor below one half.
+        if ((mSeenCount * 2) >= mSeenIds.length) {
+            growSeenIds();
+        }
+
+        return insertSeenId(mSeenIds, id);
+    }
+
+    private boolean insertSeenId(long[] ids, long id) {
+        final int mask = ids.length - 1;
+        int slot = hashId(id) & mask;
+
+        while (ids[slot] != NO_ID) {
+            if (ids[slot] == id) {
+                return false;
+            }
+
+            slot = (slot + 1) & mask;
+        }
+
+        ids[slot] = id;
+        mSeenCount++;
+        return true;
+    }
+
+    private void growSeenIds() {
+        final long[] oldIds = mSeenIds;
+        final long[] newIds = new long[oldIds.length * 2];
+
+        fillSeenIds(newIds);
+        mSeenCount = 0;
+
+        for (long id : oldIds) {
+            if (id != NO_ID) {
+                insertSeenId(newIds, id);
+            }
+        }
+
+        mSeenIds = newIds;
+    }
+
+    private void clearSeenIds() {
+        fillSeenIds(mSeenIds);
+        mSeenCount = 0;
+    }
+
+    private static void fillSeenIds(long[] ids) {
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = NO_ID;
+        }
+    }
+
+    private static int hashId(long id) {
+        final int hash = (int) (id ^ (id >>> 32));
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the unique ID of a node within its window, or {@link #NO_ID} if
+     * the platform doesn't expose one. Nodes visited by a single search always
+     * belong to the same window.
+     */
+    private static long getSourceNodeId(AccessibilityNodeInfoCompat node) {
+        final Object info = node.getInfo();
+        if (info == null) {
+            return NO_ID;
+        }
+
+        final Object id = CompatUtils.invoke(info, null, METHOD_getSourceNodeId);
+        if (!(id instanceof Long)) {
+            return NO_ID;
+        }
+
+        return (Long) id;
+    }
+}
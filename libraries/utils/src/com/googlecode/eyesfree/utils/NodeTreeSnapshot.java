@@ -0,0 +1,607 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.utils;
+
+import android.content.Context;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+
+import java.util.HashMap;
+
+/**
+ * An array-backed mirror of an accessibility node subtree. The subtree is
+ * captured once, after which traversal runs against local copies of the nodes
+ * instead of requesting each parent and child from the application.
+ * <p>
+ * Nodes are stored in depth-first pre-order, so the descendants of a node
+ * occupy the indices immediately following it. Traversal methods mirror the
+ * behavior of {@link AccessibilityNodeInfoRef} and
+ * {@link AccessibilityNodeInfoUtils}, but return {@link #INCOMPLETE} when the
+ * result depends on children that were not captured. Callers should fall back
+ * to the live tree in that case.
+ * <p>
+ * The structure of a snapshot never changes. Use
+ * {@link #replaceSubtree(int, AccessibilityNodeInfoCompat, int)} to obtain a
+ * new snapshot with an updated subtree.
+ */
+public class NodeTreeSnapshot {
+    /** Index returned when there is no matching node. */
+    public static final int NO_NODE = -1;
+
+    /** Index returned when the result depends on nodes that weren't captured. */
+    public static final int INCOMPLETE = -2;
+
+    /** The initial capacity of the arrays used during capture. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Local copies of the captured nodes in depth-first pre-order. */
+    private final AccessibilityNodeInfoCompat[] mNodes;
+
+    /** The index of each node's parent, or {@link #NO_NODE} for the root. */
+    private final int[] mParents;
+
+    /** The index following the last descendant of each node. */
+    private final int[] mSubtreeEnds;
+
+    /** Whether each node is visible to the user. */
+    private final boolean[] mVisible;
+
+    /** Whether all of each node's children were captured. */
+    private final boolean[] mComplete;
+
+    /** Mapping from captured nodes to their indices. */
+    private final HashMap<AccessibilityNodeInfoCompat, Integer> mIndices;
+
+    /** The window containing the captured nodes. */
+    private final int mWindowId;
+
+    /** Whether this snapshot has been recycled or replaced. */
+    private boolean mRecycled;
+
+    private NodeTreeSnapshot(AccessibilityNodeInfoCompat[] nodes, int[] parents,
+            int[] subtreeEnds, boolean[] visible, boolean[] complete, int windowId) {
+        mNodes = nodes;
+        mParents = parents;
+        mSubtreeEnds = subtreeEnds;
+        mVisible = visible;
+        mComplete = complete;
+        mWindowId = windowId;
+        mIndices = new HashMap<AccessibilityNodeInfoCompat, Integer>(nodes.length * 2);
+
+        for (int i = 0; i < nodes.length; i++) {
+            mIndices.put(nodes[i], i);
+        }
+    }
+
+    /**
+     * Captures the subtree rooted at {@code root}. The snapshot holds its own
+     * copies of the captured nodes and must be recycled by the caller.
+     *
+     * @param root The root of the subtree to capture.
+     * @param maxNodes The maximum number of nodes to capture. Nodes whose
+     *            children don't fit are marked as incomplete.
+     * @return A snapshot of the subtree.
+     */
+    public static NodeTreeSnapshot capture(AccessibilityNodeInfoCompat root, int maxNodes) {
+        final Capture capture = new Capture(maxNodes);
+        capture.run(root);
+
+        return capture.toSnapshot();
+    }
+
+    /**
+     * @return The number of captured nodes.
+     */
+    public int size() {
+        return mNodes.length;
+    }
+
+    /**
+     * @return The ID of the window containing the captured nodes.
+     */
+    public int getWindowId() {
+        return mWindowId;
+    }
+
+    /**
+     * Returns the index of the specified node, or {@link #NO_NODE} if it was
+     * not captured.
+     */
+    public int indexOf(AccessibilityNodeInfoCompat node) {
+        if (node == null) {
+            return NO_NODE;
+        }
+
+        final Integer index = mIndices.get(node);
+        return (index != null) ? index : NO_NODE;
+    }
+
+    /**
+     * Returns a copy of the node at the specified index. The caller is
+     * responsible for recycling the returned node.
+     */
+    public AccessibilityNodeInfoCompat obtainNode(int index) {
+        return AccessibilityNodeInfoCompat.obtain(mNodes[index]);
+    }
+
+    /**
+     * Returns whether all of the children of the node at the specified index
+     * were captured.
+     */
+    public boolean isComplete(int index) {
+        return mComplete[index];
+    }
+
+    /**
+     * Returns the index of the first child of the node at the specified index,
+     * regardless of visibility, or {@link #NO_NODE} if it has no children.
+     */
+    public int getFirstChild(int index) {
+        final int child = index + 1;
+        return (child < mSubtreeEnds[index]) ? child : NO_NODE;
+    }
+
+    /**
+     * Returns the index of the next sibling of the node at the specified
+     * index, regardless of visibility, or {@link #NO_NODE} if it is the last
+     * child of its parent.
+     */
+    public int getNextSibling(int index) {
+        final int parent = mParents[index];
+        if (parent == NO_NODE) {
+            return NO_NODE;
+        }
+
+        final int sibling = mSubtreeEnds[index];
+        return (sibling < mSubtreeEnds[parent]) ? sibling : NO_NODE;
+    }
+
+    /**
+     * Returns the index of the next node in depth-first order. Mirrors
+     * {@link AccessibilityNodeInfoRef#nextInOrder()}.
+     */
+    public int nextInOrder(int index) {
+        int result = firstVisibleChild(index);
+        if (result != NO_NODE) {
+            return result;
+        }
+
+        result = nextVisibleSibling(index);
+        if (result != NO_NODE) {
+            return result;
+        }
+
+        int current = index;
+        while ((current = visibleParent(current)) != NO_NODE) {
+            result = nextVisibleSibling(current);
+            if (result != NO_NODE) {
+                return result;
+            }
+        }
+
+        return NO_NODE;
+    }
+
+    /**
+     * Returns the index of the previous node in depth-first order. Mirrors
+     * {@link AccessibilityNodeInfoRef#previousInOrder()}.
+     */
+    public int previousInOrder(int index) {
+        int result = previousVisibleSibling(index);
+        if (result == INCOMPLETE) {
+            return INCOMPLETE;
+        }
+
+        if (result == NO_NODE) {
+            return visibleParent(index);
+        }
+
+        // Descend to the last visible descendant of the previous sibling.
+        int child;
+        while ((child = lastVisibleChild(result)) != NO_NODE) {
+            if (child == INCOMPLETE) {
+                return INCOMPLETE;
+            }
+
+            result = child;
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the index of the first node reached by breadth-first traversal
+     * from the specified index that matches the filter. Mirrors
+     * {@link AccessibilityNodeInfoUtils#searchFromBfs}.
+     */
+    public int searchFromBfs(Context context, int index, NodeFilter filter) {
+        final int[] queue = new int[mNodes.length];
+        int head = 0;
+        int tail = 0;
+
+        queue[tail++] = index;
+
+        while (head < tail) {
+            final int item = queue[head++];
+
+            if (filter.accept(context, mNodes[item])) {
+                return item;
+            }
+
+            if (!mComplete[item]) {
+                return INCOMPLETE;
+            }
+
+            for (int child = getFirstChild(item); child != NO_NODE;
+                    child = getNextSibling(child)) {
+                queue[tail++] = child;
+            }
+        }
+
+        return NO_NODE;
+    }
+
+    /**
+     * Returns the index of the first ancestor of the node at the specified
+     * index that matches the filter, or {@link #NO_NODE} if no ancestors
+     * match.
+     */
+    public int getMatchingAncestor(Context context, int index, NodeFilter filter) {
+        int current = mParents[index];
+
+        while (current != NO_NODE) {
+            if (filter.accept(context, mNodes[current])) {
+                return current;
+            }
+
+            current = mParents[current];
+        }
+
+        return NO_NODE;
+    }
+
+    /**
+     * Returns a new snapshot where the subtree rooted at the specified index
+     * is replaced by a fresh capture from {@code root}. Nodes outside the
+     * subtree are transferred to the new snapshot, so this snapshot must not
+     * be used after calling this method.
+     *
+     * @param index The index of the subtree to replace.
+     * @param root A fresh copy of the node at {@code index}.
+     * @param maxNodes The maximum number of nodes in the new snapshot.
+     * @return A new snapshot containing the updated subtree.
+     */
+    public NodeTreeSnapshot replaceSubtree(
+            int index, AccessibilityNodeInfoCompat root, int maxNodes) {
+        final int oldEnd = mSubtreeEnds[index];
+        final int oldSize = oldEnd - index;
+        final int outsideSize = mNodes.length - oldSize;
+
+        final Capture capture = new Capture(Math.max(1, maxNodes - outsideSize));
+        capture.run(root);
+        final NodeTreeSnapshot subtree = capture.toSnapshot();
+
+        final int newSize = subtree.size();
+        final int delta = newSize - oldSize;
+        final int size = mNodes.length + delta;
+
+        final AccessibilityNodeInfoCompat[] nodes = new AccessibilityNodeInfoCompat[size];
+        final int[] parents = new int[size];
+        final int[] subtreeEnds = new int[size];
+        final boolean[] visible = new boolean[size];
+        final boolean[] complete = new boolean[size];
+
+        // Nodes before the subtree keep their indices. Only the subtree ends
+        // of the subtree's ancestors move.
+        for (int i = 0; i < index; i++) {
+            nodes[i] = mNodes[i];
+            parents[i] = mParents[i];
+            subtreeEnds[i] = (mSubtreeEnds[i] >= oldEnd) ? (mSubtreeEnds[i] + delta)
+                    : mSubtreeEnds[i];
+            visible[i] = mVisible[i];
+            complete[i] = mComplete[i];
+        }
+
+        for (int i = 0; i < newSize; i++) {
+            final int j = index + i;
+            nodes[j] = subtree.mNodes[i];
+            parents[j] = (i == 0) ? mParents[index] : (subtree.mParents[i] + index);
+            subtreeEnds[j] = subtree.mSubtreeEnds[i] + index;
+            visible[j] = subtree.mVisible[i];
+            complete[j] = subtree.mComplete[i];
+        }
+
+        // Nodes after the subtree shift by the change in size.
+        for (int i = oldEnd; i < mNodes.length; i++) {
+            final int j = i + delta;
+            nodes[j] = mNodes[i];
+            parents[j] = (mParents[i] >= oldEnd) ? (mParents[i] + delta) : mParents[i];
+            subtreeEnds[j] = mSubtreeEnds[i] + delta;
+            visible[j] = mVisible[i];
+            complete[j] = mComplete[i];
+        }
+
+        // Recycle the replaced nodes and release ownership of the rest.
+        for (int i = index; i < oldEnd; i++) {
+            mNodes[i].recycle();
+        }
+
+        subtree.mRecycled = true;
+        mRecycled = true;
+
+        return new NodeTreeSnapshot(nodes, parents, subtreeEnds, visible, complete, mWindowId);
+    }
+
+    /**
+     * Recycles the captured nodes. This snapshot should not be used after this
+     * method is called.
+     */
+    public void recycle() {
+        if (mRecycled) {
+            return;
+        }
+
+        mRecycled = true;
+
+        for (AccessibilityNodeInfoCompat node : mNodes) {
+            node.recycle();
+        }
+    }
+
+    /**
+     * Returns the first visible child of the specified node. Mirrors
+     * {@link AccessibilityNodeInfoRef#firstChild()}.
+     */
+    private int firstVisibleChild(int index) {
+        if (!mComplete[index]) {
+            return INCOMPLETE;
+        }
+
+        for (int child = getFirstChild(index); child != NO_NODE; child = getNextSibling(child)) {
+            if (mVisible[child]) {
+                return child;
+            }
+        }
+
+        return NO_NODE;
+    }
+
+    /**
+     * Returns the last visible child of the specified node. Mirrors
+     * {@link AccessibilityNodeInfoRef#lastChild()}.
+     */
+    private int lastVisibleChild(int index) {
+        if (!mComplete[index]) {
+            return INCOMPLETE;
+        }
+
+        int result = NO_NODE;
+
+        for (int child = getFirstChild(index); child != NO_NODE; child = getNextSibling(child)) {
+            if (mVisible[child]) {
+                result = child;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the next visible sibling of the specified node. Mirrors
+     * {@link AccessibilityNodeInfoRef#nextSibling()}.
+     */
+    private int nextVisibleSibling(int index) {
+        final int parent = mParents[index];
+        if (parent == NO_NODE) {
+            return NO_NODE;
+        }
+
+        if (!mComplete[parent]) {
+            return INCOMPLETE;
+        }
+
+        for (int sibling = getNextSibling(index); sibling != NO_NODE;
+                sibling = getNextSibling(sibling)) {
+            if (mVisible[sibling]) {
+                return sibling;
+            }
+        }
+
+        return NO_NODE;
+    }
+
+    /**
+     * Returns the previous visible sibling of the specified node. Mirrors
+     * {@link AccessibilityNodeInfoRef#previousSibling()}.
+     */
+    private int previousVisibleSibling(int index) {
+        final int parent = mParents[index];
+        if (parent == NO_NODE) {
+            return NO_NODE;
+        }
+
+        if (!mComplete[parent]) {
+            return INCOMPLETE;
+        }
+
+        int result = NO_NODE;
+
+        for (int sibling = getFirstChild(parent); sibling != index;
+                sibling = getNextSibling(sibling)) {
+            if (mVisible[sibling]) {
+                result = sibling;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the closest visible ancestor of the specified node. Mirrors
+     * {@link AccessibilityNodeInfoRef#parent()}.
+     */
+    private int visibleParent(int index) {
+        int current = mParents[index];
+
+        while (current != NO_NODE) {
+            if (mVisible[current]) {
+                return current;
+            }
+
+            current = mParents[current];
+        }
+
+        return NO_NODE;
+    }
+
+    /**
+     * Performs a bounded depth-first capture into growable arrays.
+     */
+    private static class Capture {
+        private final int mMaxNodes;
+        private final HashMap<AccessibilityNodeInfoCompat, Integer> mSeen =
+                new HashMap<AccessibilityNodeInfoCompat, Integer>();
+
+        private AccessibilityNodeInfoCompat[] mNodes =
+                new AccessibilityNodeInfoCompat[INITIAL_CAPACITY];
+        private int[] mParents = new int[INITIAL_CAPACITY];
+        private int[] mSubtreeEnds = new int[INITIAL_CAPACITY];
+        private boolean[] mVisible = new boolean[INITIAL_CAPACITY];
+        private boolean[] mComplete = new boolean[INITIAL_CAPACITY];
+        private int mSize;
+
+        public Capture(int maxNodes) {
+            mMaxNodes = maxNodes;
+        }
+
+        /**
+         * Captures the subtree rooted at {@code root}, which is copied so
+         * that the caller retains ownership.
+         */
+        public void run(AccessibilityNodeInfoCompat root) {
+            int[] indexStack = new int[INITIAL_CAPACITY];
+            int[] childStack = new int[INITIAL_CAPACITY];
+            int depth = 0;
+
+            add(AccessibilityNodeInfoCompat.obtain(root), NO_NODE);
+            indexStack[depth] = 0;
+            childStack[depth] = 0;
+            depth++;
+
+            while (depth > 0) {
+                final int index = indexStack[depth - 1];
+                final AccessibilityNodeInfoCompat node = mNodes[index];
+                final int childNumber = childStack[depth - 1];
+
+                if (childNumber >= node.getChildCount()) {
+                    mSubtreeEnds[index] = mSize;
+                    depth--;
+                    continue;
+                }
+
+                if (mSize >= mMaxNodes) {
+                    // Leave the remaining children to the live tree.
+                    mComplete[index] = false;
+                    mSubtreeEnds[index] = mSize;
+                    depth--;
+                    continue;
+                }
+
+                childStack[depth - 1]++;
+
+                final AccessibilityNodeInfoCompat child = node.getChild(childNumber);
+                if (child == null) {
+                    mComplete[index] = false;
+                    continue;
+                }
+
+                if (mSeen.containsKey(child)) {
+                    // Malformed tree, don't follow cycles.
+                    child.recycle();
+                    mComplete[index] = false;
+                    continue;
+                }
+
+                final int childIndex = add(child, index);
+
+                if (depth == indexStack.length) {
+                    indexStack = grow(indexStack);
+                    childStack = grow(childStack);
+                }
+
+                indexStack[depth] = childIndex;
+                childStack[depth] = 0;
+                depth++;
+            }
+        }
+
+        /**
+         * Returns a snapshot of the captured nodes.
+         */
+        public NodeTreeSnapshot toSnapshot() {
+            final AccessibilityNodeInfoCompat[] nodes = new AccessibilityNodeInfoCompat[mSize];
+            final int[] parents = new int[mSize];
+            final int[] subtreeEnds = new int[mSize];
+            final boolean[] visible = new boolean[mSize];
+            final boolean[] complete = new boolean[mSize];
+
+            System.arraycopy(mNodes, 0, nodes, 0, mSize);
+            System.arraycopy(mParents, 0, parents, 0, mSize);
+            System.arraycopy(mSubtreeEnds, 0, subtreeEnds, 0, mSize);
+            System.arraycopy(mVisible, 0, visible, 0, mSize);
+            System.arraycopy(mComplete, 0, complete, 0, mSize);
+
+            return new NodeTreeSnapshot(
+                    nodes, parents, subtreeEnds, visible, complete, nodes[0].getWindowId());
+        }
+
+        private int add(AccessibilityNodeInfoCompat node, int parent) {
+            if (mSize == mNodes.length) {
+                final int capacity = mSize * 2;
+                final AccessibilityNodeInfoCompat[] nodes =
+                        new AccessibilityNodeInfoCompat[capacity];
+                System.arraycopy(mNodes, 0, nodes, 0, mSize);
+                mNodes = nodes;
+                mParents = grow(mParents);
+                mSubtreeEnds = grow(mSubtreeEnds);
+                mVisible = grow(mVisible);
+                mComplete = grow(mComplete);
+            }
+
+            final int index = mSize++;
+            mNodes[index] = node;
+            mParents[index] = parent;
+            mSubtreeEnds[index] = index + 1;
+            mVisible[index] = AccessibilityNodeInfoUtils.isVisibleOrLegacy(node);
+            mComplete[index] = true;
+            mSeen.put(node, index);
+
+            return index;
+        }
+
+        private static int[] grow(int[] array) {
+            final int[] result = new int[array.length * 2];
+            System.arraycopy(array, 0, result, 0, array.length);
+            return result;
+        }
+
+        private static boolean[] grow(boolean[] array) {
+            final boolean[] result = new boolean[array.length * 2];
+            System.arraycopy(array, 0, result, 0, array.length);
+            return result;
+        }
+    }
+}
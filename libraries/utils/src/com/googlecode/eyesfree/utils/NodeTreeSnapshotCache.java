@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.utils;
+
+import android.support.v4.view.accessibility.AccessibilityEventCompat;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.support.v4.view.accessibility.AccessibilityRecordCompat;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.util.ArrayList;
+
+/**
+ * This class maintains a {@link NodeTreeSnapshot} of the most recently
+ * traversed window. The snapshot is captured the first time a node in the
+ * window is traversed and is kept up to date incrementally: each
+ * content change event marks the source subtree as stale, and stale subtrees
+ * are captured again from the live tree before the next traversal.
+ * <p>
+ * The cache is disabled until {@link #init()} is called, in which case
+ * {@link #getSnapshot(AccessibilityNodeInfoCompat)} always returns
+ * {@code null} and traversal uses the live tree. The snapshot is only
+ * available on the thread that called {@link #init()}, which must be the
+ * thread that delivers accessibility events. Traversals on other threads get
+ * {@code null} and use the live tree.
+ */
+public class NodeTreeSnapshotCache implements AccessibilityEventListener {
+    /** The maximum number of nodes to capture from a single window. */
+    private static final int MAX_NODES = 500;
+
+    /**
+     * The maximum number of stale subtrees to capture again before discarding
+     * the entire snapshot instead.
+     */
+    private static final int MAX_STALE_SUBTREES = 8;
+
+    /** Event types that invalidate the source subtree. */
+    private static final int MASK_INVALIDATE_SOURCE =
+            AccessibilityEventCompat.TYPE_WINDOW_CONTENT_CHANGED
+                    | AccessibilityEvent.TYPE_VIEW_SCROLLED;
+
+    /**
+     * The singleton instance of this class.
+     */
+    private static NodeTreeSnapshotCache sInstance;
+
+    /**
+     * Fresh copies of the roots of subtrees that have changed since the
+     * snapshot was captured.
+     */
+    private final ArrayList<AccessibilityNodeInfoCompat> mStaleSubtrees =
+            new ArrayList<AccessibilityNodeInfoCompat>();
+
+    /** The current snapshot, or {@code null} if none has been captured. */
+    private NodeTreeSnapshot mSnapshot;
+
+    /** Whether the cache is enabled. */
+    private volatile boolean mEnabled;
+
+    /** The thread that may use the snapshot. */
+    private volatile Thread mOwnerThread;
+
+    /**
+     * The singleton instance of this class.
+     *
+     * @return The singleton instance of this class.
+     */
+    public static NodeTreeSnapshotCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new NodeTreeSnapshotCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Enables the cache. Accessibility events must be passed to
+     * {@link #onAccessibilityEvent(AccessibilityEvent)} while the cache is
+     * enabled.
+     */
+    public void init() {
+        mOwnerThread = Thread.currentThread();
+        mEnabled = true;
+    }
+
+    /**
+     * Disables the cache and recycles the current snapshot.
+     */
+    public void shutdown() {
+        mEnabled = false;
+        clear();
+    }
+
+    /**
+     * Discards the current snapshot and any pending invalidations.
+     */
+    public void clear() {
+        if (mSnapshot != null) {
+            mSnapshot.recycle();
+            mSnapshot = null;
+        }
+
+        AccessibilityNodeInfoUtils.recycleNodes(mStaleSubtrees);
+        mStaleSubtrees.clear();
+    }
+
+    /**
+     * Returns an up-to-date snapshot of the window containing {@code node},
+     * capturing it if necessary, or {@code null} if the cache is disabled.
+     * The returned snapshot is owned by the cache and is only valid until the
+     * next accessibility event is delivered or a node from another window is
+     * traversed. Returns {@code null} when called from any thread other than
+     * the one that enabled the cache.
+     *
+     * @param node A node within the window to capture.
+     * @return A snapshot of the window containing {@code node}.
+     */
+    public NodeTreeSnapshot getSnapshot(AccessibilityNodeInfoCompat node) {
+        if (!mEnabled || (node == null) || (Thread.currentThread() != mOwnerThread)) {
+            return null;
+        }
+
+        if ((mSnapshot != null) && (mSnapshot.getWindowId() != node.getWindowId())) {
+            clear();
+        }
+
+        if ((mSnapshot != null) && !mStaleSubtrees.isEmpty()) {
+            refreshStaleSubtrees();
+        }
+
+        if (mSnapshot == null) {
+            final AccessibilityNodeInfoCompat root = AccessibilityNodeInfoUtils.getRoot(node);
+            if (root == null) {
+                return null;
+            }
+
+            mSnapshot = NodeTreeSnapshot.capture(root, MAX_NODES);
+            root.recycle();
+
+            LogUtils.log(this, Log.VERBOSE, "Captured %d nodes", mSnapshot.size());
+        }
+
+        return mSnapshot;
+    }
+
+    @Override
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if (!mEnabled || (mSnapshot == null)) {
+            return;
+        }
+
+        final int eventType = event.getEventType();
+
+        if (eventType == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+            clear();
+        } else if ((eventType & MASK_INVALIDATE_SOURCE) != 0) {
+            invalidateSource(event);
+        }
+    }
+
+    /**
+     * Marks the subtree rooted at the event source as stale. Discards the
+     * entire snapshot if the source is unknown or too many subtrees are
+     * already stale.
+     */
+    private void invalidateSource(AccessibilityEvent event) {
+        final AccessibilityRecordCompat record = new AccessibilityRecordCompat(event);
+        final AccessibilityNodeInfoCompat source = record.getSource();
+
+        if (source == null) {
+            clear();
+            return;
+        }
+
+        if (source.getWindowId() != mSnapshot.getWindowId()) {
+            source.recycle();
+            return;
+        }
+
+        if (mStaleSubtrees.size() >= MAX_STALE_SUBTREES) {
+            source.recycle();
+            clear();
+            return;
+        }
+
+        mStaleSubtrees.add(source);
+    }
+
+    /**
+     * Replaces each stale subtree with a fresh capture from the live tree.
+     * Discards the snapshot if a stale subtree wasn't part of the snapshot,
+     * since its parent may have changed as well.
+     */
+    private void refreshStaleSubtrees() {
+        for (AccessibilityNodeInfoCompat source : mStaleSubtrees) {
+            final int index = mSnapshot.indexOf(source);
+
+            if (index == NodeTreeSnapshot.NO_NODE) {
+                clear();
+                return;
+            }
+
+            mSnapshot = mSnapshot.replaceSubtree(index, source, MAX_NODES);
+        }
+
+        LogUtils.log(this, Log.VERBOSE, "Refreshed %d stale subtrees, %d nodes",
+                mStaleSubtrees.size(), mSnapshot.size());
+
+        AccessibilityNodeInfoUtils.recycleNodes(mStaleSubtrees);
+        mStaleSubtrees.clear();
+    }
+}
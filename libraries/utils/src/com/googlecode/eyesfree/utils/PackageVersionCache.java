@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.utils;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.text.TextUtils;
+
+import java.util.HashMap;
+
+/**
+ * This class caches package version codes and names, so that repeated
+ * lookups for the same package do not query the {@link PackageManager}.
+ * Cached versions are invalidated when a package is added, removed, or
+ * changed.
+ */
+public class PackageVersionCache {
+
+    /**
+     * The singleton instance of this class.
+     */
+    private static PackageVersionCache sInstance;
+
+    /**
+     * Mapping from package names to cached versions.
+     */
+    private final HashMap<String, PackageVersion> mPackageVersions =
+            new HashMap<String, PackageVersion>();
+
+    /**
+     * The singleton instance of this class.
+     *
+     * @return The singleton instance of this class.
+     */
+    public static PackageVersionCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new PackageVersionCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Registers the package monitor.
+     *
+     * @param context The {@link Context} to use for monitor registration
+     */
+    public void init(Context context) {
+        mPackageMonitor.register(context);
+    }
+
+    /**
+     * Clears the version cache and unregisters the package monitor.
+     */
+    public void shutdown() {
+        synchronized (mPackageVersions) {
+            mPackageVersions.clear();
+        }
+
+        mPackageMonitor.unregister();
+    }
+
+    /**
+     * @return The package version code or
+     *         {@link PackageManagerUtils#INVALID_VERSION_CODE} if the package
+     *         does not exist.
+     */
+    public int getVersionCode(Context context, CharSequence packageName) {
+        if (TextUtils.isEmpty(packageName)) {
+            return PackageManagerUtils.INVALID_VERSION_CODE;
+        }
+
+        return getPackageVersion(context, packageName).versionCode;
+    }
+
+    /**
+     * @return The package version name or <code>null</code> if the package
+     *         does not exist.
+     */
+    public String getVersionName(Context context, CharSequence packageName) {
+        if (TextUtils.isEmpty(packageName)) {
+            return null;
+        }
+
+        return getPackageVersion(context, packageName).versionName;
+    }
+
+    /**
+     * Returns the cached version of a package, querying the
+     * {@link PackageManager} if the package is not cached. Packages that do
+     * not exist are cached with an invalid version.
+     */
+    private PackageVersion getPackageVersion(Context context, CharSequence packageName) {
+        // Package names from events are almost always strings already, so
+        // only other character sequences are copied for the lookup.
+        final String packageNameString = (packageName instanceof String)
+                ? (String) packageName : packageName.toString();
+
+        synchronized (mPackageVersions) {
+            final PackageVersion cachedVersion = mPackageVersions.get(packageNameString);
+            if (cachedVersion != null) {
+                return cachedVersion;
+            }
+        }
+
+        final PackageVersion version = new PackageVersion();
+
+        try {
+            final PackageInfo packageInfo =
+                    context.getPackageManager().getPackageInfo(packageNameString, 0);
+            version.versionCode = packageInfo.versionCode;
+            version.versionName = packageInfo.versionName;
+        } catch (NameNotFoundException e) {
+            version.versionCode = PackageManagerUtils.INVALID_VERSION_CODE;
+            version.versionName = null;
+        }
+
+        synchronized (mPackageVersions) {
+            mPackageVersions.put(packageNameString, version);
+        }
+
+        return version;
+    }
+
+    /**
+     * Removes the specified package from the version cache.
+     *
+     * @param packageName The package name to remove.
+     */
+    private void invalidatePackage(String packageName) {
+        synchronized (mPackageVersions) {
+            mPackageVersions.remove(packageName);
+        }
+    }
+
+    /**
+     * Cached version information for a single package.
+     */
+    private static class PackageVersion {
+        public int versionCode;
+        public String versionName;
+    }
+
+    /**
+     * Monitor to invalidate the versions of modified packages.
+     */
+    private final BasePackageMonitor mPackageMonitor = new BasePackageMonitor() {
+        @Override
+        protected void onPackageAdded(String packageName) {
+            invalidatePackage(packageName);
+        }
+
+        @Override
+        protected void onPackageRemoved(String packageName) {
+            invalidatePackage(packageName);
+        }
+
+        @Override
+        protected void onPackageChanged(String packageName) {
+            invalidatePackage(packageName);
+        }
+    };
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.googlecode.eyesfree.labeling;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Unit tests for the {@link LabelCache} class.
+ */
+public class LabelCacheTest extends TestCase {
+    private static final String PACKAGE_A = "com.example.a";
+    private static final String PACKAGE_B = "com.example.b";
+    private static final String PACKAGE_C = "com.example.c";
+
+    /**
+     * Test method for {@link LabelCache#getLabel(String, String)}.
+     */
+    @SmallTest
+    public void testGetLabel() {
+        final LabelCache cache = new LabelCache(10);
+        cache.put(PACKAGE_A, createLabels(PACKAGE_A, 2));
+
+        assertEquals("text0", cache.getLabel(PACKAGE_A, "view0").getText());
+        assertNull(cache.getLabel(PACKAGE_A, "view2"));
+        assertNull(cache.getLabel(PACKAGE_B, "view0"));
+    }
+
+    /**
+     * Test method for {@link LabelCache#put(String, Map)}.
+     * <p>
+     * Checks that packages are weighted by label count and that the least
+     * recently used package is evicted first.
+     */
+    @SmallTest
+    public void testPutEvictsLeastRecentlyUsed() {
+        final LabelCache cache = new LabelCache(10);
+        cache.put(PACKAGE_A, createLabels(PACKAGE_A, 4));
+        cache.put(PACKAGE_B, createLabels(PACKAGE_B, 4));
+
+        // Touch A so that B becomes the eldest entry.
+        cache.getLabel(PACKAGE_A, "view0");
+        cache.put(PACKAGE_C, createLabels(PACKAGE_C, 4));
+
+        assertTrue(cache.containsKey(PACKAGE_A));
+        assertFalse(cache.containsKey(PACKAGE_B));
+        assertTrue(cache.containsKey(PACKAGE_C));
+    }
+
+    /**
+     * Test method for {@link LabelCache#put(String, Map)}.
+     * <p>
+     * Checks that empty packages are cached and that an oversized package
+     * is kept.
+     */
+    @SmallTest
+    public void testPutEmptyAndOversized() {
+        final LabelCache cache = new LabelCache(3);
+        cache.put(PACKAGE_A, Collections.<String, Label>emptyMap());
+        assertTrue(cache.containsKey(PACKAGE_A));
+
+        cache.put(PACKAGE_B, createLabels(PACKAGE_B, 5));
+        assertFalse(cache.containsKey(PACKAGE_A));
+        assertTrue(cache.containsKey(PACKAGE_B));
+    }
+
+    /**
+     * Test method for {@link LabelCache#remove(String)}.
+     * <p>
+     * Checks that removing a package frees its weight.
+     */
+    @SmallTest
+    public void testRemove() {
+        final LabelCache cache = new LabelCache(4);
+        cache.put(PACKAGE_A, createLabels(PACKAGE_A, 3));
+        cache.remove(PACKAGE_A);
+        cache.put(PACKAGE_B, createLabels(PACKAGE_B, 2));
+        cache.put(PACKAGE_C, createLabels(PACKAGE_C, 2));
+
+        assertFalse(cache.containsKey(PACKAGE_A));
+        assertTrue(cache.containsKey(PACKAGE_B));
+        assertTrue(cache.containsKey(PACKAGE_C));
+    }
+
+    private static Map<String, Label> createLabels(String packageName, int count) {
+        final Map<String, Label> labels = new HashMap<String, Label>();
+        for (int i = 0; i < count; i++) {
+            labels.put("view" + i, new Label(packageName, "signature", "view" + i, "text" + i,
+                    "en_US", 1, "", 0L));
+        }
+
+        return Collections.unmodifiableMap(labels);
+    }
+}
@@ -87,4 +87,20 @@ public class ClassLoadingManagerTest extends AndroidTestCase {
         assertFalse("String is not instance of StringBuffer", mLoader.checkInstanceOf(
                 mContext, CLASS_STRING, null, "java.lang.StringBuffer"));
     }
+
+    @SmallTest
+    public void testCheckInstanceOfPackageClass() {
+        final String systemClassName = "com.android.settings.Settings";
+        final String systemPackage = "com.android.settings";
+
+        // The second pass is answered from the ancestry index.
+        for (int i = 0; i < 2; i++) {
+            assertTrue("Settings is instance of Activity", mLoader.checkInstanceOf(
+                    mContext, systemClassName, systemPackage, android.app.Activity.class));
+            assertTrue("Settings is instance of Context", mLoader.checkInstanceOf(
+                    mContext, systemClassName, systemPackage, "android.content.Context"));
+            assertFalse("Settings is not instance of View", mLoader.checkInstanceOf(
+                    mContext, systemClassName, systemPackage, android.view.View.class));
+        }
+    }
 }
@@ -653,6 +653,9 @@ public class Ocr {
         /** Write intermediate files to external storage */
         public static final String FLAG_DEBUG_MODE = "debug_mode";
 
+        /** Recognize detected text areas in parallel on multi-core devices */
+        public static final String FLAG_PARALLEL = "parallel";
+
         /** Fully automatic page segmentation. */
         public static final int PSM_AUTO = 0;
 
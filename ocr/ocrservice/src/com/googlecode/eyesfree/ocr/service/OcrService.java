@@ -52,6 +52,15 @@ import java.util.List;
 public class OcrService extends Service {
     private static final String TAG = "OcrService";
 
+    /**
+     * Memory trim levels from ComponentCallbacks2, which isn't available in
+     * the target SDK.
+     */
+    private static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    private static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    private static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    private static final int TRIM_MEMORY_MODERATE = 60;
+
     private final OcrService mSelf = this;
 
     private RemoteCallbackList<IOcrCallback> mCallbacks;
@@ -90,10 +99,52 @@ public class OcrService extends Service {
         unregisterReceiver(mBroadcastReceiver);
 
         mCallbacks.kill();
+        mOcrTaskProcessor.shutdown();
 
         super.onDestroy();
     }
 
+    @Override
+    public void onLowMemory() {
+        Log.i(TAG, "Low memory, releasing idle OCR engines");
+
+        mOcrTaskProcessor.trimMemory(0);
+
+        super.onLowMemory();
+    }
+
+    /**
+     * Releases idle OCR engines in response to memory pressure. Called on API
+     * 14 and above, so this can't be annotated as an override.
+     *
+     * @param level The context of the trim.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE
+                || (level >= TRIM_MEMORY_RUNNING_CRITICAL && level < TRIM_MEMORY_UI_HIDDEN)) {
+            mOcrTaskProcessor.trimMemory(0);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            mOcrTaskProcessor.trimMemory(1);
+        }
+    }
+
+    /**
+     * Loads an OCR engine for the default language in the background, if
+     * that language is available, so that the first request from a newly
+     * bound client doesn't have to wait for it.
+     */
+    private void preloadDefaultLanguage() {
+        final Ocr.Parameters defaults = new Ocr.Parameters();
+        final String language = defaults.getLanguage();
+
+        for (Language available : mLanguageManager.getAvailable()) {
+            if (language.equals(available.iso_639_2)) {
+                mOcrTaskProcessor.preload(language, defaults.getPageSegMode());
+                return;
+            }
+        }
+    }
+
     private void applyDefaults(Ocr.Parameters params) {
         // TODO(alanv): Make sure language choice is valid
         /*
@@ -113,6 +164,7 @@ public class OcrService extends Service {
         if (Intents.Service.ACTION.equals(intent.getAction())) {
             for (String category : intent.getCategories()) {
                 if (Intents.Service.CATEGORY.equals(category)) {
+                    preloadDefaultLanguage();
                     return mBinder;
                 }
             }
@@ -41,6 +41,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.ListIterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author alanv@google.com (Alan Viverette)
@@ -48,8 +50,17 @@ import java.util.ListIterator;
 public class OcrTaskProcessor {
     private static final String TAG = "OcrTaskProcessor";
 
-    /** The wrapper for the native Tesseract instance. */
-    private final TessBaseAPI mTessBaseAPI;
+    /** The maximum number of text areas to recognize in parallel. */
+    private static final int MAX_WORKERS = 4;
+
+    /** Pool of initialized Tesseract instances. */
+    private final TessEnginePool mEnginePool;
+
+    /** The number of workers used for parallel recognition. */
+    private final int mWorkerCount;
+
+    /** Executor for parallel recognition, created when first needed. */
+    private ExecutorService mWorkerExecutor;
 
     /** The wrapper for the native Hydrogen instance. */
     private final HydrogenTextDetector mTextDetector;
@@ -57,9 +68,6 @@ public class OcrTaskProcessor {
     /** List of queued tasks with the current task at the front. */
     private final LinkedList<OcrTask> mTaskQueue;
 
-    /** The path containing the <code>tessdata</code> directory. */
-    private final File mDatapath;
-
     private final Handler mHandler;
 
     /** Object that receives recognition results. */
@@ -74,10 +82,9 @@ public class OcrTaskProcessor {
      *            </code> directory.
      */
     public OcrTaskProcessor(File datapath) {
-        mDatapath = datapath;
-
         mHandler = new Handler();
-        mTessBaseAPI = new TessBaseAPI();
+        mEnginePool = new TessEnginePool(datapath);
+        mWorkerCount = Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors());
         mTextDetector = new HydrogenTextDetector();
         mTaskQueue = new LinkedList<OcrTask>();
     }
@@ -165,7 +172,41 @@ public class OcrTaskProcessor {
     public void shutdown() {
         abort();
 
-        mTessBaseAPI.end();
+        synchronized (this) {
+            if (mWorkerExecutor != null) {
+                mWorkerExecutor.shutdown();
+                mWorkerExecutor = null;
+            }
+        }
+
+        mEnginePool.shutdown();
+    }
+
+    /**
+     * Initializes a Tesseract instance for the specified language and page
+     * segmentation mode on a background thread so that subsequent requests
+     * using the same configuration can begin recognition immediately.
+     *
+     * @param language The ISO 639-2 code of the language to load.
+     * @param pageSegMode The page segmentation mode.
+     */
+    public void preload(final String language, final int pageSegMode) {
+        new Thread(TAG + " preload") {
+            @Override
+            public void run() {
+                mEnginePool.preload(language, pageSegMode);
+            }
+        }.start();
+    }
+
+    /**
+     * Releases idle Tesseract instances, keeping at most <code>maxSize</code>
+     * of the most recently used instances.
+     *
+     * @param maxSize The maximum number of idle instances to keep.
+     */
+    public void trimMemory(int maxSize) {
+        mEnginePool.trimToSize(maxSize);
     }
 
     /**
@@ -212,6 +253,20 @@ public class OcrTaskProcessor {
         return task.token;
     }
 
+    /**
+     * Returns the executor used for parallel recognition, creating it if
+     * necessary. The engine pool is resized so that each worker can keep its
+     * own engine between tasks.
+     */
+    private synchronized ExecutorService getWorkerExecutor() {
+        if (mWorkerExecutor == null) {
+            mWorkerExecutor = Executors.newFixedThreadPool(mWorkerCount);
+            mEnginePool.setMaxIdleEngines(mWorkerCount);
+        }
+
+        return mWorkerExecutor;
+    }
+
     private void nextTask() {
         synchronized (mTaskQueue) {
             mCurrentTask = new AsyncOcrTask();
@@ -237,7 +292,16 @@ public class OcrTaskProcessor {
     private class AsyncOcrTask extends AsyncTask<OcrTask, OcrResult, ArrayList<OcrResult>> {
         private int mPid;
         private int mToken;
-        private boolean mStopRequested = false;
+        private volatile boolean mStopRequested = false;
+
+        /** The Tesseract instance acquired for this task. */
+        private TessBaseAPI mTessBaseAPI;
+
+        /** The pooled engine wrapping {@link #mTessBaseAPI}. */
+        private TessEnginePool.Engine mEngine;
+
+        /** The page segmentation mode used by {@link #mEngine}. */
+        private int mPageSegMode;
 
         @Override
         protected ArrayList<OcrResult> doInBackground(OcrTask... tasks) {
@@ -263,7 +327,15 @@ public class OcrTaskProcessor {
             };
 
             final Pixa pixa = processPix(task, pix, scale, angle);
-            prepareOcrLibrary(task);
+
+            if (!prepareOcrLibrary(task)) {
+                if (pixa != null) {
+                    pixa.recycle();
+                }
+
+                return null;
+            }
+
             final ArrayList<OcrResult> results = recognizeBitmap(task, pixa, scale[0], angle[0]);
             cleanupOcrLibrary();
 
@@ -301,26 +373,29 @@ public class OcrTaskProcessor {
         }
 
         /**
-         * Opens the configured language and sets variables. We're setting up
-         * Tesseract for this specific job, so we should be the only process
-         * accessing it.
+         * Acquires a Tesseract instance for the configured language and sets
+         * variables. The instance is reserved for this specific job until it
+         * is released in {@link #cleanupOcrLibrary()}.
+         *
+         * @return <code>true</code> if the language was loaded successfully.
          */
-        private void prepareOcrLibrary(OcrTask task) {
+        private boolean prepareOcrLibrary(OcrTask task) {
             final Parameters params = task.params;
-            final String language = params.getLanguage();
-            final boolean debug = params.getFlag(Ocr.Parameters.FLAG_DEBUG_MODE);
             final boolean detectText = params.getFlag(Ocr.Parameters.FLAG_DETECT_TEXT);
             final int pageSegMode = detectText ? Ocr.Parameters.PSM_SINGLE_LINE : params
                     .getPageSegMode();
 
-            mTessBaseAPI.init(mDatapath.getAbsolutePath() + "/", language);
-            mTessBaseAPI.setDebug(debug);
-            mTessBaseAPI.setPageSegMode(pageSegMode);
+            mEngine = mEnginePool.acquire(params, pageSegMode);
+            mPageSegMode = pageSegMode;
 
-            for (String key : params.getVariableKeys()) {
-                String value = params.getVariable(key);
-                mTessBaseAPI.setVariable(key, value);
+            if (mEngine == null) {
+                Log.e(TAG, "Failed to load language " + params.getLanguage());
+                return false;
             }
+
+            mTessBaseAPI = mEngine.api;
+
+            return true;
         }
 
         /**
@@ -338,6 +413,7 @@ public class OcrTaskProcessor {
 
             final Parameters params = task.params;
             final boolean spellcheck = params.getFlag(Ocr.Parameters.FLAG_SPELLCHECK);
+            final boolean parallel = params.getFlag(Ocr.Parameters.FLAG_PARALLEL);
 
             int numSamples = Math.min(3, pixa.size());
             boolean needsRotation = false;
@@ -390,8 +466,32 @@ public class OcrTaskProcessor {
             results.ensureCapacity(pixa.size());
 
             // Since we're already OCR'ed numSamples, continue from there...
-            int i = numSamples;
-            for (; !isStopRequested() && i < pixa.size(); i++) {
+            if (parallel && mWorkerCount > 1 && pixa.size() - numSamples > 1) {
+                recognizeParallel(task, pixa, numSamples, scale, angle, needsRotation, results);
+            } else {
+                recognizeSequential(pixa, numSamples, scale, angle, spellcheck, needsRotation,
+                        results);
+            }
+
+            // If we had to rotate the samples, we need to reverse the list as
+            // well
+            if (needsRotation) {
+                Collections.reverse(results);
+            }
+
+            pixa.recycle();
+
+            return results;
+        }
+
+        /**
+         * Recognizes text areas starting at <code>start</code> one after
+         * another using this task's engine, adding non-empty results to
+         * <code>results</code>.
+         */
+        private void recognizeSequential(Pixa pixa, int start, float scale, float angle,
+                boolean spellcheck, boolean needsRotation, ArrayList<OcrResult> results) {
+            for (int i = start; !isStopRequested() && i < pixa.size(); i++) {
                 OcrResult result = getOcrResult(pixa, scale, angle, i, spellcheck, needsRotation);
 
                 // Don't bother returning empty results!
@@ -401,21 +501,55 @@ public class OcrTaskProcessor {
                     onProgressUpdate(result);
                 }
             }
+        }
 
-            // If we had to rotate the samples, we need to reverse the list as
-            // well
-            if (needsRotation) {
-                Collections.reverse(results);
+        /**
+         * Recognizes text areas starting at <code>start</code> on a bounded
+         * pool of workers, each using its own engine. Results are added to
+         * <code>results</code> and reported in reading order as soon as all
+         * preceding text areas have been recognized.
+         */
+        private void recognizeParallel(OcrTask task, Pixa pixa, int start, float scale,
+                float angle, boolean needsRotation, ArrayList<OcrResult> results) {
+            final RegionBatch batch = new RegionBatch(pixa, start, scale, angle, needsRotation);
+            final int numWorkers = Math.min(mWorkerCount, batch.size());
+            final ExecutorService executor = getWorkerExecutor();
+
+            batch.mActiveWorkers = numWorkers;
+
+            // The first worker borrows this task's engine, the rest acquire
+            // their own from the pool.
+            for (int i = 0; i < numWorkers; i++) {
+                executor.execute(new RegionWorker(task, batch, i == 0 ? mEngine : null));
             }
 
-            pixa.recycle();
+            for (int i = 0; !isStopRequested() && i < batch.size(); i++) {
+                final OcrResult result = batch.awaitResult(i);
 
-            return results;
+                if (result == null) {
+                    break;
+                }
+
+                // Don't bother returning empty results!
+                if (result.getString().length() > 0) {
+                    results.add(result);
+
+                    onProgressUpdate(result);
+                }
+            }
+
+            // Workers may still be using this task's engine and the pixa.
+            batch.awaitWorkers();
         }
 
         private OcrResult getOcrResult(Pixa pixa, float scale, float angle, int index,
                 boolean spellcheck, boolean rotate) {
-            Pix pix = pixa.getPix(index);
+            return getOcrResult(mTessBaseAPI, pixa.getPix(index), pixa.getBoxRect(index), scale,
+                    angle, rotate);
+        }
+
+        private OcrResult getOcrResult(TessBaseAPI api, Pix pix, Rect bound, float scale,
+                float angle, boolean rotate) {
 
             // We've already decided the image is rotated 180 degrees
             // TODO(alanv): Write a native function to in-place rotate
@@ -427,15 +561,14 @@ public class OcrTaskProcessor {
                 pix = temp;
             }
 
-            mTessBaseAPI.setImage(pix);
-            String string = mTessBaseAPI.getUTF8Text();
-            int[] confidences = mTessBaseAPI.wordConfidences();
-            mTessBaseAPI.clear();
+            api.setImage(pix);
+            String string = api.getUTF8Text();
+            int[] confidences = api.wordConfidences();
+            api.clear();
 
             pix.recycle();
 
             // Scale the bounding rectangle back up
-            Rect bound = pixa.getBoxRect(index);
             scaleRect(bound, scale);
 
             // TODO(alanv): Send the text angle with the result
@@ -530,8 +663,170 @@ public class OcrTaskProcessor {
             return pixa;
         }
 
+        /**
+         * Recognizes text areas from a shared batch until none remain or the
+         * task is stopped.
+         */
+        private class RegionWorker implements Runnable {
+            private final OcrTask mTask;
+            private final RegionBatch mBatch;
+
+            /** The task's engine, or <code>null</code> to acquire one. */
+            private final TessEnginePool.Engine mSharedEngine;
+
+            public RegionWorker(OcrTask task, RegionBatch batch, TessEnginePool.Engine engine) {
+                mTask = task;
+                mBatch = batch;
+                mSharedEngine = engine;
+            }
+
+            @Override
+            public void run() {
+                TessEnginePool.Engine engine = mSharedEngine;
+
+                try {
+                    if (engine == null) {
+                        engine = mEnginePool.acquire(mTask.params, mPageSegMode);
+                    }
+
+                    if (engine == null) {
+                        return;
+                    }
+
+                    int index;
+
+                    while (!isStopRequested() && (index = mBatch.nextIndex()) >= 0) {
+                        final OcrResult result = getOcrResult(engine.api, mBatch.mPix[index],
+                                mBatch.mBounds[index], mBatch.mScale, mBatch.mAngle,
+                                mBatch.mRotate);
+
+                        mBatch.setResult(index, result);
+                    }
+                } finally {
+                    if (engine != null && engine != mSharedEngine) {
+                        mEnginePool.release(engine);
+                    }
+
+                    mBatch.finishWorker();
+                }
+            }
+        }
+
         private void cleanupOcrLibrary() {
-            mTessBaseAPI.clear();
+            mEnginePool.release(mEngine);
+
+            mEngine = null;
+            mTessBaseAPI = null;
+        }
+    }
+
+    /**
+     * A set of text areas shared between parallel recognition workers. Images
+     * and bounds are extracted up front so that workers never access the
+     * native {@link Pixa} concurrently.
+     */
+    private static class RegionBatch {
+        /* package */final Pix[] mPix;
+        /* package */final Rect[] mBounds;
+        /* package */final float mScale;
+        /* package */final float mAngle;
+        /* package */final boolean mRotate;
+
+        private final OcrResult[] mResults;
+        private final boolean[] mCompleted;
+
+        /** The next text area to hand out to a worker. */
+        private int mNextIndex;
+
+        /** The number of workers that have not finished. */
+        /* package */int mActiveWorkers;
+
+        public RegionBatch(Pixa pixa, int start, float scale, float angle, boolean rotate) {
+            final int size = pixa.size() - start;
+
+            mPix = new Pix[size];
+            mBounds = new Rect[size];
+            mResults = new OcrResult[size];
+            mCompleted = new boolean[size];
+            mScale = scale;
+            mAngle = angle;
+            mRotate = rotate;
+
+            for (int i = 0; i < size; i++) {
+                mPix[i] = pixa.getPix(start + i);
+                mBounds[i] = pixa.getBoxRect(start + i);
+            }
+        }
+
+        public int size() {
+            return mPix.length;
+        }
+
+        /**
+         * Returns the index of the next text area to recognize, or -1 if all
+         * text areas have been handed out.
+         */
+        public synchronized int nextIndex() {
+            if (mNextIndex >= mPix.length) {
+                return -1;
+            }
+
+            return mNextIndex++;
+        }
+
+        public synchronized void setResult(int index, OcrResult result) {
+            mResults[index] = result;
+            mCompleted[index] = true;
+            notifyAll();
+        }
+
+        public synchronized void finishWorker() {
+            mActiveWorkers--;
+            notifyAll();
+        }
+
+        /**
+         * Blocks until the text area at <code>index</code> has been
+         * recognized, returning <code>null</code> if all workers finished
+         * without recognizing it.
+         */
+        public synchronized OcrResult awaitResult(int index) {
+            while (!mCompleted[index] && mActiveWorkers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+
+            return mResults[index];
+        }
+
+        /**
+         * Blocks until all workers have finished, then releases any images
+         * that were never recognized.
+         */
+        public synchronized void awaitWorkers() {
+            boolean interrupted = false;
+
+            // Workers may still be using the caller's engine and images, so
+            // this has to wait even if the thread is interrupted.
+            while (mActiveWorkers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            for (int i = mNextIndex; i < mPix.length; i++) {
+                mPix[i].recycle();
+            }
         }
     }
 
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2013 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.googlecode.eyesfree.ocr.service;
+
+import android.util.Log;
+
+import com.googlecode.eyesfree.ocr.client.Ocr.Parameters;
+import com.googlecode.tesseract.android.TessBaseAPI;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
+
+/**
+ * Maintains a pool of initialized Tesseract engines keyed by language and page
+ * segmentation mode. Loading traineddata takes several seconds, so engines are
+ * returned to the pool after each task instead of being torn down. Idle
+ * engines are evicted in least-recently-used order when the pool grows past
+ * its limit or when the system is low on memory.
+ */
+public class TessEnginePool {
+    private static final String TAG = "TessEnginePool";
+
+    /** The default maximum number of idle engines kept in the pool. */
+    private static final int DEFAULT_MAX_IDLE_ENGINES = 2;
+
+    /** The path containing the <code>tessdata</code> directory. */
+    private final File mDatapath;
+
+    /** Idle engines ordered from least to most recently used. */
+    private final LinkedList<Engine> mIdleEngines;
+
+    /** The maximum number of idle engines kept in the pool. */
+    private int mMaxIdleEngines;
+
+    /** Whether the pool has been shut down. */
+    private boolean mShutdown;
+
+    /**
+     * Creates a new engine pool using the given data path.
+     *
+     * @param datapath A path to a directory containing the <code>tessdata
+     *            </code> directory.
+     */
+    public TessEnginePool(File datapath) {
+        mDatapath = datapath;
+        mIdleEngines = new LinkedList<Engine>();
+        mMaxIdleEngines = DEFAULT_MAX_IDLE_ENGINES;
+    }
+
+    /**
+     * Sets the maximum number of idle engines kept in the pool, evicting the
+     * least recently used engines if necessary.
+     *
+     * @param maxIdleEngines The maximum number of idle engines.
+     */
+    public void setMaxIdleEngines(int maxIdleEngines) {
+        synchronized (mIdleEngines) {
+            mMaxIdleEngines = maxIdleEngines;
+        }
+
+        trimToSize(maxIdleEngines);
+    }
+
+    /**
+     * Returns an engine configured for the requested language and page
+     * segmentation mode, initializing a new engine if no matching idle engine
+     * is available. The engine must be returned using
+     * {@link #release(Engine)}.
+     *
+     * @param params The parameters containing the language, debug flag, and
+     *            variables to apply.
+     * @param pageSegMode The page segmentation mode.
+     * @return An initialized engine, or <code>null</code> if the language
+     *         could not be loaded.
+     */
+    public Engine acquire(Parameters params, int pageSegMode) {
+        final String language = params.getLanguage();
+        final HashMap<String, String> variables = new HashMap<String, String>();
+
+        for (String key : params.getVariableKeys()) {
+            variables.put(key, params.getVariable(key));
+        }
+
+        Engine engine = obtainIdle(language, pageSegMode, variables);
+
+        if (engine == null) {
+            engine = createEngine(language, pageSegMode);
+
+            if (engine == null) {
+                return null;
+            }
+        }
+
+        engine.api.setDebug(params.getFlag(Parameters.FLAG_DEBUG_MODE));
+
+        for (Map.Entry<String, String> variable : variables.entrySet()) {
+            final String key = variable.getKey();
+            final String value = variable.getValue();
+
+            if (!value.equals(engine.variables.get(key))) {
+                engine.api.setVariable(key, value);
+                engine.variables.put(key, value);
+            }
+        }
+
+        return engine;
+    }
+
+    /**
+     * Returns an engine to the pool. The engine must not be used after calling
+     * this method.
+     *
+     * @param engine The engine to release.
+     */
+    public void release(Engine engine) {
+        engine.api.clear();
+
+        synchronized (mIdleEngines) {
+            if (!mShutdown) {
+                mIdleEngines.addLast(engine);
+                engine = null;
+            }
+        }
+
+        if (engine != null) {
+            engine.api.end();
+        }
+
+        trimToSize(mMaxIdleEngines);
+    }
+
+    /**
+     * Initializes an engine for the requested language and page segmentation
+     * mode and adds it to the pool, unless a matching idle engine is already
+     * available. This method blocks while the language loads, so it should
+     * not be called on the main thread.
+     *
+     * @param language The ISO 639-2 code of the language to load.
+     * @param pageSegMode The page segmentation mode.
+     */
+    public void preload(String language, int pageSegMode) {
+        synchronized (mIdleEngines) {
+            for (Engine engine : mIdleEngines) {
+                if (engine.matches(language, pageSegMode)) {
+                    return;
+                }
+            }
+        }
+
+        final Engine engine = createEngine(language, pageSegMode);
+
+        if (engine != null) {
+            release(engine);
+        }
+    }
+
+    /**
+     * Ends idle engines in least-recently-used order until no more than
+     * <code>maxSize</code> engines remain idle.
+     *
+     * @param maxSize The maximum number of idle engines to keep.
+     */
+    public void trimToSize(int maxSize) {
+        final LinkedList<Engine> evicted = new LinkedList<Engine>();
+
+        synchronized (mIdleEngines) {
+            while (mIdleEngines.size() > maxSize) {
+                evicted.add(mIdleEngines.removeFirst());
+            }
+        }
+
+        for (Engine engine : evicted) {
+            Log.i(TAG, "Evicting engine for " + engine.language);
+            engine.api.end();
+        }
+    }
+
+    /**
+     * Ends all idle engines. Engines that are currently in use will be ended
+     * when they are released.
+     */
+    public void shutdown() {
+        synchronized (mIdleEngines) {
+            mShutdown = true;
+        }
+
+        trimToSize(0);
+    }
+
+    /**
+     * Removes and returns the most recently used idle engine matching the
+     * requested configuration. Matching engines that have variables that
+     * conflict with the requested variables are ended, since Tesseract
+     * variables can't be restored to their defaults.
+     */
+    private Engine obtainIdle(String language, int pageSegMode, Map<String, String> variables) {
+        Engine engine = null;
+        Engine conflicting = null;
+
+        synchronized (mIdleEngines) {
+            final ListIterator<Engine> it = mIdleEngines.listIterator(mIdleEngines.size());
+
+            while (it.hasPrevious()) {
+                final Engine candidate = it.previous();
+
+                if (!candidate.matches(language, pageSegMode)) {
+                    continue;
+                }
+
+                it.remove();
+
+                if (candidate.isCompatible(variables)) {
+                    engine = candidate;
+                } else {
+                    conflicting = candidate;
+                }
+
+                break;
+            }
+        }
+
+        if (conflicting != null) {
+            conflicting.api.end();
+        }
+
+        return engine;
+    }
+
+    /**
+     * Creates and initializes a new engine, returning <code>null</code> if
+     * the language could not be loaded.
+     */
+    private Engine createEngine(String language, int pageSegMode) {
+        if (mDatapath == null) {
+            Log.e(TAG, "Missing data path, can't load " + language);
+            return null;
+        }
+
+        final long start = System.currentTimeMillis();
+        final TessBaseAPI api = new TessBaseAPI();
+
+        if (!api.init(mDatapath.getAbsolutePath() + "/", language)) {
+            Log.e(TAG, "Failed to initialize engine for " + language);
+            api.end();
+            return null;
+        }
+
+        api.setPageSegMode(pageSegMode);
+
+        Log.i(TAG, "Initialized engine for " + language + " in "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        return new Engine(api, language, pageSegMode);
+    }
+
+    /**
+     * An initialized Tesseract engine along with the configuration it was
+     * initialized with.
+     */
+    public static class Engine {
+        /* package */final TessBaseAPI api;
+        /* package */final String language;
+        /* package */final int pageSegMode;
+
+        /** Variables that have been applied to this engine. */
+        /* package */final HashMap<String, String> variables;
+
+        private Engine(TessBaseAPI api, String language, int pageSegMode) {
+            this.api = api;
+            this.language = language;
+            this.pageSegMode = pageSegMode;
+            this.variables = new HashMap<String, String>();
+        }
+
+        /* package */boolean matches(String language, int pageSegMode) {
+            return this.pageSegMode == pageSegMode && this.language.equals(language);
+        }
+
+        /**
+         * Returns whether every variable previously applied to this engine is
+         * either unchanged or overridden by the requested variables.
+         */
+        /* package */boolean isCompatible(Map<String, String> requested) {
+            for (String key : variables.keySet()) {
+                if (!requested.containsKey(key)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}